@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.example.android.sunshine.data.TestUtilities.TEST_LOCATION;
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Checks that reading the forecast doesn't wait for a sync that is writing it, now that
+ * {@link WeatherDbHelper} opens the database with a write-ahead log, and measures how long reads
+ * take while a writer is busy.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestDatabaseConcurrency {
+
+    private static final String TAG = TestDatabaseConcurrency.class.getSimpleName();
+
+    private static final String[] LIST_PROJECTION = {
+            WeatherContract.WeatherEntry.COLUMN_DATE,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+    };
+
+    private static final int FORECAST_DAYS = 14;
+
+    /* How long the writer holds its transaction open for a reader that never gets through */
+    private static final long WRITE_HOLD_SECONDS = 5;
+
+    private static final int BENCHMARK_LOCATIONS = 20;
+    private static final int BENCHMARK_READERS = 4;
+    private static final int BENCHMARK_READS_PER_READER = 500;
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    private WeatherDbHelper mDbHelper;
+    private SQLiteDatabase mDatabase;
+
+    @Before
+    public void setUp() {
+        mDbHelper = new WeatherDbHelper(mContext);
+        mDatabase = mDbHelper.getWritableDatabase();
+        deleteAllWeather();
+    }
+
+    @After
+    public void tearDown() {
+        mDatabase.enableWriteAheadLogging();
+        deleteAllWeather();
+        mDbHelper.close();
+    }
+
+    /**
+     * While a write transaction is open, a reader on another thread must get through straight
+     * away and see the forecast as it was before the write, rather than wait for the commit.
+     */
+    @Test
+    public void testReadersProceedDuringWrite() throws InterruptedException {
+        final long locationId = WeatherDbHelper.getOrInsertLocationId(mDatabase, TEST_LOCATION);
+        writeForecast(locationId, 0);
+
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch readDone = new CountDownLatch(1);
+        final AtomicBoolean committed = new AtomicBoolean();
+        final AtomicReference<Throwable> writerFailure = new AtomicReference<>();
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                mDatabase.beginTransactionNonExclusive();
+                try {
+                    writeForecast(locationId, 100);
+                    writing.countDown();
+                    /* Keep the transaction open until the reader is done, or gives up */
+                    readDone.await(WRITE_HOLD_SECONDS, TimeUnit.SECONDS);
+                    mDatabase.setTransactionSuccessful();
+                } catch (Throwable t) {
+                    writerFailure.set(t);
+                } finally {
+                    mDatabase.endTransaction();
+                    committed.set(true);
+                }
+            }
+        });
+        writer.start();
+        assertTrue("The writer never started writing", writing.await(10, TimeUnit.SECONDS));
+
+        double firstMaxTemp = readFirstMaxTemp(locationId);
+        boolean readBeforeCommit = !committed.get();
+        readDone.countDown();
+        writer.join();
+
+        assertNull("The writer failed", writerFailure.get());
+        assertTrue("The read waited for the write to commit", readBeforeCommit);
+        assertEquals("The read should see the forecast from before the write",
+                firstMaxTemp(0), firstMaxTemp);
+        assertEquals("The write should be visible once committed",
+                firstMaxTemp(100), readFirstMaxTemp(locationId));
+    }
+
+    /**
+     * Runs several readers loading forecast lists while one writer keeps rewriting forecasts,
+     * first with a rollback journal and then with the write-ahead log, and logs the p50 and p99
+     * read latencies of each. The numbers are logged rather than asserted, as they depend on
+     * the device.
+     */
+    @Test
+    public void testBenchmarkReadsDuringWrites() throws InterruptedException {
+        long[] locationIds = new long[BENCHMARK_LOCATIONS];
+        for (int i = 0; i < locationIds.length; i++) {
+            locationIds[i] = WeatherDbHelper.getOrInsertLocationId(mDatabase, "benchmark-" + i);
+            writeForecast(locationIds[i], 0);
+        }
+
+        mDatabase.disableWriteAheadLogging();
+        runContentionBenchmark(locationIds);
+
+        mDatabase.enableWriteAheadLogging();
+        runContentionBenchmark(locationIds);
+    }
+
+    private void runContentionBenchmark(final long[] locationIds) throws InterruptedException {
+        String journalMode = queryJournalMode();
+        final AtomicBoolean readersDone = new AtomicBoolean();
+        final AtomicInteger writes = new AtomicInteger();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    int round = 0;
+                    while (!readersDone.get()) {
+                        round++;
+                        mDatabase.beginTransactionNonExclusive();
+                        try {
+                            for (long locationId : locationIds) {
+                                writeForecast(locationId, round);
+                            }
+                            mDatabase.setTransactionSuccessful();
+                        } finally {
+                            mDatabase.endTransaction();
+                        }
+                        writes.incrementAndGet();
+                    }
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            }
+        });
+
+        final long[][] latencies = new long[BENCHMARK_READERS][BENCHMARK_READS_PER_READER];
+        List<Thread> readers = new ArrayList<>();
+        for (int r = 0; r < BENCHMARK_READERS; r++) {
+            final long[] readerLatencies = latencies[r];
+            final Random random = new Random(r);
+            readers.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < readerLatencies.length; i++) {
+                            long start = SystemClock.elapsedRealtimeNanos();
+                            loadList(locationIds[random.nextInt(locationIds.length)]);
+                            readerLatencies[i] = SystemClock.elapsedRealtimeNanos() - start;
+                        }
+                    } catch (Throwable t) {
+                        failure.set(t);
+                    }
+                }
+            }));
+        }
+
+        writer.start();
+        for (Thread reader : readers) {
+            reader.start();
+        }
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        readersDone.set(true);
+        writer.join();
+        assertNull("The benchmark failed", failure.get());
+
+        long[] all = new long[BENCHMARK_READERS * BENCHMARK_READS_PER_READER];
+        for (int r = 0; r < BENCHMARK_READERS; r++) {
+            System.arraycopy(latencies[r], 0, all, r * BENCHMARK_READS_PER_READER,
+                    BENCHMARK_READS_PER_READER);
+        }
+        Arrays.sort(all);
+        Log.i(TAG, String.format(Locale.US,
+                "journal_mode=%s: %d readers, %d reads, %d writes; read p50 %d us, p99 %d us,"
+                        + " max %d us",
+                journalMode, BENCHMARK_READERS, all.length, writes.get(),
+                TimeUnit.NANOSECONDS.toMicros(getPercentile(all, 0.50)),
+                TimeUnit.NANOSECONDS.toMicros(getPercentile(all, 0.99)),
+                TimeUnit.NANOSECONDS.toMicros(all[all.length - 1])));
+    }
+
+    private static long getPercentile(long[] sorted, double percentile) {
+        return sorted[(int) Math.ceil(percentile * sorted.length) - 1];
+    }
+
+    /* Stores FORECAST_DAYS days for the location, with highs offset so each write differs */
+    private void writeForecast(long locationId, int offset) {
+        long today = SunshineDateUtils.getNormalizedUtcDateForToday();
+        for (int i = 0; i < FORECAST_DAYS; i++) {
+            ContentValues values = TestUtilities.createTestWeatherContentValues();
+            values.put(WeatherContract.WeatherEntry.COLUMN_LOCATION_ID, locationId);
+            values.put(WeatherContract.WeatherEntry.COLUMN_DATE,
+                    today + i * SunshineDateUtils.DAY_IN_MILLIS);
+            values.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, firstMaxTemp(offset) + i);
+            mDatabase.insertOrThrow(WeatherContract.WeatherEntry.TABLE_NAME, null, values);
+        }
+    }
+
+    private static double firstMaxTemp(int offset) {
+        return 20 + offset;
+    }
+
+    private double readFirstMaxTemp(long locationId) {
+        Cursor cursor = queryList(locationId);
+        try {
+            assertTrue("No forecast was stored", cursor.moveToFirst());
+            return cursor.getDouble(1);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /* Reads every cell the forecast list needs, the way the list adapter does */
+    private void loadList(long locationId) {
+        Cursor cursor = queryList(locationId);
+        try {
+            while (cursor.moveToNext()) {
+                cursor.getLong(0);
+                cursor.getDouble(1);
+                cursor.getDouble(2);
+                cursor.getInt(3);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private Cursor queryList(long locationId) {
+        return mDatabase.query(WeatherContract.WeatherEntry.TABLE_NAME,
+                LIST_PROJECTION,
+                WeatherContract.WeatherEntry.COLUMN_LOCATION_ID + " = ?",
+                new String[]{Long.toString(locationId)},
+                null,
+                null,
+                WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
+    }
+
+    private String queryJournalMode() {
+        Cursor cursor = mDatabase.rawQuery("PRAGMA journal_mode", null);
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : "unknown";
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /* Deleting the locations deletes their weather along with them */
+    private void deleteAllWeather() {
+        mDatabase.delete(WeatherContract.LocationEntry.TABLE_NAME, null, null);
+    }
+}
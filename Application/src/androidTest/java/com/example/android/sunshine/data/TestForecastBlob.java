@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import static com.example.android.sunshine.data.TestUtilities.TEST_LOCATION;
+import static com.example.android.sunshine.data.TestUtilities.createBulkInsertTestWeatherValues;
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+/**
+ * Tests the compact forecast blob made by {@link ForecastBlobCodec}, and compares reading it with
+ * reading the forecast list the way MainActivity does.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestForecastBlob {
+
+    private static final String TAG = TestForecastBlob.class.getSimpleName();
+
+    /* The columns MainActivity.MAIN_FORECAST_PROJECTION asks for to show the forecast list */
+    private static final String[] LIST_PROJECTION = {
+            WeatherContract.WeatherEntry.COLUMN_DATE,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+    };
+
+    private static final int BENCHMARK_DAYS = 14;
+    private static final int BENCHMARK_ITERATIONS = 200;
+
+    private static final int CURSOR_WINDOW_SLOT_BYTES = 12;
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    @Before
+    public void setUp() {
+        deleteAllWeather();
+    }
+
+    @After
+    public void tearDown() {
+        SunshinePreferences.setCompactForecastEnabled(mContext, false);
+        deleteAllWeather();
+    }
+
+    /**
+     * Every day must come back out of the blob exactly as it went in, gaps between days included.
+     */
+    @Test
+    public void testRoundTrip() {
+        ForecastColumns days = ForecastColumns.fromContentValues(
+                createBulkInsertTestWeatherValues());
+        /* A gap of a few days must survive the delta encoding of the dates */
+        days.add(days.getDate(days.size() - 1) + 3 * SunshineDateUtils.DAY_IN_MILLIS,
+                800, -4.25, 1.5, 70, 1013.2, 3.3, 270);
+
+        byte[] blob = ForecastBlobCodec.encode(days);
+        assertEquals("Wrong blob size",
+                ForecastBlobCodec.getEncodedLength(days.size()), blob.length);
+
+        ForecastColumns decoded = new ForecastColumns();
+        ForecastBlobCodec.decode(blob, decoded);
+        assertForecastsEqual(days, decoded);
+
+        ForecastBlobCodec.decode(ForecastBlobCodec.encode(new ForecastColumns()), decoded);
+        assertEquals("An empty forecast should decode as empty", 0, decoded.size());
+    }
+
+    /**
+     * A blob of a version we don't know, or one that was cut short, must be rejected rather than
+     * decoded into nonsense.
+     */
+    @Test
+    public void testRejectsBadBlobs() {
+        byte[] blob = ForecastBlobCodec.encode(ForecastColumns.fromContentValues(
+                createBulkInsertTestWeatherValues()));
+        ForecastColumns decoded = new ForecastColumns();
+
+        byte[] futureVersion = blob.clone();
+        futureVersion[0] = ForecastBlobCodec.VERSION + 1;
+        try {
+            ForecastBlobCodec.decode(futureVersion, decoded);
+            fail("A blob of an unknown version should be rejected");
+        } catch (IllegalArgumentException expected) {
+            assertEquals("Nothing should be decoded from a rejected blob", 0, decoded.size());
+        }
+
+        try {
+            ForecastBlobCodec.decode(Arrays.copyOf(blob, blob.length - 1), decoded);
+            fail("A truncated blob should be rejected");
+        } catch (IllegalArgumentException expected) {
+            assertEquals("Nothing should be decoded from a rejected blob", 0, decoded.size());
+        }
+    }
+
+    /**
+     * With compact storage on, writing a forecast must store its blob too; once it is turned off,
+     * the next write must clear the blob rather than leave it to go stale.
+     */
+    @Test
+    public void testCompactStorageFollowsPreference() {
+        ContentValues[] values = createBulkInsertTestWeatherValues();
+        ForecastColumns read = new ForecastColumns();
+
+        SunshinePreferences.setCompactForecastEnabled(mContext, true);
+        replaceForecast(values);
+        assertTrue("No compact forecast was stored",
+                ForecastBlobCodec.query(mContext, TEST_LOCATION, read));
+        assertForecastsEqual(ForecastColumns.fromContentValues(values), read);
+
+        SunshinePreferences.setCompactForecastEnabled(mContext, false);
+        replaceForecast(values);
+        assertFalse("The compact forecast should have been cleared",
+                ForecastBlobCodec.query(mContext, TEST_LOCATION, read));
+    }
+
+    /**
+     * Compares loading the forecast list through the weather table, as MainActivity does, with
+     * loading it from the compact blob. The numbers are logged rather than asserted, as they
+     * depend on the device.
+     */
+    @Test
+    public void testBenchmarkListLoad() {
+        ContentValues[] values = new ContentValues[BENCHMARK_DAYS];
+        long today = SunshineDateUtils.getNormalizedUtcDateForToday();
+        for (int i = 0; i < values.length; i++) {
+            values[i] = TestUtilities.createTestWeatherContentValues();
+            values[i].put(WeatherContract.WeatherEntry.COLUMN_DATE,
+                    today + i * SunshineDateUtils.DAY_IN_MILLIS);
+        }
+        SunshinePreferences.setCompactForecastEnabled(mContext, true);
+        replaceForecast(values);
+
+        /* Warm both paths up, so that neither pays for opening the database */
+        long rowsChecksum = loadThroughRows();
+        ForecastColumns days = new ForecastColumns(BENCHMARK_DAYS);
+        assertTrue("No compact forecast was stored",
+                ForecastBlobCodec.query(mContext, TEST_LOCATION, days));
+        assertEquals("Both ways of loading should see the same forecast",
+                rowsChecksum, checksum(days));
+
+        long rowsStart = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            loadThroughRows();
+        }
+        long rowsNanos = (SystemClock.elapsedRealtimeNanos() - rowsStart) / BENCHMARK_ITERATIONS;
+
+        long blobStart = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            ForecastBlobCodec.query(mContext, TEST_LOCATION, days);
+        }
+        long blobNanos = (SystemClock.elapsedRealtimeNanos() - blobStart) / BENCHMARK_ITERATIONS;
+
+        /*
+         * Every cell in a CursorWindow is a field slot of 12 bytes, which holds a number
+         * itself; a blob is copied in after the slots, next to its single cell.
+         */
+        int rowCells = BENCHMARK_DAYS * LIST_PROJECTION.length;
+        int blobBytes = ForecastBlobCodec.getEncodedLength(BENCHMARK_DAYS);
+        Log.i(TAG, String.format(Locale.US,
+                "Loading %d days: rows %d us (%d cells, %d bytes of CursorWindow), "
+                        + "blob %d us (1 cell, %d bytes of CursorWindow)",
+                BENCHMARK_DAYS,
+                TimeUnit.NANOSECONDS.toMicros(rowsNanos),
+                rowCells,
+                rowCells * CURSOR_WINDOW_SLOT_BYTES,
+                TimeUnit.NANOSECONDS.toMicros(blobNanos),
+                CURSOR_WINDOW_SLOT_BYTES + blobBytes));
+    }
+
+    /* Reads every cell the forecast list needs, the way the list adapter does */
+    private long loadThroughRows() {
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.WeatherEntry.buildWeatherUriWithLocation(TEST_LOCATION),
+                LIST_PROJECTION,
+                null,
+                null,
+                WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
+        assertNotNull("Cursor was null", cursor);
+        long checksum = 0;
+        try {
+            while (cursor.moveToNext()) {
+                checksum = checksum * 31 + cursor.getLong(0);
+                checksum = checksum * 31 + Double.doubleToLongBits(cursor.getDouble(1));
+                checksum = checksum * 31 + Double.doubleToLongBits(cursor.getDouble(2));
+                checksum = checksum * 31 + cursor.getInt(3);
+            }
+        } finally {
+            cursor.close();
+        }
+        return checksum;
+    }
+
+    private static long checksum(ForecastColumns days) {
+        long checksum = 0;
+        for (int i = 0; i < days.size(); i++) {
+            checksum = checksum * 31 + days.getDate(i);
+            checksum = checksum * 31 + Double.doubleToLongBits(days.getMaxTemp(i));
+            checksum = checksum * 31 + Double.doubleToLongBits(days.getMinTemp(i));
+            checksum = checksum * 31 + days.getWeatherId(i);
+        }
+        return checksum;
+    }
+
+    private void replaceForecast(ContentValues[] values) {
+        Bundle extras = new Bundle();
+        extras.putParcelableArray(WeatherContract.EXTRA_WEATHER_VALUES, values);
+        mContext.getContentResolver().call(WeatherContract.WeatherEntry.CONTENT_URI,
+                WeatherContract.METHOD_REPLACE_FORECAST, TEST_LOCATION, extras);
+    }
+
+    private static void assertForecastsEqual(ForecastColumns expected, ForecastColumns actual) {
+        assertEquals("Wrong number of days", expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals("Wrong date", expected.getDate(i), actual.getDate(i));
+            assertEquals("Wrong weather ID", expected.getWeatherId(i), actual.getWeatherId(i));
+            assertEquals("Wrong low", expected.getMinTemp(i), actual.getMinTemp(i));
+            assertEquals("Wrong high", expected.getMaxTemp(i), actual.getMaxTemp(i));
+            assertEquals("Wrong humidity", expected.getHumidity(i), actual.getHumidity(i));
+            assertEquals("Wrong pressure", expected.getPressure(i), actual.getPressure(i));
+            assertEquals("Wrong wind speed", expected.getWindSpeed(i), actual.getWindSpeed(i));
+            assertEquals("Wrong wind direction", expected.getDegrees(i), actual.getDegrees(i));
+        }
+    }
+
+    /* Deleting the locations deletes their weather along with them */
+    private void deleteAllWeather() {
+        mContext.getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI,
+                null, null);
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.ContentProviderClient;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.android.sunshine.utilities.OpenWeatherJsonUtils;
+import com.example.android.sunshine.utils.FakeForecastJson;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.util.Locale;
+
+import static com.example.android.sunshine.data.TestUtilities.createBulkInsertTestWeatherValues;
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+/**
+ * Tests {@link ForecastColumns} and measures how much less a sync allocates when the forecast is
+ * carried from the parser to the database in columns rather than in ContentValues. Benchmark
+ * results are written to logcat under the tag "TestForecastColumns".
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestForecastColumns {
+
+    private static final String TAG = TestForecastColumns.class.getSimpleName();
+
+    private static final String[] COLUMNS = {
+            WeatherContract.WeatherEntry.COLUMN_DATE,
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_HUMIDITY,
+            WeatherContract.WeatherEntry.COLUMN_PRESSURE,
+            WeatherContract.WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherContract.WeatherEntry.COLUMN_DEGREES
+    };
+
+    private static final int BENCHMARK_WARMUP_ITERATIONS = 20;
+    private static final int BENCHMARK_ITERATIONS = 100;
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    private ContentProviderClient mClient;
+    private WeatherProvider mWeatherProvider;
+
+    @Before
+    public void setUp() {
+        WeatherDbHelper helper = new WeatherDbHelper(mContext);
+        SQLiteDatabase database = helper.getWritableDatabase();
+        database.delete(WeatherContract.WeatherEntry.TABLE_NAME, null, null);
+        database.close();
+
+        mClient = mContext.getContentResolver()
+                .acquireContentProviderClient(WeatherContract.CONTENT_AUTHORITY);
+        assertNotNull("Could not acquire WeatherProvider", mClient);
+        mWeatherProvider = (WeatherProvider) mClient.getLocalContentProvider();
+    }
+
+    @After
+    public void tearDown() {
+        mClient.release();
+    }
+
+    /**
+     * Converting ContentValues to columns and back should give back exactly the same values, and
+     * adding more days than the initial capacity should grow the columns without losing any.
+     */
+    @Test
+    public void testContentValuesRoundTrip() {
+        ContentValues[] values = createBulkInsertTestWeatherValues();
+
+        ForecastColumns columns = ForecastColumns.fromContentValues(values);
+        assertEquals("Wrong number of days converted", values.length, columns.size());
+
+        ForecastColumns grown = new ForecastColumns(1);
+        for (int i = 0; i < columns.size(); i++) {
+            grown.add(columns.getDate(i), columns.getWeatherId(i), columns.getMinTemp(i),
+                    columns.getMaxTemp(i), columns.getHumidity(i), columns.getPressure(i),
+                    columns.getWindSpeed(i), columns.getDegrees(i));
+        }
+
+        ContentValues[] roundTrip = grown.toContentValuesArray();
+        assertEquals("Wrong number of days after growing", values.length, roundTrip.length);
+        for (int i = 0; i < values.length; i++) {
+            for (String column : COLUMNS) {
+                assertEquals("Day " + i + ", column '" + column + "' changed in the round trip",
+                        values[i].getAsDouble(column), roundTrip[i].getAsDouble(column));
+            }
+        }
+    }
+
+    @Test
+    public void testMissingColumnThrows() {
+        ContentValues value = TestUtilities.createTestWeatherContentValues();
+        value.remove(WeatherContract.WeatherEntry.COLUMN_PRESSURE);
+
+        try {
+            ForecastColumns.fromContentValues(new ContentValues[]{value});
+            fail("Converting ContentValues without every column should throw");
+        } catch (IllegalArgumentException expected) {
+            /* This is what we want */
+        }
+    }
+
+    @Test
+    public void testClearKeepsColumnsReusable() {
+        ForecastColumns columns = ForecastColumns.fromContentValues(
+                createBulkInsertTestWeatherValues());
+        long firstDate = columns.getDate(0);
+
+        columns.clear();
+        assertEquals("Cleared columns should be empty", 0, columns.size());
+
+        columns.add(firstDate, 800, 1, 2, 3, 4, 5, 6);
+        assertEquals("Day added after clearing was not kept", 1, columns.size());
+        assertEquals("Day added after clearing has the wrong date",
+                firstDate, columns.getDate(0));
+    }
+
+    @Test
+    public void testBinarySearchDate() {
+        ForecastColumns columns = ForecastColumns.fromContentValues(
+                createBulkInsertTestWeatherValues());
+
+        for (int i = 0; i < columns.size(); i++) {
+            assertEquals("Day was not found by its date",
+                    i, columns.binarySearchDate(columns.getDate(i)));
+        }
+        assertTrue("A date that isn't held should not be found",
+                columns.binarySearchDate(columns.getDate(0) - 1) < 0);
+    }
+
+    /**
+     * Parses and writes a 14 day forecast the way a sync does, once carrying the days in
+     * ContentValues and once in ForecastColumns, and logs the mean time and bytes allocated per
+     * sync. Every sync alternates between two forecasts so that each one rewrites all 14 rows.
+     */
+    @Test
+    public void benchmarkContentValuesVersusColumns() throws Exception {
+        byte[][] bodies = {
+                FakeForecastJson.createForecastJson(14, 1).getBytes("UTF-8"),
+                FakeForecastJson.createForecastJson(14, 2).getBytes("UTF-8")
+        };
+
+        for (int i = 0; i < BENCHMARK_WARMUP_ITERATIONS; i++) {
+            syncWithContentValues(bodies[i % 2]);
+            syncWithColumns(bodies[i % 2]);
+        }
+
+        long[] contentValues = measure(bodies, false);
+        long[] columns = measure(bodies, true);
+
+        Log.i(TAG, String.format(Locale.US,
+                "14 day sync: ContentValues %d ns, %d B allocated; "
+                        + "ForecastColumns %d ns, %d B allocated",
+                contentValues[0], contentValues[1], columns[0], columns[1]));
+    }
+
+    /**
+     * @return {mean nanoseconds per sync, mean bytes allocated per sync}
+     */
+    private long[] measure(byte[][] bodies, boolean columns) throws Exception {
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocSize();
+        long start = SystemClock.elapsedRealtimeNanos();
+
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            if (columns) {
+                syncWithColumns(bodies[i % 2]);
+            } else {
+                syncWithContentValues(bodies[i % 2]);
+            }
+        }
+
+        long elapsed = SystemClock.elapsedRealtimeNanos() - start;
+        long allocated = Debug.getThreadAllocSize();
+        Debug.stopAllocCounting();
+
+        return new long[]{elapsed / BENCHMARK_ITERATIONS, allocated / BENCHMARK_ITERATIONS};
+    }
+
+    /* This is how the sync carried the forecast before ForecastColumns */
+    private void syncWithContentValues(byte[] body) throws Exception {
+        ContentValues[] values = OpenWeatherJsonUtils.getWeatherContentValuesFromStream(
+                mContext, new ByteArrayInputStream(body));
+
+        ForecastWriter writer = mWeatherProvider.openForecastWriter(TestUtilities.TEST_LOCATION);
+        try {
+            writer.insert(values, values.length);
+            writer.commit();
+        } finally {
+            writer.close();
+        }
+    }
+
+    private void syncWithColumns(byte[] body) throws Exception {
+        ForecastColumns days = OpenWeatherJsonUtils.getForecastColumnsFromStream(
+                mContext, new ByteArrayInputStream(body));
+
+        ForecastWriter writer = mWeatherProvider.openForecastWriter(TestUtilities.TEST_LOCATION);
+        try {
+            writer.insert(days);
+            writer.commit();
+        } finally {
+            writer.close();
+        }
+    }
+}
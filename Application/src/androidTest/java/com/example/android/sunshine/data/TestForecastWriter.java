@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.ContentProviderClient;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.sunshine.utilities.SyncMetrics;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.example.android.sunshine.data.TestUtilities.BULK_INSERT_RECORDS_TO_INSERT;
+import static com.example.android.sunshine.data.TestUtilities.OTHER_TEST_LOCATION;
+import static com.example.android.sunshine.data.TestUtilities.TEST_LOCATION;
+import static com.example.android.sunshine.data.TestUtilities.createBulkInsertTestWeatherValues;
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+/**
+ * Tests the {@link ForecastWriter} that the sync uses to replace the forecast a few days at a
+ * time, writing only the days that changed.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestForecastWriter {
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    private ContentProviderClient mClient;
+    private WeatherProvider mWeatherProvider;
+
+    @Before
+    public void setUp() {
+        WeatherDbHelper helper = new WeatherDbHelper(mContext);
+        SQLiteDatabase database = helper.getWritableDatabase();
+        database.delete(WeatherContract.WeatherEntry.TABLE_NAME, null, null);
+        database.close();
+
+        ContentResolver contentResolver = mContext.getContentResolver();
+        mClient = contentResolver.acquireContentProviderClient(WeatherContract.CONTENT_AUTHORITY);
+        assertNotNull("Could not acquire WeatherProvider", mClient);
+        mWeatherProvider = (WeatherProvider) mClient.getLocalContentProvider();
+    }
+
+    @After
+    public void tearDown() {
+        mClient.release();
+    }
+
+    /**
+     * Writes the test forecast in batches of three and makes sure that the old forecast is gone
+     * and the new one is complete once the writer commits.
+     */
+    @Test
+    public void testCommittedBatchesReplaceForecast() {
+        mContext.getContentResolver().bulkInsert(
+                WeatherContract.WeatherEntry.buildWeatherUriWithLocation(TEST_LOCATION),
+                new ContentValues[]{TestUtilities.createTestWeatherContentValues()});
+
+        ContentValues[] values = createBulkInsertTestWeatherValues();
+
+        ForecastWriter writer = mWeatherProvider.openForecastWriter(TEST_LOCATION);
+        try {
+            for (int start = 0; start < values.length; start += 3) {
+                ContentValues[] batch = new ContentValues[3];
+                int count = Math.min(3, values.length - start);
+                System.arraycopy(values, start, batch, 0, count);
+                writer.insert(batch, count);
+            }
+            writer.commit();
+        } finally {
+            writer.close();
+        }
+
+        assertEquals("ForecastWriter reported the wrong number of rows written",
+                BULK_INSERT_RECORDS_TO_INSERT, writer.getRowsWritten());
+        assertEquals("The stale day from the old forecast should have been deleted",
+                1, writer.getRowsDeleted());
+        assertEquals("Old forecast was not replaced by the committed forecast",
+                BULK_INSERT_RECORDS_TO_INSERT, countWeatherRows());
+    }
+
+    /**
+     * Writing exactly the forecast that is already stored should not write a single row.
+     */
+    @Test
+    public void testUnchangedForecastIsSkipped() {
+        ContentValues[] values = createBulkInsertTestWeatherValues();
+        writeForecast(values);
+
+        ForecastWriter writer = writeForecast(createBulkInsertTestWeatherValues());
+
+        assertEquals("Unchanged days should not be written", 0, writer.getRowsWritten());
+        assertEquals("Every day should have been skipped",
+                BULK_INSERT_RECORDS_TO_INSERT, writer.getRowsSkipped());
+        assertEquals("No day should have been deleted", 0, writer.getRowsDeleted());
+        assertEquals("Forecast should be unchanged",
+                BULK_INSERT_RECORDS_TO_INSERT, countWeatherRows());
+    }
+
+    /**
+     * Only the days whose values changed should be written, and the stored rows should then
+     * hold the new values.
+     */
+    @Test
+    public void testOnlyChangedDaysAreWritten() {
+        writeForecast(createBulkInsertTestWeatherValues());
+
+        ContentValues[] values = createBulkInsertTestWeatherValues();
+        values[2].put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, 99.5);
+        values[5].put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, 800);
+
+        ForecastWriter writer = writeForecast(values);
+
+        assertEquals("Only the two changed days should be written", 2, writer.getRowsWritten());
+        assertEquals("Every other day should have been skipped",
+                BULK_INSERT_RECORDS_TO_INSERT - 2, writer.getRowsSkipped());
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.WeatherEntry.buildWeatherUriWithLocationAndDate(TEST_LOCATION,
+                        values[2].getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE)),
+                null,
+                null,
+                null,
+                null);
+        TestUtilities.validateThenCloseCursor("Changed day was not updated", cursor, values[2]);
+    }
+
+    /**
+     * Closing a writer without committing must leave the old forecast exactly as it was.
+     */
+    @Test
+    public void testUncommittedBatchesAreRolledBack() {
+        mContext.getContentResolver().bulkInsert(
+                WeatherContract.WeatherEntry.buildWeatherUriWithLocation(TEST_LOCATION),
+                new ContentValues[]{TestUtilities.createTestWeatherContentValues()});
+
+        ContentValues[] values = createBulkInsertTestWeatherValues();
+
+        SyncMetrics.reset();
+        ForecastWriter writer = mWeatherProvider.openForecastWriter(TEST_LOCATION);
+        try {
+            writer.insert(values, values.length);
+        } finally {
+            writer.close();
+        }
+
+        assertEquals("Closing an uncommitted ForecastWriter should keep the old forecast",
+                1, countWeatherRows());
+        assertEquals("Rows that were rolled back must not count as written",
+                0, SyncMetrics.ROWS_WRITTEN.get());
+    }
+
+    /**
+     * Forecasts written together with {@link WeatherProvider#writeForecasts(List)} are stored
+     * together, but one that can't be written must not cost the others their update.
+     */
+    @Test
+    public void testWriteForecastsIsolatesBadForecast() {
+        ForecastColumns days = ForecastColumns.fromContentValues(
+                createBulkInsertTestWeatherValues());
+
+        /* A date that isn't normalized can't be written */
+        ForecastColumns badDays = new ForecastColumns();
+        badDays.add(days.getDate(0) + 1, 800, 1, 2, 3, 4, 5, 6);
+
+        List<LocationForecast> forecasts = new ArrayList<>();
+        forecasts.add(new LocationForecast(TEST_LOCATION, days));
+        forecasts.add(new LocationForecast(OTHER_TEST_LOCATION, badDays));
+
+        SyncMetrics.reset();
+        assertEquals("Only the good forecast should have been written",
+                1, mWeatherProvider.writeForecasts(forecasts));
+        assertTrue("Good forecast was not written", forecasts.get(0).isWritten());
+        assertFalse("Bad forecast should not have been written", forecasts.get(1).isWritten());
+        assertEquals("Wrong number of rows written for the good forecast",
+                BULK_INSERT_RECORDS_TO_INSERT, forecasts.get(0).getRowsWritten());
+        assertEquals("Only the good forecast should be stored",
+                BULK_INSERT_RECORDS_TO_INSERT, countWeatherRows());
+        /* The good forecast is written twice, but the first, rolled back, write mustn't count */
+        assertEquals("Wrong number of rows counted as written",
+                BULK_INSERT_RECORDS_TO_INSERT, SyncMetrics.ROWS_WRITTEN.get());
+    }
+
+    /**
+     * Forecasts whose write is cancelled must be rolled back together, leaving the old forecast
+     * in place, rather than fall back to being written one at a time.
+     */
+    @Test
+    public void testCancelledWriteForecastsKeepsOldForecast() {
+        mContext.getContentResolver().bulkInsert(
+                WeatherContract.WeatherEntry.buildWeatherUriWithLocation(TEST_LOCATION),
+                new ContentValues[]{TestUtilities.createTestWeatherContentValues()});
+
+        List<LocationForecast> forecasts = new ArrayList<>();
+        forecasts.add(new LocationForecast(TEST_LOCATION,
+                ForecastColumns.fromContentValues(createBulkInsertTestWeatherValues())));
+
+        CancellationSignal cancellationSignal = new CancellationSignal();
+        cancellationSignal.cancel();
+        try {
+            mWeatherProvider.writeForecasts(forecasts, cancellationSignal);
+            fail("A cancelled write should have thrown OperationCanceledException");
+        } catch (OperationCanceledException expected) {
+            /* The write was abandoned, as it should be */
+        }
+
+        assertFalse("Cancelled forecast should not be marked written",
+                forecasts.get(0).isWritten());
+        assertEquals("A cancelled write should keep the old forecast", 1, countWeatherRows());
+    }
+
+    private ForecastWriter writeForecast(ContentValues[] values) {
+        ForecastWriter writer = mWeatherProvider.openForecastWriter(TEST_LOCATION);
+        try {
+            writer.insert(values, values.length);
+            writer.commit();
+        } finally {
+            writer.close();
+        }
+        return writer;
+    }
+
+    private int countWeatherRows() {
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.WeatherEntry.CONTENT_URI,
+                null,
+                null,
+                null,
+                null);
+        assertNotNull("Cursor was null", cursor);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+}
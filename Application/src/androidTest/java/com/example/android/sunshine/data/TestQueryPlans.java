@@ -0,0 +1,389 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import static com.example.android.sunshine.data.TestUtilities.TEST_LOCATION;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+/**
+ * Runs EXPLAIN QUERY PLAN for every query the app makes of the database, and fails if SQLite
+ * would answer any of them by reading a whole table or by sorting into a temporary B-tree. A
+ * query that is fast on a two-week forecast can still be one a change to the schema or the
+ * query quietly turned into a scan; this catches that before the table grows.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestQueryPlans {
+
+    private static final String TAG = TestQueryPlans.class.getSimpleName();
+
+    /* The columns MainActivity.MAIN_FORECAST_PROJECTION asks for to show the forecast list */
+    private static final String[] LIST_PROJECTION = {
+            WeatherContract.WeatherEntry.COLUMN_DATE,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+    };
+
+    /* The columns DetailActivity.WEATHER_DETAIL_PROJECTION asks for */
+    private static final String[] DETAIL_PROJECTION = {
+            WeatherContract.WeatherEntry.COLUMN_DATE,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_HUMIDITY,
+            WeatherContract.WeatherEntry.COLUMN_PRESSURE,
+            WeatherContract.WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherContract.WeatherEntry.COLUMN_DEGREES,
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID
+    };
+
+    /* The columns NotificationUtils.WEATHER_NOTIFICATION_PROJECTION asks for */
+    private static final String[] NOTIFICATION_PROJECTION = {
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+    };
+
+    private static final String SORT_BY_DATE = WeatherContract.WeatherEntry.COLUMN_DATE + " ASC";
+
+    /* 500 locations with 200 days each make a weather table of 100,000 rows */
+    private static final int BENCHMARK_LOCATIONS = 500;
+    private static final int BENCHMARK_DAYS = 200;
+    private static final int BENCHMARK_ITERATIONS = 200;
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    private WeatherDbHelper mDbHelper;
+    private SQLiteDatabase mDatabase;
+
+    @Before
+    public void setUp() {
+        mDbHelper = new WeatherDbHelper(mContext);
+        mDatabase = mDbHelper.getWritableDatabase();
+        deleteAllWeather();
+    }
+
+    @After
+    public void tearDown() {
+        WeatherDbHelper.createWeatherIndexes(mDatabase);
+        deleteAllWeather();
+        mDbHelper.close();
+    }
+
+    /**
+     * No query the app makes may scan the weather table or sort its results itself, and the
+     * forecast list and the stored forecast ForecastWriter reads must come from the covering
+     * index alone.
+     */
+    @Test
+    public void testNoQueryScansOrSorts() {
+        for (QueryShape shape : buildQueryShapes(TEST_LOCATION)) {
+            List<String> plan = explain(shape);
+            for (String step : plan) {
+                if (step.contains("TEMP B-TREE")) {
+                    fail("The " + shape.mName + " query sorts into a temporary B-tree: " + plan);
+                }
+                if (step.startsWith("SCAN") && !shape.mMayScan) {
+                    fail("The " + shape.mName + " query scans a whole table: " + plan);
+                }
+            }
+            if (shape.mMustBeCovered) {
+                assertTrue("The " + shape.mName + " query isn't answered from the covering"
+                                + " index: " + plan,
+                        plan.toString().contains(
+                                "COVERING INDEX " + WeatherDbHelper.INDEX_WEATHER_FORECAST));
+            }
+        }
+    }
+
+    /**
+     * Times the forecast list, detail and single date queries against a weather table of
+     * 100,000 rows, first with the indexes and then with only the UNIQUE constraint's index
+     * SQLite builds by itself. The numbers are logged rather than asserted, as they depend on
+     * the device.
+     */
+    @Test
+    public void testBenchmarkLargeTable() {
+        long insertNanos = insertBenchmarkWeather();
+        Log.i(TAG, String.format(Locale.US, "Inserted %d rows in %d ms",
+                BENCHMARK_LOCATIONS * BENCHMARK_DAYS,
+                TimeUnit.NANOSECONDS.toMillis(insertNanos)));
+
+        String location = getBenchmarkLocation(BENCHMARK_LOCATIONS / 2);
+        List<QueryShape> shapes = new ArrayList<>();
+        for (QueryShape shape : buildQueryShapes(location)) {
+            if (shape.mBenchmark) {
+                shapes.add(shape);
+            }
+        }
+
+        for (QueryShape shape : shapes) {
+            logBenchmark("indexed", shape);
+        }
+
+        mDatabase.execSQL("DROP INDEX " + WeatherDbHelper.INDEX_WEATHER_FORECAST);
+        mDatabase.execSQL("DROP INDEX " + WeatherDbHelper.INDEX_WEATHER_DATE);
+        for (QueryShape shape : shapes) {
+            logBenchmark("unindexed", shape);
+        }
+    }
+
+    /*
+     * Every query the app makes, built the way WeatherProvider, ForecastWriter and
+     * MultiLocationSyncEngine build them.
+     */
+    private static List<QueryShape> buildQueryShapes(String location) {
+        String weather = WeatherContract.WeatherEntry.TABLE_NAME;
+        String locations = WeatherContract.LocationEntry.TABLE_NAME;
+        String today = Long.toString(SunshineDateUtils.getNormalizedUtcDateForToday());
+        String locationId = "1";
+
+        List<QueryShape> shapes = new ArrayList<>();
+
+        /* MainActivity: the forecast list, from today onwards */
+        shapes.add(new QueryShape("forecast list",
+                SQLiteQueryBuilder.buildQueryString(false, weather, LIST_PROJECTION,
+                        WeatherProvider.SELECTION_LOCATION_SETTING + " AND ("
+                                + WeatherContract.WeatherEntry.getSqlSelectForTodayOnwards()
+                                + ")",
+                        null, null, SORT_BY_DATE, null),
+                new String[]{location})
+                .mustBeCovered().benchmark());
+
+        /* DetailActivity: one day of one location */
+        shapes.add(new QueryShape("detail",
+                SQLiteQueryBuilder.buildQueryString(false, weather, DETAIL_PROJECTION,
+                        WeatherProvider.SELECTION_LOCATION_SETTING_AND_DATE,
+                        null, null, null, null),
+                new String[]{location, today})
+                .benchmark());
+
+        /* NotificationUtils: today's weather */
+        shapes.add(new QueryShape("notification",
+                SQLiteQueryBuilder.buildQueryString(false, weather, NOTIFICATION_PROJECTION,
+                        WeatherProvider.SELECTION_LOCATION_SETTING_AND_DATE,
+                        null, null, null, null),
+                new String[]{location, today}));
+
+        /* WeatherProvider still answers for one date across every location */
+        shapes.add(new QueryShape("single date",
+                SQLiteQueryBuilder.buildQueryString(false, weather, DETAIL_PROJECTION,
+                        WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ",
+                        null, null, null, null),
+                new String[]{today})
+                .benchmark());
+
+        /* SunshineSyncTask: whether a location has any forecast at all */
+        shapes.add(new QueryShape("stored forecast check",
+                SQLiteQueryBuilder.buildQueryString(false, weather,
+                        new String[]{WeatherContract.WeatherEntry._ID},
+                        WeatherProvider.SELECTION_LOCATION_SETTING,
+                        null, null, null, null),
+                new String[]{location}));
+
+        shapes.add(new QueryShape("freshness probe",
+                WeatherProvider.SQL_PROBE_FRESHNESS,
+                new String[]{today, location}));
+
+        /* ForecastWriter: the stored forecast it compares new days with */
+        shapes.add(new QueryShape("stored days",
+                SQLiteQueryBuilder.buildQueryString(false, weather,
+                        ForecastWriter.STORED_DAY_PROJECTION,
+                        ForecastWriter.SELECTION_LOCATION_ID,
+                        null, null, SORT_BY_DATE, null),
+                new String[]{locationId})
+                .mustBeCovered());
+
+        shapes.add(new QueryShape("stale day delete",
+                "DELETE FROM " + weather + " WHERE "
+                        + ForecastWriter.SELECTION_LOCATION_ID_AND_DATE,
+                new String[]{locationId, today}));
+
+        shapes.add(new QueryShape("location weather delete",
+                "DELETE FROM " + weather + " WHERE "
+                        + WeatherProvider.SELECTION_LOCATION_SETTING,
+                new String[]{location}));
+
+        /* ForecastBlobCodec: the compact forecast of one location */
+        shapes.add(new QueryShape("compact forecast",
+                SQLiteQueryBuilder.buildQueryString(false, locations,
+                        new String[]{WeatherContract.LocationEntry.COLUMN_FORECAST_BLOB},
+                        WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                        null, null, null, null),
+                new String[]{location}));
+
+        /*
+         * MultiLocationSyncEngine: every saved location. Reading the whole location table is
+         * the point of this one, but it must not have to sort it.
+         */
+        shapes.add(new QueryShape("saved locations",
+                SQLiteQueryBuilder.buildQueryString(false, locations,
+                        new String[]{WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING},
+                        null, null, null, WeatherContract.LocationEntry._ID + " ASC", null),
+                null)
+                .mayScan());
+
+        return shapes;
+    }
+
+    /* Returns the detail of every step of the query's plan */
+    private List<String> explain(QueryShape shape) {
+        Cursor cursor = mDatabase.rawQuery("EXPLAIN QUERY PLAN " + shape.mSql, shape.mArgs);
+        List<String> plan = new ArrayList<>();
+        try {
+            int detailIndex = cursor.getColumnIndexOrThrow("detail");
+            while (cursor.moveToNext()) {
+                plan.add(cursor.getString(detailIndex));
+            }
+        } finally {
+            cursor.close();
+        }
+        return plan;
+    }
+
+    private void logBenchmark(String label, QueryShape shape) {
+        /* Warm up, so that the first run doesn't pay for reading the pages from storage */
+        int rows = runQuery(shape);
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            runQuery(shape);
+        }
+        long nanos = (SystemClock.elapsedRealtimeNanos() - start) / BENCHMARK_ITERATIONS;
+        Log.i(TAG, String.format(Locale.US, "%s %s: %d rows in %d us, plan %s",
+                label, shape.mName, rows, TimeUnit.NANOSECONDS.toMicros(nanos),
+                explain(shape)));
+    }
+
+    /* Runs the query and reads every cell, as the screens that make it do */
+    private int runQuery(QueryShape shape) {
+        Cursor cursor = mDatabase.rawQuery(shape.mSql, shape.mArgs);
+        try {
+            int columns = cursor.getColumnCount();
+            while (cursor.moveToNext()) {
+                for (int i = 0; i < columns; i++) {
+                    cursor.getDouble(i);
+                }
+            }
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /* Fills the weather table with BENCHMARK_DAYS days for each of BENCHMARK_LOCATIONS */
+    private long insertBenchmarkWeather() {
+        long today = SunshineDateUtils.getNormalizedUtcDateForToday();
+        long start = SystemClock.elapsedRealtimeNanos();
+        SQLiteStatement insert = mDatabase.compileStatement("INSERT INTO "
+                + WeatherContract.WeatherEntry.TABLE_NAME + " ("
+                + WeatherContract.WeatherEntry.COLUMN_LOCATION_ID + ", "
+                + WeatherContract.WeatherEntry.COLUMN_DATE + ", "
+                + WeatherContract.WeatherEntry.COLUMN_WEATHER_ID + ", "
+                + WeatherContract.WeatherEntry.COLUMN_MIN_TEMP + ", "
+                + WeatherContract.WeatherEntry.COLUMN_MAX_TEMP + ", "
+                + WeatherContract.WeatherEntry.COLUMN_HUMIDITY + ", "
+                + WeatherContract.WeatherEntry.COLUMN_PRESSURE + ", "
+                + WeatherContract.WeatherEntry.COLUMN_WIND_SPEED + ", "
+                + WeatherContract.WeatherEntry.COLUMN_DEGREES
+                + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)");
+        mDatabase.beginTransaction();
+        try {
+            for (int l = 0; l < BENCHMARK_LOCATIONS; l++) {
+                long locationId = WeatherDbHelper.getOrInsertLocationId(mDatabase,
+                        getBenchmarkLocation(l));
+                for (int d = 0; d < BENCHMARK_DAYS; d++) {
+                    insert.bindLong(1, locationId);
+                    insert.bindLong(2, today + d * SunshineDateUtils.DAY_IN_MILLIS);
+                    insert.bindLong(3, 800 + (l + d) % 4);
+                    insert.bindDouble(4, d % 20);
+                    insert.bindDouble(5, d % 20 + 10);
+                    insert.bindDouble(6, 50 + d % 50);
+                    insert.bindDouble(7, 1000 + d % 30);
+                    insert.bindDouble(8, d % 15);
+                    insert.bindDouble(9, (l * 7 + d) % 360);
+                    insert.executeInsert();
+                }
+            }
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+            insert.close();
+        }
+        return SystemClock.elapsedRealtimeNanos() - start;
+    }
+
+    private static String getBenchmarkLocation(int index) {
+        return "benchmark-" + index;
+    }
+
+    /* Deleting the locations deletes their weather along with them */
+    private void deleteAllWeather() {
+        mDatabase.delete(WeatherContract.LocationEntry.TABLE_NAME, null, null);
+    }
+
+    /* One query the app makes, with arguments to explain it with */
+    private static class QueryShape {
+        final String mName;
+        final String mSql;
+        final String[] mArgs;
+        boolean mMayScan;
+        boolean mMustBeCovered;
+        boolean mBenchmark;
+
+        QueryShape(String name, String sql, String[] args) {
+            mName = name;
+            mSql = sql;
+            mArgs = args;
+        }
+
+        QueryShape mayScan() {
+            mMayScan = true;
+            return this;
+        }
+
+        QueryShape mustBeCovered() {
+            mMustBeCovered = true;
+            return this;
+        }
+
+        QueryShape benchmark() {
+            mBenchmark = true;
+            return this;
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Bundle;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+import com.example.android.sunshine.utilities.SyncMetrics;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Tests that {@link StorageManager} switches the database to incremental vacuum, gives free
+ * pages back, and evicts the locations fetched longest ago to fit its budget.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestStorageManager {
+
+    private static final int LOCATIONS = 10;
+    private static final int DAYS_PER_LOCATION = 300;
+
+    /* Large enough that nothing is ever evicted */
+    private static final long NO_BUDGET = Long.MAX_VALUE;
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    private WeatherDbHelper mDbHelper;
+    private SQLiteDatabase mDatabase;
+
+    @Before
+    public void setUp() {
+        mDbHelper = new WeatherDbHelper(mContext);
+        mDatabase = mDbHelper.getWritableDatabase();
+        deleteAllWeather();
+        /* Start every test from a database that uses incremental vacuum and has no free pages */
+        new StorageManager(NO_BUDGET).maintain(mDatabase, null);
+    }
+
+    @After
+    public void tearDown() {
+        deleteAllWeather();
+        mDbHelper.close();
+    }
+
+    /**
+     * A database made before incremental vacuum was turned on must be switched over by the
+     * first run.
+     */
+    @Test
+    public void testConvertsToIncrementalVacuum() {
+        mDatabase.execSQL("PRAGMA auto_vacuum = NONE");
+        mDatabase.execSQL("VACUUM");
+        assertEquals("The database should have been switched back for the test", 0,
+                DatabaseUtils.longForQuery(mDatabase, "PRAGMA auto_vacuum", null));
+
+        StorageManager.Result result = new StorageManager(NO_BUDGET).maintain(mDatabase, null);
+
+        assertTrue("Converting the database takes a VACUUM", result.isVacuumed());
+        assertEquals("The database should now use incremental vacuum",
+                StorageManager.AUTO_VACUUM_INCREMENTAL,
+                DatabaseUtils.longForQuery(mDatabase, "PRAGMA auto_vacuum", null));
+    }
+
+    /**
+     * Once weather is deleted, the pages it took must be given back, and the bytes reclaimed
+     * must be reported through SyncMetrics.
+     */
+    @Test
+    public void testVacuumReclaimsFreePages() {
+        insertLocations();
+        deleteAllWeather();
+        StorageManager.Stats before = StorageManager.Stats.read(mDatabase);
+        assertTrue("Deleting the weather should have left free pages",
+                before.getFreePages() >= StorageManager.MIN_FREE_PAGES_TO_VACUUM);
+
+        SyncMetrics.reset();
+        StorageManager.Result result = new StorageManager(NO_BUDGET).maintain(mDatabase, null);
+
+        assertTrue("The free pages should have been vacuumed", result.isVacuumed());
+        assertEquals("No free pages should be left", 0, result.getAfter().getFreePages());
+        assertTrue("The database should have shrunk", result.getBytesReclaimed() > 0);
+        assertEquals("Wrong number of bytes reported as reclaimed",
+                result.getBytesReclaimed(), SyncMetrics.STORAGE_BYTES_RECLAIMED.get());
+        assertEquals("Wrong database size reported",
+                result.getAfter().getTotalBytes(), SyncMetrics.DATABASE_BYTES.get());
+    }
+
+    /**
+     * Over budget, the locations fetched longest ago must be evicted first, along with their
+     * weather, until the database fits. The location to keep must stay even though it is the
+     * oldest of all.
+     */
+    @Test
+    public void testEvictsOldestLocationsOverBudget() {
+        insertLocations();
+        long budget = StorageManager.Stats.read(mDatabase).getUsedBytes() / 2;
+
+        StorageManager.Result result = new StorageManager(budget)
+                .maintain(mDatabase, getLocationSetting(0));
+
+        int evicted = result.getLocationsEvicted();
+        assertTrue("Some locations should have been evicted", evicted > 0);
+        assertTrue("The database should fit its budget",
+                result.getAfter().getUsedBytes() <= budget);
+        assertTrue("The location to keep was evicted",
+                WeatherDbHelper.getLocationId(mDatabase, getLocationSetting(0)) != -1);
+        for (int i = 1; i < LOCATIONS; i++) {
+            boolean stored = WeatherDbHelper.getLocationId(mDatabase, getLocationSetting(i)) != -1;
+            assertEquals("Locations should be evicted oldest first", i > evicted, stored);
+        }
+        assertEquals("The evicted locations' weather should be gone",
+                (LOCATIONS - evicted) * DAYS_PER_LOCATION,
+                DatabaseUtils.queryNumEntries(mDatabase,
+                        WeatherContract.WeatherEntry.TABLE_NAME));
+    }
+
+    /**
+     * A budget that nothing fits in must stop at the location to keep, not evict it.
+     */
+    @Test
+    public void testNeverEvictsLocationToKeep() {
+        insertLocations();
+
+        StorageManager.Result result = new StorageManager(1)
+                .maintain(mDatabase, getLocationSetting(0));
+
+        assertEquals("Every other location should have been evicted", LOCATIONS - 1,
+                result.getLocationsEvicted());
+        assertEquals("Only the location to keep should be left", 1,
+                DatabaseUtils.queryNumEntries(mDatabase, WeatherContract.LocationEntry.TABLE_NAME));
+    }
+
+    /**
+     * METHOD_MAINTAIN_STORAGE must report the size of the database it left.
+     */
+    @Test
+    public void testMaintainThroughProvider() {
+        Bundle result = mContext.getContentResolver().call(
+                WeatherContract.WeatherEntry.CONTENT_URI,
+                WeatherContract.METHOD_MAINTAIN_STORAGE, null, null);
+
+        assertNotNull("The provider returned nothing", result);
+        assertEquals("Wrong database size",
+                StorageManager.Stats.read(mDatabase).getTotalBytes(),
+                result.getLong(WeatherContract.RESULT_DATABASE_BYTES));
+    }
+
+    /* Stores LOCATIONS locations, each fetched later than the one before */
+    private void insertLocations() {
+        long today = SunshineDateUtils.getNormalizedUtcDateForToday();
+        mDatabase.beginTransaction();
+        try {
+            for (int i = 0; i < LOCATIONS; i++) {
+                long locationId = WeatherDbHelper.getOrInsertLocationId(mDatabase,
+                        getLocationSetting(i));
+                ContentValues locationValues = new ContentValues();
+                locationValues.put(WeatherContract.LocationEntry.COLUMN_FETCHED_AT, i + 1);
+                mDatabase.update(WeatherContract.LocationEntry.TABLE_NAME, locationValues,
+                        WeatherContract.LocationEntry._ID + " = ?",
+                        new String[]{Long.toString(locationId)});
+
+                for (int day = 0; day < DAYS_PER_LOCATION; day++) {
+                    ContentValues values = TestUtilities.createTestWeatherContentValues();
+                    values.put(WeatherContract.WeatherEntry.COLUMN_LOCATION_ID, locationId);
+                    values.put(WeatherContract.WeatherEntry.COLUMN_DATE,
+                            today + day * SunshineDateUtils.DAY_IN_MILLIS);
+                    mDatabase.insertOrThrow(WeatherContract.WeatherEntry.TABLE_NAME, null,
+                            values);
+                }
+            }
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+    }
+
+    private static String getLocationSetting(int location) {
+        return "storage-" + location;
+    }
+
+    /* Deleting the locations deletes their weather along with them */
+    private void deleteAllWeather() {
+        mDatabase.delete(WeatherContract.LocationEntry.TABLE_NAME, null, null);
+    }
+}
@@ -18,6 +18,7 @@ package com.example.android.sunshine.data;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.provider.BaseColumns;
@@ -32,6 +33,7 @@ import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.HashSet;
+import java.util.Locale;
 import java.util.concurrent.TimeUnit;
 
 import static com.example.android.sunshine.data.TestUtilities.getConstantNameByStringValue;
@@ -57,6 +59,7 @@ import static junit.framework.Assert.fail;
  * 4) Verify that NON NULL constraints are working properly on record inserts
  * 5) Verify auto increment is working with the ID
  * 6) Test the onUpgrade functionality of the WeatherDbHelper
+ * 7) Upgrading from the single location database keeps the forecast that was stored in it
  */
 @RunWith(AndroidJUnit4.class)
 public class TestSunshineDatabase {
@@ -193,7 +196,7 @@ public class TestSunshineDatabase {
 
     @Test
     public void testDatabaseVersionWasIncremented() {
-        int expectedDatabaseVersion = 3;
+        int expectedDatabaseVersion = 8;
         String databaseVersionShouldBe1 = "Database version should be "
                 + expectedDatabaseVersion + " but isn't."
                 + "\n Database version: ";
@@ -226,7 +229,7 @@ public class TestSunshineDatabase {
     public void testDuplicateDateInsertBehaviorShouldReplace() {
 
         /* Obtain weather values from TestUtilities */
-        ContentValues testWeatherValues = TestUtilities.createTestWeatherContentValues();
+        ContentValues testWeatherValues = createTestWeatherValuesWithLocation();
 
         /*
          * Get the original weather ID of the testWeatherValues to ensure we use a different
@@ -292,7 +295,7 @@ public class TestSunshineDatabase {
         weatherTableCursor.close();
 
         /* Obtain weather values from TestUtilities and make a copy to avoid altering singleton */
-        ContentValues testValues = TestUtilities.createTestWeatherContentValues();
+        ContentValues testValues = createTestWeatherValuesWithLocation();
         /* Create a copy of the testValues to save as a reference point to restore values */
         ContentValues testValuesReferenceCopy = new ContentValues(testValues);
 
@@ -345,7 +348,7 @@ public class TestSunshineDatabase {
         testInsertSingleRecordIntoWeatherTable();
 
         /* Obtain weather values from TestUtilities */
-        ContentValues testWeatherValues = TestUtilities.createTestWeatherContentValues();
+        ContentValues testWeatherValues = createTestWeatherValuesWithLocation();
 
         /* Get the date of the testWeatherValues to ensure we use a different date later */
         long originalDate = testWeatherValues.getAsLong(REFLECTED_COLUMN_DATE);
@@ -454,8 +457,9 @@ public class TestSunshineDatabase {
          */
         final HashSet<String> tableNameHashSet = new HashSet<>();
 
-        /* Here, we add the name of our only table in this particular database */
+        /* Here, we add the names of the tables in this particular database */
         tableNameHashSet.add(REFLECTED_TABLE_NAME);
+        tableNameHashSet.add(WeatherContract.LocationEntry.TABLE_NAME);
         /* Students, here is where you would add any other table names if you had them */
 //        tableNameHashSet.add(MyAwesomeSuperCoolTableName);
 //        tableNameHashSet.add(MyOtherCoolTableNameThatContainsOtherCoolData);
@@ -500,6 +504,32 @@ public class TestSunshineDatabase {
         tableNameCursor.close();
     }
 
+    /**
+     * A brand new database must be created with our page size, and opened with write-ahead
+     * logging, so that reading the forecast never waits for a sync to finish writing it.
+     */
+    @Test
+    public void testDatabaseIsConfiguredForConcurrentReads() {
+        assertEquals("Database should use a write-ahead log",
+                "wal", queryPragma("journal_mode").toLowerCase(Locale.US));
+        assertEquals("Wrong page size",
+                Integer.toString(WeatherDbHelper.PAGE_SIZE_BYTES), queryPragma("page_size"));
+        /* 1 is NORMAL */
+        assertEquals("Wrong synchronous level", "1", queryPragma("synchronous"));
+        assertEquals("Foreign keys should be enforced", "1", queryPragma("foreign_keys"));
+    }
+
+    /**
+     * A brand new database must be created with incremental vacuum, so that StorageManager can
+     * give free pages back without rebuilding the whole file.
+     */
+    @Test
+    public void testNewDatabaseUsesIncrementalVacuum() {
+        assertEquals("Database should use incremental vacuum",
+                Integer.toString(StorageManager.AUTO_VACUUM_INCREMENTAL),
+                queryPragma("auto_vacuum"));
+    }
+
     /**
      * This method tests inserting a single record into an empty table from a brand new database.
      * It will fail for the following reasons:
@@ -513,7 +543,7 @@ public class TestSunshineDatabase {
     public void testInsertSingleRecordIntoWeatherTable() {
 
         /* Obtain weather values from TestUtilities */
-        ContentValues testWeatherValues = TestUtilities.createTestWeatherContentValues();
+        ContentValues testWeatherValues = createTestWeatherValuesWithLocation();
 
         /* Insert ContentValues into database and get a row ID back */
         long weatherRowId = database.insert(
@@ -572,4 +602,197 @@ public class TestSunshineDatabase {
         /* Close cursor */
         weatherCursor.close();
     }
-}
\ No newline at end of file
+
+    /**
+     * Builds a version 3 weather table, which had no location column and only allowed one row
+     * per date, fills it, and upgrades it. Every row should survive the upgrade, filed under the
+     * location the user has set.
+     */
+    @Test
+    public void testUpgradeFromVersion3PreservesForecast() {
+        database.execSQL("DROP TABLE " + WeatherContract.WeatherEntry.TABLE_NAME);
+        database.execSQL("DROP TABLE " + WeatherContract.LocationEntry.TABLE_NAME);
+        database.execSQL("CREATE TABLE " + WeatherContract.WeatherEntry.TABLE_NAME + " ("
+                + WeatherContract.WeatherEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + REFLECTED_COLUMN_DATE + " INTEGER NOT NULL, "
+                + REFLECTED_COLUMN_WEATHER_ID + " INTEGER NOT NULL, "
+                + REFLECTED_COLUMN_MIN + " REAL NOT NULL, "
+                + REFLECTED_COLUMN_MAX + " REAL NOT NULL, "
+                + REFLECTED_COLUMN_HUMIDITY + " REAL NOT NULL, "
+                + REFLECTED_COLUMN_PRESSURE + " REAL NOT NULL, "
+                + REFLECTED_COLUMN_WIND_SPEED + " REAL NOT NULL, "
+                + REFLECTED_COLUMN_WIND_DIR + " REAL NOT NULL, "
+                + " UNIQUE (" + REFLECTED_COLUMN_DATE + ") ON CONFLICT REPLACE);");
+
+        ContentValues[] version3Values = TestUtilities.createBulkInsertTestWeatherValues();
+        for (ContentValues value : version3Values) {
+            assertTrue("Insert into the version 3 weather table failed",
+                    database.insert(REFLECTED_TABLE_NAME, null, value) != -1);
+        }
+
+        dbHelper.onUpgrade(database, 3, 4);
+
+        String preferredLocation = SunshinePreferences.getPreferredWeatherLocation(context);
+        Cursor locationCursor = database.query(
+                WeatherContract.LocationEntry.TABLE_NAME,
+                new String[]{WeatherContract.LocationEntry._ID,
+                        WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING},
+                null, null, null, null, null);
+        assertTrue("Upgrade did not add the preferred location", locationCursor.moveToFirst());
+        long locationId = locationCursor.getLong(0);
+        assertEquals("Upgrade added the wrong location",
+                preferredLocation, locationCursor.getString(1));
+        assertEquals("Upgrade should add exactly one location", 1, locationCursor.getCount());
+        locationCursor.close();
+
+        Cursor weatherCursor = database.query(
+                REFLECTED_TABLE_NAME,
+                null,
+                null,
+                null,
+                null,
+                null,
+                REFLECTED_COLUMN_DATE + " ASC");
+        assertEquals("Upgrade lost weather rows",
+                version3Values.length, weatherCursor.getCount());
+
+        int locationIdIndex =
+                weatherCursor.getColumnIndex(WeatherContract.WeatherEntry.COLUMN_LOCATION_ID);
+        for (ContentValues value : version3Values) {
+            assertTrue("Upgrade lost weather rows", weatherCursor.moveToNext());
+            TestUtilities.validateCurrentRecord("Upgrade changed a weather row",
+                    weatherCursor, value);
+            assertEquals("Upgraded weather row is filed under the wrong location",
+                    locationId, weatherCursor.getLong(locationIdIndex));
+        }
+        weatherCursor.close();
+
+        /* The upgraded table must allow the same date for different locations */
+        ContentValues otherLocationValues = new ContentValues(version3Values[0]);
+        otherLocationValues.put(WeatherContract.WeatherEntry.COLUMN_LOCATION_ID,
+                TestUtilities.insertTestLocation(database));
+        database.insert(REFLECTED_TABLE_NAME, null, otherLocationValues);
+        assertEquals("Same date for a different location replaced the upgraded row",
+                version3Values.length + 1,
+                DatabaseUtils.queryNumEntries(database, REFLECTED_TABLE_NAME));
+    }
+
+    /**
+     * Builds a version 4 location table, which had no fetch time, and upgrades it. The locations
+     * and their weather must survive, with no fetch time, so that they are refreshed soon.
+     */
+    @Test
+    public void testUpgradeFromVersion4AddsFetchTime() {
+        database.execSQL("DROP TABLE " + WeatherContract.WeatherEntry.TABLE_NAME);
+        database.execSQL("DROP TABLE " + WeatherContract.LocationEntry.TABLE_NAME);
+        database.execSQL("CREATE TABLE " + WeatherContract.LocationEntry.TABLE_NAME + " ("
+                + WeatherContract.LocationEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING
+                + " TEXT NOT NULL UNIQUE, "
+                + WeatherContract.LocationEntry.COLUMN_COORD_LAT + " REAL, "
+                + WeatherContract.LocationEntry.COLUMN_COORD_LONG + " REAL);");
+
+        long locationId = TestUtilities.insertTestLocation(database);
+
+        dbHelper.onUpgrade(database, 4, 5);
+
+        Cursor locationCursor = database.query(
+                WeatherContract.LocationEntry.TABLE_NAME,
+                new String[]{WeatherContract.LocationEntry._ID,
+                        WeatherContract.LocationEntry.COLUMN_FETCHED_AT},
+                null, null, null, null, null);
+        assertTrue("Upgrade lost the location", locationCursor.moveToFirst());
+        assertEquals("Upgrade changed the location's _ID", locationId, locationCursor.getLong(0));
+        assertTrue("An upgraded location should have no fetch time", locationCursor.isNull(1));
+        locationCursor.close();
+    }
+
+    /**
+     * Upgrading from version 5 must add the compact forecast blob, empty, and keep the rest.
+     */
+    @Test
+    public void testUpgradeFromVersion5AddsForecastBlob() {
+        database.execSQL("DROP TABLE " + WeatherContract.WeatherEntry.TABLE_NAME);
+        database.execSQL("DROP TABLE " + WeatherContract.LocationEntry.TABLE_NAME);
+        database.execSQL("CREATE TABLE " + WeatherContract.LocationEntry.TABLE_NAME + " ("
+                + WeatherContract.LocationEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING
+                + " TEXT NOT NULL UNIQUE, "
+                + WeatherContract.LocationEntry.COLUMN_COORD_LAT + " REAL, "
+                + WeatherContract.LocationEntry.COLUMN_COORD_LONG + " REAL, "
+                + WeatherContract.LocationEntry.COLUMN_FETCHED_AT + " INTEGER);");
+
+        long locationId = TestUtilities.insertTestLocation(database);
+
+        dbHelper.onUpgrade(database, 5, 6);
+
+        Cursor locationCursor = database.query(
+                WeatherContract.LocationEntry.TABLE_NAME,
+                new String[]{WeatherContract.LocationEntry._ID,
+                        WeatherContract.LocationEntry.COLUMN_FORECAST_BLOB},
+                null, null, null, null, null);
+        assertTrue("Upgrade lost the location", locationCursor.moveToFirst());
+        assertEquals("Upgrade changed the location's _ID", locationId, locationCursor.getLong(0));
+        assertTrue("An upgraded location should have no blob", locationCursor.isNull(1));
+        locationCursor.close();
+    }
+
+    /**
+     * Upgrading from version 6 must build the covering indexes on the weather table as it is,
+     * and keep the weather already stored.
+     */
+    @Test
+    public void testUpgradeFromVersion6AddsCoveringIndexes() {
+        database.insert(WeatherContract.WeatherEntry.TABLE_NAME, null,
+                createTestWeatherValuesWithLocation());
+        database.execSQL("DROP INDEX " + WeatherDbHelper.INDEX_WEATHER_FORECAST);
+        database.execSQL("DROP INDEX " + WeatherDbHelper.INDEX_WEATHER_DATE);
+
+        dbHelper.onUpgrade(database, 6, 7);
+
+        Cursor indexCursor = database.rawQuery(
+                "SELECT name FROM sqlite_master WHERE type='index' AND name IN (?, ?)",
+                new String[]{WeatherDbHelper.INDEX_WEATHER_FORECAST,
+                        WeatherDbHelper.INDEX_WEATHER_DATE});
+        assertEquals("Upgrade should have built both indexes", 2, indexCursor.getCount());
+        indexCursor.close();
+
+        assertEquals("Upgrade lost the weather", 1,
+                DatabaseUtils.queryNumEntries(database, REFLECTED_TABLE_NAME));
+    }
+
+    /**
+     * Upgrading from version 7 must add the empty history table, and keep the weather.
+     */
+    @Test
+    public void testUpgradeFromVersion7AddsHistory() {
+        database.insert(WeatherContract.WeatherEntry.TABLE_NAME, null,
+                createTestWeatherValuesWithLocation());
+        database.execSQL("DROP TABLE " + WeatherContract.HistoryEntry.TABLE_NAME);
+
+        dbHelper.onUpgrade(database, 7, 8);
+
+        assertEquals("Upgrade should have added an empty history", 0,
+                DatabaseUtils.queryNumEntries(database, WeatherContract.HistoryEntry.TABLE_NAME));
+        assertEquals("Upgrade lost the weather", 1,
+                DatabaseUtils.queryNumEntries(database, REFLECTED_TABLE_NAME));
+    }
+
+    private String queryPragma(String pragma) {
+        Cursor cursor = database.rawQuery("PRAGMA " + pragma, null);
+        try {
+            assertTrue("PRAGMA " + pragma + " returned nothing", cursor.moveToFirst());
+            return cursor.getString(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /* Every weather row now needs a location, so the test weather gets the test location */
+    private ContentValues createTestWeatherValuesWithLocation() {
+        ContentValues testWeatherValues = TestUtilities.createTestWeatherContentValues();
+        testWeatherValues.put(WeatherContract.WeatherEntry.COLUMN_LOCATION_ID,
+                TestUtilities.insertTestLocation(database));
+        return testWeatherValues;
+    }
+}
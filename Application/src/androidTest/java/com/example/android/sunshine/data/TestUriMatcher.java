@@ -37,6 +37,18 @@ public class TestUriMatcher {
     private static final Uri TEST_WEATHER_DIR = WeatherContract.WeatherEntry.CONTENT_URI;
     private static final Uri TEST_WEATHER_WITH_DATE_DIR = WeatherContract.WeatherEntry
             .buildWeatherUriWithDate(TestUtilities.DATE_NORMALIZED);
+    private static final Uri TEST_WEATHER_WITH_LOCATION_DIR = WeatherContract.WeatherEntry
+            .buildWeatherUriWithLocation(TestUtilities.TEST_LOCATION);
+    private static final Uri TEST_WEATHER_WITH_LOCATION_AND_DATE_DIR =
+            WeatherContract.WeatherEntry.buildWeatherUriWithLocationAndDate(TestUtilities.TEST_LOCATION,
+                    TestUtilities.DATE_NORMALIZED);
+    private static final Uri TEST_LOCATION_DIR = WeatherContract.LocationEntry.CONTENT_URI;
+    private static final Uri TEST_HISTORY_DIR = WeatherContract.HistoryEntry.CONTENT_URI;
+    private static final Uri TEST_HISTORY_WITH_LOCATION_DIR = WeatherContract.HistoryEntry
+            .buildHistoryUriWithLocation(TestUtilities.TEST_LOCATION);
+    private static final Uri TEST_HISTORY_WITH_LOCATION_AND_DATE_DIR =
+            WeatherContract.HistoryEntry.buildHistoryUriWithLocationAndDate(
+                    TestUtilities.TEST_LOCATION, TestUtilities.DATE_NORMALIZED);
 
     private static final String weatherCodeVariableName = "CODE_WEATHER";
     private static int REFLECTED_WEATHER_CODE;
@@ -44,6 +56,28 @@ public class TestUriMatcher {
     private static final String weatherCodeWithDateVariableName = "CODE_WEATHER_WITH_DATE";
     private static int REFLECTED_WEATHER_WITH_DATE_CODE;
 
+    private static final String weatherCodeWithLocationVariableName =
+            "CODE_WEATHER_WITH_LOCATION";
+    private static int REFLECTED_WEATHER_WITH_LOCATION_CODE;
+
+    private static final String weatherCodeWithLocationAndDateVariableName =
+            "CODE_WEATHER_WITH_LOCATION_AND_DATE";
+    private static int REFLECTED_WEATHER_WITH_LOCATION_AND_DATE_CODE;
+
+    private static final String locationCodeVariableName = "CODE_LOCATION";
+    private static int REFLECTED_LOCATION_CODE;
+
+    private static final String historyCodeVariableName = "CODE_HISTORY";
+    private static int REFLECTED_HISTORY_CODE;
+
+    private static final String historyCodeWithLocationVariableName =
+            "CODE_HISTORY_WITH_LOCATION";
+    private static int REFLECTED_HISTORY_WITH_LOCATION_CODE;
+
+    private static final String historyCodeWithLocationAndDateVariableName =
+            "CODE_HISTORY_WITH_LOCATION_AND_DATE";
+    private static int REFLECTED_HISTORY_WITH_LOCATION_AND_DATE_CODE;
+
     private UriMatcher testMatcher;
 
     @Before
@@ -61,6 +95,30 @@ public class TestUriMatcher {
                     WeatherProvider.class,
                     weatherCodeWithDateVariableName);
 
+            REFLECTED_WEATHER_WITH_LOCATION_CODE = getStaticIntegerField(
+                    WeatherProvider.class,
+                    weatherCodeWithLocationVariableName);
+
+            REFLECTED_WEATHER_WITH_LOCATION_AND_DATE_CODE = getStaticIntegerField(
+                    WeatherProvider.class,
+                    weatherCodeWithLocationAndDateVariableName);
+
+            REFLECTED_LOCATION_CODE = getStaticIntegerField(
+                    WeatherProvider.class,
+                    locationCodeVariableName);
+
+            REFLECTED_HISTORY_CODE = getStaticIntegerField(
+                    WeatherProvider.class,
+                    historyCodeVariableName);
+
+            REFLECTED_HISTORY_WITH_LOCATION_CODE = getStaticIntegerField(
+                    WeatherProvider.class,
+                    historyCodeWithLocationVariableName);
+
+            REFLECTED_HISTORY_WITH_LOCATION_AND_DATE_CODE = getStaticIntegerField(
+                    WeatherProvider.class,
+                    historyCodeWithLocationAndDateVariableName);
+
         } catch (NoSuchFieldException e) {
             fail(studentReadableNoSuchField(e));
         } catch (IllegalAccessException e) {
@@ -101,5 +159,31 @@ public class TestUriMatcher {
         assertEquals(weatherWithDateUriCodeDoesNotMatch,
                 expectedWeatherWithDateCode,
                 actualWeatherWithDateCode);
+
+        assertEquals("Error: The CODE_WEATHER_WITH_LOCATION URI was matched incorrectly.",
+                REFLECTED_WEATHER_WITH_LOCATION_CODE,
+                testMatcher.match(TEST_WEATHER_WITH_LOCATION_DIR));
+
+        assertEquals(
+                "Error: The CODE_WEATHER_WITH_LOCATION_AND_DATE URI was matched incorrectly.",
+                REFLECTED_WEATHER_WITH_LOCATION_AND_DATE_CODE,
+                testMatcher.match(TEST_WEATHER_WITH_LOCATION_AND_DATE_DIR));
+
+        assertEquals("Error: The CODE_LOCATION URI was matched incorrectly.",
+                REFLECTED_LOCATION_CODE,
+                testMatcher.match(TEST_LOCATION_DIR));
+
+        assertEquals("Error: The CODE_HISTORY URI was matched incorrectly.",
+                REFLECTED_HISTORY_CODE,
+                testMatcher.match(TEST_HISTORY_DIR));
+
+        assertEquals("Error: The CODE_HISTORY_WITH_LOCATION URI was matched incorrectly.",
+                REFLECTED_HISTORY_WITH_LOCATION_CODE,
+                testMatcher.match(TEST_HISTORY_WITH_LOCATION_DIR));
+
+        assertEquals(
+                "Error: The CODE_HISTORY_WITH_LOCATION_AND_DATE URI was matched incorrectly.",
+                REFLECTED_HISTORY_WITH_LOCATION_AND_DATE_CODE,
+                testMatcher.match(TEST_HISTORY_WITH_LOCATION_AND_DATE_DIR));
     }
 }
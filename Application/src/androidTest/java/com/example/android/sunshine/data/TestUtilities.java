@@ -18,6 +18,7 @@ package com.example.android.sunshine.data;
 import android.content.ContentValues;
 import android.database.ContentObserver;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.os.Handler;
 import android.os.HandlerThread;
@@ -59,6 +60,23 @@ class TestUtilities {
 
     static final int BULK_INSERT_RECORDS_TO_INSERT = 10;
 
+    /* North Pole, Alaska. Test weather is stored under this location */
+    static final String TEST_LOCATION = "99705";
+
+    /* Weather for this location should never be touched by writes for TEST_LOCATION */
+    static final String OTHER_TEST_LOCATION = "94043";
+
+    /**
+     * Adds TEST_LOCATION to the location table, if it isn't there already, so that weather can
+     * be inserted for it directly into the database.
+     *
+     * @param database A writable weather database
+     * @return The _ID of the test location
+     */
+    static long insertTestLocation(SQLiteDatabase database) {
+        return WeatherDbHelper.getOrInsertLocationId(database, TEST_LOCATION);
+    }
+
     /**
      * Ensures there is a non empty cursor and validates the cursor's data by checking it against
      * a set of expected values. This method will then close the cursor.
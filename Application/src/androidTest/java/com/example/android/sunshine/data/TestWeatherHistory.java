@@ -0,0 +1,315 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Bundle;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.android.sunshine.data.WeatherContract.HistoryEntry;
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Locale;
+import java.util.Random;
+
+import static com.example.android.sunshine.data.TestUtilities.DATE_NORMALIZED;
+import static com.example.android.sunshine.data.TestUtilities.TEST_LOCATION;
+import static com.example.android.sunshine.data.TestUtilities.createBulkInsertTestWeatherValues;
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Tests the forecast history: which days {@link ForecastWriter} archives, the history URIs, and
+ * how {@link HistoryCompactor} keeps the history bounded. A simulated year of syncs measures how
+ * the database grows with history kept.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestWeatherHistory {
+
+    private static final String TAG = TestWeatherHistory.class.getSimpleName();
+
+    private static final long DAY = SunshineDateUtils.DAY_IN_MILLIS;
+    private static final long HOUR = DAY / 24;
+
+    /* When the first test forecast was fetched, so when the days archived from it were issued */
+    private static final long ISSUED_AT = DATE_NORMALIZED - 2 * HOUR;
+
+    private static final int SIMULATED_DAYS = 365;
+    private static final int SIMULATED_LOCATIONS = 4;
+    private static final int SIMULATED_SYNCS_PER_DAY = 2;
+    private static final int SIMULATED_FORECAST_DAYS = 14;
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    private WeatherDbHelper mDbHelper;
+    private SQLiteDatabase mDatabase;
+
+    @Before
+    public void setUp() {
+        mDbHelper = new WeatherDbHelper(mContext);
+        mDatabase = mDbHelper.getWritableDatabase();
+        deleteAllWeather();
+    }
+
+    @After
+    public void tearDown() {
+        SunshinePreferences.setHistoryEnabled(mContext, false);
+        deleteAllWeather();
+        mDbHelper.close();
+    }
+
+    /**
+     * With history on, a day whose forecast changed and a day that dropped out of the forecast
+     * must both be archived as they were, issued when the replaced forecast was fetched. A day
+     * that didn't change must not be archived.
+     */
+    @Test
+    public void testArchivesReplacedDays() {
+        SunshinePreferences.setHistoryEnabled(mContext, true);
+        ContentValues[] values = createBulkInsertTestWeatherValues();
+        replaceForecast(values);
+        setFetchedAt(TEST_LOCATION, ISSUED_AT);
+
+        long changedDate = values[0].getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+        double changedMaxTemp = values[0].getAsDouble(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP);
+        ContentValues[] newValues = new ContentValues[values.length - 1];
+        System.arraycopy(values, 0, newValues, 0, newValues.length);
+        newValues[0] = new ContentValues(values[0]);
+        newValues[0].put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, changedMaxTemp + 3);
+        Bundle result = replaceForecast(newValues);
+
+        assertEquals("One day was updated", 1,
+                result.getInt(WeatherContract.RESULT_ROWS_WRITTEN));
+        Cursor history = query(HistoryEntry.buildHistoryUriWithLocation(TEST_LOCATION));
+        try {
+            assertEquals("The changed and the dropped day should be archived", 2,
+                    history.getCount());
+
+            /* The history is sorted by date, so the changed day, which is first, comes first */
+            assertTrue(history.moveToFirst());
+            assertEquals("Wrong date archived", changedDate,
+                    history.getLong(history.getColumnIndex(HistoryEntry.COLUMN_DATE)));
+            assertEquals("The old forecast should be archived", changedMaxTemp,
+                    history.getDouble(history.getColumnIndex(HistoryEntry.COLUMN_MAX_TEMP)));
+            assertEquals("Wrong issue time", ISSUED_AT,
+                    history.getLong(history.getColumnIndex(HistoryEntry.COLUMN_ISSUED_AT)));
+
+            assertTrue(history.moveToNext());
+            assertEquals("The dropped day should be archived",
+                    (long) values[values.length - 1].getAsLong(
+                            WeatherContract.WeatherEntry.COLUMN_DATE),
+                    history.getLong(history.getColumnIndex(HistoryEntry.COLUMN_DATE)));
+        } finally {
+            history.close();
+        }
+
+        Cursor forDate = query(
+                HistoryEntry.buildHistoryUriWithLocationAndDate(TEST_LOCATION, changedDate));
+        try {
+            assertEquals("Only the one forecast for the changed date was archived", 1,
+                    forDate.getCount());
+        } finally {
+            forDate.close();
+        }
+    }
+
+    /**
+     * With history off, which is the default, replacing a forecast must not archive anything.
+     */
+    @Test
+    public void testNoHistoryWhenDisabled() {
+        ContentValues[] values = createBulkInsertTestWeatherValues();
+        replaceForecast(values);
+        replaceForecast(new ContentValues[]{values[1]});
+
+        assertEquals("Nothing should be archived with history off", 0,
+                DatabaseUtils.queryNumEntries(mDatabase, HistoryEntry.TABLE_NAME));
+    }
+
+    /**
+     * Past the full detail window, only the last forecast issued on each day before a date is
+     * kept; within it, every forecast is. Dates past the age limit are dropped altogether.
+     */
+    @Test
+    public void testCompactionDownsamplesAndPrunes() {
+        long locationId = TestUtilities.insertTestLocation(mDatabase);
+        long now = DATE_NORMALIZED + 12 * HOUR;
+
+        /* Three forecasts issued the same day, three days ahead, then one a day ahead */
+        long oldDate = DATE_NORMALIZED - 10 * DAY;
+        insertHistory(locationId, oldDate, oldDate - 3 * DAY + HOUR, 10);
+        insertHistory(locationId, oldDate, oldDate - 3 * DAY + 5 * HOUR, 11);
+        long keptThreeDaysAhead = insertHistory(locationId, oldDate,
+                oldDate - 3 * DAY + 9 * HOUR, 12);
+        long keptOneDayAhead = insertHistory(locationId, oldDate, oldDate - DAY + 2 * HOUR, 13);
+
+        /* The same three forecasts for a recent date are all kept */
+        long recentDate = DATE_NORMALIZED - 2 * DAY;
+        insertHistory(locationId, recentDate, recentDate - 3 * DAY + HOUR, 20);
+        insertHistory(locationId, recentDate, recentDate - 3 * DAY + 5 * HOUR, 21);
+        insertHistory(locationId, recentDate, recentDate - 3 * DAY + 9 * HOUR, 22);
+
+        long ancientDate = DATE_NORMALIZED - 400 * DAY;
+        insertHistory(locationId, ancientDate, ancientDate - DAY, 30);
+
+        HistoryCompactor.Result result = new HistoryCompactor().compact(mDatabase, now);
+
+        assertEquals("Wrong number of rows downsampled", 2, result.getRowsDownsampled());
+        assertEquals("Wrong number of rows pruned by age", 1, result.getRowsPrunedByAge());
+        assertEquals("Nothing should be evicted under the budget", 0, result.getRowsEvicted());
+        assertEquals("Wrong number of rows left", 5, result.getRowsRemaining());
+        assertEquals(5, DatabaseUtils.queryNumEntries(mDatabase, HistoryEntry.TABLE_NAME));
+
+        String[] kept = {Long.toString(keptThreeDaysAhead), Long.toString(keptOneDayAhead)};
+        assertEquals("The last forecast of each day should be kept", 2,
+                DatabaseUtils.queryNumEntries(mDatabase, HistoryEntry.TABLE_NAME,
+                        HistoryEntry._ID + " IN (?, ?)", kept));
+    }
+
+    /**
+     * Over its budget, the history must lose the forecasts for its oldest dates first.
+     */
+    @Test
+    public void testCompactionEnforcesBudget() {
+        long locationId = TestUtilities.insertTestLocation(mDatabase);
+        for (int i = 0; i < 8; i++) {
+            long date = DATE_NORMALIZED - (i + 1) * DAY;
+            insertHistory(locationId, date, date - DAY, i);
+        }
+
+        HistoryCompactor.Result result = new HistoryCompactor(365, 30, 5)
+                .compact(mDatabase, DATE_NORMALIZED);
+
+        assertEquals("Wrong number of rows evicted", 3, result.getRowsEvicted());
+        assertEquals("Wrong number of rows left", 5, result.getRowsRemaining());
+        assertEquals("The oldest dates should have been evicted", 0,
+                DatabaseUtils.queryNumEntries(mDatabase, HistoryEntry.TABLE_NAME,
+                        HistoryEntry.COLUMN_DATE + " < ?",
+                        new String[]{Long.toString(DATE_NORMALIZED - 5 * DAY)}));
+    }
+
+    /**
+     * Syncs several locations twice a day for a simulated year with history kept, compacting
+     * once a day as the maintenance job would, and logs the size of the database every month.
+     * The history must never be left over its budget.
+     */
+    @Test
+    public void testSimulatedYearGrowth() {
+        Random random = new Random(SIMULATED_DAYS);
+        HistoryCompactor compactor = new HistoryCompactor();
+        ForecastColumns days = new ForecastColumns(SIMULATED_FORECAST_DAYS);
+        long start = DATE_NORMALIZED;
+
+        for (int day = 0; day < SIMULATED_DAYS; day++) {
+            long now = start;
+            for (int sync = 0; sync < SIMULATED_SYNCS_PER_DAY; sync++) {
+                now = start + day * DAY + sync * (DAY / SIMULATED_SYNCS_PER_DAY);
+                long today = SunshineDateUtils.normalizeDate(now);
+                for (int location = 0; location < SIMULATED_LOCATIONS; location++) {
+                    days.clear();
+                    for (int i = 0; i < SIMULATED_FORECAST_DAYS; i++) {
+                        /* Each forecast for a date wobbles a little from the last */
+                        days.add(today + i * DAY, 800, 10, 20 + random.nextInt(3),
+                                60, 1013, 4, 180);
+                    }
+                    String locationSetting = "simulated-" + location;
+                    ForecastWriter writer = new ForecastWriter(mDbHelper, null, locationSetting);
+                    writer.setKeepHistory(true);
+                    try {
+                        writer.insert(days);
+                        writer.commit();
+                    } finally {
+                        writer.close();
+                    }
+                    setFetchedAt(locationSetting, now);
+                }
+            }
+
+            HistoryCompactor.Result result = compactor.compact(mDatabase, now);
+            assertTrue("The history was left over its budget",
+                    result.getRowsRemaining() <= HistoryCompactor.DEFAULT_MAX_ROWS);
+
+            if ((day + 1) % 30 == 0 || day == SIMULATED_DAYS - 1) {
+                Log.i(TAG, String.format(Locale.US,
+                        "Day %d: %d history rows, %d weather rows, database %d KB",
+                        day + 1, result.getRowsRemaining(),
+                        DatabaseUtils.queryNumEntries(mDatabase,
+                                WeatherContract.WeatherEntry.TABLE_NAME),
+                        getDatabaseBytes() / 1024));
+            }
+        }
+    }
+
+    private long insertHistory(long locationId, long date, long issuedAt, int weatherId) {
+        ContentValues values = new ContentValues();
+        values.put(HistoryEntry.COLUMN_LOCATION_ID, locationId);
+        values.put(HistoryEntry.COLUMN_DATE, date);
+        values.put(HistoryEntry.COLUMN_ISSUED_AT, issuedAt);
+        values.put(HistoryEntry.COLUMN_WEATHER_ID, weatherId);
+        values.put(HistoryEntry.COLUMN_MIN_TEMP, 10);
+        values.put(HistoryEntry.COLUMN_MAX_TEMP, 20);
+        values.put(HistoryEntry.COLUMN_HUMIDITY, 60);
+        values.put(HistoryEntry.COLUMN_PRESSURE, 1013);
+        values.put(HistoryEntry.COLUMN_WIND_SPEED, 4);
+        values.put(HistoryEntry.COLUMN_DEGREES, 180);
+        return mDatabase.insertOrThrow(HistoryEntry.TABLE_NAME, null, values);
+    }
+
+    /* Stands in for when the stored forecast was fetched, which the next write archives it as */
+    private void setFetchedAt(String locationSetting, long fetchedAt) {
+        ContentValues values = new ContentValues();
+        values.put(WeatherContract.LocationEntry.COLUMN_FETCHED_AT, fetchedAt);
+        mDatabase.update(WeatherContract.LocationEntry.TABLE_NAME, values,
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{locationSetting});
+    }
+
+    private long getDatabaseBytes() {
+        return DatabaseUtils.longForQuery(mDatabase, "PRAGMA page_count", null)
+                * DatabaseUtils.longForQuery(mDatabase, "PRAGMA page_size", null);
+    }
+
+    private Cursor query(Uri uri) {
+        Cursor cursor = mContext.getContentResolver().query(uri, null, null, null, null);
+        assertNotNull("Cursor was null", cursor);
+        return cursor;
+    }
+
+    private Bundle replaceForecast(ContentValues[] values) {
+        Bundle extras = new Bundle();
+        extras.putParcelableArray(WeatherContract.EXTRA_WEATHER_VALUES, values);
+        return mContext.getContentResolver().call(WeatherContract.WeatherEntry.CONTENT_URI,
+                WeatherContract.METHOD_REPLACE_FORECAST, TEST_LOCATION, extras);
+    }
+
+    /* Deleting the locations deletes their weather, and their history, along with them */
+    private void deleteAllWeather() {
+        mDatabase.delete(WeatherContract.LocationEntry.TABLE_NAME, null, null);
+    }
+}
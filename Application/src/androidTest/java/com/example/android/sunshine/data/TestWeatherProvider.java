@@ -24,14 +24,22 @@ import android.content.pm.ProviderInfo;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.os.Bundle;
 import android.support.test.InstrumentationRegistry;
 import android.support.test.runner.AndroidJUnit4;
 
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import static com.example.android.sunshine.data.TestUtilities.BULK_INSERT_RECORDS_TO_INSERT;
+import static com.example.android.sunshine.data.TestUtilities.OTHER_TEST_LOCATION;
+import static com.example.android.sunshine.data.TestUtilities.TEST_LOCATION;
 import static com.example.android.sunshine.data.TestUtilities.createBulkInsertTestWeatherValues;
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertNotNull;
@@ -57,6 +65,12 @@ import static junit.framework.Assert.fail;
  *   4) A test to determine if you've implemented the delete functionality of your
  *    ContentProvider properly.
  * <p>
+ *   5) A test to make sure that replacing the forecast is atomic, so that nobody can see the
+ *    weather table part way through being replaced.
+ * <p>
+ *   6) A test to make sure that the forecasts of different locations are stored side by side,
+ *    and that writing one location's forecast leaves the others alone.
+ * <p>
  * If any of these tests fail, you should see useful error messages in the testing console's
  * output window.
  * <p>
@@ -168,8 +182,10 @@ public class TestWeatherProvider {
         WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
         SQLiteDatabase database = dbHelper.getWritableDatabase();
 
-        /* Obtain weather values from TestUtilities */
+        /* Obtain weather values from TestUtilities, for the test location */
         ContentValues testWeatherValues = TestUtilities.createTestWeatherContentValues();
+        testWeatherValues.put(WeatherContract.WeatherEntry.COLUMN_LOCATION_ID,
+                TestUtilities.insertTestLocation(database));
 
         /* Insert ContentValues into database and get a row ID back */
         long weatherRowId = database.insert(
@@ -259,8 +275,8 @@ public class TestWeatherProvider {
 
         /* bulkInsert will return the number of records that were inserted. */
         int insertCount = contentResolver.bulkInsert(
-                /* URI at which to insert data */
-                WeatherContract.WeatherEntry.CONTENT_URI,
+                /* URI at which to insert data, which also says which location it is for */
+                WeatherContract.WeatherEntry.buildWeatherUriWithLocation(TEST_LOCATION),
                 /* Array of values to insert into given URI */
                 bulkInsertTestContentValues);
 
@@ -423,6 +439,158 @@ public class TestWeatherProvider {
         shouldBeEmptyCursor.close();
     }
 
+    /**
+     * This test replaces the forecast over and over through
+     * {@link WeatherContract#METHOD_REPLACE_FORECAST} while another thread keeps counting the
+     * rows in the weather table. The two forecasts we alternate between don't share a single
+     * date, so every replace deletes every stored row and inserts a new one for each day. If the
+     * deletes and inserts weren't all part of one transaction, the reader would sooner or later
+     * see fewer rows than a full forecast, or none at all.
+     */
+    @Test
+    public void testReplaceForecastIsAtomic() throws Exception {
+        final ContentResolver contentResolver = mContext.getContentResolver();
+
+        final ContentValues[] thisWeek = createBulkInsertTestWeatherValues();
+        final ContentValues[] nextWeek = createBulkInsertTestWeatherValues();
+        for (ContentValues values : nextWeek) {
+            long date = values.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+            values.put(WeatherContract.WeatherEntry.COLUMN_DATE,
+                    date + BULK_INSERT_RECORDS_TO_INSERT * SunshineDateUtils.DAY_IN_MILLIS);
+        }
+
+        replaceForecast(thisWeek);
+
+        final AtomicBoolean writerDone = new AtomicBoolean();
+        final AtomicInteger readCount = new AtomicInteger();
+        final AtomicInteger wrongCount = new AtomicInteger(-1);
+
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!writerDone.get()) {
+                    Cursor cursor = contentResolver.query(
+                            WeatherContract.WeatherEntry.CONTENT_URI,
+                            new String[]{WeatherContract.WeatherEntry._ID},
+                            null,
+                            null,
+                            null);
+                    int count = cursor.getCount();
+                    cursor.close();
+
+                    readCount.incrementAndGet();
+                    if (count != BULK_INSERT_RECORDS_TO_INSERT) {
+                        wrongCount.compareAndSet(-1, count);
+                    }
+                }
+            }
+        });
+        reader.start();
+
+        try {
+            for (int i = 0; i < 100; i++) {
+                Bundle result = replaceForecast(i % 2 == 0 ? nextWeek : thisWeek);
+                assertEquals("Every day of the new forecast should have been written",
+                        BULK_INSERT_RECORDS_TO_INSERT,
+                        result.getInt(WeatherContract.RESULT_ROWS_WRITTEN));
+                assertEquals("Every day of the old forecast should have been deleted",
+                        BULK_INSERT_RECORDS_TO_INSERT,
+                        result.getInt(WeatherContract.RESULT_ROWS_DELETED));
+            }
+        } finally {
+            writerDone.set(true);
+            reader.join();
+        }
+
+        assertTrue("Reader never got to run while the forecast was being replaced",
+                readCount.get() > 0);
+        assertEquals("A reader saw a partially replaced forecast", -1, wrongCount.get());
+    }
+
+    /**
+     * Stores a different forecast for each of two locations, then replaces the first one's. Each
+     * location's URIs should only ever return its own weather, and replacing the forecast of one
+     * location must not delete any of the other's.
+     */
+    @Test
+    public void testForecastsAreKeptPerLocation() {
+        ContentResolver contentResolver = mContext.getContentResolver();
+
+        ContentValues[] testLocationWeather = createBulkInsertTestWeatherValues();
+        ContentValues[] otherLocationWeather = createBulkInsertTestWeatherValues();
+        for (ContentValues values : otherLocationWeather) {
+            values.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, 800);
+        }
+
+        contentResolver.bulkInsert(
+                WeatherContract.WeatherEntry.buildWeatherUriWithLocation(TEST_LOCATION),
+                testLocationWeather);
+        replaceForecast(OTHER_TEST_LOCATION, otherLocationWeather);
+
+        /* Replacing the test location's forecast with a shorter one deletes only its days */
+        ContentValues[] shorterForecast = new ContentValues[BULK_INSERT_RECORDS_TO_INSERT / 2];
+        System.arraycopy(testLocationWeather, 0, shorterForecast, 0, shorterForecast.length);
+        Bundle result = replaceForecast(TEST_LOCATION, shorterForecast);
+        assertEquals("Only the test location's stale days should have been deleted",
+                BULK_INSERT_RECORDS_TO_INSERT - shorterForecast.length,
+                result.getInt(WeatherContract.RESULT_ROWS_DELETED));
+
+        Cursor otherCursor = contentResolver.query(
+                WeatherContract.WeatherEntry.buildWeatherUriWithLocation(OTHER_TEST_LOCATION),
+                null,
+                null,
+                null,
+                WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
+        assertNotNull("Cursor was null", otherCursor);
+        assertEquals("The other location's forecast was changed",
+                BULK_INSERT_RECORDS_TO_INSERT, otherCursor.getCount());
+        otherCursor.moveToFirst();
+        for (int i = 0; i < BULK_INSERT_RECORDS_TO_INSERT; i++, otherCursor.moveToNext()) {
+            TestUtilities.validateCurrentRecord(
+                    "testForecastsAreKeptPerLocation. Error validating other location " + i,
+                    otherCursor,
+                    otherLocationWeather[i]);
+        }
+        otherCursor.close();
+
+        long date = shorterForecast[0].getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+        TestUtilities.validateThenCloseCursor("testForecastsAreKeptPerLocation",
+                contentResolver.query(
+                        WeatherContract.WeatherEntry.buildWeatherUriWithLocationAndDate(
+                                TEST_LOCATION, date),
+                        null,
+                        null,
+                        null,
+                        null),
+                shorterForecast[0]);
+
+        Cursor locationCursor = contentResolver.query(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                null,
+                null,
+                null,
+                null);
+        assertNotNull("Cursor was null", locationCursor);
+        assertEquals("Each location should be stored exactly once", 2, locationCursor.getCount());
+        locationCursor.close();
+    }
+
+    private Bundle replaceForecast(ContentValues[] values) {
+        return replaceForecast(TEST_LOCATION, values);
+    }
+
+    private Bundle replaceForecast(String locationSetting, ContentValues[] values) {
+        Bundle extras = new Bundle();
+        extras.putParcelableArray(WeatherContract.EXTRA_WEATHER_VALUES, values);
+        Bundle result = mContext.getContentResolver().call(
+                WeatherContract.WeatherEntry.CONTENT_URI,
+                WeatherContract.METHOD_REPLACE_FORECAST,
+                locationSetting,
+                extras);
+        assertNotNull("Replacing the forecast returned no result", result);
+        return result;
+    }
+
     /**
      * This method will clear all rows from the weather table in our database.
      * <p>
@@ -442,6 +610,7 @@ public class TestWeatherProvider {
 
         /* The delete method deletes all of the desired rows from the table, not the table itself */
         database.delete(WeatherContract.WeatherEntry.TABLE_NAME, null, null);
+        database.delete(WeatherContract.LocationEntry.TABLE_NAME, null, null);
 
         /* Always close the database when you're through with it */
         database.close();
@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import static com.example.android.sunshine.data.TestUtilities.BULK_INSERT_RECORDS_TO_INSERT;
+import static com.example.android.sunshine.data.TestUtilities.createBulkInsertTestWeatherValues;
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+/**
+ * Tests the precompiled statements that bulkInsert and ForecastWriter use, and compares
+ * inserting through them with inserting each row through SQLiteDatabase#insert. Benchmark
+ * results are written to logcat under the tag "TestWeatherStatements".
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestWeatherStatements {
+
+    private static final String TAG = TestWeatherStatements.class.getSimpleName();
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    private WeatherDbHelper mDbHelper;
+    private SQLiteDatabase mDatabase;
+    private long mLocationId;
+
+    @Before
+    public void setUp() {
+        mDbHelper = new WeatherDbHelper(mContext);
+        mDatabase = mDbHelper.getWritableDatabase();
+        mDatabase.delete(WeatherContract.WeatherEntry.TABLE_NAME, null, null);
+        mLocationId = TestUtilities.insertTestLocation(mDatabase);
+    }
+
+    @After
+    public void tearDown() {
+        mDatabase.delete(WeatherContract.WeatherEntry.TABLE_NAME, null, null);
+        mDbHelper.close();
+    }
+
+    /**
+     * Rows inserted through the compiled statement must read back exactly as the values they
+     * were inserted from.
+     */
+    @Test
+    public void testInsertedRowsMatchValues() {
+        ContentValues[] values = createBulkInsertTestWeatherValues();
+
+        WeatherStatements statement = new WeatherStatements(mDatabase);
+        try {
+            for (ContentValues value : values) {
+                assertTrue("Insert through the compiled statement failed",
+                        statement.insert(mLocationId, value) != -1);
+            }
+        } finally {
+            statement.close();
+        }
+
+        Cursor cursor = mDatabase.query(WeatherContract.WeatherEntry.TABLE_NAME, null,
+                null, null, null, null, WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
+        assertEquals("Wrong number of rows inserted",
+                BULK_INSERT_RECORDS_TO_INSERT, cursor.getCount());
+        cursor.moveToFirst();
+        for (int i = 0; i < values.length; i++, cursor.moveToNext()) {
+            TestUtilities.validateCurrentRecord("Row " + i + " doesn't match its values",
+                    cursor, values[i]);
+        }
+        cursor.close();
+    }
+
+    @Test
+    public void testDateMustBeNormalized() {
+        ContentValues value = TestUtilities.createTestWeatherContentValues();
+        value.put(WeatherContract.WeatherEntry.COLUMN_DATE, TestUtilities.DATE_NORMALIZED + 1);
+
+        WeatherStatements statement = new WeatherStatements(mDatabase);
+        try {
+            statement.insert(mLocationId, value);
+            fail("Inserting a date that isn't normalized should throw");
+        } catch (IllegalArgumentException expected) {
+            /* This is what we want */
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * A row missing a NOT NULL column must be rejected with -1, just as SQLiteDatabase#insert
+     * would, rather than throwing.
+     */
+    @Test
+    public void testMissingColumnIsRejected() {
+        ContentValues value = TestUtilities.createTestWeatherContentValues();
+        value.remove(WeatherContract.WeatherEntry.COLUMN_PRESSURE);
+
+        WeatherStatements statement = new WeatherStatements(mDatabase);
+        try {
+            assertEquals("Row missing a NOT NULL column should not be inserted",
+                    -1, statement.insert(mLocationId, value));
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * Weather inserted without a location, or for a location that doesn't exist, belongs to
+     * nobody and must be rejected.
+     */
+    @Test
+    public void testWeatherWithoutLocationIsRejected() {
+        ContentValues value = TestUtilities.createTestWeatherContentValues();
+
+        WeatherStatements statement = new WeatherStatements(mDatabase);
+        try {
+            assertEquals("Row without a location should not be inserted",
+                    -1, statement.insert(value));
+            assertEquals("Row for a location that doesn't exist should not be inserted",
+                    -1, statement.insert(mLocationId + 1, value));
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * Inserts 14, 1,000 and 100,000 rows, each batch in a single transaction, through
+     * SQLiteDatabase#insert and through the compiled statement, and logs how long each took.
+     */
+    @Test
+    public void benchmarkInsertPaths() {
+        for (int rows : new int[]{14, 1000, 100000}) {
+            ContentValues[] values = createValues(rows);
+
+            long insertNanos = timeInserts(values, false);
+            long statementNanos = timeInserts(values, true);
+
+            Log.i(TAG, String.format(Locale.US,
+                    "%d rows: SQLiteDatabase#insert %d ms, compiled statement %d ms",
+                    rows,
+                    TimeUnit.NANOSECONDS.toMillis(insertNanos),
+                    TimeUnit.NANOSECONDS.toMillis(statementNanos)));
+        }
+    }
+
+    private long timeInserts(ContentValues[] values, boolean useStatement) {
+        mDatabase.delete(WeatherContract.WeatherEntry.TABLE_NAME, null, null);
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        mDatabase.beginTransaction();
+        try {
+            if (useStatement) {
+                WeatherStatements statement = new WeatherStatements(mDatabase);
+                for (ContentValues value : values) {
+                    statement.insert(value);
+                }
+                statement.close();
+            } else {
+                for (ContentValues value : values) {
+                    mDatabase.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, value);
+                }
+            }
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+        return SystemClock.elapsedRealtimeNanos() - start;
+    }
+
+    /*
+     * Like the bulk insert test values, but as many consecutive days as we ask for, and with the
+     * test location in every row so that SQLiteDatabase#insert can take them as they are
+     */
+    private ContentValues[] createValues(int rows) {
+        ContentValues[] values = new ContentValues[rows];
+        long date = SunshineDateUtils.normalizeDate(TestUtilities.DATE_NORMALIZED);
+        for (int i = 0; i < rows; i++) {
+            ContentValues value = new ContentValues();
+            value.put(WeatherContract.WeatherEntry.COLUMN_LOCATION_ID, mLocationId);
+            value.put(WeatherContract.WeatherEntry.COLUMN_DATE,
+                    date + i * SunshineDateUtils.DAY_IN_MILLIS);
+            value.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, 321);
+            value.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, 65 - i % 20);
+            value.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, 75 + i % 20);
+            value.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, 1.2 + 0.01 * i);
+            value.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, 1.3 - 0.01 * i);
+            value.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, 5.5 + 0.2 * i);
+            value.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, 1.1);
+            values[i] = value;
+        }
+        return values;
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import com.example.android.sunshine.data.ForecastColumns;
+import com.example.android.sunshine.utilities.OpenWeatherJsonUtils;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays a recorded sequence of forecasts, as the weather server published them over time,
+ * against an {@link AdaptiveSyncPolicy}, without waiting for any of that time to pass.
+ * <p>
+ * Each simulated sync fetches whatever forecast was the latest at that moment and tells the
+ * policy how many days changed since the previous sync, which decides when the next sync
+ * happens. A sync that finds the same forecast it fetched last time is counted as one the server
+ * would have answered with 304 Not Modified. The flex window FirebaseJobDispatcher adds to the
+ * interval is left out: every sync happens exactly at the start of its window.
+ * <p>
+ * A fixed interval is replayed by using a policy whose minimum and maximum are the same.
+ */
+final class SyncScheduleSimulator {
+
+    private final List<Long> mPublishedAtSeconds = new ArrayList<>();
+    private final List<ForecastColumns> mForecasts = new ArrayList<>();
+
+    /**
+     * Records a forecast the server started sending at the given time.
+     *
+     * @param atSeconds    When it was published, in seconds since the start of the recording.
+     *                     Forecasts must be published in order.
+     * @param forecastJson The forecast, as the server would have sent it
+     */
+    void publish(long atSeconds, String forecastJson) throws IOException {
+        if (!mPublishedAtSeconds.isEmpty()
+                && atSeconds < mPublishedAtSeconds.get(mPublishedAtSeconds.size() - 1)) {
+            throw new IllegalArgumentException("Forecasts must be published in order");
+        }
+
+        ForecastColumns days = new ForecastColumns();
+        double[] cityCoord = {Double.NaN, Double.NaN};
+        if (!OpenWeatherJsonUtils.parseForecast(new StringReader(forecastJson), days, null,
+                cityCoord)) {
+            throw new IllegalArgumentException("Not a valid forecast: " + forecastJson);
+        }
+
+        mPublishedAtSeconds.add(atSeconds);
+        mForecasts.add(days);
+    }
+
+    /**
+     * Syncs from the start of the recording until durationSeconds have passed, as often as the
+     * policy says to.
+     *
+     * @param policy          Decides the interval between syncs. It is changed by the replay.
+     * @param durationSeconds How long to simulate
+     * @return What the syncs did, and how late they were in picking up each new forecast
+     */
+    Report replay(AdaptiveSyncPolicy policy, long durationSeconds) {
+        Report report = new Report();
+        List<Long> syncTimes = new ArrayList<>();
+
+        int lastFetched = -1;
+        for (long now = 0; now < durationSeconds; now += policy.getIntervalSeconds()) {
+            syncTimes.add(now);
+            report.mSyncs++;
+
+            int latest = latestPublishedAt(now);
+            if (latest < 0 || latest == lastFetched) {
+                /* The server has nothing newer for us */
+                report.mNotModified++;
+                policy.onSyncFinished(0, 0);
+                continue;
+            }
+
+            ForecastColumns fetched = mForecasts.get(latest);
+            int daysChanged = lastFetched < 0
+                    ? fetched.size() : countChangedDays(mForecasts.get(lastFetched), fetched);
+            if (daysChanged == 0) {
+                report.mUnchanged++;
+            }
+            policy.onSyncFinished(fetched.size(), daysChanged);
+            lastFetched = latest;
+        }
+
+        /* How long each forecast that actually changed something waited to be picked up */
+        for (int i = 0; i < mForecasts.size(); i++) {
+            if (i > 0 && countChangedDays(mForecasts.get(i - 1), mForecasts.get(i)) == 0) {
+                continue;
+            }
+            long publishedAt = mPublishedAtSeconds.get(i);
+            if (publishedAt >= durationSeconds) {
+                break;
+            }
+            long pickedUpAt = durationSeconds;
+            for (long syncTime : syncTimes) {
+                if (syncTime >= publishedAt) {
+                    pickedUpAt = syncTime;
+                    break;
+                }
+            }
+            report.addStaleness(pickedUpAt - publishedAt);
+        }
+
+        return report;
+    }
+
+    /**
+     * @return The index of the latest forecast published at or before the given time, or -1 if
+     * there isn't one yet
+     */
+    private int latestPublishedAt(long seconds) {
+        int latest = -1;
+        for (int i = 0; i < mPublishedAtSeconds.size(); i++) {
+            if (mPublishedAtSeconds.get(i) <= seconds) {
+                latest = i;
+            }
+        }
+        return latest;
+    }
+
+    /**
+     * Counts the days that would be inserted, updated or deleted when going from one forecast to
+     * the other, as ForecastWriter would.
+     */
+    static int countChangedDays(ForecastColumns before, ForecastColumns after) {
+        int changed = 0;
+        for (int i = 0; i < after.size(); i++) {
+            int j = before.binarySearchDate(after.getDate(i));
+            if (j < 0 || !isSameDay(before, j, after, i)) {
+                changed++;
+            }
+        }
+        for (int j = 0; j < before.size(); j++) {
+            if (after.binarySearchDate(before.getDate(j)) < 0) {
+                changed++;
+            }
+        }
+        return changed;
+    }
+
+    private static boolean isSameDay(ForecastColumns a, int i, ForecastColumns b, int j) {
+        return a.getWeatherId(i) == b.getWeatherId(j)
+                && a.getMinTemp(i) == b.getMinTemp(j)
+                && a.getMaxTemp(i) == b.getMaxTemp(j)
+                && a.getHumidity(i) == b.getHumidity(j)
+                && a.getPressure(i) == b.getPressure(j)
+                && a.getWindSpeed(i) == b.getWindSpeed(j)
+                && a.getDegrees(i) == b.getDegrees(j);
+    }
+
+    /**
+     * What a replay did.
+     */
+    static final class Report {
+
+        private int mSyncs;
+        private int mNotModified;
+        private int mUnchanged;
+
+        private int mForecastChanges;
+        private long mTotalStalenessSeconds;
+        private long mMaxStalenessSeconds;
+
+        /**
+         * @return The number of syncs, each of which is a request to the server
+         */
+        int getSyncCount() {
+            return mSyncs;
+        }
+
+        /**
+         * @return The number of syncs that brought back nothing new, whether the server would
+         * have answered 304 or sent the same forecast again
+         */
+        int getWastedSyncCount() {
+            return mNotModified + mUnchanged;
+        }
+
+        /**
+         * @return The longest a new forecast went unnoticed, in seconds
+         */
+        long getMaxStalenessSeconds() {
+            return mMaxStalenessSeconds;
+        }
+
+        /**
+         * @return How long a new forecast went unnoticed on average, in seconds
+         */
+        long getMeanStalenessSeconds() {
+            return mForecastChanges == 0 ? 0 : mTotalStalenessSeconds / mForecastChanges;
+        }
+
+        private void addStaleness(long seconds) {
+            mForecastChanges++;
+            mTotalStalenessSeconds += seconds;
+            mMaxStalenessSeconds = Math.max(mMaxStalenessSeconds, seconds);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "%d syncs, %d of them wasted; %d forecast changes picked up after "
+                            + "%d min on average, %d min at most",
+                    mSyncs,
+                    getWastedSyncCount(),
+                    mForecastChanges,
+                    TimeUnit.SECONDS.toMinutes(getMeanStalenessSeconds()),
+                    TimeUnit.SECONDS.toMinutes(mMaxStalenessSeconds));
+        }
+    }
+}
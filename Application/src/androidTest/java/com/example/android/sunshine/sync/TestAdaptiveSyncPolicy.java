@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.android.sunshine.utils.FakeForecastJson;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Tests that {@link AdaptiveSyncPolicy} syncs less often while the forecast is steady and more
+ * often while it is shifting, and replays a recorded week of forecasts with
+ * {@link SyncScheduleSimulator} to compare it with syncing at a fixed interval. The comparison is
+ * written to logcat under the tag "TestAdaptiveSyncPolicy".
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestAdaptiveSyncPolicy {
+
+    private static final String TAG = TestAdaptiveSyncPolicy.class.getSimpleName();
+
+    private static final long MIN_INTERVAL_SECONDS = TimeUnit.HOURS.toSeconds(1);
+    private static final long MAX_INTERVAL_SECONDS = TimeUnit.HOURS.toSeconds(12);
+    private static final long FIXED_INTERVAL_SECONDS = TimeUnit.HOURS.toSeconds(3);
+
+    private static final long WEEK_SECONDS = TimeUnit.DAYS.toSeconds(7);
+
+    private static final int FORECAST_DAYS = 14;
+
+    /**
+     * While every sync brings back the forecast we already had, the interval must keep growing
+     * until it reaches the maximum, and stay there.
+     */
+    @Test
+    public void testIntervalGrowsWhileForecastIsSteady() {
+        AdaptiveSyncPolicy policy = createPolicy();
+
+        long previousInterval = policy.getIntervalSeconds();
+        for (int i = 0; i < 20; i++) {
+            /* Alternate between a 304 and the same forecast sent again */
+            long interval = i % 2 == 0
+                    ? policy.onSyncFinished(0, 0)
+                    : policy.onSyncFinished(FORECAST_DAYS, 0);
+            assertTrue("Interval should not shrink while the forecast is steady",
+                    interval >= previousInterval);
+            previousInterval = interval;
+        }
+
+        assertEquals("Interval should have grown to the maximum",
+                MAX_INTERVAL_SECONDS, policy.getIntervalSeconds());
+    }
+
+    /**
+     * Once syncs start changing most of the forecast, the interval must shrink until it reaches
+     * the minimum, and stay there.
+     */
+    @Test
+    public void testIntervalShrinksWhenForecastShifts() {
+        AdaptiveSyncPolicy policy = new AdaptiveSyncPolicy(
+                MIN_INTERVAL_SECONDS, MAX_INTERVAL_SECONDS, MAX_INTERVAL_SECONDS);
+
+        long previousInterval = policy.getIntervalSeconds();
+        for (int i = 0; i < 10; i++) {
+            long interval = policy.onSyncFinished(FORECAST_DAYS, FORECAST_DAYS / 2);
+            assertTrue("Interval should shrink until it reaches the minimum",
+                    interval < previousInterval || interval == MIN_INTERVAL_SECONDS);
+            previousInterval = interval;
+        }
+
+        assertEquals("Interval should have shrunk to the minimum",
+                MIN_INTERVAL_SECONDS, policy.getIntervalSeconds());
+    }
+
+    /**
+     * The forecast moving on by a day changes two rows, one new day and one old day deleted.
+     * That is not the weather shifting, so it must not shorten the interval.
+     */
+    @Test
+    public void testNewDayIsNotVolatile() {
+        AdaptiveSyncPolicy policy = createPolicy();
+        long interval = policy.getIntervalSeconds();
+
+        assertTrue("A new day should not make the forecast volatile",
+                policy.onSyncFinished(FORECAST_DAYS, 2) > interval);
+        assertTrue("A quarter of the forecast changing should make it volatile",
+                AdaptiveSyncPolicy.isVolatile(FORECAST_DAYS, FORECAST_DAYS / 4 + 1));
+    }
+
+    /**
+     * The interval saved after the last sync is brought within the bounds, in case they were
+     * changed since.
+     */
+    @Test
+    public void testIntervalIsBounded() {
+        assertEquals("Interval should be no longer than the maximum", MAX_INTERVAL_SECONDS,
+                new AdaptiveSyncPolicy(MIN_INTERVAL_SECONDS, MAX_INTERVAL_SECONDS,
+                        TimeUnit.DAYS.toSeconds(2)).getIntervalSeconds());
+        assertEquals("Interval should be no shorter than the minimum", MIN_INTERVAL_SECONDS,
+                new AdaptiveSyncPolicy(MIN_INTERVAL_SECONDS, MAX_INTERVAL_SECONDS, 60)
+                        .getIntervalSeconds());
+    }
+
+    /**
+     * Replays a week in which the forecast is updated once a day, except for a stormy half day
+     * in which it changes every hour. Syncing adaptively must take far fewer trips to the
+     * network than syncing every 3 hours, while never leaving a new forecast unnoticed for longer
+     * than the maximum interval.
+     */
+    @Test
+    public void testReplayedWeekAvoidsFetches() throws Exception {
+        SyncScheduleSimulator simulator = new SyncScheduleSimulator();
+        long seed = 0;
+        for (int day = 0; day < 7; day++) {
+            long dayStart = TimeUnit.DAYS.toSeconds(day);
+            simulator.publish(dayStart, FakeForecastJson.createForecastJson(FORECAST_DAYS, seed++));
+
+            if (day == 4) {
+                for (int hour = 1; hour <= 12; hour++) {
+                    simulator.publish(dayStart + TimeUnit.HOURS.toSeconds(hour),
+                            FakeForecastJson.createForecastJson(FORECAST_DAYS, seed++));
+                }
+            }
+        }
+
+        SyncScheduleSimulator.Report fixed = simulator.replay(createFixedPolicy(), WEEK_SECONDS);
+        SyncScheduleSimulator.Report adaptive = simulator.replay(createPolicy(), WEEK_SECONDS);
+
+        Log.i(TAG, "Every 3 hours: " + fixed);
+        Log.i(TAG, "Adaptive: " + adaptive);
+        Log.i(TAG, (fixed.getSyncCount() - adaptive.getSyncCount()) + " of "
+                + fixed.getSyncCount() + " fetches avoided");
+
+        assertTrue("Adaptive syncing should need fewer fetches than syncing every 3 hours",
+                adaptive.getSyncCount() < fixed.getSyncCount());
+        assertTrue("Adaptive syncing should waste fewer fetches than syncing every 3 hours",
+                adaptive.getWastedSyncCount() < fixed.getWastedSyncCount());
+        assertTrue("A new forecast went unnoticed for longer than the maximum interval",
+                adaptive.getMaxStalenessSeconds() <= MAX_INTERVAL_SECONDS);
+    }
+
+    /**
+     * A forecast that never changes after the first sync should be checked on only a handful of
+     * times a day.
+     */
+    @Test
+    public void testReplayedSteadyWeekSyncsRarely() throws Exception {
+        SyncScheduleSimulator simulator = new SyncScheduleSimulator();
+        simulator.publish(0, FakeForecastJson.createForecastJson(FORECAST_DAYS, 0));
+
+        SyncScheduleSimulator.Report fixed = simulator.replay(createFixedPolicy(), WEEK_SECONDS);
+        SyncScheduleSimulator.Report adaptive = simulator.replay(createPolicy(), WEEK_SECONDS);
+
+        Log.i(TAG, "Steady week, every 3 hours: " + fixed);
+        Log.i(TAG, "Steady week, adaptive: " + adaptive);
+
+        assertTrue("Adaptive syncing should need at most half the fetches of syncing every 3 hours",
+                adaptive.getSyncCount() * 2 <= fixed.getSyncCount());
+    }
+
+    private static AdaptiveSyncPolicy createPolicy() {
+        return new AdaptiveSyncPolicy(
+                MIN_INTERVAL_SECONDS, MAX_INTERVAL_SECONDS, FIXED_INTERVAL_SECONDS);
+    }
+
+    /* A policy that can't adapt is the fixed interval we sync at without one */
+    private static AdaptiveSyncPolicy createFixedPolicy() {
+        return new AdaptiveSyncPolicy(
+                FIXED_INTERVAL_SECONDS, FIXED_INTERVAL_SECONDS, FIXED_INTERVAL_SECONDS);
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.sunshine.data.ForecastFreshness;
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Tests that {@link FreshnessPolicy} serves a cached forecast until its soft TTL, serves it while
+ * revalidating between the soft and hard TTLs, and only makes us wait for a sync past the hard
+ * TTL or when there is nothing to show.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestFreshnessPolicy {
+
+    private static final long DAY = SunshineDateUtils.DAY_IN_MILLIS;
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+    private static final long SOFT_TTL = 6 * HOUR;
+    private static final long HARD_TTL = 24 * HOUR;
+
+    /* Noon, a few days after the epoch, so that "today" is well defined */
+    private static final long TODAY = 10 * DAY;
+    private static final long NOW = TODAY + 12 * HOUR;
+
+    private final FreshnessPolicy mPolicy = new FreshnessPolicy(SOFT_TTL, HARD_TTL);
+
+    @Test
+    public void testNothingStoredIsExpired() {
+        assertEquals(FreshnessPolicy.Freshness.EXPIRED,
+                evaluate(0, ForecastFreshness.UNKNOWN, NOW));
+    }
+
+    @Test
+    public void testAgeAgainstTtls() {
+        assertEquals("Just fetched", FreshnessPolicy.Freshness.FRESH,
+                evaluate(14, TODAY + 13 * DAY, NOW));
+        assertEquals("At the soft TTL", FreshnessPolicy.Freshness.FRESH,
+                evaluate(14, TODAY + 13 * DAY, NOW - SOFT_TTL));
+        assertEquals("Past the soft TTL", FreshnessPolicy.Freshness.STALE,
+                evaluate(14, TODAY + 13 * DAY, NOW - SOFT_TTL - 1));
+        assertEquals("At the hard TTL", FreshnessPolicy.Freshness.STALE,
+                evaluate(14, TODAY + 13 * DAY, NOW - HARD_TTL));
+        assertEquals("Past the hard TTL", FreshnessPolicy.Freshness.EXPIRED,
+                evaluate(14, TODAY + 13 * DAY, NOW - HARD_TTL - 1));
+    }
+
+    /**
+     * A forecast whose fetch time isn't known, such as one stored before fetch times were, is
+     * shown but refreshed.
+     */
+    @Test
+    public void testUnknownAgeIsStale() {
+        assertEquals(FreshnessPolicy.Freshness.STALE,
+                evaluate(14, TODAY + 13 * DAY, ForecastFreshness.UNKNOWN));
+    }
+
+    /**
+     * However young it is, a forecast that is about to run out of days is refreshed.
+     */
+    @Test
+    public void testShortForecastIsStale() {
+        long lastDayWanted = TODAY + (FreshnessPolicy.MIN_DAYS_AHEAD - 1) * DAY;
+        assertEquals(FreshnessPolicy.Freshness.STALE,
+                evaluate(FreshnessPolicy.MIN_DAYS_AHEAD - 1, lastDayWanted - DAY, NOW));
+        assertEquals(FreshnessPolicy.Freshness.FRESH,
+                evaluate(FreshnessPolicy.MIN_DAYS_AHEAD, lastDayWanted, NOW));
+    }
+
+    /**
+     * A clock set back since the fetch must not make the forecast look younger than brand new.
+     */
+    @Test
+    public void testClockSetBackIsFresh() {
+        assertEquals(FreshnessPolicy.Freshness.FRESH,
+                evaluate(14, TODAY + 13 * DAY, NOW + HOUR));
+    }
+
+    /**
+     * A stale forecast is refreshed the first time, then not again until a soft TTL later.
+     */
+    @Test
+    public void testRevalidationIsThrottled() {
+        assertTrue("Never refreshed",
+                mPolicy.shouldRevalidate(ForecastFreshness.UNKNOWN, NOW));
+        assertFalse("Just refreshed", mPolicy.shouldRevalidate(NOW, NOW));
+        assertFalse("Refreshed within the soft TTL",
+                mPolicy.shouldRevalidate(NOW - SOFT_TTL + 1, NOW));
+        assertTrue("Refreshed a soft TTL ago", mPolicy.shouldRevalidate(NOW - SOFT_TTL, NOW));
+    }
+
+    private FreshnessPolicy.Freshness evaluate(int rowCount, long newestDate, long fetchedAt) {
+        return mPolicy.evaluate(new ForecastFreshness(rowCount, newestDate, fetchedAt),
+                NOW, TODAY);
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.android.sunshine.data.SunshinePreferences;
+import com.example.android.sunshine.data.WeatherContract;
+import com.example.android.sunshine.utilities.NetworkUtils;
+import com.example.android.sunshine.utils.FakeForecastJson;
+import com.example.android.sunshine.utils.ForecastStandInServer;
+import com.example.android.sunshine.utils.PollingCheck;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Tests {@link MultiLocationSyncEngine} against a stand-in for the weather server running on the
+ * device, which is slowed down to behave like a real network. Throughput results are written to
+ * logcat under the tag "TestMultiLocationSyncEngine".
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestMultiLocationSyncEngine {
+
+    private static final String TAG = TestMultiLocationSyncEngine.class.getSimpleName();
+
+    private static final int FORECAST_DAYS = 14;
+    private static final int THROUGHPUT_LOCATIONS = 50;
+    private static final int LATENCY_MILLIS = 100;
+    private static final int MAX_PARALLEL_SYNCS = 8;
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    private ForecastStandInServer mServer;
+    private String mForecastBaseUrl;
+
+    @Before
+    public void setUp() throws IOException {
+        deleteAllWeather();
+        NetworkUtils.clearValidators(mContext);
+
+        mServer = new ForecastStandInServer(
+                FakeForecastJson.createForecastJson(FORECAST_DAYS, 3), "\"forecast-3\"");
+        mServer.setLatencyMillis(LATENCY_MILLIS);
+        mForecastBaseUrl = mServer.getUrl("/staticweather").toString();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServer.shutdown();
+        NetworkUtils.clearValidators(mContext);
+        deleteAllWeather();
+    }
+
+    /**
+     * Syncs 50 locations one at a time and then in parallel, and checks that the parallel sync
+     * stores exactly the same forecasts, never goes over its connection budget, and is
+     * considerably faster.
+     */
+    @Test
+    public void testFiftyLocationsInParallel() throws Exception {
+        List<String> locations = createLocations(THROUGHPUT_LOCATIONS);
+
+        MultiLocationSyncEngine.Result sequential =
+                createEngine(1, new Semaphore(1)).sync(locations);
+        assertAllLocationsUpdated(sequential, locations);
+
+        /* Start again from nothing, so the parallel sync has to fetch every forecast in full */
+        deleteAllWeather();
+        NetworkUtils.clearValidators(mContext);
+
+        MultiLocationSyncEngine.Result parallel =
+                createEngine(MAX_PARALLEL_SYNCS, new Semaphore(MAX_PARALLEL_SYNCS))
+                        .sync(locations);
+        assertAllLocationsUpdated(parallel, locations);
+
+        assertTrue("Parallel sync went over its connection budget",
+                parallel.getMaxConnectionsOpen() <= MAX_PARALLEL_SYNCS);
+        assertTrue("Stand-in server saw more requests at once than the connection budget allows",
+                mServer.getMaxRequestsInFlight() <= MAX_PARALLEL_SYNCS);
+        assertTrue("Parallel sync should be at least twice as fast as a sequential one",
+                parallel.getElapsedNanos() * 2 < sequential.getElapsedNanos());
+
+        Log.i(TAG, String.format(Locale.US,
+                "%d locations, %d ms latency: sequential %.1f locations/s, "
+                        + "%d parallel %.1f locations/s (write %d ms)",
+                THROUGHPUT_LOCATIONS, LATENCY_MILLIS,
+                locationsPerSecond(sequential), MAX_PARALLEL_SYNCS,
+                locationsPerSecond(parallel),
+                TimeUnit.NANOSECONDS.toMillis(parallel.getWriteNanos())));
+    }
+
+    /**
+     * Two engines sharing a connection budget must not have more connections open between them
+     * than the budget allows, even though each has more threads than that.
+     */
+    @Test
+    public void testConnectionBudgetIsShared() throws Exception {
+        final Semaphore sharedBudget = new Semaphore(3);
+        final List<String> firstLocations = createLocations(0, 12);
+        List<String> secondLocations = createLocations(12, 12);
+
+        final MultiLocationSyncEngine.Result[] firstResult = new MultiLocationSyncEngine.Result[1];
+        Thread firstSync = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    firstResult[0] = createEngine(6, sharedBudget).sync(firstLocations);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        firstSync.start();
+        MultiLocationSyncEngine.Result secondResult =
+                createEngine(6, sharedBudget).sync(secondLocations);
+        firstSync.join();
+
+        assertNotNull("First sync did not finish", firstResult[0]);
+        assertAllLocationsUpdated(firstResult[0], firstLocations);
+        assertAllLocationsUpdated(secondResult, secondLocations);
+        assertTrue("Engines sharing a budget had more connections open than it allows",
+                mServer.getMaxRequestsInFlight() <= 3);
+    }
+
+    /**
+     * A location the server fails for must not stop any other location from being stored, and
+     * must keep whatever forecast it had.
+     */
+    @Test
+    public void testFailedLocationIsIsolated() throws Exception {
+        List<String> locations = createLocations(10);
+        String failingLocation = locations.get(7);
+        mServer.failRequestsContaining("q=" + failingLocation + "&");
+
+        MultiLocationSyncEngine.Result result =
+                createEngine(4, new Semaphore(4)).sync(locations);
+
+        assertEquals("Failing location was not reported as failed",
+                MultiLocationSyncEngine.Outcome.FAILED, result.getOutcome(failingLocation));
+        assertEquals("Only one location should have failed", 1, result.getFailedCount());
+        assertEquals("Every other location should have been updated",
+                locations.size() - 1, result.getUpdatedCount());
+        assertEquals("Failing location should have no weather stored",
+                0, countWeatherRows(failingLocation));
+        for (String location : locations) {
+            if (!location.equals(failingLocation)) {
+                assertEquals("Weather of " + location + " was not stored",
+                        FORECAST_DAYS, countWeatherRows(location));
+            }
+        }
+    }
+
+    /**
+     * Syncing again when nothing has changed should be answered with 304s and write nothing.
+     */
+    @Test
+    public void testUnchangedLocationsAreNotRewritten() throws Exception {
+        List<String> locations = createLocations(5);
+        MultiLocationSyncEngine engine = createEngine(4, new Semaphore(4));
+
+        assertAllLocationsUpdated(engine.sync(locations), locations);
+
+        int notModifiedBefore = mServer.getNotModifiedCount();
+        MultiLocationSyncEngine.Result result = engine.sync(locations);
+
+        assertEquals("Every location should be unchanged",
+                locations.size(), result.getUnchangedCount());
+        assertEquals("Every request should have been answered with 304",
+                notModifiedBefore + locations.size(), mServer.getNotModifiedCount());
+    }
+
+    /**
+     * Asking for a sync of the preferred location while the engine is fetching it must wait for
+     * the engine rather than fetch the same forecast again, and report what the engine did.
+     */
+    @Test
+    public void testSyncWeatherSharesEngineFetch() throws Exception {
+        SunshinePreferences.resetLocationCoordinates(mContext);
+        final List<String> locations = Collections.singletonList(
+                SunshinePreferences.getPreferredWeatherLocation(mContext));
+        NetworkUtils.setForecastBaseUrl(mForecastBaseUrl);
+        /* Slow enough that the engine is still connected when the other sync is asked for */
+        mServer.setLatencyMillis(1000);
+
+        final MultiLocationSyncEngine.Result[] engineResult =
+                new MultiLocationSyncEngine.Result[1];
+        Thread engineSync = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    engineResult[0] = createEngine(1, new Semaphore(1)).sync(locations);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        long coalescedBefore = SunshineSyncTask.getCoalescedSyncCount();
+        try {
+            engineSync.start();
+            PollingCheck.check("Engine never connected", 3000, new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return mServer.getRequestCount() == 1;
+                }
+            });
+
+            assertEquals("The sync should report what the engine did",
+                    MultiLocationSyncEngine.Outcome.UPDATED,
+                    SunshineSyncTask.syncWeather(mContext));
+            engineSync.join();
+        } finally {
+            NetworkUtils.setForecastBaseUrl(null);
+        }
+
+        assertNotNull("Engine sync did not finish", engineResult[0]);
+        assertAllLocationsUpdated(engineResult[0], locations);
+        assertEquals("The forecast should only have been fetched once",
+                1, mServer.getRequestCount());
+        assertEquals("The sync should have been coalesced with the engine's",
+                coalescedBefore + 1, SunshineSyncTask.getCoalescedSyncCount());
+    }
+
+    /**
+     * The saved locations are exactly those that weather has been stored for, in that order.
+     */
+    @Test
+    public void testSavedLocations() throws Exception {
+        List<String> locations = createLocations(3);
+        createEngine(1, new Semaphore(1)).sync(locations);
+
+        assertEquals("Wrong saved locations",
+                locations, MultiLocationSyncEngine.getSavedLocations(mContext));
+    }
+
+    private MultiLocationSyncEngine createEngine(int maxParallelSyncs, Semaphore budget) {
+        MultiLocationSyncEngine engine =
+                new MultiLocationSyncEngine(mContext, maxParallelSyncs, budget);
+        engine.setForecastBaseUrl(mForecastBaseUrl);
+        /* Failing locations are still retried, just without waiting long */
+        engine.setRetryPolicy(new SyncRetryPolicy(SyncRetryPolicy.DEFAULT_MAX_ATTEMPTS, 10, 100,
+                new Random()));
+        return engine;
+    }
+
+    private void assertAllLocationsUpdated(MultiLocationSyncEngine.Result result,
+                                           List<String> locations) {
+        assertEquals("Not every location was updated: " + result,
+                locations.size(), result.getUpdatedCount());
+        for (String location : locations) {
+            assertEquals("Weather of " + location + " was not stored",
+                    FORECAST_DAYS, countWeatherRows(location));
+        }
+    }
+
+    private static List<String> createLocations(int count) {
+        return createLocations(0, count);
+    }
+
+    private static List<String> createLocations(int first, int count) {
+        List<String> locations = new ArrayList<>(count);
+        for (int i = first; i < first + count; i++) {
+            locations.add(String.format(Locale.US, "location-%02d", i));
+        }
+        return locations;
+    }
+
+    private static double locationsPerSecond(MultiLocationSyncEngine.Result result) {
+        return result.getLocationCount() * 1e9 / result.getElapsedNanos();
+    }
+
+    private int countWeatherRows(String locationSetting) {
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.WeatherEntry.buildWeatherUriWithLocation(locationSetting),
+                null,
+                null,
+                null,
+                null);
+        assertNotNull("Cursor was null", cursor);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+
+    /* Deleting the locations deletes their weather along with them */
+    private void deleteAllWeather() {
+        mContext.getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI,
+                null, null);
+    }
+}
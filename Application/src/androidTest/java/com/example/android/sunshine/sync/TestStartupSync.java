@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Looper;
+import android.preference.PreferenceManager;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.sunshine.data.ForecastFreshness;
+import com.example.android.sunshine.data.SunshinePreferences;
+import com.example.android.sunshine.data.WeatherContract;
+import com.example.android.sunshine.utilities.NetworkUtils;
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+import com.example.android.sunshine.utils.ForecastStandInServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Tests the freshness probe on WeatherProvider that {@link StartupSync} decides from when
+ * Sunshine starts, that every sync records when the forecast was fetched, and that an expired
+ * forecast is synced before MainActivity is told it can show it.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestStartupSync {
+
+    private static final String LOCATION = "99705";
+
+    private static final long DAY = SunshineDateUtils.DAY_IN_MILLIS;
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    private long mToday;
+
+    private StartupSync.Listener mListener;
+
+    @Before
+    public void setUp() {
+        deleteAllWeather();
+        mToday = SunshineDateUtils.getNormalizedUtcDateForToday();
+    }
+
+    @After
+    public void tearDown() {
+        mListener = null;
+        deleteAllWeather();
+    }
+
+    /**
+     * The probe of a location with nothing stored must report no days and no newest date.
+     */
+    @Test
+    public void testProbeOfEmptyLocation() {
+        ForecastFreshness freshness = ForecastFreshness.probe(mContext, LOCATION);
+
+        assertEquals("Wrong row count", 0, freshness.getRowCount());
+        assertEquals("Wrong newest date", ForecastFreshness.UNKNOWN, freshness.getNewestDate());
+        assertEquals("Wrong fetch time",
+                ForecastFreshness.UNKNOWN, freshness.getFetchedAtMillis());
+        assertEquals("Nothing stored should mean nothing to show",
+                FreshnessPolicy.Freshness.EXPIRED,
+                new FreshnessPolicy().evaluate(freshness, System.currentTimeMillis(), mToday));
+    }
+
+    /**
+     * The probe must count only the days from today onwards, and report the last of them.
+     */
+    @Test
+    public void testProbeCountsTodayOnwards() {
+        int pastDays = 2;
+        int futureDays = 5;
+        ContentValues[] values = new ContentValues[pastDays + futureDays];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = createWeatherValues(mToday + (i - pastDays) * DAY);
+        }
+        mContext.getContentResolver().bulkInsert(
+                WeatherContract.WeatherEntry.buildWeatherUriWithLocation(LOCATION), values);
+
+        ForecastFreshness freshness = ForecastFreshness.probe(mContext, LOCATION);
+
+        assertEquals("Only today onwards should be counted",
+                futureDays, freshness.getRowCount());
+        assertEquals("Wrong newest date", mToday + (futureDays - 1) * DAY,
+                freshness.getNewestDate());
+        assertEquals("A bulk insert is not a sync, so records no fetch time",
+                ForecastFreshness.UNKNOWN, freshness.getFetchedAtMillis());
+    }
+
+    /**
+     * Replacing the forecast, as a sync does, must record when it was fetched, and so must a
+     * sync that found the forecast hadn't changed.
+     */
+    @Test
+    public void testSyncsRecordFetchTime() throws InterruptedException {
+        ContentValues[] values = new ContentValues[FreshnessPolicy.MIN_DAYS_AHEAD];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = createWeatherValues(mToday + i * DAY);
+        }
+        Bundle extras = new Bundle();
+        extras.putParcelableArray(WeatherContract.EXTRA_WEATHER_VALUES, values);
+
+        long beforeWrite = System.currentTimeMillis();
+        mContext.getContentResolver().call(WeatherContract.WeatherEntry.CONTENT_URI,
+                WeatherContract.METHOD_REPLACE_FORECAST, LOCATION, extras);
+
+        ForecastFreshness written = ForecastFreshness.probe(mContext, LOCATION);
+        assertTrue("Writing the forecast should record the fetch time",
+                written.getFetchedAtMillis() >= beforeWrite);
+        assertEquals("A forecast that was just written is fresh", FreshnessPolicy.Freshness.FRESH,
+                new FreshnessPolicy().evaluate(written, System.currentTimeMillis(), mToday));
+
+        Thread.sleep(5);
+        ForecastFreshness.markFetched(mContext, LOCATION);
+
+        ForecastFreshness confirmed = ForecastFreshness.probe(mContext, LOCATION);
+        assertTrue("Confirming the forecast should move the fetch time on",
+                confirmed.getFetchedAtMillis() > written.getFetchedAtMillis());
+        assertEquals("Confirming the forecast should not change it",
+                written.getRowCount(), confirmed.getRowCount());
+    }
+
+    /**
+     * Starting with nothing stored must report the forecast as expired first, then sync it, and
+     * only then report that the sync finished, both on the main thread.
+     */
+    @Test
+    public void testExpiredForecastIsSyncedBeforeListenerIsTold() throws Exception {
+        SunshinePreferences.resetLocationCoordinates(mContext);
+        ForecastStandInServer server = new ForecastStandInServer("{}", null);
+        server.setGeneratedForecast(14, 18);
+        NetworkUtils.setForecastBaseUrl(server.getUrl("/staticweather").toString());
+
+        final List<Object> events = Collections.synchronizedList(new ArrayList<Object>());
+        final CountDownLatch syncFinished = new CountDownLatch(1);
+        final AtomicBoolean onMainThread = new AtomicBoolean(true);
+        try {
+            /* StartupSync only holds the listener weakly, so the test has to */
+            mListener = new StartupSync.Listener() {
+                @Override
+                public void onProbed(FreshnessPolicy.Freshness freshness) {
+                    onMainThread.compareAndSet(true, Looper.myLooper() == Looper.getMainLooper());
+                    events.add(freshness);
+                }
+
+                @Override
+                public void onSyncFinished(MultiLocationSyncEngine.Outcome outcome) {
+                    onMainThread.compareAndSet(true, Looper.myLooper() == Looper.getMainLooper());
+                    events.add(outcome);
+                    syncFinished.countDown();
+                }
+            };
+            StartupSync.run(mContext, mListener);
+            assertTrue("The sync never finished", syncFinished.await(10, TimeUnit.SECONDS));
+        } finally {
+            NetworkUtils.setForecastBaseUrl(null);
+            server.shutdown();
+            NetworkUtils.clearValidators(mContext);
+            SunshinePreferences.resetLocationCoordinates(mContext);
+        }
+
+        assertEquals("Wrong events", Arrays.<Object>asList(FreshnessPolicy.Freshness.EXPIRED,
+                MultiLocationSyncEngine.Outcome.UPDATED), events);
+        assertTrue("The listener should only be told on the main thread", onMainThread.get());
+        assertEquals("The synced forecast should be fresh",
+                FreshnessPolicy.Freshness.FRESH, StartupSync.probe(mContext));
+    }
+
+    /**
+     * The soft TTL must follow the adapted sync interval, so that a forecast the periodic sync
+     * keeps up to date is never stale, however long the interval has grown.
+     */
+    @Test
+    public void testSoftTtlFollowsSyncInterval() {
+        long savedInterval = SunshinePreferences.getSyncIntervalSeconds(mContext, -1);
+        try {
+            for (long hours = 1; hours <= 12; hours++) {
+                long intervalSeconds = TimeUnit.HOURS.toSeconds(hours);
+                SunshinePreferences.saveSyncIntervalSeconds(mContext, intervalSeconds);
+                FreshnessPolicy policy = SunshineSyncUtils.createFreshnessPolicy(mContext);
+                assertTrue("Soft TTL shorter than a " + hours + " hour interval",
+                        policy.getSoftTtlMillis() > TimeUnit.SECONDS.toMillis(intervalSeconds));
+                assertTrue("Hard TTL shorter than the soft TTL",
+                        policy.getHardTtlMillis() >= policy.getSoftTtlMillis());
+            }
+        } finally {
+            if (savedInterval < 0) {
+                PreferenceManager.getDefaultSharedPreferences(mContext).edit()
+                        .remove(SunshinePreferences.PREF_SYNC_INTERVAL_SECONDS).apply();
+            } else {
+                SunshinePreferences.saveSyncIntervalSeconds(mContext, savedInterval);
+            }
+        }
+    }
+
+    private static ContentValues createWeatherValues(long date) {
+        ContentValues values = new ContentValues();
+        values.put(WeatherContract.WeatherEntry.COLUMN_DATE, date);
+        values.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, 1.1);
+        values.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, 1.2);
+        values.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, 1.3);
+        values.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, 75);
+        values.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, 65);
+        values.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, 5.5);
+        values.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, 321);
+        return values;
+    }
+
+    /* Deleting the locations deletes their weather along with them */
+    private void deleteAllWeather() {
+        mContext.getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI,
+                null, null);
+    }
+}
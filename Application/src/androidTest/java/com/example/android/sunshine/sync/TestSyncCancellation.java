@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.os.OperationCanceledException;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.android.sunshine.data.SunshinePreferences;
+import com.example.android.sunshine.data.WeatherContract;
+import com.example.android.sunshine.utilities.NetworkUtils;
+import com.example.android.sunshine.utils.FakeForecastJson;
+import com.example.android.sunshine.utils.ForecastStandInServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+/**
+ * Tests that a sync stops promptly when its {@link SyncCancellationSignal} is cancelled, as it is
+ * when the job dispatcher stops our job, and that it leaves nothing half written behind, whether
+ * it is a MultiLocationSyncEngine sync or the pipelined sync of the preferred location. How long
+ * each sync took to stop is written to logcat under the tag "TestSyncCancellation".
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestSyncCancellation {
+
+    private static final String TAG = TestSyncCancellation.class.getSimpleName();
+
+    private static final int FORECAST_DAYS = 14;
+    private static final String LOCATION = "94043,USA";
+
+    /* The server is slow enough that a sync is certain to be waiting on it when we cancel */
+    private static final int LATENCY_MILLIS = 2000;
+    private static final int CANCEL_AFTER_MILLIS = 200;
+
+    /* A sync waiting on the network should stop in a small fraction of the server's latency */
+    private static final long MAX_CANCEL_LATENCY_MILLIS = LATENCY_MILLIS / 4;
+
+    /* Roughly a day of forecast per chunk, so the body takes a couple of seconds to arrive */
+    private static final int MID_BODY_CHUNK_BYTES = 320;
+    private static final int MID_BODY_CHUNK_DELAY_MILLIS = 150;
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    private ForecastStandInServer mServer;
+    private MultiLocationSyncEngine mEngine;
+
+    @Before
+    public void setUp() throws IOException {
+        deleteAllWeather();
+        NetworkUtils.clearValidators(mContext);
+
+        mServer = new ForecastStandInServer(
+                FakeForecastJson.createForecastJson(FORECAST_DAYS, 9), "\"forecast-9\"");
+
+        mEngine = new MultiLocationSyncEngine(mContext, 1, new Semaphore(1));
+        mEngine.setForecastBaseUrl(mServer.getUrl("/staticweather").toString());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServer.shutdown();
+        NetworkUtils.clearValidators(mContext);
+        deleteAllWeather();
+    }
+
+    /**
+     * A sync that is blocked waiting for a slow server must stop as soon as it is cancelled,
+     * rather than once the server answers, and must not store anything.
+     */
+    @Test
+    public void testCancelStopsBlockedSync() throws Exception {
+        mServer.setLatencyMillis(LATENCY_MILLIS);
+
+        final SyncCancellationSignal cancellationSignal = new SyncCancellationSignal();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread syncThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mEngine.sync(Collections.singletonList(LOCATION), cancellationSignal);
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            }
+        });
+        syncThread.start();
+
+        Thread.sleep(CANCEL_AFTER_MILLIS);
+        cancellationSignal.cancel();
+        syncThread.join(LATENCY_MILLIS * 2);
+        assertFalse("Sync did not stop after being cancelled", syncThread.isAlive());
+
+        assertTrue("Cancelled sync should throw OperationCanceledException, not " + failure.get(),
+                failure.get() instanceof OperationCanceledException);
+
+        long latencyMillis = TimeUnit.NANOSECONDS.toMillis(
+                cancellationSignal.getCancelLatencyNanos());
+        Log.i(TAG, "Blocked sync stopped during " + cancellationSignal.getAbortedStage()
+                + " after " + latencyMillis + " ms");
+
+        SyncCancellationSignal.Stage stage = cancellationSignal.getAbortedStage();
+        assertTrue("Sync should have stopped while waiting on the network, not during " + stage,
+                stage == SyncCancellationSignal.Stage.CONNECT
+                        || stage == SyncCancellationSignal.Stage.READ);
+        assertTrue("Sync took " + latencyMillis + " ms to stop",
+                latencyMillis >= 0 && latencyMillis < MAX_CANCEL_LATENCY_MILLIS);
+        assertEquals("A cancelled sync should not store anything", 0, countWeatherRows());
+    }
+
+    /**
+     * A sync that was cancelled before it started must not even go to the network.
+     */
+    @Test
+    public void testCancelBeforeStartMakesNoRequests() throws Exception {
+        SyncCancellationSignal cancellationSignal = new SyncCancellationSignal();
+        cancellationSignal.cancel();
+
+        try {
+            mEngine.sync(Collections.singletonList(LOCATION), cancellationSignal);
+            fail("A cancelled sync should have thrown OperationCanceledException");
+        } catch (OperationCanceledException expected) {
+            /* The sync was abandoned, as it should be */
+        }
+
+        assertEquals("Sync should have stopped before connecting",
+                SyncCancellationSignal.Stage.CONNECT, cancellationSignal.getAbortedStage());
+        assertEquals("A cancelled sync should make no requests", 0, mServer.getRequestCount());
+        assertEquals("A cancelled sync should not store anything", 0, countWeatherRows());
+    }
+
+    /**
+     * Cancelling a sync after it has finished changes nothing, and no stop is recorded.
+     */
+    @Test
+    public void testCancelAfterFinishHasNoEffect() throws Exception {
+        SyncCancellationSignal cancellationSignal = new SyncCancellationSignal();
+
+        MultiLocationSyncEngine.Result result =
+                mEngine.sync(Collections.singletonList(LOCATION), cancellationSignal);
+        cancellationSignal.cancel();
+
+        assertEquals("Location should have been updated: " + result,
+                MultiLocationSyncEngine.Outcome.UPDATED, result.getOutcome(LOCATION));
+        assertEquals("No stop should have been recorded",
+                -1, cancellationSignal.getCancelLatencyNanos());
+        assertEquals("Forecast should have been kept", FORECAST_DAYS, countWeatherRows());
+    }
+
+    /**
+     * Cancelling the app's own sync part way through the body, after the first batches of the
+     * new forecast have been written, must roll all of them back and leave the old forecast
+     * exactly as it was.
+     */
+    @Test
+    public void testCancelMidBodyKeepsOldForecast() throws Exception {
+        SunshinePreferences.resetLocationCoordinates(mContext);
+        String location = SunshinePreferences.getPreferredWeatherLocation(mContext);
+        NetworkUtils.setForecastBaseUrl(mServer.getUrl("/staticweather").toString());
+        try {
+            assertEquals("The first sync should store the old forecast",
+                    MultiLocationSyncEngine.Outcome.UPDATED,
+                    SunshineSyncTask.syncWeather(mContext));
+            List<String> oldForecast = readForecast(location);
+            assertEquals("Wrong number of days stored", FORECAST_DAYS, oldForecast.size());
+
+            /* A different forecast, trickling in a day at a time over a couple of seconds */
+            mServer.setGeneratedForecast(FORECAST_DAYS, 10);
+            mServer.setChunking(MID_BODY_CHUNK_BYTES, MID_BODY_CHUNK_DELAY_MILLIS);
+
+            final SyncCancellationSignal cancellationSignal = new SyncCancellationSignal();
+            final AtomicReference<Throwable> failure = new AtomicReference<>();
+            Thread syncThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        SunshineSyncTask.syncWeather(mContext, cancellationSignal);
+                    } catch (Throwable t) {
+                        failure.set(t);
+                    }
+                }
+            });
+            syncThread.start();
+
+            /* About half of the days have arrived, so at least one batch has been written */
+            Thread.sleep(MID_BODY_CHUNK_DELAY_MILLIS * FORECAST_DAYS / 2);
+            cancellationSignal.cancel();
+            syncThread.join(MID_BODY_CHUNK_DELAY_MILLIS * FORECAST_DAYS * 2);
+            assertFalse("Sync did not stop after being cancelled", syncThread.isAlive());
+
+            assertTrue("Cancelled sync should throw OperationCanceledException, not "
+                    + failure.get(), failure.get() instanceof OperationCanceledException);
+            SyncCancellationSignal.Stage stage = cancellationSignal.getAbortedStage();
+            assertTrue("Sync should have stopped part way through the body, not during "
+                    + stage, stage != null && stage != SyncCancellationSignal.Stage.CONNECT);
+            assertEquals("The old forecast should have been kept as it was",
+                    oldForecast, readForecast(location));
+        } finally {
+            NetworkUtils.setForecastBaseUrl(null);
+            SunshinePreferences.resetLocationCoordinates(mContext);
+        }
+    }
+
+    /* Every stored day of the location, as text, in date order */
+    private List<String> readForecast(String locationSetting) {
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.WeatherEntry.buildWeatherUriWithLocation(locationSetting),
+                new String[]{
+                        WeatherContract.WeatherEntry.COLUMN_DATE,
+                        WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+                        WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+                        WeatherContract.WeatherEntry.COLUMN_MAX_TEMP
+                },
+                null,
+                null,
+                WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
+        assertNotNull("Cursor was null", cursor);
+        List<String> days = new ArrayList<>();
+        try {
+            while (cursor.moveToNext()) {
+                days.add(cursor.getLong(0) + " " + cursor.getInt(1) + " "
+                        + cursor.getDouble(2) + " " + cursor.getDouble(3));
+            }
+        } finally {
+            cursor.close();
+        }
+        return days;
+    }
+
+    private int countWeatherRows() {
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.WeatherEntry.buildWeatherUriWithLocation(LOCATION),
+                null,
+                null,
+                null,
+                null);
+        assertNotNull("Cursor was null", cursor);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+
+    /* Deleting the locations deletes their weather along with them */
+    private void deleteAllWeather() {
+        mContext.getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI,
+                null, null);
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.sunshine.utils.PollingCheck;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+/**
+ * Tests that {@link SyncCoalescer} lets callers for the same location share one sync, while
+ * callers for different locations run in parallel.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestSyncCoalescer {
+
+    private static final int CALLERS = 5;
+
+    /**
+     * Several callers asking for the same location while its sync is running must all get the
+     * result of that one sync.
+     */
+    @Test
+    public void testConcurrentCallersShareOneSync() throws Exception {
+        final SyncCoalescer<Integer> coalescer = new SyncCoalescer<>();
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger runs = new AtomicInteger();
+
+        final Callable<Integer> sync = new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                release.await();
+                return runs.incrementAndGet();
+            }
+        };
+
+        ExecutorService callers = Executors.newFixedThreadPool(CALLERS);
+        try {
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int i = 0; i < CALLERS; i++) {
+                results.add(callers.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        return coalescer.sync("94043", sync);
+                    }
+                }));
+            }
+
+            /* Only let the sync finish once every other caller is waiting on it */
+            PollingCheck.check("Callers were not coalesced", 3000, new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return coalescer.getCoalescedSyncCount() == CALLERS - 1;
+                }
+            });
+            release.countDown();
+
+            for (Future<Integer> result : results) {
+                assertEquals("Every caller should get the result of the one sync",
+                        Integer.valueOf(1), result.get(3, TimeUnit.SECONDS));
+            }
+        } finally {
+            callers.shutdownNow();
+        }
+
+        assertEquals("The sync should only have run once", 1, runs.get());
+        assertEquals("Wrong number of executed syncs", 1, coalescer.getExecutedSyncCount());
+        assertEquals("Wrong number of coalesced syncs",
+                CALLERS - 1, coalescer.getCoalescedSyncCount());
+    }
+
+    /**
+     * Syncs of two different locations must run at the same time. Each waits for the other at a
+     * barrier, which would time out if one had to wait for the other to finish.
+     */
+    @Test
+    public void testDifferentLocationsRunInParallel() throws Exception {
+        final SyncCoalescer<Integer> coalescer = new SyncCoalescer<>();
+        final CyclicBarrier bothRunning = new CyclicBarrier(2);
+
+        final Callable<Integer> sync = new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                bothRunning.await(3, TimeUnit.SECONDS);
+                return 0;
+            }
+        };
+
+        ExecutorService callers = Executors.newFixedThreadPool(2);
+        try {
+            Future<Integer> first = callers.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    return coalescer.sync("94043", sync);
+                }
+            });
+            Future<Integer> second = callers.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    return coalescer.sync("99705", sync);
+                }
+            });
+
+            first.get(5, TimeUnit.SECONDS);
+            second.get(5, TimeUnit.SECONDS);
+        } finally {
+            callers.shutdownNow();
+        }
+
+        assertEquals("Both syncs should have run", 2, coalescer.getExecutedSyncCount());
+        assertEquals("Nothing should have been coalesced", 0, coalescer.getCoalescedSyncCount());
+    }
+
+    /**
+     * Once a sync has finished, the next caller must start a new one rather than get an old
+     * result, and a failed sync must not block the location.
+     */
+    @Test
+    public void testFinishedSyncIsNotReused() throws Exception {
+        SyncCoalescer<Integer> coalescer = new SyncCoalescer<>();
+
+        try {
+            coalescer.sync("94043", new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    throw new IllegalStateException("Server down");
+                }
+            });
+            fail("The failure of the sync should be passed on to its caller");
+        } catch (ExecutionException expected) {
+            assertTrue("Wrong failure passed on",
+                    expected.getCause() instanceof IllegalStateException);
+        }
+
+        assertNull("No sync should be in flight", coalescer.joinInFlight("94043"));
+
+        int result = coalescer.sync("94043", new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return 2;
+            }
+        });
+        assertEquals("Second sync should have run", 2, result);
+        assertEquals("Both syncs should have run", 2, coalescer.getExecutedSyncCount());
+    }
+
+    /**
+     * A caller of sync must wait for a claimed key and get what the claim was completed with,
+     * without running its own sync. Claims are never handed out to joinInFlight, nor claimed
+     * twice.
+     */
+    @Test
+    public void testSyncWaitsForClaim() throws Exception {
+        final SyncCoalescer<Integer> coalescer = new SyncCoalescer<>();
+        final AtomicInteger runs = new AtomicInteger();
+
+        SyncCoalescer.Claim<Integer> claim = coalescer.claim("94043");
+        assertNotNull("The key should have been free to claim", claim);
+        assertNull("A key can only be claimed once", coalescer.claim("94043"));
+        assertNull("A claim must not be joined", coalescer.joinInFlight("94043"));
+
+        ExecutorService callers = Executors.newSingleThreadExecutor();
+        try {
+            Future<Integer> result = callers.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    return coalescer.sync("94043", new Callable<Integer>() {
+                        @Override
+                        public Integer call() {
+                            return runs.incrementAndGet();
+                        }
+                    });
+                }
+            });
+
+            PollingCheck.check("Caller did not wait for the claim", 3000, new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return coalescer.getCoalescedSyncCount() == 1;
+                }
+            });
+            claim.complete(7);
+
+            assertEquals("The caller should get what the claim was completed with",
+                    Integer.valueOf(7), result.get(3, TimeUnit.SECONDS));
+        } finally {
+            callers.shutdownNow();
+        }
+
+        assertEquals("The caller's own sync should not have run", 0, runs.get());
+        assertEquals("Only the claim should have counted as executed",
+                1, coalescer.getExecutedSyncCount());
+        SyncCoalescer.Claim<Integer> next = coalescer.claim("94043");
+        assertNotNull("The key should be free again once the claim completed", next);
+        next.complete(0);
+    }
+}
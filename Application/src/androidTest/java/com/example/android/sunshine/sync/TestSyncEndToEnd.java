@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.android.sunshine.data.SunshinePreferences;
+import com.example.android.sunshine.data.WeatherContract;
+import com.example.android.sunshine.utilities.NetworkUtils;
+import com.example.android.sunshine.utils.ForecastStandInServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Runs the app's own sync, {@link SunshineSyncTask#syncWeather(Context)}, from the request all
+ * the way to the database, against a stand-in for the weather server running on the device.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestSyncEndToEnd {
+
+    private static final String TAG = TestSyncEndToEnd.class.getSimpleName();
+
+    private static final int FORECAST_DAYS = 14;
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    private ForecastStandInServer mServer;
+    private String mLocation;
+
+    @Before
+    public void setUp() throws IOException {
+        deleteAllWeather();
+        NetworkUtils.clearValidators(mContext);
+        /* Without coordinates, the sync asks for the preferred location by name */
+        SunshinePreferences.resetLocationCoordinates(mContext);
+        mLocation = SunshinePreferences.getPreferredWeatherLocation(mContext);
+
+        mServer = new ForecastStandInServer("{}", null);
+        mServer.setGeneratedForecast(FORECAST_DAYS, 20);
+        NetworkUtils.setForecastBaseUrl(mServer.getUrl("/staticweather").toString());
+
+        /* Failed syncs are still retried, just without waiting long */
+        SunshineSyncTask.setRetryPolicy(new SyncRetryPolicy(3, 10, 20, new Random(20)));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        NetworkUtils.setForecastBaseUrl(null);
+        NetworkUtils.setMaxResponseBytes(0);
+        SunshineSyncTask.setRetryPolicy(null);
+        mServer.shutdown();
+        NetworkUtils.clearValidators(mContext);
+        SunshinePreferences.resetLocationCoordinates(mContext);
+        deleteAllWeather();
+    }
+
+    /**
+     * A sync must store every day the server sent, and a second sync must be answered with a
+     * 304 and leave the forecast as it was.
+     */
+    @Test
+    public void testSyncStoresForecastThenIsNotModified() {
+        assertEquals("First sync should store the forecast",
+                MultiLocationSyncEngine.Outcome.UPDATED, SunshineSyncTask.syncWeather(mContext));
+        assertEquals("Wrong number of days stored", FORECAST_DAYS, countWeatherRows());
+
+        /*
+         * The first sync saved the city's coordinates, which would change the URL the second
+         * asks for, and the validators are kept per URL.
+         */
+        SunshinePreferences.resetLocationCoordinates(mContext);
+        assertEquals("Second sync should find the forecast unchanged",
+                MultiLocationSyncEngine.Outcome.UNCHANGED, SunshineSyncTask.syncWeather(mContext));
+        assertEquals("The second request should have been conditional",
+                1, mServer.getNotModifiedCount());
+        assertEquals("The forecast should have been kept", FORECAST_DAYS, countWeatherRows());
+    }
+
+    /**
+     * A large forecast that trickles in, compressed and a chunk at a time, must be stored just
+     * like one sent in one go.
+     */
+    @Test
+    public void testChunkedCompressedForecastIsStored() throws IOException {
+        int days = 200;
+        mServer.setGeneratedForecast(days, 21);
+        mServer.setContentEncoding(ForecastStandInServer.ENCODING_GZIP);
+        mServer.setChunking(512, 2);
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        assertEquals("Chunked sync should store the forecast",
+                MultiLocationSyncEngine.Outcome.UPDATED, SunshineSyncTask.syncWeather(mContext));
+        Log.i(TAG, "Synced " + days + " chunked days ("
+                + mServer.getLastBodyBytesSent() + " bytes compressed) in "
+                + TimeUnit.NANOSECONDS.toMillis(SystemClock.elapsedRealtimeNanos() - start)
+                + " ms");
+
+        assertEquals("Wrong number of days stored", days, countWeatherRows());
+    }
+
+    /**
+     * The limit on the size of a response applies to the body once it has been decompressed,
+     * even though the sync streams it straight into the parser. A body that is too large is
+     * not retried, and must leave the forecast we had alone.
+     */
+    @Test
+    public void testDecodedBodyLargerThanLimitFailsSync() throws IOException {
+        assertEquals("The first sync should store the forecast",
+                MultiLocationSyncEngine.Outcome.UPDATED, SunshineSyncTask.syncWeather(mContext));
+
+        /* Roughly 128 kilobytes of JSON, which gzip shrinks to well under the limit */
+        int maxResponseBytes = 64 * 1024;
+        NetworkUtils.setMaxResponseBytes(maxResponseBytes);
+        mServer.setGeneratedForecast(400, 23);
+        mServer.setContentEncoding(ForecastStandInServer.ENCODING_GZIP);
+        int requestsBefore = mServer.getRequestCount();
+
+        assertEquals("A body larger than the limit should fail the sync",
+                MultiLocationSyncEngine.Outcome.FAILED, SunshineSyncTask.syncWeather(mContext));
+        assertTrue("The compressed body should have been under the limit",
+                mServer.getLastBodyBytesSent() < maxResponseBytes);
+        assertEquals("A body that is too large should not be retried",
+                requestsBefore + 1, mServer.getRequestCount());
+        assertEquals("The old forecast should have been kept", FORECAST_DAYS, countWeatherRows());
+    }
+
+    /**
+     * A server that fails now and then must be retried past its failures, and one that fails
+     * every time must leave the forecast we had alone.
+     */
+    @Test
+    public void testServerErrors() {
+        mServer.scriptResponses(503);
+        assertEquals("A failure that passes should be retried",
+                MultiLocationSyncEngine.Outcome.UPDATED, SunshineSyncTask.syncWeather(mContext));
+        assertEquals("Wrong number of requests", 2, mServer.getRequestCount());
+
+        mServer.setErrorRate(1, 22);
+        assertEquals("A server that always fails should fail the sync",
+                MultiLocationSyncEngine.Outcome.FAILED, SunshineSyncTask.syncWeather(mContext));
+        assertEquals("Every attempt should have been made", 3, mServer.getRandomErrorCount());
+        assertEquals("The old forecast should have been kept", FORECAST_DAYS, countWeatherRows());
+    }
+
+    private int countWeatherRows() {
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.WeatherEntry.buildWeatherUriWithLocation(mLocation),
+                null,
+                null,
+                null,
+                null);
+        assertNotNull("Cursor was null", cursor);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+
+    /* Deleting the locations deletes their weather along with them */
+    private void deleteAllWeather() {
+        mContext.getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI,
+                null, null);
+    }
+}
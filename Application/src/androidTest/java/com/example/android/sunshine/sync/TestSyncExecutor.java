@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotSame;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Tests that {@link SyncExecutor} runs syncs on its own named threads, measures how long they
+ * queue and run for, and can be swapped for a synchronous executor in tests.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestSyncExecutor {
+
+    private static final long SLOW_SYNC_MILLIS = 100;
+
+    @After
+    public void tearDown() {
+        SyncExecutor.setInstance(null);
+    }
+
+    /**
+     * Syncs must run on the executor's own threads, which are named so that they can be picked
+     * out in a trace, and never on the thread that submitted them.
+     */
+    @Test
+    public void testSyncsRunOnNamedThreads() throws Exception {
+        SyncExecutor executor = new SyncExecutor();
+
+        Future<Thread> sync = executor.submit(new Callable<Thread>() {
+            @Override
+            public Thread call() {
+                return Thread.currentThread();
+            }
+        });
+
+        Thread syncThread = sync.get(5, TimeUnit.SECONDS);
+        assertNotSame("Sync ran on the submitting thread", Thread.currentThread(), syncThread);
+        assertTrue("Sync thread is not named: " + syncThread.getName(),
+                syncThread.getName().startsWith("SunshineSync-"));
+    }
+
+    /**
+     * Syncs submitted while the sync threads are busy must be counted as queued until they
+     * start, and each one's run time must be measured.
+     */
+    @Test
+    public void testQueueDepthAndRunTimeAreMeasured() throws Exception {
+        SyncExecutor executor = new SyncExecutor();
+
+        /* Occupy both sync threads until we say so */
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(2);
+        List<Future<Boolean>> syncs = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            syncs.add(executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws InterruptedException {
+                    started.countDown();
+                    return release.await(5, TimeUnit.SECONDS);
+                }
+            }));
+        }
+        assertTrue("Sync threads did not start", started.await(5, TimeUnit.SECONDS));
+
+        for (int i = 0; i < 3; i++) {
+            syncs.add(executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws InterruptedException {
+                    Thread.sleep(SLOW_SYNC_MILLIS);
+                    return true;
+                }
+            }));
+        }
+
+        assertEquals("Wrong number of syncs running", 2, executor.getRunningCount());
+        assertEquals("Wrong number of syncs queued", 3, executor.getQueueDepth());
+
+        release.countDown();
+        for (Future<Boolean> sync : syncs) {
+            assertTrue("Sync did not finish properly", sync.get(5, TimeUnit.SECONDS));
+        }
+
+        assertEquals("Every sync should have been counted", 5, executor.getCompletedCount());
+        assertEquals("Nothing should be queued any more", 0, executor.getQueueDepth());
+        assertEquals("Wrong maximum queue depth", 3, executor.getMaxQueueDepth());
+        assertTrue("Slowest sync was not measured: " + executor,
+                executor.getMaxRunNanos() >= TimeUnit.MILLISECONDS.toNanos(SLOW_SYNC_MILLIS));
+        assertTrue("Queued syncs should have been measured waiting: " + executor,
+                executor.getMeanWaitNanos() > 0);
+    }
+
+    /**
+     * A synchronous executor must run the sync on the calling thread before submit returns, and
+     * once installed, must be the one every sync uses.
+     */
+    @Test
+    public void testSynchronousExecutorRunsOnCallingThread() throws Exception {
+        SyncExecutor executor = SyncExecutor.createSynchronous();
+        SyncExecutor.setInstance(executor);
+        assertSame("Installed executor is not used", executor, SyncExecutor.getInstance());
+
+        Future<Thread> sync = executor.submit(new Callable<Thread>() {
+            @Override
+            public Thread call() {
+                return Thread.currentThread();
+            }
+        });
+
+        assertTrue("Sync should have finished before submit returned", sync.isDone());
+        assertSame("Sync should have run on the calling thread",
+                Thread.currentThread(), sync.get());
+        assertEquals("Sync should have been measured", 1, executor.getCompletedCount());
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteFullException;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.MalformedJsonException;
+
+import com.example.android.sunshine.data.WeatherContract;
+import com.example.android.sunshine.utilities.NetworkUtils;
+import com.example.android.sunshine.utils.FakeForecastJson;
+import com.example.android.sunshine.utils.ForecastStandInServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Tests that failed syncs are sorted into {@link SyncException}s correctly, and that
+ * {@link SyncRetryPolicy} retries the ones likely to pass, with growing, jittered delays, but
+ * never the ones that aren't. The syncs run against a stand-in for the weather server that
+ * answers with a scripted sequence of failures.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestSyncRetryPolicy {
+
+    private static final int FORECAST_DAYS = 14;
+    private static final String LOCATION = "94043,USA";
+
+    /* Short delays, so the tests don't spend their time waiting to retry */
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long INITIAL_DELAY_MILLIS = 20;
+    private static final long MAX_DELAY_MILLIS = 200;
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    private ForecastStandInServer mServer;
+    private SyncRetryPolicy mRetryPolicy;
+    private MultiLocationSyncEngine mEngine;
+
+    @Before
+    public void setUp() throws IOException {
+        deleteAllWeather();
+        NetworkUtils.clearValidators(mContext);
+
+        mServer = new ForecastStandInServer(
+                FakeForecastJson.createForecastJson(FORECAST_DAYS, 5), "\"forecast-5\"");
+
+        mRetryPolicy = new SyncRetryPolicy(MAX_ATTEMPTS, INITIAL_DELAY_MILLIS, MAX_DELAY_MILLIS,
+                new Random(42));
+        mEngine = new MultiLocationSyncEngine(mContext, 1, new Semaphore(1));
+        mEngine.setForecastBaseUrl(mServer.getUrl("/staticweather").toString());
+        mEngine.setRetryPolicy(mRetryPolicy);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServer.shutdown();
+        NetworkUtils.clearValidators(mContext);
+        deleteAllWeather();
+    }
+
+    /**
+     * Server errors, timeouts and being told to slow down are worth retrying; other client
+     * errors, forecasts we can't parse and a full disk are not.
+     */
+    @Test
+    public void testFailuresAreClassified() {
+        assertRetryable(true, SyncException.httpStatus(500));
+        assertRetryable(true, SyncException.httpStatus(503));
+        assertRetryable(true, SyncException.httpStatus(408));
+        assertRetryable(true, SyncException.httpStatus(429));
+        assertRetryable(false, SyncException.httpStatus(400));
+        assertRetryable(false, SyncException.httpStatus(404));
+
+        SyncException timeout = SyncException.classify(new SocketTimeoutException("Too slow"));
+        assertEquals("Wrong kind for a timeout", SyncException.Kind.NETWORK, timeout.getKind());
+        assertRetryable(true, timeout);
+
+        SyncException malformed = SyncException.classify(new MalformedJsonException("{{"));
+        assertEquals("Wrong kind for malformed JSON", SyncException.Kind.PARSE,
+                malformed.getKind());
+        assertRetryable(false, malformed);
+
+        SyncException full = SyncException.classify(new SQLiteFullException("Disk full"));
+        assertEquals("Wrong kind for a full disk", SyncException.Kind.STORAGE, full.getKind());
+        assertRetryable(false, full);
+        assertRetryable(true, SyncException.storage("Database locked", null));
+    }
+
+    /**
+     * Each delay must be between half and all of the doubled delay, and never longer than the
+     * maximum, whatever the jitter turns out to be.
+     */
+    @Test
+    public void testDelaysGrowWithJitter() {
+        SyncRetryPolicy shortest = new SyncRetryPolicy(10, 1000, 8000, new FixedRandom(0.0));
+        SyncRetryPolicy longest = new SyncRetryPolicy(10, 1000, 8000, new FixedRandom(0.999999));
+
+        long expected = 1000;
+        for (int attemptsMade = 1; attemptsMade < 10; attemptsMade++) {
+            assertEquals("Shortest delay should be half the doubled delay",
+                    expected / 2, shortest.getDelayMillis(attemptsMade));
+            assertTrue("Longest delay should be close to the doubled delay",
+                    longest.getDelayMillis(attemptsMade) >= expected - 1
+                            && longest.getDelayMillis(attemptsMade) <= expected);
+            expected = Math.min(expected * 2, 8000);
+        }
+
+        /* Delays for the same attempt should be spread out, not all the same */
+        SyncRetryPolicy jittered = new SyncRetryPolicy(10, 1000, 8000, new Random(7));
+        long first = jittered.getDelayMillis(3);
+        boolean spread = false;
+        for (int i = 0; i < 10 && !spread; i++) {
+            spread = jittered.getDelayMillis(3) != first;
+        }
+        assertTrue("Delays should be jittered", spread);
+    }
+
+    /**
+     * A server that fails twice, in ways that are likely to pass, and then recovers must still
+     * give us the forecast within the same sync.
+     */
+    @Test
+    public void testTransientFailuresAreRetried() throws Exception {
+        mServer.scriptResponses(503, 500);
+
+        MultiLocationSyncEngine.Result result = syncLocation();
+
+        assertEquals("Location should have been updated after retrying: " + result,
+                MultiLocationSyncEngine.Outcome.UPDATED, result.getOutcome(LOCATION));
+        assertEquals("Wrong number of requests", MAX_ATTEMPTS, mServer.getRequestCount());
+        assertEquals("Wrong number of retries", MAX_ATTEMPTS - 1, mRetryPolicy.getRetryCount());
+        assertFalse("Nothing is left to retry", result.needsRetry());
+    }
+
+    /**
+     * A dropped connection is a network failure, which is retried like any other.
+     */
+    @Test
+    public void testDroppedConnectionIsRetried() throws Exception {
+        mServer.scriptResponses(ForecastStandInServer.DROP_CONNECTION);
+
+        MultiLocationSyncEngine.Result result = syncLocation();
+
+        assertEquals("Location should have been updated after retrying: " + result,
+                MultiLocationSyncEngine.Outcome.UPDATED, result.getOutcome(LOCATION));
+        assertTrue("The dropped connection should have been retried",
+                mServer.getRequestCount() >= 2);
+    }
+
+    /**
+     * A location the server doesn't know about will never be found, so it must be asked for
+     * exactly once, and the sync must not ask to be rescheduled for it.
+     */
+    @Test
+    public void testPermanentFailureIsNotRetried() throws Exception {
+        mServer.scriptResponses(404);
+
+        MultiLocationSyncEngine.Result result = syncLocation();
+
+        assertFailed(result, SyncException.Kind.HTTP_STATUS);
+        assertEquals("Wrong status", 404, result.getFailure(LOCATION).getHttpStatus());
+        assertEquals("A permanent failure should be requested once", 1, mServer.getRequestCount());
+        assertEquals("A permanent failure should not be retried", 0, mRetryPolicy.getRetryCount());
+        assertFalse("A permanent failure should not be rescheduled", result.needsRetry());
+    }
+
+    /**
+     * An error the server sends as JSON is a forecast we can't use, and the server will only
+     * send it again, so it must not be retried either.
+     */
+    @Test
+    public void testParseFailureIsNotRetried() throws Exception {
+        mServer.setForecast(FakeForecastJson.createNotFoundJson(), null);
+
+        MultiLocationSyncEngine.Result result = syncLocation();
+
+        assertFailed(result, SyncException.Kind.PARSE);
+        assertEquals("A parse failure should be requested once", 1, mServer.getRequestCount());
+        assertFalse("A parse failure should not be rescheduled", result.needsRetry());
+    }
+
+    /**
+     * A server that keeps failing must be given up on once the attempts run out, and the sync
+     * must ask to be rescheduled so that the job dispatcher can try again later.
+     */
+    @Test
+    public void testRetriesGiveUpAndReschedule() throws Exception {
+        mServer.scriptResponses(503, 503, 503, 503);
+
+        MultiLocationSyncEngine.Result result = syncLocation();
+
+        assertFailed(result, SyncException.Kind.HTTP_STATUS);
+        assertEquals("Every attempt should have been made", MAX_ATTEMPTS,
+                mServer.getRequestCount());
+        assertTrue("A retryable failure should be rescheduled", result.needsRetry());
+    }
+
+    private MultiLocationSyncEngine.Result syncLocation() throws InterruptedException {
+        List<String> locations = Collections.singletonList(LOCATION);
+        return mEngine.sync(locations);
+    }
+
+    private static void assertRetryable(boolean expected, SyncException failure) {
+        assertEquals("Wrong retry decision for " + failure.getMessage(),
+                expected, failure.isRetryable());
+    }
+
+    private static void assertFailed(MultiLocationSyncEngine.Result result,
+                                     SyncException.Kind expectedKind) {
+        assertEquals("Location should have failed",
+                MultiLocationSyncEngine.Outcome.FAILED, result.getOutcome(LOCATION));
+        SyncException failure = result.getFailure(LOCATION);
+        assertNotNull("Failure was not recorded", failure);
+        assertEquals("Wrong kind of failure", expectedKind, failure.getKind());
+    }
+
+    private void deleteAllWeather() {
+        mContext.getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI,
+                null, null);
+    }
+
+    /* Always returns the same "random" number, to check the bounds of the jitter */
+    private static class FixedRandom extends Random {
+
+        private final double mValue;
+
+        FixedRandom(double value) {
+            mValue = value;
+        }
+
+        @Override
+        public double nextDouble() {
+            return mValue;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.utilities;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.sunshine.data.WeatherContract;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Tests the {@link MetricsRegistry} and that the sync metrics can be read from WeatherProvider.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestMetricsRegistry {
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    /**
+     * Latencies must land in the first bucket whose bound they don't exceed, and anything slower
+     * than the last bound in the overflow bucket.
+     */
+    @Test
+    public void testHistogramBuckets() {
+        MetricsRegistry registry = new MetricsRegistry();
+        MetricsRegistry.Histogram histogram = registry.histogram("test");
+
+        histogram.record(TimeUnit.MICROSECONDS.toNanos(500));
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(1));
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(7));
+        histogram.record(TimeUnit.MINUTES.toNanos(1));
+        /* Negative latencies come from clocks going backwards; they aren't counted */
+        histogram.record(-1);
+
+        int overflow = histogram.getBucketCount() - 1;
+        assertEquals("Wrong bucket count",
+                MetricsRegistry.DEFAULT_LATENCY_BUCKETS_MILLIS.length + 1,
+                histogram.getBucketCount());
+        assertEquals("Both latencies up to 1 ms belong in the first bucket",
+                2, histogram.getBucketValue(0));
+        assertEquals("7 ms belongs in the 10 ms bucket", 1, histogram.getBucketValue(3));
+        assertEquals("A minute belongs in the overflow bucket",
+                1, histogram.getBucketValue(overflow));
+        assertEquals("Wrong count", 4, histogram.getCount());
+        assertEquals("Wrong max", TimeUnit.MINUTES.toNanos(1), histogram.getMaxNanos());
+        assertEquals("Wrong median", TimeUnit.MILLISECONDS.toNanos(1),
+                histogram.getQuantileNanos(0.5));
+        assertEquals("A quantile in the overflow bucket is the max",
+                TimeUnit.MINUTES.toNanos(1), histogram.getQuantileNanos(0.99));
+    }
+
+    /**
+     * Counters and gauges must add up, and reset must clear every metric.
+     */
+    @Test
+    public void testCountersGaugesAndReset() {
+        MetricsRegistry registry = new MetricsRegistry();
+        MetricsRegistry.Counter counter = registry.counter("counter");
+        MetricsRegistry.Gauge gauge = registry.gauge("gauge");
+        MetricsRegistry.Histogram histogram = registry.histogram("histogram");
+
+        counter.increment();
+        counter.add(41);
+        gauge.increment();
+        gauge.increment();
+        gauge.decrement();
+        histogram.record(1);
+
+        assertEquals("Wrong counter value", 42, counter.get());
+        assertEquals("Wrong gauge value", 1, gauge.get());
+        assertEquals("The gauge should remember its highest value", 2, gauge.getMax());
+
+        StringWriter text = new StringWriter();
+        registry.dump(new PrintWriter(text));
+        String[] lines = text.toString().split("\n");
+        assertEquals("Every metric should be dumped on its own line", 3, lines.length);
+        assertEquals("Wrong counter line", "counter 42", lines[0]);
+        assertTrue("Wrong histogram line: " + lines[2], lines[2].startsWith("histogram count 1"));
+
+        registry.reset();
+        assertEquals("Reset should clear counters", 0, counter.get());
+        assertEquals("Reset should clear gauges", 0, gauge.getMax());
+        assertEquals("Reset should clear histograms", 0, histogram.getCount());
+        assertEquals("Reset should clear buckets", 0, histogram.getBucketValue(0));
+    }
+
+    /**
+     * The sync metrics must be readable through WeatherProvider, with every stage listed.
+     */
+    @Test
+    public void testDumpThroughProvider() {
+        SyncMetrics.NOTIFY.record(TimeUnit.MILLISECONDS.toNanos(3));
+
+        Bundle result = mContext.getContentResolver().call(
+                WeatherContract.WeatherEntry.CONTENT_URI,
+                WeatherContract.METHOD_DUMP_METRICS,
+                null,
+                null);
+
+        assertNotNull("The provider returned no metrics", result);
+        String metrics = result.getString(WeatherContract.RESULT_METRICS);
+        assertNotNull("The provider returned no metrics", metrics);
+        /* Put every metric, even the first, at the start of a line */
+        metrics = "\n" + metrics;
+        String[] stages = {"connect", "first_byte", "body_read", "parse", "delete", "insert",
+                "notify"};
+        for (String stage : stages) {
+            assertTrue("No histogram for " + stage + " in:" + metrics,
+                    metrics.contains("\n" + stage + " count "));
+        }
+        assertFalse("The recorded latency is missing from:" + metrics,
+                metrics.contains("\nnotify count 0,"));
+    }
+}
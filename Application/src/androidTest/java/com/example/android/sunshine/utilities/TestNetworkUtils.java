@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.utilities;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.sunshine.utils.FakeForecastJson;
+import com.example.android.sunshine.utils.ForecastStandInServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Tests the conditional and compressed requests NetworkUtils makes, against a stand-in for the
+ * weather server running on the device.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestNetworkUtils {
+
+    private static final String ETAG = "\"forecast-1\"";
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    private ForecastStandInServer mServer;
+    private String mForecastJson;
+    private URL mForecastUrl;
+
+    @Before
+    public void setUp() throws IOException {
+        NetworkUtils.clearValidators(mContext);
+
+        mForecastJson = FakeForecastJson.createForecastJson(14, 7);
+        mServer = new ForecastStandInServer(mForecastJson, ETAG);
+        mForecastUrl = mServer.getUrl("/staticweather?q=94043");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServer.shutdown();
+        NetworkUtils.clearValidators(mContext);
+    }
+
+    /**
+     * Once the validators of a response have been saved, asking for the same URL again should
+     * send them and get a 304 back, which counts as a hit that saved the whole body.
+     */
+    @Test
+    public void testUnchangedForecastIsNotModified() throws IOException {
+        long bodyBytes = fetchAndSaveValidators();
+        assertEquals("Stand-in server sent the wrong body",
+                mForecastJson.getBytes("UTF-8").length, bodyBytes);
+
+        long hitsBefore = NetworkUtils.getNotModifiedResponseCount();
+        long bytesSavedBefore = NetworkUtils.getBytesSaved();
+
+        HttpURLConnection urlConnection =
+                NetworkUtils.openConditionalHttpUrlConnection(mContext, mForecastUrl, true);
+        try {
+            assertTrue("Server should have said the forecast was not modified",
+                    NetworkUtils.isNotModified(mContext, mForecastUrl, urlConnection));
+        } finally {
+            urlConnection.disconnect();
+        }
+
+        assertEquals("If-None-Match was not sent", ETAG,
+                mServer.getLastRequestHeader("if-none-match"));
+        assertEquals("304 was not counted", hitsBefore + 1,
+                NetworkUtils.getNotModifiedResponseCount());
+        assertEquals("Bytes saved by the 304 were not counted", bytesSavedBefore + bodyBytes,
+                NetworkUtils.getBytesSaved());
+    }
+
+    /**
+     * If the forecast the validators describe is gone, the request must not be conditional or
+     * we'd never get the forecast back.
+     */
+    @Test
+    public void testValidatorsAreNotSentWithoutForecast() throws IOException {
+        fetchAndSaveValidators();
+
+        HttpURLConnection urlConnection =
+                NetworkUtils.openConditionalHttpUrlConnection(mContext, mForecastUrl, false);
+        try {
+            assertFalse("Unconditional request should get the whole forecast",
+                    NetworkUtils.isNotModified(mContext, mForecastUrl, urlConnection));
+        } finally {
+            urlConnection.disconnect();
+        }
+
+        assertNull("If-None-Match should not have been sent",
+                mServer.getLastRequestHeader("if-none-match"));
+    }
+
+    /**
+     * Once the server has a new forecast, the stored validators no longer match and the new
+     * forecast should be sent in full.
+     */
+    @Test
+    public void testChangedForecastIsFetched() throws IOException {
+        fetchAndSaveValidators();
+
+        long missesBefore = NetworkUtils.getFullResponseCount();
+        mServer.setForecast(FakeForecastJson.createForecastJson(14, 8), "\"forecast-2\"");
+
+        HttpURLConnection urlConnection =
+                NetworkUtils.openConditionalHttpUrlConnection(mContext, mForecastUrl, true);
+        try {
+            assertFalse("Changed forecast should not be reported as not modified",
+                    NetworkUtils.isNotModified(mContext, mForecastUrl, urlConnection));
+        } finally {
+            urlConnection.disconnect();
+        }
+
+        assertEquals("Full response was not counted", missesBefore + 1,
+                NetworkUtils.getFullResponseCount());
+    }
+
+    @Test
+    public void testGzipBodyIsDecoded() throws IOException {
+        assertCompressedBodyIsDecoded(ForecastStandInServer.ENCODING_GZIP);
+    }
+
+    @Test
+    public void testDeflateBodyIsDecoded() throws IOException {
+        assertCompressedBodyIsDecoded(ForecastStandInServer.ENCODING_DEFLATE);
+    }
+
+    @Test
+    public void testRawDeflateBodyIsDecoded() throws IOException {
+        assertCompressedBodyIsDecoded(ForecastStandInServer.ENCODING_RAW_DEFLATE);
+    }
+
+    @Test
+    public void testUncompressedBodyIsPassedThrough() throws IOException {
+        mServer.setContentEncoding(null);
+
+        assertEquals("Uncompressed body was not read correctly", mForecastJson,
+                NetworkUtils.getResponseFromHttpUrl(mForecastUrl));
+    }
+
+    /**
+     * Has the stand-in server compress the forecast, then checks that we asked for compression,
+     * got it, and that decoding the body as a stream gives back exactly the forecast.
+     */
+    private void assertCompressedBodyIsDecoded(String contentEncoding) throws IOException {
+        mServer.setContentEncoding(contentEncoding);
+
+        HttpURLConnection urlConnection =
+                NetworkUtils.openConditionalHttpUrlConnection(mContext, mForecastUrl, false);
+        try {
+            MeteredInputStream wireStream =
+                    new MeteredInputStream(urlConnection.getInputStream());
+            MeteredInputStream in = new MeteredInputStream(
+                    NetworkUtils.decodeResponseBody(urlConnection, wireStream));
+            String body;
+            try {
+                body = ResponseBodyReader.readBody(in,
+                        urlConnection.getContentType(),
+                        NetworkUtils.getDecodedContentLength(urlConnection),
+                        NetworkUtils.DEFAULT_MAX_RESPONSE_BYTES);
+            } finally {
+                in.close();
+            }
+
+            assertNotNull("Accept-Encoding was not sent",
+                    mServer.getLastRequestHeader("accept-encoding"));
+            assertNotNull("Stand-in server did not compress the body",
+                    urlConnection.getContentEncoding());
+            assertEquals("Decoded body differs from the forecast that was served",
+                    mForecastJson, body);
+            assertEquals("Wrong number of bytes read off the wire",
+                    mServer.getLastBodyBytesSent(), wireStream.getBytesRead());
+            assertEquals("Wrong number of decoded bytes",
+                    mForecastJson.getBytes("UTF-8").length, in.getBytesRead());
+            assertTrue("Forecast JSON should compress well",
+                    wireStream.getBytesRead() * 2 < in.getBytesRead());
+        } finally {
+            urlConnection.disconnect();
+        }
+    }
+
+    /**
+     * Makes a request the way SunshineSyncTask does on a first sync and saves the validators.
+     *
+     * @return The number of body bytes read
+     */
+    private long fetchAndSaveValidators() throws IOException {
+        HttpURLConnection urlConnection =
+                NetworkUtils.openConditionalHttpUrlConnection(mContext, mForecastUrl, true);
+        try {
+            assertFalse("First request should not be answered with 304",
+                    NetworkUtils.isNotModified(mContext, mForecastUrl, urlConnection));
+
+            MeteredInputStream in = new MeteredInputStream(urlConnection.getInputStream());
+            try {
+                byte[] buffer = new byte[4096];
+                while (in.read(buffer) != -1) {
+                    /* Just drain the body */
+                }
+            } finally {
+                in.close();
+            }
+
+            NetworkUtils.saveValidators(mContext, mForecastUrl, urlConnection,
+                    in.getBytesRead());
+            return in.getBytesRead();
+        } finally {
+            urlConnection.disconnect();
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.utilities;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+import android.util.MalformedJsonException;
+
+import com.example.android.sunshine.sync.SyncException;
+import com.example.android.sunshine.utils.FakeForecastJson;
+
+import org.json.JSONException;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.util.Locale;
+
+import static com.example.android.sunshine.data.WeatherContract.WeatherEntry.COLUMN_DATE;
+import static com.example.android.sunshine.data.WeatherContract.WeatherEntry.COLUMN_DEGREES;
+import static com.example.android.sunshine.data.WeatherContract.WeatherEntry.COLUMN_HUMIDITY;
+import static com.example.android.sunshine.data.WeatherContract.WeatherEntry.COLUMN_MAX_TEMP;
+import static com.example.android.sunshine.data.WeatherContract.WeatherEntry.COLUMN_MIN_TEMP;
+import static com.example.android.sunshine.data.WeatherContract.WeatherEntry.COLUMN_PRESSURE;
+import static com.example.android.sunshine.data.WeatherContract.WeatherEntry.COLUMN_WEATHER_ID;
+import static com.example.android.sunshine.data.WeatherContract.WeatherEntry.COLUMN_WIND_SPEED;
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+/**
+ * Tests that the streaming forecast parser produces exactly what the JSONObject based parser
+ * does, and compares the cost of the two.
+ * <p>
+ * The benchmark runs on the device rather than on the JVM because the streaming parser is built
+ * on android.util.JsonReader. Results are written to logcat under the tag
+ * "TestOpenWeatherJsonUtils".
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestOpenWeatherJsonUtils {
+
+    private static final String TAG = TestOpenWeatherJsonUtils.class.getSimpleName();
+
+    private static final String[] COLUMNS = {
+            COLUMN_DATE,
+            COLUMN_WEATHER_ID,
+            COLUMN_MIN_TEMP,
+            COLUMN_MAX_TEMP,
+            COLUMN_HUMIDITY,
+            COLUMN_PRESSURE,
+            COLUMN_WIND_SPEED,
+            COLUMN_DEGREES
+    };
+
+    private static final int BENCHMARK_WARMUP_ITERATIONS = 50;
+    private static final int BENCHMARK_ITERATIONS = 500;
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    @Test
+    public void testStreamingParserMatchesTreeParser() throws Exception {
+        String json = FakeForecastJson.createForecastJson(14, 42);
+
+        ContentValues[] treeValues =
+                OpenWeatherJsonUtils.getWeatherContentValuesFromJson(mContext, json);
+        ContentValues[] streamValues =
+                OpenWeatherJsonUtils.getWeatherContentValuesFromStream(mContext, toStream(json));
+
+        assertNotNull("Tree parser returned null for a valid forecast", treeValues);
+        assertNotNull("Streaming parser returned null for a valid forecast", streamValues);
+        assertEquals("Parsers returned a different number of days",
+                treeValues.length, streamValues.length);
+
+        for (int i = 0; i < treeValues.length; i++) {
+            for (String column : COLUMNS) {
+                assertEquals("Day " + i + ", column '" + column + "' differs between parsers",
+                        treeValues[i].getAsDouble(column),
+                        streamValues[i].getAsDouble(column));
+            }
+        }
+    }
+
+    /**
+     * A day missing one of its fields must fail to parse with either parser, rather than be
+     * stored with a zero in its place, and the failure must count as a parse error.
+     */
+    @Test
+    public void testParsersRejectMissingField() throws Exception {
+        String json = FakeForecastJson.createForecastJson(14, 42)
+                .replaceFirst(",\"humidity\":\\d+", "");
+
+        try {
+            OpenWeatherJsonUtils.getWeatherContentValuesFromJson(mContext, json);
+            fail("Tree parser should reject a day without humidity");
+        } catch (JSONException expected) {
+        }
+
+        try {
+            OpenWeatherJsonUtils.getWeatherContentValuesFromStream(mContext, toStream(json));
+            fail("Streaming parser should reject a day without humidity");
+        } catch (MalformedJsonException expected) {
+            assertTrue("The message should name the missing field",
+                    expected.getMessage().contains("humidity"));
+            assertEquals("A missing field should be classified as a parse error",
+                    SyncException.Kind.PARSE, SyncException.classify(expected).getKind());
+        }
+    }
+
+    @Test
+    public void testStreamingParserReturnsNullForErrorCode() throws Exception {
+        String json = FakeForecastJson.createNotFoundJson();
+
+        assertNull("Tree parser should return null when the server reports an error",
+                OpenWeatherJsonUtils.getWeatherContentValuesFromJson(mContext, json));
+        assertNull("Streaming parser should return null when the server reports an error",
+                OpenWeatherJsonUtils.getWeatherContentValuesFromStream(mContext, toStream(json)));
+    }
+
+    /**
+     * Parses 14 and 16 day payloads with both parsers and logs the mean time and bytes allocated
+     * per parse. The tree parser is timed including the byte to String decoding, since that is
+     * part of what it costs us during a sync.
+     */
+    @Test
+    public void benchmarkTreeVersusStreamingParser() throws Exception {
+        for (int numDays : new int[]{14, 16}) {
+            byte[] body = FakeForecastJson.createForecastJson(numDays, numDays).getBytes("UTF-8");
+
+            for (int i = 0; i < BENCHMARK_WARMUP_ITERATIONS; i++) {
+                parseWithTree(body);
+                parseWithStream(body);
+            }
+
+            long[] tree = measure(body, false);
+            long[] stream = measure(body, true);
+
+            Log.i(TAG, String.format(Locale.US,
+                    "%d days (%d bytes): tree %d ns, %d B allocated; stream %d ns, %d B allocated",
+                    numDays, body.length, tree[0], tree[1], stream[0], stream[1]));
+        }
+    }
+
+    /**
+     * @return {mean nanoseconds per parse, mean bytes allocated per parse}
+     */
+    private long[] measure(byte[] body, boolean streaming) throws Exception {
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocSize();
+        long start = SystemClock.elapsedRealtimeNanos();
+
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            if (streaming) {
+                parseWithStream(body);
+            } else {
+                parseWithTree(body);
+            }
+        }
+
+        long elapsed = SystemClock.elapsedRealtimeNanos() - start;
+        long allocated = Debug.getThreadAllocSize();
+        Debug.stopAllocCounting();
+
+        return new long[]{elapsed / BENCHMARK_ITERATIONS, allocated / BENCHMARK_ITERATIONS};
+    }
+
+    private ContentValues[] parseWithTree(byte[] body) throws Exception {
+        return OpenWeatherJsonUtils.getWeatherContentValuesFromJson(mContext,
+                new String(body, "UTF-8"));
+    }
+
+    private ContentValues[] parseWithStream(byte[] body) throws Exception {
+        return OpenWeatherJsonUtils.getWeatherContentValuesFromStream(mContext,
+                new ByteArrayInputStream(body));
+    }
+
+    private static ByteArrayInputStream toStream(String json) throws Exception {
+        return new ByteArrayInputStream(json.getBytes("UTF-8"));
+    }
+}
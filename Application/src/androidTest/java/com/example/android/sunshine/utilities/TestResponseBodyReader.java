@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.utilities;
+
+import android.os.Debug;
+import android.os.SystemClock;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Scanner;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.fail;
+
+/**
+ * Tests {@link ResponseBodyReader} and compares it to the Scanner based reading that
+ * NetworkUtils used to do. Benchmark results are written to logcat under the tag
+ * "TestResponseBodyReader".
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestResponseBodyReader {
+
+    private static final String TAG = TestResponseBodyReader.class.getSimpleName();
+
+    private static final int BENCHMARK_WARMUP_ITERATIONS = 10;
+    private static final int BENCHMARK_ITERATIONS = 50;
+
+    @Test
+    public void testCharsetFromContentType() {
+        assertEquals("No Content-Type should fall back to UTF-8",
+                "UTF-8", ResponseBodyReader.charsetFromContentType(null).name());
+        assertEquals("Content-Type without a charset should fall back to UTF-8",
+                "UTF-8", ResponseBodyReader.charsetFromContentType("application/json").name());
+        assertEquals("Charset parameter was not honoured",
+                "ISO-8859-1",
+                ResponseBodyReader.charsetFromContentType(
+                        "application/json; charset=iso-8859-1").name());
+        assertEquals("Quoted charset parameter was not honoured",
+                "UTF-16",
+                ResponseBodyReader.charsetFromContentType(
+                        "application/json;Charset=\"UTF-16\"").name());
+        assertEquals("Unknown charsets should fall back to UTF-8",
+                "UTF-8",
+                ResponseBodyReader.charsetFromContentType(
+                        "application/json; charset=not-a-charset").name());
+    }
+
+    @Test
+    public void testBodyIsDecodedWithDeclaredCharset() throws Exception {
+        String text = "Zürich, 12°";
+        byte[] body = text.getBytes("ISO-8859-1");
+
+        String read = ResponseBodyReader.readBody(new ByteArrayInputStream(body),
+                "application/json; charset=ISO-8859-1", body.length,
+                NetworkUtils.DEFAULT_MAX_RESPONSE_BYTES);
+
+        assertEquals("Body was not decoded with the charset from Content-Type", text, read);
+    }
+
+    @Test
+    public void testEmptyBodyReturnsNull() throws Exception {
+        assertNull("An empty body should be read as null",
+                ResponseBodyReader.readBody(new ByteArrayInputStream(new byte[0]), null, -1,
+                        NetworkUtils.DEFAULT_MAX_RESPONSE_BYTES));
+    }
+
+    @Test
+    public void testBodyOfExactlyMaxSizeIsRead() throws Exception {
+        byte[] body = createBody(4096);
+
+        /* Read twice so that the second read gets a pooled buffer that may be larger */
+        for (int i = 0; i < 2; i++) {
+            String read = ResponseBodyReader.readBody(new ByteArrayInputStream(body), null, -1,
+                    body.length);
+            assertEquals("Body of exactly the maximum size was not read completely",
+                    body.length, read.length());
+        }
+    }
+
+    @Test
+    public void testBodyLargerThanMaxSizeThrows() throws Exception {
+        byte[] body = createBody(4097);
+
+        try {
+            ResponseBodyReader.readBody(new ByteArrayInputStream(body), null, -1, 4096);
+            fail("Reading a body larger than the maximum size should throw an IOException");
+        } catch (IOException expected) {
+            /* This is what we want */
+        }
+    }
+
+    @Test
+    public void testWrongContentLengthIsTolerated() throws Exception {
+        byte[] body = createBody(10 * 1024);
+
+        String read = ResponseBodyReader.readBody(new ByteArrayInputStream(body), null, 10,
+                NetworkUtils.DEFAULT_MAX_RESPONSE_BYTES);
+
+        assertEquals("Body was cut short by a Content-Length that was too small",
+                body.length, read.length());
+    }
+
+    /**
+     * Reads 10 KB, 100 KB and 1 MB bodies with both Scanner and ResponseBodyReader, and logs the
+     * mean time and bytes allocated per read.
+     */
+    @Test
+    public void benchmarkScannerVersusResponseBodyReader() throws Exception {
+        for (int size : new int[]{10 * 1024, 100 * 1024, 1024 * 1024}) {
+            byte[] body = createBody(size);
+
+            for (int i = 0; i < BENCHMARK_WARMUP_ITERATIONS; i++) {
+                readWithScanner(body);
+                readWithBodyReader(body);
+            }
+
+            long[] scanner = measure(body, false);
+            long[] reader = measure(body, true);
+
+            Log.i(TAG, String.format(Locale.US,
+                    "%d bytes: Scanner %d ns, %d B allocated; "
+                            + "ResponseBodyReader %d ns, %d B allocated",
+                    size, scanner[0], scanner[1], reader[0], reader[1]));
+        }
+    }
+
+    /**
+     * @return {mean nanoseconds per read, mean bytes allocated per read}
+     */
+    private long[] measure(byte[] body, boolean bodyReader) throws Exception {
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocSize();
+        long start = SystemClock.elapsedRealtimeNanos();
+
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            if (bodyReader) {
+                readWithBodyReader(body);
+            } else {
+                readWithScanner(body);
+            }
+        }
+
+        long elapsed = SystemClock.elapsedRealtimeNanos() - start;
+        long allocated = Debug.getThreadAllocSize();
+        Debug.stopAllocCounting();
+
+        return new long[]{elapsed / BENCHMARK_ITERATIONS, allocated / BENCHMARK_ITERATIONS};
+    }
+
+    /* This is how NetworkUtils used to read responses */
+    private static String readWithScanner(byte[] body) {
+        InputStream in = new ByteArrayInputStream(body);
+        Scanner scanner = new Scanner(in);
+        scanner.useDelimiter("\\A");
+        String response = scanner.hasNext() ? scanner.next() : null;
+        scanner.close();
+        return response;
+    }
+
+    private static String readWithBodyReader(byte[] body) throws IOException {
+        /* HttpURLConnection reports -1 for chunked responses, which is the worst case for us */
+        return ResponseBodyReader.readBody(new ByteArrayInputStream(body),
+                "application/json; charset=UTF-8", -1, 2 * 1024 * 1024);
+    }
+
+    /* A JSON-ish ASCII body of the given size */
+    private static byte[] createBody(int size) {
+        byte[] body = new byte[size];
+        Arrays.fill(body, (byte) 'a');
+        body[0] = '{';
+        body[size - 1] = '}';
+        return body;
+    }
+}
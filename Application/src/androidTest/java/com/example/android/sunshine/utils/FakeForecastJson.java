@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.utils;
+
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Generates forecast JSON shaped like the responses from the Sunshine weather server, so that
+ * the parsing and sync code can be tested without touching the network.
+ */
+public final class FakeForecastJson {
+
+    private static final int[] WEATHER_IDS = {200, 300, 500, 711, 800, 801, 900};
+
+    private FakeForecastJson() {
+    }
+
+    /**
+     * Builds a successful forecast response with the given number of days. The same seed always
+     * produces the same JSON.
+     *
+     * @param numDays Number of elements in the "list" array
+     * @param seed    Seed for the random weather values
+     * @return The forecast JSON
+     */
+    public static String createForecastJson(int numDays, long seed) {
+        Random random = new Random(seed);
+
+        StringBuilder json = new StringBuilder(512 + numDays * 320);
+        json.append("{\"city\":{\"id\":5375480,\"name\":\"Mountain View\",")
+                .append("\"coord\":{\"lon\":-122.0838,\"lat\":37.3861},")
+                .append("\"country\":\"US\",\"population\":0},")
+                .append("\"cod\":\"200\",\"message\":0.0123,\"cnt\":").append(numDays)
+                .append(",\"list\":[");
+
+        long dt = 1475280000L;
+        for (int i = 0; i < numDays; i++) {
+            if (i > 0) json.append(',');
+
+            double max = 10 + random.nextInt(200) / 10.0;
+            double min = max - random.nextInt(100) / 10.0;
+            int weatherId = WEATHER_IDS[random.nextInt(WEATHER_IDS.length)];
+
+            json.append("{\"dt\":").append(dt + i * 86400L)
+                    .append(",\"temp\":{")
+                    .append("\"day\":").append(format(max - 1))
+                    .append(",\"min\":").append(format(min))
+                    .append(",\"max\":").append(format(max))
+                    .append(",\"night\":").append(format(min + 1))
+                    .append(",\"eve\":").append(format(max - 2))
+                    .append(",\"morn\":").append(format(min + 2))
+                    .append("},\"pressure\":").append(format(990 + random.nextInt(400) / 10.0))
+                    .append(",\"humidity\":").append(random.nextInt(100))
+                    .append(",\"weather\":[{\"id\":").append(weatherId)
+                    .append(",\"main\":\"Clear\",\"description\":\"sky is clear\",")
+                    .append("\"icon\":\"01d\"}]")
+                    .append(",\"speed\":").append(format(random.nextInt(150) / 10.0))
+                    .append(",\"deg\":").append(random.nextInt(360))
+                    .append(",\"clouds\":").append(random.nextInt(100))
+                    .append('}');
+        }
+
+        json.append("]}");
+        return json.toString();
+    }
+
+    /**
+     * Builds the response the weather server sends back for a location it doesn't know about.
+     *
+     * @return JSON containing only an error code
+     */
+    public static String createNotFoundJson() {
+        return "{\"cod\":\"404\",\"message\":\"Error: Not found city\"}";
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.US, "%.2f", value);
+    }
+}
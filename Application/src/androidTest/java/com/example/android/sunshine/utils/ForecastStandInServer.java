@@ -0,0 +1,465 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.utils;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A tiny HTTP server that stands in for the weather server in tests. It serves a single forecast
+ * body for every path, with an ETag, and answers conditional requests the way a real server
+ * would. It can also compress the body, if the client says it accepts the encoding, hold each
+ * response back to simulate a slow network, fail chosen requests, answer the next few
+ * requests with a scripted sequence of failures, fail a given share of requests at random, and
+ * send the body in chunks that trickle in. Connections are handled concurrently, each on its own
+ * thread, and each connection handles exactly one request.
+ * <p>
+ * Pointing {@link com.example.android.sunshine.utilities.NetworkUtils#setForecastBaseUrl(String)}
+ * at {@link #getUrl(String)} sends the app's own syncs here, so they can be tested end to end
+ * and benchmarked without a network.
+ */
+public class ForecastStandInServer {
+
+    public static final String ENCODING_GZIP = "gzip";
+    /* zlib-wrapped deflate, which is what the HTTP spec means by "deflate" */
+    public static final String ENCODING_DEFLATE = "deflate";
+    /* Raw deflate data sent as "deflate", which some servers do instead */
+    public static final String ENCODING_RAW_DEFLATE = "raw-deflate";
+
+    /* Scripted in place of a status to close the connection without answering at all */
+    public static final int DROP_CONNECTION = -1;
+
+    private final ServerSocket mServerSocket;
+    private final Thread mAcceptThread;
+    private final ExecutorService mRequestExecutor = Executors.newCachedThreadPool();
+
+    private volatile byte[] mBody;
+    private volatile String mETag;
+    private volatile String mContentEncoding;
+    private volatile int mLatencyMillis;
+    private volatile String mFailingRequestText;
+    private final Queue<Integer> mScriptedStatuses = new ConcurrentLinkedQueue<>();
+    private volatile double mErrorRate;
+    private Random mErrorRandom = new Random();
+    private volatile int mChunkBytes;
+    private volatile int mChunkDelayMillis;
+
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+    private final AtomicInteger mNotModifiedCount = new AtomicInteger();
+    private final AtomicInteger mRandomErrorCount = new AtomicInteger();
+    private final AtomicInteger mRequestsInFlight = new AtomicInteger();
+    private final AtomicInteger mMaxRequestsInFlight = new AtomicInteger();
+    private volatile int mLastBodyBytesSent;
+    private volatile Map<String, String> mLastRequestHeaders = new HashMap<>();
+
+    /**
+     * Starts listening on a free port on the loopback interface.
+     *
+     * @param body The JSON to serve
+     * @param eTag The ETag to send with it, or null to send none
+     */
+    public ForecastStandInServer(String body, String eTag) throws IOException {
+        setForecast(body, eTag);
+
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        mAcceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, "ForecastStandInServer");
+        mAcceptThread.start();
+    }
+
+    /**
+     * Changes what the server serves from the next request on.
+     */
+    public void setForecast(String body, String eTag) throws IOException {
+        mBody = body.getBytes("UTF-8");
+        mETag = eTag;
+    }
+
+    /**
+     * Serves a generated forecast, with an ETag of its own, from the next request on.
+     *
+     * @param numDays How many days of forecast to serve; about 320 bytes of JSON each
+     * @param seed    The same seed always produces the same forecast
+     */
+    public void setGeneratedForecast(int numDays, long seed) throws IOException {
+        setForecast(FakeForecastJson.createForecastJson(numDays, seed),
+                "\"forecast-" + numDays + "-" + seed + "\"");
+    }
+
+    /**
+     * Compresses the body with the given encoding from the next request on, as long as the
+     * request says it accepts it.
+     *
+     * @param contentEncoding One of the ENCODING constants, or null to never compress
+     */
+    public void setContentEncoding(String contentEncoding) {
+        mContentEncoding = contentEncoding;
+    }
+
+    /**
+     * Holds every response back for the given time after the request has been read, as a slow
+     * network or server would.
+     *
+     * @param latencyMillis The delay, in milliseconds
+     */
+    public void setLatencyMillis(int latencyMillis) {
+        mLatencyMillis = latencyMillis;
+    }
+
+    /**
+     * Answers every request whose request line contains the text with a 500 Internal Server
+     * Error, for example a request for one particular location.
+     *
+     * @param text Text to look for in the path and query, or null to fail nothing
+     */
+    public void failRequestsContaining(String text) {
+        mFailingRequestText = text;
+    }
+
+    /**
+     * Answers a share of requests, picked at random, with a 503 Service Unavailable, as an
+     * overloaded server would. The same seed always fails the same requests, if they arrive in
+     * the same order.
+     *
+     * @param errorRate Between 0, to fail nothing, and 1, to fail everything
+     * @param seed      Seed for picking the requests to fail
+     */
+    public void setErrorRate(double errorRate, long seed) {
+        if (errorRate < 0 || errorRate > 1) {
+            throw new IllegalArgumentException("Error rate must be between 0 and 1");
+        }
+        synchronized (this) {
+            mErrorRandom = new Random(seed);
+        }
+        mErrorRate = errorRate;
+    }
+
+    /**
+     * Sends the body with chunked transfer encoding rather than with a Content-Length, a chunk
+     * at a time, waiting between chunks as a slow network would.
+     *
+     * @param chunkBytes       The size of each chunk, or 0 to send the body in one go
+     * @param chunkDelayMillis How long to wait before sending each chunk after the first
+     */
+    public void setChunking(int chunkBytes, int chunkDelayMillis) {
+        mChunkBytes = chunkBytes;
+        mChunkDelayMillis = chunkDelayMillis;
+    }
+
+    /**
+     * Answers the next requests, one status each and in order, before going back to serving the
+     * forecast. A status of 200 serves the forecast as usual.
+     *
+     * @param statuses HTTP statuses to answer with, or DROP_CONNECTION to close the connection
+     *                 without answering, as a network failure would
+     */
+    public void scriptResponses(int... statuses) {
+        for (int status : statuses) {
+            mScriptedStatuses.add(status);
+        }
+    }
+
+    /**
+     * @param path The path to request, starting with a slash
+     * @return A URL on this server
+     */
+    public URL getUrl(String path) throws IOException {
+        return new URL("http", "127.0.0.1", mServerSocket.getLocalPort(), path);
+    }
+
+    public int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    public int getNotModifiedCount() {
+        return mNotModifiedCount.get();
+    }
+
+    /**
+     * @return The number of requests failed at random because of the error rate
+     */
+    public int getRandomErrorCount() {
+        return mRandomErrorCount.get();
+    }
+
+    /**
+     * @return The most requests that were being handled at the same time
+     */
+    public int getMaxRequestsInFlight() {
+        return mMaxRequestsInFlight.get();
+    }
+
+    /**
+     * @return The size of the last body sent, after compression
+     */
+    public int getLastBodyBytesSent() {
+        return mLastBodyBytesSent;
+    }
+
+    /**
+     * @param name Header name, in lower case
+     * @return The value of that header in the most recent request, or null if it wasn't sent
+     */
+    public String getLastRequestHeader(String name) {
+        return mLastRequestHeaders.get(name);
+    }
+
+    public void shutdown() throws IOException {
+        mServerSocket.close();
+        mRequestExecutor.shutdown();
+        try {
+            mAcceptThread.join();
+            mRequestExecutor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void acceptLoop() {
+        while (!mServerSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = mServerSocket.accept();
+            } catch (IOException e) {
+                /* The socket was closed by shutdown */
+                return;
+            }
+
+            mRequestExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    handleAndClose(socket);
+                }
+            });
+        }
+    }
+
+    private void handleAndClose(Socket socket) {
+        int inFlight = mRequestsInFlight.incrementAndGet();
+        int maxInFlight;
+        do {
+            maxInFlight = mMaxRequestsInFlight.get();
+        } while (inFlight > maxInFlight
+                && !mMaxRequestsInFlight.compareAndSet(maxInFlight, inFlight));
+
+        try {
+            handle(socket);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            mRequestsInFlight.decrementAndGet();
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                /* Nothing more we can do */
+            }
+        }
+    }
+
+    private void handle(Socket socket) throws IOException {
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+
+        /* Every path serves the same forecast, so the request line only matters for failing */
+        String requestLine = reader.readLine();
+        if (requestLine == null) {
+            return;
+        }
+
+        Map<String, String> headers = new HashMap<>();
+        String line;
+        while ((line = reader.readLine()) != null && line.length() > 0) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US),
+                        line.substring(colon + 1).trim());
+            }
+        }
+        mLastRequestHeaders = headers;
+        mRequestCount.incrementAndGet();
+
+        int latencyMillis = mLatencyMillis;
+        if (latencyMillis > 0) {
+            try {
+                Thread.sleep(latencyMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+
+        Integer scriptedStatus = mScriptedStatuses.poll();
+        if (scriptedStatus != null && scriptedStatus == DROP_CONNECTION) {
+            /* The socket is closed as soon as we return */
+            return;
+        }
+        if (scriptedStatus != null && scriptedStatus != 200) {
+            OutputStream out = socket.getOutputStream();
+            out.write(("HTTP/1.1 " + scriptedStatus + " Scripted Failure\r\n"
+                    + "Content-Length: 0\r\n"
+                    + "Connection: close\r\n\r\n").getBytes("ISO-8859-1"));
+            out.flush();
+            return;
+        }
+
+        if (shouldFailAtRandom()) {
+            mRandomErrorCount.incrementAndGet();
+            OutputStream out = socket.getOutputStream();
+            out.write(("HTTP/1.1 503 Service Unavailable\r\n"
+                    + "Content-Length: 0\r\n"
+                    + "Connection: close\r\n\r\n").getBytes("ISO-8859-1"));
+            out.flush();
+            return;
+        }
+
+        String failingRequestText = mFailingRequestText;
+        if (failingRequestText != null && requestLine.contains(failingRequestText)) {
+            OutputStream out = socket.getOutputStream();
+            out.write(("HTTP/1.1 500 Internal Server Error\r\n"
+                    + "Content-Length: 0\r\n"
+                    + "Connection: close\r\n\r\n").getBytes("ISO-8859-1"));
+            out.flush();
+            return;
+        }
+
+        byte[] body = mBody;
+        String eTag = mETag;
+
+        int chunkBytes = mChunkBytes;
+
+        StringBuilder response = new StringBuilder();
+        boolean notModified = eTag != null && eTag.equals(headers.get("if-none-match"));
+        if (notModified) {
+            mNotModifiedCount.incrementAndGet();
+            response.append("HTTP/1.1 304 Not Modified\r\n");
+        } else {
+            response.append("HTTP/1.1 200 OK\r\n");
+
+            String contentEncoding = mContentEncoding;
+            String headerEncoding = ENCODING_RAW_DEFLATE.equals(contentEncoding)
+                    ? ENCODING_DEFLATE : contentEncoding;
+            if (contentEncoding != null
+                    && accepts(headers.get("accept-encoding"), headerEncoding)) {
+                body = compress(body, contentEncoding);
+                response.append("Content-Encoding: ").append(headerEncoding).append("\r\n");
+            }
+            mLastBodyBytesSent = body.length;
+
+            response.append("Content-Type: application/json; charset=UTF-8\r\n");
+            if (chunkBytes > 0) {
+                response.append("Transfer-Encoding: chunked\r\n");
+            } else {
+                response.append("Content-Length: ").append(body.length).append("\r\n");
+            }
+        }
+        if (eTag != null) {
+            response.append("ETag: ").append(eTag).append("\r\n");
+        }
+        response.append("Connection: close\r\n\r\n");
+
+        OutputStream out = socket.getOutputStream();
+        out.write(response.toString().getBytes("ISO-8859-1"));
+        if (notModified) {
+            out.flush();
+        } else if (chunkBytes > 0) {
+            writeChunked(out, body, chunkBytes, mChunkDelayMillis);
+        } else {
+            out.write(body);
+            out.flush();
+        }
+    }
+
+    private synchronized boolean shouldFailAtRandom() {
+        double errorRate = mErrorRate;
+        return errorRate > 0 && mErrorRandom.nextDouble() < errorRate;
+    }
+
+    /* Each chunk is flushed on its own, so the client really does receive it piece by piece */
+    private static void writeChunked(OutputStream out, byte[] body, int chunkBytes,
+                                     int chunkDelayMillis) throws IOException {
+        for (int offset = 0; offset < body.length; offset += chunkBytes) {
+            if (offset > 0 && chunkDelayMillis > 0) {
+                try {
+                    Thread.sleep(chunkDelayMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            int length = Math.min(chunkBytes, body.length - offset);
+            out.write((Integer.toHexString(length) + "\r\n").getBytes("ISO-8859-1"));
+            out.write(body, offset, length);
+            out.write("\r\n".getBytes("ISO-8859-1"));
+            out.flush();
+        }
+        out.write("0\r\n\r\n".getBytes("ISO-8859-1"));
+        out.flush();
+    }
+
+    /* A deliberately simple check of an Accept-Encoding header, ignoring q-values */
+    private static boolean accepts(String acceptEncoding, String encoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String accepted : acceptEncoding.split(",")) {
+            if (accepted.trim().toLowerCase(Locale.US).startsWith(encoding)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static byte[] compress(byte[] body, String contentEncoding) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        if (ENCODING_GZIP.equals(contentEncoding)) {
+            GZIPOutputStream out = new GZIPOutputStream(compressed);
+            out.write(body);
+            out.close();
+        } else {
+            boolean raw = ENCODING_RAW_DEFLATE.equals(contentEncoding);
+            Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, raw);
+            DeflaterOutputStream out = new DeflaterOutputStream(compressed, deflater);
+            out.write(body);
+            out.close();
+            deflater.end();
+        }
+        return compressed.toByteArray();
+    }
+}
@@ -19,6 +19,7 @@ import android.content.Intent;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.support.v4.app.LoaderManager;
 import android.support.v4.content.CursorLoader;
 import android.support.v4.content.Loader;
@@ -34,6 +35,9 @@ import android.widget.ProgressBar;
 
 import com.example.android.sunshine.data.SunshinePreferences;
 import com.example.android.sunshine.data.WeatherContract;
+import com.example.android.sunshine.sync.FreshnessPolicy;
+import com.example.android.sunshine.sync.MultiLocationSyncEngine;
+import com.example.android.sunshine.sync.StartupSync;
 import com.example.android.sunshine.sync.SunshineSyncUtils;
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.api.GoogleApiClient;
@@ -49,6 +53,7 @@ import com.google.android.gms.wearable.Wearable;
 public class MainActivity extends AppCompatActivity implements
         LoaderManager.LoaderCallbacks<Cursor>,
         ForecastAdapter.ForecastAdapterOnClickHandler,
+        StartupSync.Listener,
         DataApi.DataListener,
         GoogleApiClient.ConnectionCallbacks,
         GoogleApiClient.OnConnectionFailedListener {
@@ -96,10 +101,41 @@ public class MainActivity extends AppCompatActivity implements
 
     private ProgressBar mLoadingIndicator;
 
+    /*
+     * The location whose forecast the loader is showing. Forecasts are cached per location, so
+     * when the user picks another location in settings we only have to point the loader at it.
+     */
+    private String mLocationSetting;
+
+    /*
+     * When this Activity was created, so that we can log how long it took until a forecast was
+     * on screen. On a cold start with nothing stored, that includes the first sync.
+     */
+    private long mCreatedAtMillis;
+    private boolean mFirstForecastShown;
+
+    /*
+     * Set when the stored forecast was found to be past its hard TTL. It isn't worth showing, so
+     * the loading indicator stays up until the sync started for it has finished.
+     */
+    private boolean mWaitingForSync;
+
+    /*
+     * Set once the sync of an expired forecast has stored a new one and the loader has been
+     * restarted to pick it up. The list is shown again when that load is delivered.
+     */
+    private boolean mReloadingAfterSync;
+
+    /*
+     * StartupSync tells us what it found and when it has synced, but we only act on it between
+     * onStart and onStop. onStart probes again anyway, so nothing is missed while stopped.
+     */
+    private boolean mStarted;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        mCreatedAtMillis = SystemClock.elapsedRealtime();
         setContentView(R.layout.activity_forecast);
         getSupportActionBar().setElevation(0f);
 
@@ -162,6 +198,8 @@ public class MainActivity extends AppCompatActivity implements
 
         showLoading();
 
+        mLocationSetting = SunshinePreferences.getPreferredWeatherLocation(this);
+
         /*
          * Ensures a loader is initialized and active. If the loader doesn't already exist, one is
          * created and (if the activity/fragment is currently started) starts the loader. Otherwise
@@ -181,9 +219,35 @@ public class MainActivity extends AppCompatActivity implements
     @Override
     protected void onStart() {
         super.onStart();
+
+        /*
+         * If the location changed while we were in settings, show the new location's forecast.
+         * If it has been viewed recently, it is already on disk and appears straight away.
+         */
+        String locationSetting = SunshinePreferences.getPreferredWeatherLocation(this);
+        if (!locationSetting.equals(mLocationSetting)) {
+            mLocationSetting = locationSetting;
+            mPosition = RecyclerView.NO_POSITION;
+            getSupportLoaderManager().restartLoader(ID_FORECAST_LOADER, null, this);
+        }
+
+        /*
+         * The forecast may have expired since we last looked, even if Sunshine has been running
+         * all along, so we probe it every time we start and sync if it has.
+         */
+        mStarted = true;
+        StartupSync.run(this, this);
+
         googleApiClient.connect();
     }
 
+    @Override
+    protected void onStop() {
+        /* Whatever StartupSync tells us from now on is ignored until we start again */
+        mStarted = false;
+        super.onStop();
+    }
+
     /**
      * Uses the URI scheme for showing a location found on a map in conjunction with
      * an implicit Intent. This super-handy Intent is detailed in the "Common Intents" page of
@@ -226,8 +290,9 @@ public class MainActivity extends AppCompatActivity implements
         switch (loaderId) {
 
             case ID_FORECAST_LOADER:
-                /* URI for all rows of weather data in our weather table */
-                Uri forecastQueryUri = WeatherContract.WeatherEntry.CONTENT_URI;
+                /* URI for all rows of weather data for the user's location */
+                Uri forecastQueryUri = WeatherContract.WeatherEntry
+                        .buildWeatherUriWithLocation(mLocationSetting);
                 /* Sort order: Ascending by date */
                 String sortOrder = WeatherContract.WeatherEntry.COLUMN_DATE + " ASC";
                 /*
@@ -264,9 +329,70 @@ public class MainActivity extends AppCompatActivity implements
     public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
 
         mForecastAdapter.swapCursor(data);
+        if (mReloadingAfterSync) {
+            /* This is the forecast the sync stored, so there is nothing left to wait for */
+            mReloadingAfterSync = false;
+            mWaitingForSync = false;
+        }
         if (mPosition == RecyclerView.NO_POSITION) mPosition = 0;
         mRecyclerView.smoothScrollToPosition(mPosition);
-        if (data.getCount() != 0) showWeatherDataView();
+        /* An expired forecast stays hidden until the sync replacing it has finished */
+        if (data.getCount() != 0 && !mWaitingForSync) {
+            showWeatherDataView();
+            if (!mFirstForecastShown) {
+                mFirstForecastShown = true;
+                long elapsedMillis = SystemClock.elapsedRealtime() - mCreatedAtMillis;
+                Log.d(TAG, "First forecast shown " + elapsedMillis + " ms after onCreate");
+            }
+        }
+    }
+
+    /**
+     * Called once the stored forecast has been probed. An expired forecast may already be on
+     * screen, so we hide it again until it has been synced.
+     *
+     * @param freshness How usable the stored forecast is
+     */
+    @Override
+    public void onProbed(FreshnessPolicy.Freshness freshness) {
+        if (!mStarted) {
+            return;
+        }
+        if (freshness == FreshnessPolicy.Freshness.EXPIRED) {
+            mWaitingForSync = true;
+            showLoading();
+        } else if (mWaitingForSync && !mReloadingAfterSync) {
+            /* The forecast was synced while we were stopped; load it again before showing it */
+            mReloadingAfterSync = true;
+            getSupportLoaderManager().restartLoader(ID_FORECAST_LOADER, null, this);
+        }
+    }
+
+    /**
+     * Called once the sync of an expired forecast has finished.
+     * <p>
+     * If it stored a new forecast, the loader may not have delivered it yet, and showing the list
+     * now would show the expired rows for a moment. So we restart the loader, which is sure to
+     * load the new forecast, and keep waiting until it is delivered. If the sync failed, the old
+     * forecast is still better than a loading indicator that never goes away, so we show whatever
+     * we have.
+     *
+     * @param outcome What happened to the preferred location's forecast
+     */
+    @Override
+    public void onSyncFinished(MultiLocationSyncEngine.Outcome outcome) {
+        if (!mStarted) {
+            return;
+        }
+        if (outcome == MultiLocationSyncEngine.Outcome.UPDATED) {
+            mReloadingAfterSync = true;
+            getSupportLoaderManager().restartLoader(ID_FORECAST_LOADER, null, this);
+            return;
+        }
+        mWaitingForSync = false;
+        if (mForecastAdapter.getItemCount() != 0) {
+            showWeatherDataView();
+        }
     }
 
     /**
@@ -293,7 +419,8 @@ public class MainActivity extends AppCompatActivity implements
     @Override
     public void onClick(long date) {
         Intent weatherDetailIntent = new Intent(MainActivity.this, DetailActivity.class);
-        Uri uriForDateClicked = WeatherContract.WeatherEntry.buildWeatherUriWithDate(date);
+        Uri uriForDateClicked = WeatherContract.WeatherEntry
+                .buildWeatherUriWithLocationAndDate(mLocationSetting, date);
         weatherDetailIntent.setData(uriForDateClicked);
         startActivity(weatherDetailIntent);
     }
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.Context;
+import android.database.Cursor;
+
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes a location's whole forecast as a single compact blob, which is stored in the location
+ * table when compact storage is turned on (see
+ * {@link SunshinePreferences#isCompactForecastEnabled(Context)}).
+ * <p>
+ * Reading the forecast through the weather table copies every column of every day into a
+ * CursorWindow, and then each value has to be fetched with a cursor call of its own. The blob is
+ * a single value in a single row, and is decoded straight into a {@link ForecastColumns}.
+ * <p>
+ * The layout is a version byte, the number of days and the first date, followed by the days
+ * column by column, all as fixed-width big-endian primitives:
+ * <pre>
+ *     byte    version
+ *     int     number of days, n
+ *     long    date of the first day
+ *     int[n]  days since the previous day (0 for the first)
+ *     int[n]  weather IDs
+ *     double[n] low temperatures, then high temperatures, humidities, pressures, wind speeds
+ *               and wind directions
+ * </pre>
+ * Every date is normalized, so a date is stored as a whole number of days since the one before
+ * it, which takes half the space of the date itself.
+ * <p>
+ * For now the blob is only stored and measured: MainActivity and DetailActivity still read the
+ * weather table, and {@link #query(Context, String, ForecastColumns)} is only used to benchmark
+ * the two layouts against each other. Compact storage is off by default.
+ */
+public final class ForecastBlobCodec {
+
+    /* Bump this, and keep decoding the old versions, whenever the layout changes */
+    public static final byte VERSION = 1;
+
+    private static final int HEADER_BYTES = 1 + 4 + 8;
+    private static final int BYTES_PER_DAY = 4 + 4 + 6 * 8;
+
+    private ForecastBlobCodec() {
+    }
+
+    /**
+     * @param days The forecast, in date order. Every date must be normalized.
+     * @return The forecast as a blob
+     */
+    public static byte[] encode(ForecastColumns days) {
+        int size = days.size();
+        ByteBuffer buffer = ByteBuffer.allocate(getEncodedLength(size));
+        buffer.put(VERSION);
+        buffer.putInt(size);
+        buffer.putLong(size == 0 ? 0 : days.getDate(0));
+
+        long previousDate = size == 0 ? 0 : days.getDate(0);
+        for (int i = 0; i < size; i++) {
+            long date = days.getDate(i);
+            if (!SunshineDateUtils.isDateNormalized(date) || date < previousDate) {
+                throw new IllegalArgumentException(
+                        "Dates must be normalized and in order to encode");
+            }
+            buffer.putInt((int) ((date - previousDate) / SunshineDateUtils.DAY_IN_MILLIS));
+            previousDate = date;
+        }
+        for (int i = 0; i < size; i++) {
+            buffer.putInt(days.getWeatherId(i));
+        }
+        for (int i = 0; i < size; i++) {
+            buffer.putDouble(days.getMinTemp(i));
+        }
+        for (int i = 0; i < size; i++) {
+            buffer.putDouble(days.getMaxTemp(i));
+        }
+        for (int i = 0; i < size; i++) {
+            buffer.putDouble(days.getHumidity(i));
+        }
+        for (int i = 0; i < size; i++) {
+            buffer.putDouble(days.getPressure(i));
+        }
+        for (int i = 0; i < size; i++) {
+            buffer.putDouble(days.getWindSpeed(i));
+        }
+        for (int i = 0; i < size; i++) {
+            buffer.putDouble(days.getDegrees(i));
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Decodes a blob made by {@link #encode(ForecastColumns)}.
+     *
+     * @param blob The blob
+     * @param days Cleared, then filled with the forecast in the blob. Reusing the same instance
+     *             avoids allocating new arrays for every decode.
+     * @throws IllegalArgumentException If the blob is of an unknown version, or malformed
+     */
+    public static void decode(byte[] blob, ForecastColumns days) {
+        days.clear();
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(blob);
+            byte version = buffer.get();
+            if (version != VERSION) {
+                throw new IllegalArgumentException("Unknown forecast blob version " + version);
+            }
+            int size = buffer.getInt();
+            if (size < 0 || size > (blob.length - HEADER_BYTES) / BYTES_PER_DAY
+                    || blob.length != getEncodedLength(size)) {
+                throw new IllegalArgumentException("Forecast blob has the wrong length");
+            }
+
+            /* Read the columns where they are; each day picks its values out of them */
+            long date = buffer.getLong();
+            int dateOffset = HEADER_BYTES;
+            int weatherIdOffset = dateOffset + size * 4;
+            int minTempOffset = weatherIdOffset + size * 4;
+            int column = size * 8;
+            for (int i = 0; i < size; i++) {
+                date += buffer.getInt(dateOffset + i * 4) * SunshineDateUtils.DAY_IN_MILLIS;
+                int doubleOffset = minTempOffset + i * 8;
+                days.add(date,
+                        buffer.getInt(weatherIdOffset + i * 4),
+                        buffer.getDouble(doubleOffset),
+                        buffer.getDouble(doubleOffset + column),
+                        buffer.getDouble(doubleOffset + 2 * column),
+                        buffer.getDouble(doubleOffset + 3 * column),
+                        buffer.getDouble(doubleOffset + 4 * column),
+                        buffer.getDouble(doubleOffset + 5 * column));
+            }
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            days.clear();
+            throw new IllegalArgumentException("Forecast blob is truncated", e);
+        }
+    }
+
+    /**
+     * Reads the compact forecast of a location with a single query for a single row.
+     *
+     * @param context         Used to access the ContentResolver
+     * @param locationSetting The location whose forecast to read
+     * @param days            Cleared, then filled with the stored forecast
+     * @return false if the location has no compact forecast stored, for example because compact
+     * storage was off when it was last synced
+     */
+    public static boolean query(Context context, String locationSetting, ForecastColumns days) {
+        days.clear();
+        Cursor cursor = context.getContentResolver().query(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                new String[]{WeatherContract.LocationEntry.COLUMN_FORECAST_BLOB},
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{locationSetting},
+                null);
+        if (cursor == null) {
+            return false;
+        }
+        try {
+            if (!cursor.moveToFirst() || cursor.isNull(0)) {
+                return false;
+            }
+            decode(cursor.getBlob(0), days);
+            return true;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @param days The number of days in the forecast
+     * @return The size of the blob that forecast is encoded as, in bytes
+     */
+    public static int getEncodedLength(int days) {
+        return HEADER_BYTES + days * BYTES_PER_DAY;
+    }
+}
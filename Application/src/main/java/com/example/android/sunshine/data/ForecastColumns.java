@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.ContentValues;
+
+import java.util.Arrays;
+
+/**
+ * A list of days of weather, stored as one primitive array per column of the weather table.
+ * <p>
+ * A ContentValues boxes every number it holds and keeps it in a HashMap, so a 14 day forecast
+ * in ContentValues is well over a hundred small objects that are only unboxed again when the
+ * rows are written. The sync parses the forecast straight into a ForecastColumns and
+ * {@link ForecastWriter} binds the values straight out of it, so none of those objects are ever
+ * created. The same instance can be cleared and refilled, so a sync that writes the forecast a
+ * few days at a time allocates nothing per day.
+ * <p>
+ * Use {@link #toContentValues(int)} and {@link #fromContentValues(ContentValues[])} to convert
+ * to and from the ContentValues that the rest of the Android APIs expect.
+ */
+public final class ForecastColumns {
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private long[] mDates;
+    private int[] mWeatherIds;
+    private double[] mMinTemps;
+    private double[] mMaxTemps;
+    private double[] mHumidities;
+    private double[] mPressures;
+    private double[] mWindSpeeds;
+    private double[] mDegrees;
+
+    private int mSize;
+
+    public ForecastColumns() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param initialCapacity The number of days that can be added before the arrays have to grow
+     */
+    public ForecastColumns(int initialCapacity) {
+        int capacity = Math.max(1, initialCapacity);
+        mDates = new long[capacity];
+        mWeatherIds = new int[capacity];
+        mMinTemps = new double[capacity];
+        mMaxTemps = new double[capacity];
+        mHumidities = new double[capacity];
+        mPressures = new double[capacity];
+        mWindSpeeds = new double[capacity];
+        mDegrees = new double[capacity];
+    }
+
+    /**
+     * Appends a day of weather.
+     *
+     * @param date      Normalized UTC date of the day
+     * @param weatherId Weather condition ID, as used by OpenWeatherMap
+     * @param minTemp   Low temperature, in Celsius
+     * @param maxTemp   High temperature, in Celsius
+     * @param humidity  Humidity, as a percentage
+     * @param pressure  Pressure, in hPa
+     * @param windSpeed Wind speed, in meters per second
+     * @param degrees   Wind direction, in meteorological degrees
+     */
+    public void add(long date, int weatherId, double minTemp, double maxTemp, double humidity,
+                    double pressure, double windSpeed, double degrees) {
+        if (mSize == mDates.length) {
+            grow();
+        }
+
+        mDates[mSize] = date;
+        mWeatherIds[mSize] = weatherId;
+        mMinTemps[mSize] = minTemp;
+        mMaxTemps[mSize] = maxTemp;
+        mHumidities[mSize] = humidity;
+        mPressures[mSize] = pressure;
+        mWindSpeeds[mSize] = windSpeed;
+        mDegrees[mSize] = degrees;
+        mSize++;
+    }
+
+    /**
+     * @return The number of days held
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Forgets every day held, keeping the arrays so they can be filled again.
+     */
+    public void clear() {
+        mSize = 0;
+    }
+
+    public long getDate(int index) {
+        checkIndex(index);
+        return mDates[index];
+    }
+
+    public int getWeatherId(int index) {
+        checkIndex(index);
+        return mWeatherIds[index];
+    }
+
+    public double getMinTemp(int index) {
+        checkIndex(index);
+        return mMinTemps[index];
+    }
+
+    public double getMaxTemp(int index) {
+        checkIndex(index);
+        return mMaxTemps[index];
+    }
+
+    public double getHumidity(int index) {
+        checkIndex(index);
+        return mHumidities[index];
+    }
+
+    public double getPressure(int index) {
+        checkIndex(index);
+        return mPressures[index];
+    }
+
+    public double getWindSpeed(int index) {
+        checkIndex(index);
+        return mWindSpeeds[index];
+    }
+
+    public double getDegrees(int index) {
+        checkIndex(index);
+        return mDegrees[index];
+    }
+
+    /**
+     * Finds the day for a date. Only meaningful if the days were added in ascending date order,
+     * as they are when read from the database sorted by date.
+     *
+     * @param date The normalized UTC date to look for
+     * @return The index of the day with that date, or a negative number if there isn't one
+     */
+    public int binarySearchDate(long date) {
+        return Arrays.binarySearch(mDates, 0, mSize, date);
+    }
+
+    /**
+     * Copies a day into ContentValues, keyed by the weather table's column names.
+     *
+     * @param index The day to copy
+     * @return ContentValues for the day
+     */
+    public ContentValues toContentValues(int index) {
+        checkIndex(index);
+
+        ContentValues weatherValues = new ContentValues();
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE, mDates[index]);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, mHumidities[index]);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, mPressures[index]);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, mWindSpeeds[index]);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, mDegrees[index]);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, mMaxTemps[index]);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, mMinTemps[index]);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, mWeatherIds[index]);
+        return weatherValues;
+    }
+
+    /**
+     * @return Every day held, as ContentValues
+     */
+    public ContentValues[] toContentValuesArray() {
+        ContentValues[] values = new ContentValues[mSize];
+        for (int i = 0; i < mSize; i++) {
+            values[i] = toContentValues(i);
+        }
+        return values;
+    }
+
+    /**
+     * Copies days out of ContentValues.
+     *
+     * @param values Weather values, each of which must have every weather column
+     * @return The same days, as ForecastColumns
+     * @throws IllegalArgumentException If any of the values is missing a column
+     */
+    public static ForecastColumns fromContentValues(ContentValues[] values) {
+        ForecastColumns columns = new ForecastColumns(values.length);
+        for (ContentValues value : values) {
+            columns.add(
+                    getRequiredLong(value, WeatherContract.WeatherEntry.COLUMN_DATE),
+                    (int) getRequiredLong(value, WeatherContract.WeatherEntry.COLUMN_WEATHER_ID),
+                    getRequiredDouble(value, WeatherContract.WeatherEntry.COLUMN_MIN_TEMP),
+                    getRequiredDouble(value, WeatherContract.WeatherEntry.COLUMN_MAX_TEMP),
+                    getRequiredDouble(value, WeatherContract.WeatherEntry.COLUMN_HUMIDITY),
+                    getRequiredDouble(value, WeatherContract.WeatherEntry.COLUMN_PRESSURE),
+                    getRequiredDouble(value, WeatherContract.WeatherEntry.COLUMN_WIND_SPEED),
+                    getRequiredDouble(value, WeatherContract.WeatherEntry.COLUMN_DEGREES));
+        }
+        return columns;
+    }
+
+    private static long getRequiredLong(ContentValues value, String column) {
+        Long columnValue = value.getAsLong(column);
+        if (columnValue == null) {
+            throw new IllegalArgumentException("Weather values are missing " + column);
+        }
+        return columnValue;
+    }
+
+    private static double getRequiredDouble(ContentValues value, String column) {
+        Double columnValue = value.getAsDouble(column);
+        if (columnValue == null) {
+            throw new IllegalArgumentException("Weather values are missing " + column);
+        }
+        return columnValue;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + mSize);
+        }
+    }
+
+    private void grow() {
+        int capacity = mDates.length * 2;
+        mDates = Arrays.copyOf(mDates, capacity);
+        mWeatherIds = Arrays.copyOf(mWeatherIds, capacity);
+        mMinTemps = Arrays.copyOf(mMinTemps, capacity);
+        mMaxTemps = Arrays.copyOf(mMaxTemps, capacity);
+        mHumidities = Arrays.copyOf(mHumidities, capacity);
+        mPressures = Arrays.copyOf(mPressures, capacity);
+        mWindSpeeds = Arrays.copyOf(mWindSpeeds, capacity);
+        mDegrees = Arrays.copyOf(mDegrees, capacity);
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.Context;
+import android.os.Bundle;
+
+/**
+ * How much forecast is stored for a location, and how old it is, as reported by
+ * {@link WeatherContract#METHOD_PROBE_FRESHNESS}. Reading it costs a single aggregate query, so
+ * the UI and the notification code can check the age of the forecast as often as they like.
+ */
+public final class ForecastFreshness {
+
+    /* Used when the fetch time or the newest date isn't known */
+    public static final long UNKNOWN = -1;
+
+    private final int mRowCount;
+    private final long mNewestDate;
+    private final long mFetchedAtMillis;
+
+    public ForecastFreshness(int rowCount, long newestDate, long fetchedAtMillis) {
+        mRowCount = rowCount;
+        mNewestDate = newestDate;
+        mFetchedAtMillis = fetchedAtMillis;
+    }
+
+    /**
+     * Probes the forecast stored for a location. Runs a query, so don't call it on the main
+     * thread.
+     *
+     * @param context         Used to access the ContentResolver
+     * @param locationSetting The location to probe
+     * @return What is stored for the location; nothing at all if the provider couldn't be reached
+     */
+    public static ForecastFreshness probe(Context context, String locationSetting) {
+        Bundle result = context.getContentResolver().call(
+                WeatherContract.WeatherEntry.CONTENT_URI,
+                WeatherContract.METHOD_PROBE_FRESHNESS,
+                locationSetting,
+                null);
+        if (result == null) {
+            return new ForecastFreshness(0, UNKNOWN, UNKNOWN);
+        }
+        return new ForecastFreshness(
+                result.getInt(WeatherContract.RESULT_ROW_COUNT),
+                result.getLong(WeatherContract.RESULT_NEWEST_DATE, UNKNOWN),
+                result.getLong(WeatherContract.RESULT_FETCHED_AT, UNKNOWN));
+    }
+
+    /**
+     * Records that the forecast of a location was confirmed up to date just now, without being
+     * written, as when the server says it hasn't changed.
+     *
+     * @param context         Used to access the ContentResolver
+     * @param locationSetting The location whose forecast was fetched
+     */
+    public static void markFetched(Context context, String locationSetting) {
+        context.getContentResolver().call(
+                WeatherContract.WeatherEntry.CONTENT_URI,
+                WeatherContract.METHOD_MARK_FETCHED,
+                locationSetting,
+                null);
+    }
+
+    /**
+     * @return Days of forecast stored from today onwards
+     */
+    public int getRowCount() {
+        return mRowCount;
+    }
+
+    /**
+     * @return The last day of the stored forecast, normalized, or {@link #UNKNOWN} if there are
+     * none
+     */
+    public long getNewestDate() {
+        return mNewestDate;
+    }
+
+    /**
+     * @return When the forecast was last fetched, in milliseconds since the epoch, or
+     * {@link #UNKNOWN} if it never has been since this was recorded
+     */
+    public long getFetchedAtMillis() {
+        return mFetchedAtMillis;
+    }
+
+    /**
+     * @param nowMillis The current time, in milliseconds since the epoch
+     * @return How old the stored forecast is, or {@link #UNKNOWN} if that isn't known
+     */
+    public long getAgeMillis(long nowMillis) {
+        if (mFetchedAtMillis == UNKNOWN) {
+            return UNKNOWN;
+        }
+        /* The clock may have been set back since the fetch; the forecast can't be younger */
+        return Math.max(0, nowMillis - mFetchedAtMillis);
+    }
+
+    @Override
+    public String toString() {
+        return mRowCount + " days up to " + mNewestDate + ", fetched at " + mFetchedAtMillis;
+    }
+}
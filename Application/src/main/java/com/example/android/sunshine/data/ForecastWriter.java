@@ -0,0 +1,469 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.support.annotation.VisibleForTesting;
+
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+import com.example.android.sunshine.utilities.SyncMetrics;
+
+import java.util.Arrays;
+
+/**
+ * Replaces the forecast stored for one location with a new one that arrives a few days at a
+ * time. Rather than deleting the old forecast and inserting the new one, each incoming day is
+ * compared with the row already stored for that date: unchanged days are skipped, changed days
+ * are updated in place, and new days are inserted. Days that are stored but weren't part of the
+ * new forecast are deleted when the writer commits. The forecasts of other locations are never
+ * touched.
+ * <p>
+ * While history is kept (see {@link #setKeepHistory(boolean)}), each day that is updated or
+ * deleted is first copied into the history table, as it was forecast when it was last fetched.
+ * <p>
+ * Everything happens inside a single transaction, so readers only ever see either the old
+ * forecast or the complete new one, and observers of the location's weather are notified once,
+ * and only if something actually changed.
+ * <p>
+ * Days are handed over as {@link ForecastColumns}, and both the stored forecast and the new one
+ * are kept in primitive arrays, so writing a forecast doesn't box a single value.
+ * <p>
+ * A ForecastWriter is obtained from {@link WeatherProvider#openForecastWriter(String)} and must
+ * only be used from the thread that first calls insert, as SQLite transactions belong to a thread.
+ * Always call {@link #close()} in a finally block; if {@link #commit()} wasn't called, closing
+ * rolls everything back and the old forecast is kept.
+ */
+public class ForecastWriter {
+
+    /* The stored forecast is read in date order, so that days can be found by binary search */
+    @VisibleForTesting
+    static final String[] STORED_DAY_PROJECTION = {
+            WeatherContract.WeatherEntry.COLUMN_DATE,
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_HUMIDITY,
+            WeatherContract.WeatherEntry.COLUMN_PRESSURE,
+            WeatherContract.WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherContract.WeatherEntry.COLUMN_DEGREES
+    };
+
+    private static final int INDEX_DATE = 0;
+    private static final int INDEX_WEATHER_ID = 1;
+    private static final int INDEX_MIN_TEMP = 2;
+    private static final int INDEX_MAX_TEMP = 3;
+    private static final int INDEX_HUMIDITY = 4;
+    private static final int INDEX_PRESSURE = 5;
+    private static final int INDEX_WIND_SPEED = 6;
+    private static final int INDEX_DEGREES = 7;
+
+    @VisibleForTesting
+    static final String SELECTION_LOCATION_ID =
+            WeatherContract.WeatherEntry.COLUMN_LOCATION_ID + " = ?";
+
+    @VisibleForTesting
+    static final String SELECTION_LOCATION_ID_AND_DATE =
+            WeatherContract.WeatherEntry.COLUMN_LOCATION_ID + " = ? AND "
+                    + WeatherContract.WeatherEntry.COLUMN_DATE + " = ?";
+
+    private final WeatherDbHelper mOpenHelper;
+    private final ContentResolver mContentResolver;
+    private final String mLocationSetting;
+
+    private SQLiteDatabase mDatabase;
+    private long mLocationId;
+    private WeatherStatements mStatements;
+    private boolean mCommitted;
+
+    /* The stored forecast, in date order, as it was when the transaction started */
+    private ForecastColumns mStoredDays;
+    /* Which of the stored days were part of the new forecast, and so must not be deleted */
+    private boolean[] mStoredDayReceived;
+
+    private int mRowsReceived;
+    private int mRowsWritten;
+    private int mRowsSkipped;
+    private int mRowsDeleted;
+
+    private boolean mHasCoordinates;
+    private double mLatitude;
+    private double mLongitude;
+
+    private boolean mStoreCompactForecast;
+
+    private boolean mKeepHistory;
+    /* When the stored forecast was fetched, which is when the days archived from it were issued */
+    private long mStoredIssuedAt;
+    private int mRowsArchived;
+    private boolean mMetricsRecorded;
+
+    /**
+     * @param openHelper      Gives us the database
+     * @param contentResolver Used to notify observers on commit, or null if the caller will
+     *                        notify them itself, as it does when writing several locations in
+     *                        one transaction
+     * @param locationSetting The location the forecast is for
+     */
+    ForecastWriter(WeatherDbHelper openHelper, ContentResolver contentResolver,
+                   String locationSetting) {
+        if (locationSetting == null) {
+            throw new IllegalArgumentException("A forecast must be written for a location");
+        }
+        mOpenHelper = openHelper;
+        mContentResolver = contentResolver;
+        mLocationSetting = locationSetting;
+    }
+
+    /**
+     * Stores the coordinates of the location along with its forecast, when the writer commits.
+     *
+     * @param latitude  Latitude of the location
+     * @param longitude Longitude of the location
+     */
+    public void setLocationCoordinates(double latitude, double longitude) {
+        mHasCoordinates = true;
+        mLatitude = latitude;
+        mLongitude = longitude;
+    }
+
+    /**
+     * Also stores the location's whole forecast as a compact blob (see {@link ForecastBlobCodec})
+     * when the writer commits. Otherwise any blob stored earlier is cleared, so that it can never
+     * be older than the forecast in the weather table.
+     *
+     * @param storeCompactForecast Whether to store the blob
+     */
+    public void setStoreCompactForecast(boolean storeCompactForecast) {
+        mStoreCompactForecast = storeCompactForecast;
+    }
+
+    /**
+     * Archives every day that this writer updates or deletes in the history table first, so
+     * that the forecasts they replace can be compared with what the weather turned out to be.
+     *
+     * @param keepHistory Whether to archive the days being replaced
+     */
+    public void setKeepHistory(boolean keepHistory) {
+        mKeepHistory = keepHistory;
+    }
+
+    /**
+     * Writes a batch of days, skipping any day that is already stored exactly as it is in the
+     * batch. The transaction is started (and the stored forecast read) when the first batch
+     * arrives rather than when the writer is opened, so that we don't hold the database while we
+     * are still waiting on the network for the first bytes.
+     * <p>
+     * The writer doesn't hold on to the batch, so the caller is free to clear and refill it once
+     * this method returns.
+     *
+     * @param days Weather for consecutive days. Dates must be normalized.
+     * @return The number of rows inserted or updated from this batch
+     */
+    public int insert(ForecastColumns days) {
+        if (mCommitted) {
+            throw new IllegalStateException("Cannot insert after the forecast has been committed");
+        }
+
+        if (mDatabase == null) {
+            mDatabase = mOpenHelper.getWritableDatabase();
+            /*
+             * An immediate (non-exclusive) transaction still lets readers see the old forecast
+             * while the new one is being written.
+             */
+            mDatabase.beginTransactionNonExclusive();
+            mLocationId = WeatherDbHelper.getOrInsertLocationId(mDatabase, mLocationSetting);
+            mStatements = new WeatherStatements(mDatabase);
+            mStoredDays = readStoredDays(mDatabase, mLocationId);
+            mStoredDayReceived = new boolean[mStoredDays.size()];
+            if (mKeepHistory) {
+                mStoredIssuedAt = readFetchedAt(mDatabase, mLocationId);
+            }
+        }
+
+        long insertStart = SystemClock.elapsedRealtimeNanos();
+        int rowsWritten = 0;
+        for (int i = 0; i < days.size(); i++) {
+            long date = days.getDate(i);
+            if (!SunshineDateUtils.isDateNormalized(date)) {
+                throw new IllegalArgumentException("Date must be normalized to insert");
+            }
+
+            mRowsReceived++;
+
+            int stored = mStoredDays.binarySearchDate(date);
+            if (stored < 0) {
+                if (mStatements.insert(mLocationId, date, days.getWeatherId(i), days.getMinTemp(i),
+                        days.getMaxTemp(i), days.getHumidity(i), days.getPressure(i),
+                        days.getWindSpeed(i), days.getDegrees(i)) != -1) {
+                    rowsWritten++;
+                }
+                continue;
+            }
+
+            mStoredDayReceived[stored] = true;
+            if (hasChanged(mStoredDays, stored, days, i)) {
+                archiveStoredDay(stored);
+                rowsWritten += mStatements.update(mLocationId, date, days.getWeatherId(i),
+                        days.getMinTemp(i), days.getMaxTemp(i), days.getHumidity(i),
+                        days.getPressure(i), days.getWindSpeed(i), days.getDegrees(i));
+            } else {
+                mRowsSkipped++;
+            }
+        }
+
+        mRowsWritten += rowsWritten;
+        SyncMetrics.INSERT.recordSince(insertStart);
+        return rowsWritten;
+    }
+
+    /**
+     * Convenience for callers that have the forecast as ContentValues, such as
+     * {@link WeatherProvider#call(String, String, android.os.Bundle)}.
+     *
+     * @param values Weather values for consecutive days. Dates must be normalized.
+     * @param count  Number of values in the batch to write
+     * @return The number of rows inserted or updated from this batch
+     */
+    public int insert(ContentValues[] values, int count) {
+        return insert(ForecastColumns.fromContentValues(Arrays.copyOf(values, count)));
+    }
+
+    /**
+     * Deletes any stored days that weren't part of the new forecast, records when the forecast
+     * was fetched, stores or clears the compact forecast, makes the new forecast visible to
+     * readers and, if anything changed, notifies observers of the location's weather. If nothing
+     * was inserted, the old forecast is left untouched.
+     */
+    public void commit() {
+        if (mDatabase == null || mCommitted) {
+            return;
+        }
+
+        long deleteStart = SystemClock.elapsedRealtimeNanos();
+        int rowsDeleted = 0;
+        String locationId = Long.toString(mLocationId);
+        for (int i = 0; i < mStoredDayReceived.length; i++) {
+            if (!mStoredDayReceived[i]) {
+                archiveStoredDay(i);
+                rowsDeleted += mDatabase.delete(WeatherContract.WeatherEntry.TABLE_NAME,
+                        SELECTION_LOCATION_ID_AND_DATE,
+                        new String[]{locationId, Long.toString(mStoredDays.getDate(i))});
+            }
+        }
+        mRowsDeleted += rowsDeleted;
+        SyncMetrics.DELETE.recordSince(deleteStart);
+
+        /* Whether or not anything changed, the forecast is now as fresh as it can be */
+        ContentValues locationValues = new ContentValues();
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_FETCHED_AT,
+                System.currentTimeMillis());
+        if (mStoreCompactForecast) {
+            /* Read back what is now stored, which is the new forecast merged with the old */
+            locationValues.put(WeatherContract.LocationEntry.COLUMN_FORECAST_BLOB,
+                    ForecastBlobCodec.encode(readStoredDays(mDatabase, mLocationId)));
+        } else {
+            locationValues.putNull(WeatherContract.LocationEntry.COLUMN_FORECAST_BLOB);
+        }
+        if (mHasCoordinates) {
+            locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, mLatitude);
+            locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, mLongitude);
+        }
+        mDatabase.update(WeatherContract.LocationEntry.TABLE_NAME, locationValues,
+                WeatherContract.LocationEntry._ID + " = ?", new String[]{locationId});
+
+        mStatements.close();
+        mStatements = null;
+        mDatabase.setTransactionSuccessful();
+        mDatabase.endTransaction();
+        mCommitted = true;
+
+        /*
+         * Inside an outer transaction, nothing is stored until that commits too, so it is up to
+         * whoever began it to record the metrics (see recordMetrics).
+         */
+        if (!mDatabase.inTransaction()) {
+            recordMetrics();
+        }
+
+        if (mContentResolver != null && hasChanged()) {
+            long notifyStart = SystemClock.elapsedRealtimeNanos();
+            mContentResolver.notifyChange(
+                    WeatherContract.WeatherEntry.buildWeatherUriWithLocation(mLocationSetting),
+                    null);
+            SyncMetrics.NOTIFY.recordSince(notifyStart);
+        }
+    }
+
+    /**
+     * Ends the transaction. If {@link #commit()} wasn't called, nothing written through this
+     * writer is kept.
+     */
+    public void close() {
+        if (mStatements != null) {
+            mStatements.close();
+            mStatements = null;
+        }
+        if (mDatabase != null && !mCommitted) {
+            mDatabase.endTransaction();
+        }
+        mDatabase = null;
+    }
+
+    /**
+     * Adds the rows this writer wrote, skipped, deleted and archived to SyncMetrics, once they
+     * are really stored. {@link #commit()} does this itself unless the writer's transaction was
+     * nested in another, in which case the caller must, after the outer transaction commits. A
+     * writer that is rolled back never records anything.
+     */
+    void recordMetrics() {
+        if (!mCommitted || mMetricsRecorded) {
+            return;
+        }
+        mMetricsRecorded = true;
+        SyncMetrics.ROWS_WRITTEN.add(mRowsWritten);
+        SyncMetrics.ROWS_SKIPPED.add(mRowsSkipped);
+        SyncMetrics.ROWS_DELETED.add(mRowsDeleted);
+        SyncMetrics.HISTORY_ROWS_ARCHIVED.add(mRowsArchived);
+    }
+
+    /**
+     * @return true if some row of the location's weather was inserted, updated or deleted
+     */
+    public boolean hasChanged() {
+        return mRowsWritten > 0 || mRowsDeleted > 0;
+    }
+
+    /**
+     * @return The number of days handed to this writer so far
+     */
+    public int getRowsReceived() {
+        return mRowsReceived;
+    }
+
+    /**
+     * @return The number of rows inserted or updated so far
+     */
+    public int getRowsWritten() {
+        return mRowsWritten;
+    }
+
+    /**
+     * @return The number of days that were already stored exactly as received
+     */
+    public int getRowsSkipped() {
+        return mRowsSkipped;
+    }
+
+    /**
+     * @return The number of stale days deleted on commit
+     */
+    public int getRowsDeleted() {
+        return mRowsDeleted;
+    }
+
+    /**
+     * @return The number of replaced days copied into the history table
+     */
+    public int getRowsArchived() {
+        return mRowsArchived;
+    }
+
+    /* Copies a stored day into the history table before it is updated or deleted */
+    private void archiveStoredDay(int stored) {
+        if (!mKeepHistory) {
+            return;
+        }
+        mStatements.archive(mLocationId, mStoredDays.getDate(stored), mStoredIssuedAt,
+                mStoredDays.getWeatherId(stored), mStoredDays.getMinTemp(stored),
+                mStoredDays.getMaxTemp(stored), mStoredDays.getHumidity(stored),
+                mStoredDays.getPressure(stored), mStoredDays.getWindSpeed(stored),
+                mStoredDays.getDegrees(stored));
+        mRowsArchived++;
+    }
+
+    /*
+     * Reads when the location's forecast was last fetched. A location stored before fetch times
+     * were recorded has none, so its forecast is taken to have been issued now.
+     */
+    private static long readFetchedAt(SQLiteDatabase db, long locationId) {
+        Cursor cursor = db.query(WeatherContract.LocationEntry.TABLE_NAME,
+                new String[]{WeatherContract.LocationEntry.COLUMN_FETCHED_AT},
+                WeatherContract.LocationEntry._ID + " = ?",
+                new String[]{Long.toString(locationId)},
+                null, null, null);
+        try {
+            if (cursor.moveToFirst() && !cursor.isNull(0)) {
+                return cursor.getLong(0);
+            }
+            return System.currentTimeMillis();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Reads every stored day of the location, in date order. The forecast is only a couple of
+     * weeks long, so this is small.
+     */
+    private static ForecastColumns readStoredDays(SQLiteDatabase db, long locationId) {
+        Cursor cursor = db.query(WeatherContract.WeatherEntry.TABLE_NAME, STORED_DAY_PROJECTION,
+                SELECTION_LOCATION_ID, new String[]{Long.toString(locationId)},
+                null, null, WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
+
+        ForecastColumns storedDays = new ForecastColumns(cursor.getCount());
+        try {
+            while (cursor.moveToNext()) {
+                storedDays.add(
+                        cursor.getLong(INDEX_DATE),
+                        cursor.getInt(INDEX_WEATHER_ID),
+                        cursor.getDouble(INDEX_MIN_TEMP),
+                        cursor.getDouble(INDEX_MAX_TEMP),
+                        cursor.getDouble(INDEX_HUMIDITY),
+                        cursor.getDouble(INDEX_PRESSURE),
+                        cursor.getDouble(INDEX_WIND_SPEED),
+                        cursor.getDouble(INDEX_DEGREES));
+            }
+        } finally {
+            cursor.close();
+        }
+        return storedDays;
+    }
+
+    /*
+     * Every column is stored as an INTEGER or a REAL, both of which survive a round trip through
+     * a double unchanged, so comparing exactly tells us whether the row would change.
+     */
+    private static boolean hasChanged(ForecastColumns stored, int storedIndex,
+            ForecastColumns incoming, int incomingIndex) {
+        return stored.getWeatherId(storedIndex) != incoming.getWeatherId(incomingIndex)
+                || Double.compare(stored.getMinTemp(storedIndex),
+                        incoming.getMinTemp(incomingIndex)) != 0
+                || Double.compare(stored.getMaxTemp(storedIndex),
+                        incoming.getMaxTemp(incomingIndex)) != 0
+                || Double.compare(stored.getHumidity(storedIndex),
+                        incoming.getHumidity(incomingIndex)) != 0
+                || Double.compare(stored.getPressure(storedIndex),
+                        incoming.getPressure(incomingIndex)) != 0
+                || Double.compare(stored.getWindSpeed(storedIndex),
+                        incoming.getWindSpeed(incomingIndex)) != 0
+                || Double.compare(stored.getDegrees(storedIndex),
+                        incoming.getDegrees(incomingIndex)) != 0;
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+
+import com.example.android.sunshine.data.WeatherContract.HistoryEntry;
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+import com.example.android.sunshine.utilities.SyncMetrics;
+
+/**
+ * Keeps the forecast history bounded. Every sync can archive a couple of weeks of days per
+ * location, so left alone the history would grow by thousands of rows a month. Compacting it
+ * takes three steps, in one transaction:
+ * <ol>
+ * <li>Downsample: for dates more than a week in the past, only the last forecast issued on each
+ * day before the date is kept. A forecast made 3 days ahead can still be compared with one made
+ * 1 day ahead, but the several syncs a day in between are dropped.</li>
+ * <li>Prune by age: forecasts for dates older than the age limit are deleted.</li>
+ * <li>Enforce the budget: if the history still has more rows than its budget, the forecasts for
+ * the oldest dates are deleted until it fits.</li>
+ * </ol>
+ * Compaction runs in the background (see SunshineMaintenanceJobService), and can be asked for
+ * with {@link WeatherContract#METHOD_COMPACT_HISTORY}.
+ */
+public class HistoryCompactor {
+
+    public static final int DEFAULT_MAX_AGE_DAYS = 365;
+    public static final int DEFAULT_FULL_DETAIL_DAYS = 7;
+
+    /*
+     * A history row takes about 120 bytes with its share of the indexes, so this keeps the
+     * history to a couple of megabytes: around three locations' worth of downsampled forecasts
+     * for a whole year.
+     */
+    public static final int DEFAULT_MAX_ROWS = 20000;
+
+    /* The day a forecast was issued on, normalized like the dates it is for */
+    private static final String ISSUED_DAY = "(" + HistoryEntry.COLUMN_ISSUED_AT + " - "
+            + HistoryEntry.COLUMN_ISSUED_AT + " % " + SunshineDateUtils.DAY_IN_MILLIS + ")";
+
+    /*
+     * Keeps, for each location, date and number of days ahead the forecast was made, the row
+     * issued last. SQLite fills in a bare column such as _ID from the row that has the MAX.
+     */
+    private static final String SQL_DOWNSAMPLE = "DELETE FROM " + HistoryEntry.TABLE_NAME
+            + " WHERE " + HistoryEntry.COLUMN_DATE + " < ? AND " + HistoryEntry._ID
+            + " NOT IN (SELECT " + HistoryEntry._ID + " FROM (SELECT " + HistoryEntry._ID
+            + ", MAX(" + HistoryEntry.COLUMN_ISSUED_AT + ") FROM " + HistoryEntry.TABLE_NAME
+            + " WHERE " + HistoryEntry.COLUMN_DATE + " < ? GROUP BY "
+            + HistoryEntry.COLUMN_LOCATION_ID + ", " + HistoryEntry.COLUMN_DATE + ", "
+            + HistoryEntry.COLUMN_DATE + " - " + ISSUED_DAY + "))";
+
+    /* The index on date gives the oldest rows in this order without sorting */
+    private static final String SQL_EVICT_OLDEST = "DELETE FROM " + HistoryEntry.TABLE_NAME
+            + " WHERE " + HistoryEntry._ID + " IN (SELECT " + HistoryEntry._ID + " FROM "
+            + HistoryEntry.TABLE_NAME + " ORDER BY " + HistoryEntry.COLUMN_DATE + " ASC, "
+            + HistoryEntry._ID + " ASC LIMIT ?)";
+
+    /**
+     * What one compaction did.
+     */
+    public static class Result {
+
+        private int mRowsDownsampled;
+        private int mRowsPrunedByAge;
+        private int mRowsEvicted;
+        private long mRowsRemaining;
+
+        /**
+         * @return Rows dropped because a later forecast for the same date, made the same number
+         * of days ahead, was kept instead
+         */
+        public int getRowsDownsampled() {
+            return mRowsDownsampled;
+        }
+
+        /**
+         * @return Rows dropped because their date was past the age limit
+         */
+        public int getRowsPrunedByAge() {
+            return mRowsPrunedByAge;
+        }
+
+        /**
+         * @return Rows dropped, oldest first, to fit the history into its budget
+         */
+        public int getRowsEvicted() {
+            return mRowsEvicted;
+        }
+
+        /**
+         * @return Every row dropped
+         */
+        public int getRowsDeleted() {
+            return mRowsDownsampled + mRowsPrunedByAge + mRowsEvicted;
+        }
+
+        /**
+         * @return Rows left in the history
+         */
+        public long getRowsRemaining() {
+            return mRowsRemaining;
+        }
+    }
+
+    private final int mMaxAgeDays;
+    private final int mFullDetailDays;
+    private final int mMaxRows;
+
+    /**
+     * Creates a compactor with the default limits.
+     */
+    public HistoryCompactor() {
+        this(DEFAULT_MAX_AGE_DAYS, DEFAULT_FULL_DETAIL_DAYS, DEFAULT_MAX_ROWS);
+    }
+
+    /**
+     * @param maxAgeDays     Forecasts for dates more than this many days ago are deleted
+     * @param fullDetailDays Every forecast is kept for dates up to this many days ago; older
+     *                       dates are downsampled
+     * @param maxRows        The most rows the history may keep
+     */
+    public HistoryCompactor(int maxAgeDays, int fullDetailDays, int maxRows) {
+        if (fullDetailDays < 0 || maxAgeDays < fullDetailDays || maxRows < 0) {
+            throw new IllegalArgumentException("Invalid history limits");
+        }
+        mMaxAgeDays = maxAgeDays;
+        mFullDetailDays = fullDetailDays;
+        mMaxRows = maxRows;
+    }
+
+    /**
+     * Compacts the history in a single transaction.
+     *
+     * @param db        A writable database
+     * @param nowMillis The current time, in milliseconds since the epoch
+     * @return What was compacted
+     */
+    public Result compact(SQLiteDatabase db, long nowMillis) {
+        long compactStart = SystemClock.elapsedRealtimeNanos();
+        long today = SunshineDateUtils.normalizeDate(nowMillis);
+        long downsampleBefore = today - mFullDetailDays * SunshineDateUtils.DAY_IN_MILLIS;
+        long pruneBefore = today - mMaxAgeDays * SunshineDateUtils.DAY_IN_MILLIS;
+
+        Result result = new Result();
+        db.beginTransactionNonExclusive();
+        try {
+            result.mRowsDownsampled = executeDelete(db, SQL_DOWNSAMPLE,
+                    downsampleBefore, downsampleBefore);
+
+            result.mRowsPrunedByAge = db.delete(HistoryEntry.TABLE_NAME,
+                    HistoryEntry.COLUMN_DATE + " < ?", new String[]{Long.toString(pruneBefore)});
+
+            long rows = DatabaseUtils.queryNumEntries(db, HistoryEntry.TABLE_NAME);
+            if (rows > mMaxRows) {
+                result.mRowsEvicted = executeDelete(db, SQL_EVICT_OLDEST, rows - mMaxRows);
+            }
+            result.mRowsRemaining = rows - result.mRowsEvicted;
+
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        SyncMetrics.HISTORY_ROWS_COMPACTED.add(result.getRowsDeleted());
+        SyncMetrics.COMPACT.recordSince(compactStart);
+        return result;
+    }
+
+    /* Binds numbers as numbers, as LIMIT needs */
+    private static int executeDelete(SQLiteDatabase db, String sql, long... args) {
+        SQLiteStatement statement = db.compileStatement(sql);
+        try {
+            for (int i = 0; i < args.length; i++) {
+                statement.bindLong(i + 1, args[i]);
+            }
+            return statement.executeUpdateDelete();
+        } finally {
+            statement.close();
+        }
+    }
+}
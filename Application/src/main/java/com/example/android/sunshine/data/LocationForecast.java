@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+/**
+ * The new forecast of one location, waiting to be written along with the forecasts of other
+ * locations by {@link WeatherProvider#writeForecasts(java.util.List)}. Once the forecasts have
+ * been written, each LocationForecast also tells how many of its rows changed.
+ */
+public final class LocationForecast {
+
+    private final String mLocationSetting;
+    private final ForecastColumns mDays;
+
+    private boolean mHasCoordinates;
+    private double mLatitude;
+    private double mLongitude;
+
+    private boolean mWritten;
+    private int mRowsWritten;
+    private int mRowsSkipped;
+    private int mRowsDeleted;
+
+    /**
+     * @param locationSetting The location the forecast is for, as stored in SunshinePreferences
+     * @param days            Every day of the forecast. Dates must be normalized.
+     */
+    public LocationForecast(String locationSetting, ForecastColumns days) {
+        if (locationSetting == null) {
+            throw new IllegalArgumentException("A forecast must be written for a location");
+        }
+        mLocationSetting = locationSetting;
+        mDays = days;
+    }
+
+    /**
+     * Stores the coordinates of the location along with its forecast.
+     *
+     * @param latitude  Latitude of the location
+     * @param longitude Longitude of the location
+     */
+    public void setCoordinates(double latitude, double longitude) {
+        mHasCoordinates = true;
+        mLatitude = latitude;
+        mLongitude = longitude;
+    }
+
+    public String getLocationSetting() {
+        return mLocationSetting;
+    }
+
+    public ForecastColumns getDays() {
+        return mDays;
+    }
+
+    /**
+     * @return true once the forecast has been stored
+     */
+    public boolean isWritten() {
+        return mWritten;
+    }
+
+    /**
+     * @return true if some row of the location's weather was inserted, updated or deleted
+     */
+    public boolean hasChanged() {
+        return mRowsWritten > 0 || mRowsDeleted > 0;
+    }
+
+    /**
+     * @return The number of rows inserted or updated
+     */
+    public int getRowsWritten() {
+        return mRowsWritten;
+    }
+
+    /**
+     * @return The number of days that were already stored exactly as received
+     */
+    public int getRowsSkipped() {
+        return mRowsSkipped;
+    }
+
+    /**
+     * @return The number of stale days deleted
+     */
+    public int getRowsDeleted() {
+        return mRowsDeleted;
+    }
+
+    /* Hands the forecast to a writer that has just been opened for this location */
+    void writeTo(ForecastWriter writer) {
+        writer.insert(mDays);
+        if (mHasCoordinates) {
+            writer.setLocationCoordinates(mLatitude, mLongitude);
+        }
+    }
+
+    /**
+     * Marks the forecast as stored, for callers that stored it some other way, such as through
+     * {@link WeatherContract#METHOD_REPLACE_FORECAST}.
+     *
+     * @param rowsWritten The number of rows inserted or updated
+     * @param rowsSkipped The number of days that were already stored exactly as received
+     * @param rowsDeleted The number of stale days deleted
+     */
+    public void setWriteCounts(int rowsWritten, int rowsSkipped, int rowsDeleted) {
+        mWritten = true;
+        mRowsWritten = rowsWritten;
+        mRowsSkipped = rowsSkipped;
+        mRowsDeleted = rowsDeleted;
+    }
+
+    /* Copies the counts of a writer that has committed this forecast */
+    void recordWriterCounts(ForecastWriter writer) {
+        setWriteCounts(writer.getRowsWritten(), writer.getRowsSkipped(),
+                writer.getRowsDeleted());
+    }
+}
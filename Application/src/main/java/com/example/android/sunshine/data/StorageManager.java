@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+
+import com.example.android.sunshine.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.utilities.SyncMetrics;
+
+/**
+ * Keeps weather.db within its storage budget. Deleting rows doesn't make the database file any
+ * smaller: the pages they were on go on SQLite's freelist, to be reused by later writes. Syncs
+ * delete and insert days over and over, and the history is compacted, so free pages pile up.
+ * <p>
+ * The database is created with auto_vacuum = INCREMENTAL (see WeatherDbHelper#onConfigure), which
+ * lets free pages be handed back to the filesystem without rebuilding the whole file. Each time
+ * it runs, the storage manager:
+ * <ol>
+ * <li>Converts a database created before then with one full VACUUM, as SQLite can only switch
+ * an existing database to incremental vacuum by rebuilding it.</li>
+ * <li>Enforces the budget: while the pages in use add up to more than the budget, the location
+ * that was fetched longest ago is deleted, along with its weather and history. The location
+ * the user has chosen is never deleted.</li>
+ * <li>Runs an incremental vacuum, if there are enough free pages to be worth it.</li>
+ * </ol>
+ * It runs in the background while the device is charging (see SunshineMaintenanceJobService),
+ * and can be asked for with {@link WeatherContract#METHOD_MAINTAIN_STORAGE}.
+ */
+public class StorageManager {
+
+    /*
+     * A dozen locations of forecast and a year of history take a few megabytes, so this leaves
+     * plenty of room for normal use and only evicts when many locations have been saved.
+     */
+    public static final long DEFAULT_MAX_BYTES = 8 * 1024 * 1024;
+
+    /* Fewer free pages than this (128 KB) aren't worth the write a vacuum costs */
+    static final int MIN_FREE_PAGES_TO_VACUUM = 32;
+
+    /* The value PRAGMA auto_vacuum reports for incremental vacuum */
+    static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    /* The location fetched longest ago comes first; one that was never fetched, before all */
+    private static final String SQL_OLDEST_LOCATION = "SELECT " + LocationEntry._ID + " FROM "
+            + LocationEntry.TABLE_NAME + " WHERE " + LocationEntry.COLUMN_LOCATION_SETTING
+            + " != ? ORDER BY " + LocationEntry.COLUMN_FETCHED_AT + " ASC, "
+            + LocationEntry._ID + " ASC LIMIT 1";
+
+    /**
+     * The size of the database, as SQLite sees it.
+     */
+    public static class Stats {
+
+        private final long mPageCount;
+        private final long mFreePages;
+        private final long mPageSize;
+
+        Stats(long pageCount, long freePages, long pageSize) {
+            mPageCount = pageCount;
+            mFreePages = freePages;
+            mPageSize = pageSize;
+        }
+
+        /**
+         * Reads the size of a database.
+         *
+         * @param db The database
+         * @return Its size
+         */
+        public static Stats read(SQLiteDatabase db) {
+            return new Stats(
+                    DatabaseUtils.longForQuery(db, "PRAGMA page_count", null),
+                    DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null),
+                    DatabaseUtils.longForQuery(db, "PRAGMA page_size", null));
+        }
+
+        /**
+         * @return Every page of the database, in use or free
+         */
+        public long getPageCount() {
+            return mPageCount;
+        }
+
+        /**
+         * @return The pages on the freelist, waiting to be reused
+         */
+        public long getFreePages() {
+            return mFreePages;
+        }
+
+        /**
+         * @return The size of the database file, leaving out the write-ahead log
+         */
+        public long getTotalBytes() {
+            return mPageCount * mPageSize;
+        }
+
+        /**
+         * @return The bytes taken by pages in use, which is what the budget limits
+         */
+        public long getUsedBytes() {
+            return (mPageCount - mFreePages) * mPageSize;
+        }
+
+        /**
+         * @return The bytes taken by free pages, which a vacuum would give back
+         */
+        public long getFreeBytes() {
+            return mFreePages * mPageSize;
+        }
+    }
+
+    /**
+     * What one run of the storage manager did.
+     */
+    public static class Result {
+
+        private Stats mBefore;
+        private Stats mAfter;
+        private int mLocationsEvicted;
+        private boolean mVacuumed;
+
+        /**
+         * @return The size of the database before the run
+         */
+        public Stats getBefore() {
+            return mBefore;
+        }
+
+        /**
+         * @return The size of the database after the run
+         */
+        public Stats getAfter() {
+            return mAfter;
+        }
+
+        /**
+         * @return How many locations were deleted to fit the budget
+         */
+        public int getLocationsEvicted() {
+            return mLocationsEvicted;
+        }
+
+        /**
+         * @return true if free pages were given back to the filesystem
+         */
+        public boolean isVacuumed() {
+            return mVacuumed;
+        }
+
+        /**
+         * @return How much smaller the database file became
+         */
+        public long getBytesReclaimed() {
+            return Math.max(0, mBefore.getTotalBytes() - mAfter.getTotalBytes());
+        }
+    }
+
+    private final long mMaxBytes;
+
+    /**
+     * Creates a storage manager with the default budget.
+     */
+    public StorageManager() {
+        this(DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param maxBytes The most bytes the pages in use may take
+     */
+    public StorageManager(long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("Invalid storage budget: " + maxBytes);
+        }
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Converts the database to incremental vacuum if it needs to be, enforces the budget and
+     * gives free pages back. This must not be called inside a transaction, as VACUUM can't run
+     * in one.
+     *
+     * @param db                  A writable database
+     * @param keepLocationSetting The location the user has chosen, which is never evicted
+     * @return What was done
+     */
+    public Result maintain(SQLiteDatabase db, String keepLocationSetting) {
+        long vacuumStart = SystemClock.elapsedRealtimeNanos();
+        Result result = new Result();
+        result.mBefore = Stats.read(db);
+
+        if (DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null)
+                != AUTO_VACUUM_INCREMENTAL) {
+            /* Asking for incremental vacuum only records the wish; VACUUM applies it */
+            db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+            db.execSQL("VACUUM");
+            result.mVacuumed = true;
+        }
+
+        Stats stats = Stats.read(db);
+        while (stats.getUsedBytes() > mMaxBytes) {
+            long locationId = findOldestLocation(db, keepLocationSetting);
+            if (locationId == -1) {
+                break;
+            }
+            /* Deleting the location deletes its weather and history, through the foreign keys */
+            db.delete(LocationEntry.TABLE_NAME, LocationEntry._ID + " = ?",
+                    new String[]{Long.toString(locationId)});
+            result.mLocationsEvicted++;
+            stats = Stats.read(db);
+        }
+
+        if (stats.getFreePages() >= MIN_FREE_PAGES_TO_VACUUM) {
+            WeatherDbHelper.runPragma(db, "PRAGMA incremental_vacuum");
+            result.mVacuumed = true;
+        }
+
+        /* The file only shrinks once the log holding the vacuum is copied back into it */
+        if (result.mVacuumed) {
+            WeatherDbHelper.checkpoint(db);
+        }
+        result.mAfter = Stats.read(db);
+
+        SyncMetrics.STORAGE_BYTES_RECLAIMED.add(result.getBytesReclaimed());
+        SyncMetrics.STORAGE_LOCATIONS_EVICTED.add(result.mLocationsEvicted);
+        SyncMetrics.DATABASE_BYTES.set(result.mAfter.getTotalBytes());
+        SyncMetrics.DATABASE_FREE_BYTES.set(result.mAfter.getFreeBytes());
+        SyncMetrics.VACUUM.recordSince(vacuumStart);
+        return result;
+    }
+
+    /* Returns the _ID of the location fetched longest ago, other than the one to keep, or -1 */
+    private static long findOldestLocation(SQLiteDatabase db, String keepLocationSetting) {
+        Cursor cursor = db.rawQuery(SQL_OLDEST_LOCATION,
+                new String[]{keepLocationSetting == null ? "" : keepLocationSetting});
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+}
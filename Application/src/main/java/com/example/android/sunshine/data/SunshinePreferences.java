@@ -31,6 +31,32 @@ public final class SunshinePreferences {
     public static final String PREF_COORD_LAT = "coord_lat";
     public static final String PREF_COORD_LONG = "coord_long";
 
+    /*
+     * The interval between periodic syncs is adapted to how much the forecast has been changing
+     * (see AdaptiveSyncPolicy), so we remember it for the next time the sync is scheduled.
+     */
+    public static final String PREF_SYNC_INTERVAL_SECONDS = "sync_interval_seconds";
+
+    /*
+     * Whether each location's forecast is also stored as a single compact blob (see
+     * ForecastBlobCodec). Off by default, and not offered in the settings screen: nothing in the
+     * app reads the blob yet, so turning it on only costs a little more storage and write time.
+     * It is there to measure the compact layout against the weather table (see TestForecastBlob).
+     */
+    public static final String PREF_COMPACT_FORECAST = "compact_forecast";
+
+    /*
+     * Whether forecasts that are replaced, and days that drop out of the forecast, are archived
+     * in the history table rather than thrown away (see ForecastWriter). Off by default.
+     */
+    public static final String PREF_KEEP_HISTORY = "keep_history";
+
+    /*
+     * How many bytes weather.db may take before the locations fetched longest ago are evicted
+     * (see StorageManager).
+     */
+    public static final String PREF_STORAGE_BUDGET_BYTES = "storage_budget_bytes";
+
     /**
      * Helper method to handle setting location details in Preferences (city name, latitude,
      * longitude)
@@ -242,4 +268,107 @@ public final class SunshinePreferences {
         editor.putLong(lastNotificationKey, timeOfNotification);
         editor.apply();
     }
-}
\ No newline at end of file
+
+    /**
+     * Returns the interval between periodic syncs that was last saved.
+     *
+     * @param context                Used to access SharedPreferences
+     * @param defaultIntervalSeconds Returned if no interval has been saved yet
+     * @return The interval between periodic syncs, in seconds
+     */
+    public static long getSyncIntervalSeconds(Context context, long defaultIntervalSeconds) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        return sp.getLong(PREF_SYNC_INTERVAL_SECONDS, defaultIntervalSeconds);
+    }
+
+    /**
+     * Saves the interval between periodic syncs, so that the sync is scheduled with it from now
+     * on.
+     *
+     * @param context         Used to access SharedPreferences
+     * @param intervalSeconds The interval between periodic syncs, in seconds
+     */
+    public static void saveSyncIntervalSeconds(Context context, long intervalSeconds) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        SharedPreferences.Editor editor = sp.edit();
+        editor.putLong(PREF_SYNC_INTERVAL_SECONDS, intervalSeconds);
+        editor.apply();
+    }
+
+    /**
+     * Returns whether forecasts are also stored in compact form, as one blob per location. The
+     * list of forecasts is always loaded from the weather table, whatever this returns.
+     *
+     * @param context Used to access SharedPreferences
+     * @return true if compact storage is on
+     */
+    public static boolean isCompactForecastEnabled(Context context) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        return sp.getBoolean(PREF_COMPACT_FORECAST, false);
+    }
+
+    /**
+     * Turns compact storage of forecasts on or off. It takes effect when each location's
+     * forecast is next written.
+     *
+     * @param context Used to access SharedPreferences
+     * @param enabled Whether to store forecasts in compact form too
+     */
+    public static void setCompactForecastEnabled(Context context, boolean enabled) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        SharedPreferences.Editor editor = sp.edit();
+        editor.putBoolean(PREF_COMPACT_FORECAST, enabled);
+        editor.apply();
+    }
+
+    /**
+     * Returns whether past forecasts are archived in the history table.
+     *
+     * @param context Used to access SharedPreferences
+     * @return true if history is kept
+     */
+    public static boolean isHistoryEnabled(Context context) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        return sp.getBoolean(PREF_KEEP_HISTORY, false);
+    }
+
+    /**
+     * Turns the forecast history on or off. It takes effect when each location's forecast is
+     * next written. Turning it off keeps the history already archived, until it is compacted
+     * away by age.
+     *
+     * @param context Used to access SharedPreferences
+     * @param enabled Whether to archive past forecasts
+     */
+    public static void setHistoryEnabled(Context context, boolean enabled) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        SharedPreferences.Editor editor = sp.edit();
+        editor.putBoolean(PREF_KEEP_HISTORY, enabled);
+        editor.apply();
+    }
+
+    /**
+     * Returns how many bytes the database may take.
+     *
+     * @param context            Used to access SharedPreferences
+     * @param defaultBudgetBytes Returned if no budget has been saved
+     * @return The storage budget, in bytes
+     */
+    public static long getStorageBudgetBytes(Context context, long defaultBudgetBytes) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        return sp.getLong(PREF_STORAGE_BUDGET_BYTES, defaultBudgetBytes);
+    }
+
+    /**
+     * Saves how many bytes the database may take, from the next time storage is maintained on.
+     *
+     * @param context     Used to access SharedPreferences
+     * @param budgetBytes The storage budget, in bytes
+     */
+    public static void saveStorageBudgetBytes(Context context, long budgetBytes) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        SharedPreferences.Editor editor = sp.edit();
+        editor.putLong(PREF_STORAGE_BUDGET_BYTES, budgetBytes);
+        editor.apply();
+    }
+}
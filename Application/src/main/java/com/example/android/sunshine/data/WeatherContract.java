@@ -56,6 +56,133 @@ public class WeatherContract {
      */
     public static final String PATH_WEATHER = "weather";
 
+    /*
+     * Weather can be cached for more than one location. Each location the user has asked for
+     * gets a row in the location table, and its weather is reached through paths such as
+     *
+     *     content://com.example.android.sunshine/weather/location/94043
+     *     content://com.example.android.sunshine/weather/location/94043/1472214172
+     *
+     * while content://com.example.android.sunshine/location/ lists the locations themselves.
+     */
+    public static final String PATH_LOCATION = "location";
+
+    /*
+     * While history is kept (see SunshinePreferences#isHistoryEnabled), every forecast that is
+     * replaced, and every day that drops out of the forecast, is archived. A location's archive
+     * is reached through paths such as
+     *
+     *     content://com.example.android.sunshine/history/location/94043
+     *     content://com.example.android.sunshine/history/location/94043/1472214172
+     *
+     * the second of which holds every forecast that was made for that one date.
+     */
+    public static final String PATH_HISTORY = "history";
+
+    /*
+     * Methods that can be invoked on Sunshine's ContentProvider with ContentResolver#call, along
+     * with the keys of the Bundles they take and return.
+     *
+     * METHOD_REPLACE_FORECAST replaces the stored forecast for the location setting passed as the
+     * arg with the ContentValues[] stored under EXTRA_WEATHER_VALUES, in a single transaction with
+     * a single change notification. Readers see either the old forecast or the new one, never an
+     * empty table in between, and the forecasts of other locations are left alone. The returned
+     * Bundle holds how many rows were written, skipped because they didn't change, and deleted.
+     */
+    public static final String METHOD_REPLACE_FORECAST = "replace_forecast";
+    public static final String EXTRA_WEATHER_VALUES = "weather_values";
+    public static final String RESULT_ROWS_WRITTEN = "rows_written";
+    public static final String RESULT_ROWS_SKIPPED = "rows_skipped";
+    public static final String RESULT_ROWS_DELETED = "rows_deleted";
+
+    /*
+     * METHOD_PROBE_FRESHNESS tells how much forecast is stored for the location setting passed as
+     * the arg, without reading any of it: the returned Bundle holds the number of days stored from
+     * today onwards under RESULT_ROW_COUNT, and the last of those days (normalized, in
+     * milliseconds) under RESULT_NEWEST_DATE, or -1 if there are none. It also holds when the
+     * forecast was last fetched under RESULT_FETCHED_AT, or -1 if that isn't known. All of these
+     * come from a single aggregate query, which is far cheaper than querying the forecast just to
+     * count it.
+     *
+     * METHOD_MARK_FETCHED records that the forecast of the location setting passed as the arg was
+     * confirmed up to date just now, without being written, as when the server tells us it
+     * hasn't changed. Writing a forecast records this by itself.
+     */
+    public static final String METHOD_PROBE_FRESHNESS = "probe_freshness";
+    public static final String METHOD_MARK_FETCHED = "mark_fetched";
+    public static final String RESULT_ROW_COUNT = "row_count";
+    public static final String RESULT_NEWEST_DATE = "newest_date";
+    public static final String RESULT_FETCHED_AT = "fetched_at";
+
+    /*
+     * METHOD_DUMP_METRICS returns, under RESULT_METRICS, the metrics Sunshine has kept about its
+     * syncs since the process started, as text, one metric per line. The same text is printed by
+     * "adb shell dumpsys activity provider" for WeatherProvider.
+     */
+    public static final String METHOD_DUMP_METRICS = "dump_metrics";
+    public static final String RESULT_METRICS = "metrics";
+
+    /*
+     * METHOD_COMPACT_HISTORY compacts the forecast history (see HistoryCompactor): it thins out
+     * old forecasts, drops those past the age limit, and then the oldest until the history is
+     * within its size budget. The returned Bundle holds how many rows were deleted under
+     * RESULT_ROWS_DELETED, and how many are left under RESULT_ROW_COUNT.
+     */
+    public static final String METHOD_COMPACT_HISTORY = "compact_history";
+
+    /*
+     * METHOD_MAINTAIN_STORAGE keeps the database within its storage budget (see StorageManager):
+     * it evicts the locations fetched longest ago while the database is over budget, never the
+     * preferred location, and then gives free pages back to the filesystem. The returned Bundle
+     * holds how many bytes the database file shrank by under RESULT_BYTES_RECLAIMED, how many
+     * locations were evicted under RESULT_LOCATIONS_EVICTED, and the size of the database
+     * afterwards under RESULT_DATABASE_BYTES.
+     */
+    public static final String METHOD_MAINTAIN_STORAGE = "maintain_storage";
+    public static final String RESULT_BYTES_RECLAIMED = "bytes_reclaimed";
+    public static final String RESULT_LOCATIONS_EVICTED = "locations_evicted";
+    public static final String RESULT_DATABASE_BYTES = "database_bytes";
+
+    /* Inner class that defines the table contents of the location table */
+    public static final class LocationEntry implements BaseColumns {
+
+        /* The base CONTENT_URI used to query the location table from the content provider */
+        public static final Uri CONTENT_URI = BASE_CONTENT_URI.buildUpon()
+                .appendPath(PATH_LOCATION)
+                .build();
+
+        /* Used internally as the name of our location table. */
+        public static final String TABLE_NAME = "location";
+
+        /*
+         * The location setting is the String the user entered in SettingsFragment, exactly as it
+         * is sent to the weather server. It is unique, so each location is stored once.
+         */
+        public static final String COLUMN_LOCATION_SETTING = "location_setting";
+
+        /*
+         * When the location's forecast was last fetched from the server, in milliseconds since
+         * the epoch, whether or not it had changed. Null until the first sync after it was added.
+         * The difference between this and now is the age of the data the user is looking at.
+         */
+        public static final String COLUMN_FETCHED_AT = "fetched_at";
+
+        /*
+         * The location's whole forecast encoded as a single blob by ForecastBlobCodec, so it can
+         * be read in one row fetch. Only kept up to date while compact storage is turned on in
+         * SunshinePreferences; null otherwise. The weather table always holds the forecast too,
+         * and is what the app reads; the blob is not read anywhere outside of benchmarks yet.
+         */
+        public static final String COLUMN_FORECAST_BLOB = "forecast_blob";
+
+        /*
+         * Coordinates of the location as reported by the weather server, so that the location
+         * can be shown on a map. They are null until the first forecast for the location arrives.
+         */
+        public static final String COLUMN_COORD_LAT = "coord_lat";
+        public static final String COLUMN_COORD_LONG = "coord_long";
+    }
+
     /* Inner class that defines the table contents of the weather table */
     public static final class WeatherEntry implements BaseColumns {
 
@@ -85,6 +212,12 @@ public class WeatherContract {
          */
         public static final String COLUMN_DATE = "date";
 
+        /*
+         * The _ID of the row in the location table this weather is for. Each location can have
+         * one weather entry per date.
+         */
+        public static final String COLUMN_LOCATION_ID = "location_id";
+
         /* Weather ID as returned by API, used to identify the icon to be used */
         public static final String COLUMN_WEATHER_ID = "weather_id";
 
@@ -111,11 +244,12 @@ public class WeatherContract {
 
         /**
          * Builds a URI that adds the weather date to the end of the forecast content URI path.
-         * This is used to query details about a single weather entry by date. This is what we
-         * use for the detail view query. We assume a normalized date is passed to this method.
+         * This matches the weather for that date in every stored location; to query the weather
+         * of a single location, use {@link #buildWeatherUriWithLocationAndDate(String, long)}.
+         * We assume a normalized date is passed to this method.
          *
          * @param date Normalized date in milliseconds
-         * @return Uri to query details about a single weather entry
+         * @return Uri to query the weather entries for a date
          */
         public static Uri buildWeatherUriWithDate(long date) {
             return CONTENT_URI.buildUpon()
@@ -123,6 +257,43 @@ public class WeatherContract {
                     .build();
         }
 
+        /**
+         * Builds a URI for the forecast of a single location. This is what we use for the main
+         * forecast list, and it is also where the forecast for a location is written to.
+         *
+         * @param locationSetting The location, as stored in SunshinePreferences
+         * @return Uri to query the forecast for the location
+         */
+        public static Uri buildWeatherUriWithLocation(String locationSetting) {
+            return CONTENT_URI.buildUpon()
+                    .appendPath(PATH_LOCATION)
+                    .appendPath(locationSetting)
+                    .build();
+        }
+
+        /**
+         * Builds a URI for the weather of a single location on a single date. This is what we
+         * use for the detail view query. We assume a normalized date is passed to this method.
+         *
+         * @param locationSetting The location, as stored in SunshinePreferences
+         * @param date            Normalized date in milliseconds
+         * @return Uri to query details about a single weather entry
+         */
+        public static Uri buildWeatherUriWithLocationAndDate(String locationSetting, long date) {
+            return buildWeatherUriWithLocation(locationSetting).buildUpon()
+                    .appendPath(Long.toString(date))
+                    .build();
+        }
+
+        /**
+         * @param uri A URI built by buildWeatherUriWithLocation or
+         *            buildWeatherUriWithLocationAndDate
+         * @return The location setting in the URI
+         */
+        public static String getLocationSettingFromUri(Uri uri) {
+            return uri.getPathSegments().get(2);
+        }
+
         /**
          * Returns just the selection part of the weather query from a normalized today value.
          * This is used to get a weather forecast from today's date. To make this easy to use
@@ -135,4 +306,69 @@ public class WeatherContract {
             return WeatherContract.WeatherEntry.COLUMN_DATE + " >= " + normalizedUtcNow;
         }
     }
-}
\ No newline at end of file
+
+    /*
+     * Inner class that defines the table contents of the history table, which archives past
+     * forecasts. Each row is one day of weather as it was forecast at one time; the weather
+     * columns are named as they are in the weather table.
+     */
+    public static final class HistoryEntry implements BaseColumns {
+
+        /* The base CONTENT_URI used to query the history table from the content provider */
+        public static final Uri CONTENT_URI = BASE_CONTENT_URI.buildUpon()
+                .appendPath(PATH_HISTORY)
+                .build();
+
+        /* Used internally as the name of our history table. */
+        public static final String TABLE_NAME = "weather_history";
+
+        /* The _ID of the row in the location table the forecast was for */
+        public static final String COLUMN_LOCATION_ID = WeatherEntry.COLUMN_LOCATION_ID;
+
+        /* The normalized date the forecast was for */
+        public static final String COLUMN_DATE = WeatherEntry.COLUMN_DATE;
+
+        /*
+         * When the forecast was fetched from the server, in milliseconds since the epoch. The
+         * forecast for a date issued the day before is usually better than the one issued a week
+         * before; comparing them is what the history is for.
+         */
+        public static final String COLUMN_ISSUED_AT = "issued_at";
+
+        public static final String COLUMN_WEATHER_ID = WeatherEntry.COLUMN_WEATHER_ID;
+        public static final String COLUMN_MIN_TEMP = WeatherEntry.COLUMN_MIN_TEMP;
+        public static final String COLUMN_MAX_TEMP = WeatherEntry.COLUMN_MAX_TEMP;
+        public static final String COLUMN_HUMIDITY = WeatherEntry.COLUMN_HUMIDITY;
+        public static final String COLUMN_PRESSURE = WeatherEntry.COLUMN_PRESSURE;
+        public static final String COLUMN_WIND_SPEED = WeatherEntry.COLUMN_WIND_SPEED;
+        public static final String COLUMN_DEGREES = WeatherEntry.COLUMN_DEGREES;
+
+        /**
+         * Builds a URI for every archived forecast of a single location, ordered by the date
+         * they were for and then by when they were issued.
+         *
+         * @param locationSetting The location, as stored in SunshinePreferences
+         * @return Uri to query the location's forecast history
+         */
+        public static Uri buildHistoryUriWithLocation(String locationSetting) {
+            return CONTENT_URI.buildUpon()
+                    .appendPath(PATH_LOCATION)
+                    .appendPath(locationSetting)
+                    .build();
+        }
+
+        /**
+         * Builds a URI for every archived forecast a location had for a single date, oldest
+         * first. We assume a normalized date is passed to this method.
+         *
+         * @param locationSetting The location, as stored in SunshinePreferences
+         * @param date            Normalized date in milliseconds
+         * @return Uri to query the forecasts made for the date
+         */
+        public static Uri buildHistoryUriWithLocationAndDate(String locationSetting, long date) {
+            return buildHistoryUriWithLocation(locationSetting).buildUpon()
+                    .appendPath(Long.toString(date))
+                    .build();
+        }
+    }
+}
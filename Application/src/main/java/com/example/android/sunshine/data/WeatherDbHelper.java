@@ -15,11 +15,17 @@
  */
 package com.example.android.sunshine.data;
 
+import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.SystemClock;
 
+import com.example.android.sunshine.data.WeatherContract.HistoryEntry;
+import com.example.android.sunshine.data.WeatherContract.LocationEntry;
 import com.example.android.sunshine.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.utilities.SyncMetrics;
 
 /**
  * Manages a local database for weather data.
@@ -36,17 +42,116 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
      * If you change the database schema, you must increment the database version or the onUpgrade
      * method will not be called.
      *
-     * The reason DATABASE_VERSION starts at 3 is because Sunshine has been used in conjunction
+     * The reason DATABASE_VERSION started at 3 is because Sunshine has been used in conjunction
      * with the Android course for a while now. Believe it or not, older versions of Sunshine
      * still exist out in the wild. If we started this DATABASE_VERSION off at 1, upgrading older
      * versions of Sunshine could cause everything to break. Although that is certainly a rare
      * use-case, we wanted to watch out for it and warn you what could happen if you mistakenly
      * version your databases.
+     *
+     * Version 4 added the location table, so that weather can be cached for more than one
+     * location at a time.
+     *
+     * Version 5 added the time each location's forecast was last fetched.
+     *
+     * Version 6 added the compact forecast blob to the location table.
+     *
+     * Version 7 added indexes that answer the forecast list and detail queries by themselves.
+     *
+     * Version 8 added the history table, which archives past forecasts.
      */
-    private static final int DATABASE_VERSION = 3;
+    private static final int DATABASE_VERSION = 8;
+
+    /* The last version that stored a single forecast, with no location table */
+    private static final int VERSION_SINGLE_LOCATION = 3;
+
+    /* The last version that didn't record when each forecast was fetched */
+    private static final int VERSION_NO_FETCH_TIME = 4;
+
+    /* The last version that had no compact forecast blob */
+    private static final int VERSION_NO_FORECAST_BLOB = 5;
+
+    /* The last version without the covering indexes on the weather table */
+    private static final int VERSION_NO_COVERING_INDEXES = 6;
+
+    /* The last version without the history table */
+    private static final int VERSION_NO_HISTORY = 7;
+
+    /*
+     * A covering index holds every column a query reads, so SQLite can answer the query from the
+     * index alone, without looking each row up in the table. This one leads with the location
+     * and date, like the UNIQUE constraint's index, so it finds a location's forecast in date
+     * order, and then carries every other column the forecast list, the detail screen, the
+     * notification and ForecastWriter read. One index covers all of them, as a second, narrower
+     * one for the list alone would cost every write another B-tree to update.
+     */
+    static final String INDEX_WEATHER_FORECAST = "weather_forecast";
+
+    /* Lets the weather of a single date be found without reading the whole table */
+    static final String INDEX_WEATHER_DATE = "weather_date";
+
+    /* Lets HistoryCompactor find the oldest history, by age or to fit its budget */
+    static final String INDEX_HISTORY_DATE = "weather_history_date";
+
+    /*
+     * 4096 bytes matches the block size of the flash storage and filesystems Android runs on, so
+     * writing a page never means rewriting two blocks. A page holds a few dozen days of weather.
+     * SQLite only lets the page size be chosen before the database file is first written.
+     */
+    static final int PAGE_SIZE_BYTES = 4096;
+
+    /*
+     * How many pages the write-ahead log may grow to before the commit that crossed it copies
+     * the log back into the database. Android's own default is only 100 pages, which would
+     * checkpoint over and over in the middle of syncing several locations at once; instead we
+     * allow a sync to finish, and checkpoint once after it (see checkpoint).
+     */
+    private static final int WAL_AUTOCHECKPOINT_PAGES = 1000;
+
+    private static final String SELECTION_LOCATION_SETTING =
+            LocationEntry.COLUMN_LOCATION_SETTING + " = ?";
+
+    private final Context mContext;
 
     public WeatherDbHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        mContext = context.getApplicationContext();
+    }
+
+    /**
+     * Turns on foreign key constraints, which SQLite leaves off by default, so that deleting a
+     * location also deletes its weather.
+     * <p>
+     * Also turns on write-ahead logging. With the default rollback journal, a sync writing the
+     * forecast locks the whole database, so the forecast list and detail screen can't load
+     * until it commits. With a write-ahead log, a write goes to the end of the log while
+     * readers carry on reading the last committed forecast, and Android keeps a pool of
+     * connections so that those readers don't wait for each other either.
+     * <p>
+     * With a write-ahead log, synchronous = NORMAL only syncs the log to disk at checkpoints
+     * rather than on every commit, and still can't corrupt the database. Losing the last sync to
+     * a power cut is no loss for a cache of online data, as the next sync fetches it again.
+     * <p>
+     * Also asks for incremental vacuum, so that the pages freed by deleting weather can be
+     * handed back to the filesystem without rebuilding the whole file (see StorageManager). A new
+     * database is created with it, as this runs before onCreate; a database created before then
+     * is only switched over by the next VACUUM, which StorageManager runs.
+     *
+     * @param db The database.
+     */
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        db.setForeignKeyConstraintsEnabled(true);
+
+        /*
+         * The page size and vacuum mode have to be set before write-ahead logging first writes
+         * the file
+         */
+        db.setPageSize(PAGE_SIZE_BYTES);
+        db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+        db.enableWriteAheadLogging();
+        db.execSQL("PRAGMA synchronous = NORMAL");
+        runPragma(db, "PRAGMA wal_autocheckpoint = " + WAL_AUTOCHECKPOINT_PAGES);
     }
 
     /**
@@ -57,65 +162,296 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
      */
     @Override
     public void onCreate(SQLiteDatabase sqLiteDatabase) {
+        sqLiteDatabase.execSQL(buildCreateLocationTableSql());
+        sqLiteDatabase.execSQL(buildCreateWeatherTableSql(WeatherEntry.TABLE_NAME));
+        createWeatherIndexes(sqLiteDatabase);
+        createHistoryTable(sqLiteDatabase);
+    }
 
-        /*
-         * This String will contain a simple SQL statement that will create a table that will
-         * cache our weather data.
-         */
-        final String SQL_CREATE_WEATHER_TABLE =
+    /**
+     * Upgrades from version 3, which could only hold the forecast for a single location, by
+     * moving the stored forecast into the new schema rather than throwing it away. The forecast
+     * in a version 3 database is for whatever location the user had set when it last synced,
+     * so that is the location it is filed under.
+     * <p>
+     * Upgrades from version 4 by adding the fetch time to the location table. Forecasts stored
+     * before then have no fetch time, so they are treated as stale and refreshed soon.
+     * <p>
+     * Upgrades from versions 4 and 5 by adding the compact forecast blob to the location table.
+     * It is filled in by the next sync, if compact storage is on.
+     * <p>
+     * Upgrades from versions 4 to 6 by building the covering indexes on the weather table.
+     * <p>
+     * Upgrades from versions 4 to 7 by creating the history table, empty.
+     * <p>
+     * Each of these steps only runs if the upgrade goes past the version that introduced it, so
+     * that every step can be tested on its own.
+     * <p>
+     * Any other upgrade is from a version too old to be worth migrating. This database is only a
+     * cache for online data, so for those we simply discard the data and call through to
+     * onCreate to recreate the tables. Note that this only fires if you change the version
+     * number for your database (in our case, DATABASE_VERSION). It does NOT depend on the
+     * version number for your application found in your app/build.gradle file.
+     *
+     * @param sqLiteDatabase Database that is being upgraded
+     * @param oldVersion     The old database version
+     * @param newVersion     The new database version
+     */
+    @Override
+    public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
+        if (oldVersion == VERSION_SINGLE_LOCATION) {
+            /* The location table is created as it is now, with every later column */
+            upgradeFromSingleLocation(sqLiteDatabase);
+            return;
+        }
+
+        if (oldVersion >= VERSION_NO_FETCH_TIME && oldVersion <= VERSION_NO_HISTORY) {
+            if (oldVersion <= VERSION_NO_FETCH_TIME) {
+                sqLiteDatabase.execSQL("ALTER TABLE " + LocationEntry.TABLE_NAME
+                        + " ADD COLUMN " + LocationEntry.COLUMN_FETCHED_AT + " INTEGER");
+            }
+            if (oldVersion <= VERSION_NO_FORECAST_BLOB && newVersion > VERSION_NO_FORECAST_BLOB) {
+                sqLiteDatabase.execSQL("ALTER TABLE " + LocationEntry.TABLE_NAME
+                        + " ADD COLUMN " + LocationEntry.COLUMN_FORECAST_BLOB + " BLOB");
+            }
+            if (oldVersion <= VERSION_NO_COVERING_INDEXES
+                    && newVersion > VERSION_NO_COVERING_INDEXES) {
+                createWeatherIndexes(sqLiteDatabase);
+            }
+            if (newVersion > VERSION_NO_HISTORY) {
+                createHistoryTable(sqLiteDatabase);
+            }
+            return;
+        }
+
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + HistoryEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + WeatherEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + LocationEntry.TABLE_NAME);
+        onCreate(sqLiteDatabase);
+    }
+
+    /**
+     * Copies the write-ahead log back into the database, as far as it can without waiting for
+     * anyone still reading an older forecast, so that the log doesn't keep growing and later
+     * reads don't have to look through it. Readers are never blocked by this.
+     *
+     * @param db A writable database
+     */
+    static void checkpoint(SQLiteDatabase db) {
+        long checkpointStart = SystemClock.elapsedRealtimeNanos();
+        runPragma(db, "PRAGMA wal_checkpoint(PASSIVE)");
+        SyncMetrics.CHECKPOINT.recordSince(checkpointStart);
+    }
+
+    /**
+     * Returns the _ID of a location, adding it to the location table if it isn't there yet.
+     * Call this inside the transaction that writes the location's weather, so that a location
+     * is never left behind without the weather it was added for.
+     *
+     * @param db              A writable database
+     * @param locationSetting The location, as stored in SunshinePreferences
+     * @return The _ID of the location's row in the location table
+     */
+    static long getOrInsertLocationId(SQLiteDatabase db, String locationSetting) {
+        long locationId = getLocationId(db, locationSetting);
+        if (locationId != -1) {
+            return locationId;
+        }
+
+        ContentValues locationValues = new ContentValues();
+        locationValues.put(LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+        return db.insertOrThrow(LocationEntry.TABLE_NAME, null, locationValues);
+    }
+
+    /**
+     * @param db              The database
+     * @param locationSetting The location, as stored in SunshinePreferences
+     * @return The _ID of the location's row in the location table, or -1 if it has none
+     */
+    static long getLocationId(SQLiteDatabase db, String locationSetting) {
+        Cursor cursor = db.query(LocationEntry.TABLE_NAME,
+                new String[]{LocationEntry._ID},
+                SELECTION_LOCATION_SETTING,
+                new String[]{locationSetting},
+                null,
+                null,
+                null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /*
+     * SQLite can't add a table constraint to an existing table, so the weather table is rebuilt:
+     * the new table is created alongside the old one, the rows are copied across with the
+     * location they belong to, and the new table then takes the old one's place. onUpgrade runs
+     * inside a transaction, so if anything fails the version 3 database is left as it was.
+     */
+    private void upgradeFromSingleLocation(SQLiteDatabase db) {
+        db.execSQL(buildCreateLocationTableSql());
+
+        long locationId = getOrInsertLocationId(db,
+                SunshinePreferences.getPreferredWeatherLocation(mContext));
+        if (SunshinePreferences.isLocationLatLonAvailable(mContext)) {
+            double[] coordinates = SunshinePreferences.getLocationCoordinates(mContext);
+            ContentValues coordinateValues = new ContentValues();
+            coordinateValues.put(LocationEntry.COLUMN_COORD_LAT, coordinates[0]);
+            coordinateValues.put(LocationEntry.COLUMN_COORD_LONG, coordinates[1]);
+            db.update(LocationEntry.TABLE_NAME, coordinateValues,
+                    LocationEntry._ID + " = " + locationId, null);
+        }
+
+        String upgradedTable = WeatherEntry.TABLE_NAME + "_upgraded";
+        db.execSQL(buildCreateWeatherTableSql(upgradedTable));
+
+        String weatherColumns = WeatherEntry.COLUMN_DATE + ", "
+                + WeatherEntry.COLUMN_WEATHER_ID + ", "
+                + WeatherEntry.COLUMN_MIN_TEMP + ", "
+                + WeatherEntry.COLUMN_MAX_TEMP + ", "
+                + WeatherEntry.COLUMN_HUMIDITY + ", "
+                + WeatherEntry.COLUMN_PRESSURE + ", "
+                + WeatherEntry.COLUMN_WIND_SPEED + ", "
+                + WeatherEntry.COLUMN_DEGREES;
+        db.execSQL("INSERT INTO " + upgradedTable
+                + " (" + WeatherEntry.COLUMN_LOCATION_ID + ", " + weatherColumns + ")"
+                + " SELECT " + locationId + ", " + weatherColumns
+                + " FROM " + WeatherEntry.TABLE_NAME);
+
+        db.execSQL("DROP TABLE " + WeatherEntry.TABLE_NAME);
+        db.execSQL("ALTER TABLE " + upgradedTable + " RENAME TO " + WeatherEntry.TABLE_NAME);
+        createWeatherIndexes(db);
+        createHistoryTable(db);
+    }
+
+    /**
+     * Builds the indexes on the weather table, other than the one SQLite builds for its UNIQUE
+     * constraint. Building them on a table that already holds weather indexes that weather too.
+     *
+     * @param db A writable database with a weather table
+     */
+    static void createWeatherIndexes(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_WEATHER_FORECAST
+                + " ON " + WeatherEntry.TABLE_NAME + " ("
+                + WeatherEntry.COLUMN_LOCATION_ID + ", "
+                + WeatherEntry.COLUMN_DATE + ", "
+                + WeatherEntry.COLUMN_WEATHER_ID + ", "
+                + WeatherEntry.COLUMN_MIN_TEMP + ", "
+                + WeatherEntry.COLUMN_MAX_TEMP + ", "
+                + WeatherEntry.COLUMN_HUMIDITY + ", "
+                + WeatherEntry.COLUMN_PRESSURE + ", "
+                + WeatherEntry.COLUMN_WIND_SPEED + ", "
+                + WeatherEntry.COLUMN_DEGREES + ")");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_WEATHER_DATE
+                + " ON " + WeatherEntry.TABLE_NAME + " (" + WeatherEntry.COLUMN_DATE + ")");
+    }
+
+    /*
+     * The history table looks like the weather table, with the time each forecast was issued
+     * added. A location can have several forecasts for the same date, but only one issued at
+     * any one time; the index SQLite builds for that constraint also finds a location's history
+     * in date order.
+     */
+    private static void createHistoryTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + HistoryEntry.TABLE_NAME + " (" +
+
+                HistoryEntry._ID                + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+
+                HistoryEntry.COLUMN_LOCATION_ID + " INTEGER NOT NULL REFERENCES "        +
+                LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + ") ON DELETE CASCADE, " +
+
+                HistoryEntry.COLUMN_DATE        + " INTEGER NOT NULL, "                 +
+                HistoryEntry.COLUMN_ISSUED_AT   + " INTEGER NOT NULL, "                 +
+
+                HistoryEntry.COLUMN_WEATHER_ID  + " INTEGER NOT NULL, "                 +
+                HistoryEntry.COLUMN_MIN_TEMP    + " REAL NOT NULL, "                    +
+                HistoryEntry.COLUMN_MAX_TEMP    + " REAL NOT NULL, "                    +
+                HistoryEntry.COLUMN_HUMIDITY    + " REAL NOT NULL, "                    +
+                HistoryEntry.COLUMN_PRESSURE    + " REAL NOT NULL, "                    +
+                HistoryEntry.COLUMN_WIND_SPEED  + " REAL NOT NULL, "                    +
+                HistoryEntry.COLUMN_DEGREES     + " REAL NOT NULL, "                    +
+
+                " UNIQUE (" + HistoryEntry.COLUMN_LOCATION_ID + ", " + HistoryEntry.COLUMN_DATE
+                + ", " + HistoryEntry.COLUMN_ISSUED_AT + ") ON CONFLICT REPLACE);");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_HISTORY_DATE
+                + " ON " + HistoryEntry.TABLE_NAME + " (" + HistoryEntry.COLUMN_DATE + ")");
+    }
+
+    /*
+     * Runs a PRAGMA that may return a row, which execSQL refuses to run. The query has to be
+     * stepped for the PRAGMA to take effect.
+     */
+    static void runPragma(SQLiteDatabase db, String pragma) {
+        Cursor cursor = db.rawQuery(pragma, null);
+        try {
+            cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static String buildCreateLocationTableSql() {
+        return "CREATE TABLE " + LocationEntry.TABLE_NAME + " (" +
+
+                LocationEntry._ID                     + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
 
-                "CREATE TABLE " + WeatherEntry.TABLE_NAME + " (" +
+                /* Each location is stored once, however often the user switches back to it */
+                LocationEntry.COLUMN_LOCATION_SETTING + " TEXT NOT NULL UNIQUE, "              +
+
+                LocationEntry.COLUMN_COORD_LAT        + " REAL, "                              +
+                LocationEntry.COLUMN_COORD_LONG       + " REAL, "                              +
+
+                LocationEntry.COLUMN_FETCHED_AT       + " INTEGER, "                           +
+
+                LocationEntry.COLUMN_FORECAST_BLOB    + " BLOB);";
+    }
+
+    /*
+     * This String will contain a simple SQL statement that will create a table that will cache
+     * our weather data. The table name is a parameter so that onUpgrade can build the new table
+     * next to the old one.
+     */
+    private static String buildCreateWeatherTableSql(String tableName) {
+        return "CREATE TABLE " + tableName + " (" +
 
                 /*
                  * WeatherEntry did not explicitly declare a column called "_ID". However,
                  * WeatherEntry implements the interface, "BaseColumns", which does have a field
                  * named "_ID". We use that here to designate our table's primary key.
                  */
-                WeatherEntry._ID               + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                WeatherEntry._ID                + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
 
-                WeatherEntry.COLUMN_DATE       + " INTEGER NOT NULL, "                 +
+                /*
+                 * Every weather entry belongs to a location. Deleting the location deletes its
+                 * weather along with it.
+                 */
+                WeatherEntry.COLUMN_LOCATION_ID + " INTEGER NOT NULL REFERENCES "        +
+                LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + ") ON DELETE CASCADE, " +
+
+                WeatherEntry.COLUMN_DATE        + " INTEGER NOT NULL, "                 +
 
-                WeatherEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL,"                  +
+                WeatherEntry.COLUMN_WEATHER_ID  + " INTEGER NOT NULL,"                  +
 
-                WeatherEntry.COLUMN_MIN_TEMP   + " REAL NOT NULL, "                    +
-                WeatherEntry.COLUMN_MAX_TEMP   + " REAL NOT NULL, "                    +
+                WeatherEntry.COLUMN_MIN_TEMP    + " REAL NOT NULL, "                    +
+                WeatherEntry.COLUMN_MAX_TEMP    + " REAL NOT NULL, "                    +
 
-                WeatherEntry.COLUMN_HUMIDITY   + " REAL NOT NULL, "                    +
-                WeatherEntry.COLUMN_PRESSURE   + " REAL NOT NULL, "                    +
+                WeatherEntry.COLUMN_HUMIDITY    + " REAL NOT NULL, "                    +
+                WeatherEntry.COLUMN_PRESSURE    + " REAL NOT NULL, "                    +
 
-                WeatherEntry.COLUMN_WIND_SPEED + " REAL NOT NULL, "                    +
-                WeatherEntry.COLUMN_DEGREES    + " REAL NOT NULL, "                    +
+                WeatherEntry.COLUMN_WIND_SPEED  + " REAL NOT NULL, "                    +
+                WeatherEntry.COLUMN_DEGREES     + " REAL NOT NULL, "                    +
 
                 /*
-                 * To ensure this table can only contain one weather entry per date, we declare
-                 * the date column to be unique. We also specify "ON CONFLICT REPLACE". This tells
-                 * SQLite that if we have a weather entry for a certain date and we attempt to
-                 * insert another weather entry with that date, we replace the old weather entry.
+                 * To ensure this table can only contain one weather entry per date for each
+                 * location, we declare the location and date together to be unique. We also
+                 * specify "ON CONFLICT REPLACE". This tells SQLite that if we have a weather
+                 * entry for a certain location and date and we attempt to insert another weather
+                 * entry for them, we replace the old weather entry. The index SQLite builds for
+                 * this constraint finds the entry to replace; reads go through the covering
+                 * index built by createWeatherIndexes.
                  */
-                " UNIQUE (" + WeatherEntry.COLUMN_DATE + ") ON CONFLICT REPLACE);";
-
-        /*
-         * After we've spelled out our SQLite table creation statement above, we actually execute
-         * that SQL with the execSQL method of our SQLite database object.
-         */
-        sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_TABLE);
-    }
-
-    /**
-     * This database is only a cache for online data, so its upgrade policy is simply to discard
-     * the data and call through to onCreate to recreate the table. Note that this only fires if
-     * you change the version number for your database (in our case, DATABASE_VERSION). It does NOT
-     * depend on the version number for your application found in your app/build.gradle file. If
-     * you want to update the schema without wiping data, commenting out the current body of this
-     * method should be your top priority before modifying this method.
-     *
-     * @param sqLiteDatabase Database that is being upgraded
-     * @param oldVersion     The old database version
-     * @param newVersion     The new database version
-     */
-    @Override
-    public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
-        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + WeatherEntry.TABLE_NAME);
-        onCreate(sqLiteDatabase);
+                " UNIQUE (" + WeatherEntry.COLUMN_LOCATION_ID + ", " + WeatherEntry.COLUMN_DATE
+                + ") ON CONFLICT REPLACE);";
     }
-}
\ No newline at end of file
+}
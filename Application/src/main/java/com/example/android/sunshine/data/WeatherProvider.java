@@ -17,14 +17,28 @@ package com.example.android.sunshine.data;
 
 import android.annotation.TargetApi;
 import android.content.ContentProvider;
+import android.content.ContentResolver;
 import android.content.ContentValues;
+import android.content.Context;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.os.Parcelable;
 import android.support.annotation.NonNull;
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
 
 import com.example.android.sunshine.utilities.SunshineDateUtils;
+import com.example.android.sunshine.utilities.SyncMetrics;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * This class serves as the ContentProvider for all of Sunshine's data. This class allows us to
@@ -38,6 +52,8 @@ import com.example.android.sunshine.utilities.SunshineDateUtils;
  */
 public class WeatherProvider extends ContentProvider {
 
+    private static final String TAG = WeatherProvider.class.getSimpleName();
+
     /*
      * These constant will be used to match URIs with the data they are looking for. We will take
      * advantage of the UriMatcher class to make that matching MUCH easier than doing something
@@ -45,6 +61,54 @@ public class WeatherProvider extends ContentProvider {
      */
     public static final int CODE_WEATHER = 100;
     public static final int CODE_WEATHER_WITH_DATE = 101;
+    public static final int CODE_WEATHER_WITH_LOCATION = 102;
+    public static final int CODE_WEATHER_WITH_LOCATION_AND_DATE = 103;
+    public static final int CODE_LOCATION = 300;
+    public static final int CODE_HISTORY = 400;
+    public static final int CODE_HISTORY_WITH_LOCATION = 401;
+    public static final int CODE_HISTORY_WITH_LOCATION_AND_DATE = 402;
+
+    /* Past forecasts are listed by date, and the forecasts for each date by when they were made */
+    private static final String HISTORY_SORT_ORDER =
+            WeatherContract.HistoryEntry.COLUMN_DATE + " ASC, "
+                    + WeatherContract.HistoryEntry.COLUMN_ISSUED_AT + " ASC";
+
+    /*
+     * The weather of a location is selected by the location's setting rather than its _ID, as
+     * the setting is what is in the URI. The subquery is answered from the index on the unique
+     * location setting, and the outer query from the covering index on (location_id, date, ...).
+     * The selections and the freshness probe are visible to TestQueryPlans, which checks that
+     * SQLite never has to scan the weather table to answer them.
+     */
+    @VisibleForTesting
+    static final String SELECTION_LOCATION_SETTING =
+            WeatherContract.WeatherEntry.COLUMN_LOCATION_ID + " = (SELECT "
+                    + WeatherContract.LocationEntry._ID + " FROM "
+                    + WeatherContract.LocationEntry.TABLE_NAME + " WHERE "
+                    + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?)";
+
+    @VisibleForTesting
+    static final String SELECTION_LOCATION_SETTING_AND_DATE =
+            SELECTION_LOCATION_SETTING + " AND "
+                    + WeatherContract.WeatherEntry.COLUMN_DATE + " = ?";
+
+    /*
+     * Answers METHOD_PROBE_FRESHNESS in one query: the location's fetch time, and how many days
+     * of its weather are stored from today (the first argument) onwards, and the last of them.
+     * The LEFT JOIN keeps the location's row even when it has no weather left.
+     */
+    @VisibleForTesting
+    static final String SQL_PROBE_FRESHNESS = "SELECT l."
+            + WeatherContract.LocationEntry.COLUMN_FETCHED_AT + ", COUNT(w."
+            + WeatherContract.WeatherEntry._ID + "), MAX(w."
+            + WeatherContract.WeatherEntry.COLUMN_DATE + ") FROM "
+            + WeatherContract.LocationEntry.TABLE_NAME + " l LEFT JOIN "
+            + WeatherContract.WeatherEntry.TABLE_NAME + " w ON w."
+            + WeatherContract.WeatherEntry.COLUMN_LOCATION_ID + " = l."
+            + WeatherContract.LocationEntry._ID + " AND w."
+            + WeatherContract.WeatherEntry.COLUMN_DATE + " >= ? WHERE l."
+            + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? GROUP BY l."
+            + WeatherContract.LocationEntry._ID;
 
     /*
      * The URI Matcher used by this content provider. The leading "s" in this variable name
@@ -96,6 +160,33 @@ public class WeatherProvider extends ContentProvider {
          */
         matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/#", CODE_WEATHER_WITH_DATE);
 
+        /*
+         * These URIs look like content://com.example.android.sunshine/weather/location/94043 and
+         * content://com.example.android.sunshine/weather/location/94043/1472214172. The "*"
+         * matches any text, which is what a location setting is.
+         */
+        matcher.addURI(authority,
+                WeatherContract.PATH_WEATHER + "/" + WeatherContract.PATH_LOCATION + "/*",
+                CODE_WEATHER_WITH_LOCATION);
+        matcher.addURI(authority,
+                WeatherContract.PATH_WEATHER + "/" + WeatherContract.PATH_LOCATION + "/*/#",
+                CODE_WEATHER_WITH_LOCATION_AND_DATE);
+
+        /* This URI is content://com.example.android.sunshine/location/ */
+        matcher.addURI(authority, WeatherContract.PATH_LOCATION, CODE_LOCATION);
+
+        /*
+         * The history URIs mirror the weather ones: content://com.example.android.sunshine/history/
+         * and the same URI followed by location/94043 and location/94043/1472214172.
+         */
+        matcher.addURI(authority, WeatherContract.PATH_HISTORY, CODE_HISTORY);
+        matcher.addURI(authority,
+                WeatherContract.PATH_HISTORY + "/" + WeatherContract.PATH_LOCATION + "/*",
+                CODE_HISTORY_WITH_LOCATION);
+        matcher.addURI(authority,
+                WeatherContract.PATH_HISTORY + "/" + WeatherContract.PATH_LOCATION + "/*/#",
+                CODE_HISTORY_WITH_LOCATION_AND_DATE);
+
         return matcher;
     }
 
@@ -131,6 +222,10 @@ public class WeatherProvider extends ContentProvider {
      * for inserting a single row of data into our ContentProvider, and so we are only going to
      * implement bulkInsert. In a normal ContentProvider's implementation, you will probably want
      * to provide proper functionality for the insert method as well.
+     * <p>
+     * Inserting at a location's weather URI files every row under that location, adding the
+     * location if it is new. Inserting at the plain weather URI requires each row to carry its
+     * own {@link WeatherContract.WeatherEntry#COLUMN_LOCATION_ID}.
      *
      * @param uri    The content:// URI of the insertion request.
      * @param values An array of sets of column_name/value pairs to add to the database.
@@ -142,26 +237,31 @@ public class WeatherProvider extends ContentProvider {
     public int bulkInsert(@NonNull Uri uri, @NonNull ContentValues[] values) {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
 
-        switch (sUriMatcher.match(uri)) {
+        int match = sUriMatcher.match(uri);
+        switch (match) {
 
             case CODE_WEATHER:
+            case CODE_WEATHER_WITH_LOCATION:
                 db.beginTransaction();
                 int rowsInserted = 0;
+                /* One compiled INSERT is reused for every row, rather than compiling one per row */
+                WeatherStatements statements = new WeatherStatements(db);
                 try {
+                    long locationId = match == CODE_WEATHER_WITH_LOCATION
+                            ? WeatherDbHelper.getOrInsertLocationId(db,
+                                    WeatherContract.WeatherEntry.getLocationSettingFromUri(uri))
+                            : -1;
                     for (ContentValues value : values) {
-                        long weatherDate =
-                                value.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
-                        if (!SunshineDateUtils.isDateNormalized(weatherDate)) {
-                            throw new IllegalArgumentException("Date must be normalized to insert");
-                        }
-
-                        long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, value);
+                        long _id = locationId == -1
+                                ? statements.insert(value)
+                                : statements.insert(locationId, value);
                         if (_id != -1) {
                             rowsInserted++;
                         }
                     }
                     db.setTransactionSuccessful();
                 } finally {
+                    statements.close();
                     db.endTransaction();
                 }
 
@@ -176,6 +276,335 @@ public class WeatherProvider extends ContentProvider {
         }
     }
 
+    /**
+     * Returns a {@link ForecastWriter} that replaces the stored forecast of a location with one
+     * that is handed over a few days at a time, for example while it is still being parsed from
+     * the network. Only callers running in Sunshine's own process can reach this method, through
+     * {@link android.content.ContentProviderClient#getLocalContentProvider()}.
+     *
+     * @param locationSetting The location the forecast is for, as stored in SunshinePreferences
+     * @return A new ForecastWriter. The caller must close it.
+     */
+    public ForecastWriter openForecastWriter(String locationSetting) {
+        return newForecastWriter(getContext().getContentResolver(), locationSetting);
+    }
+
+    /*
+     * Every forecast written stores the compact blob too, and archives the days it replaces, or
+     * not, as the user has chosen
+     */
+    private ForecastWriter newForecastWriter(ContentResolver contentResolver,
+                                             String locationSetting) {
+        ForecastWriter writer = new ForecastWriter(mOpenHelper, contentResolver, locationSetting);
+        writer.setStoreCompactForecast(
+                SunshinePreferences.isCompactForecastEnabled(getContext()));
+        writer.setKeepHistory(SunshinePreferences.isHistoryEnabled(getContext()));
+        return writer;
+    }
+
+    /**
+     * Replaces the stored forecasts of several locations in a single transaction, so that
+     * syncing many locations costs one commit (and one sync of the journal to disk) rather than
+     * one per location. Each location is written the way a {@link ForecastWriter} writes it, so
+     * unchanged days are skipped. Observers of a location's weather are notified once the whole
+     * batch is committed, and only if that location's weather changed. The write-ahead log the
+     * batch was written to is then checkpointed, without waiting on readers.
+     * <p>
+     * If writing any one forecast fails, SQLite can't keep the others from the same transaction,
+     * so each forecast is then written again in a transaction of its own. That way a single bad
+     * forecast only costs its own location the update. Check
+     * {@link LocationForecast#isWritten()} to see which forecasts were stored.
+     * <p>
+     * Only callers running in Sunshine's own process can reach this method, through
+     * {@link android.content.ContentProviderClient#getLocalContentProvider()}.
+     *
+     * @param forecasts The forecasts to store, at most one per location
+     * @return The number of forecasts that were stored
+     */
+    public int writeForecasts(List<LocationForecast> forecasts) {
+        return writeForecasts(forecasts, null);
+    }
+
+    /**
+     * Like {@link #writeForecasts(List)}, but stops before the next forecast once the signal has
+     * been cancelled. The transaction is then rolled back, so none of the forecasts are stored.
+     *
+     * @param forecasts          The forecasts to store, at most one per location
+     * @param cancellationSignal Checked before each forecast is written, or null
+     * @return The number of forecasts that were stored
+     * @throws OperationCanceledException If the signal was cancelled
+     */
+    public int writeForecasts(List<LocationForecast> forecasts,
+                              CancellationSignal cancellationSignal) {
+        try {
+            writeForecastsInOneTransaction(forecasts, cancellationSignal);
+        } catch (OperationCanceledException e) {
+            /* Being cancelled is no reason to write the forecasts one at a time instead */
+            throw e;
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Writing the forecasts together failed, writing them one at a time", e);
+            for (LocationForecast forecast : forecasts) {
+                try {
+                    writeForecast(forecast);
+                } catch (RuntimeException forecastException) {
+                    Log.w(TAG, "Could not write the forecast for "
+                            + forecast.getLocationSetting(), forecastException);
+                }
+            }
+        }
+
+        int forecastsWritten = 0;
+        for (LocationForecast forecast : forecasts) {
+            if (forecast.isWritten()) {
+                forecastsWritten++;
+                if (forecast.hasChanged()) {
+                    getContext().getContentResolver().notifyChange(
+                            WeatherContract.WeatherEntry.buildWeatherUriWithLocation(
+                                    forecast.getLocationSetting()),
+                            null);
+                }
+            }
+        }
+
+        /* The sync is written, so the log it left behind can go back into the database */
+        WeatherDbHelper.checkpoint(mOpenHelper.getWritableDatabase());
+        return forecastsWritten;
+    }
+
+    private void writeForecastsInOneTransaction(List<LocationForecast> forecasts,
+                                                CancellationSignal cancellationSignal) {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        List<ForecastWriter> writers = new ArrayList<>(forecasts.size());
+
+        /*
+         * Each ForecastWriter begins a transaction of its own, which SQLite nests inside this
+         * one, so nothing is actually committed until this outer transaction ends.
+         */
+        db.beginTransactionNonExclusive();
+        try {
+            for (LocationForecast forecast : forecasts) {
+                if (cancellationSignal != null) {
+                    cancellationSignal.throwIfCanceled();
+                }
+                /* No ContentResolver, because we notify only once everything is committed */
+                ForecastWriter writer = newForecastWriter(null, forecast.getLocationSetting());
+                try {
+                    forecast.writeTo(writer);
+                    writer.commit();
+                } finally {
+                    writer.close();
+                }
+                writers.add(writer);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        /* Only now is every forecast stored, and only now do the writers' rows count */
+        for (int i = 0; i < forecasts.size(); i++) {
+            writers.get(i).recordMetrics();
+            forecasts.get(i).recordWriterCounts(writers.get(i));
+        }
+    }
+
+    private void writeForecast(LocationForecast forecast) {
+        ForecastWriter writer = newForecastWriter(null, forecast.getLocationSetting());
+        try {
+            forecast.writeTo(writer);
+            writer.commit();
+        } finally {
+            writer.close();
+        }
+        forecast.recordWriterCounts(writer);
+    }
+
+    /**
+     * Handles the provider-specific methods declared in {@link WeatherContract}.
+     * <p>
+     * {@link WeatherContract#METHOD_REPLACE_FORECAST} replaces the stored forecast atomically.
+     * Unlike a delete followed by a bulkInsert, which are two transactions and two change
+     * notifications, readers can never observe the table empty part way through, and observers
+     * are notified once, and only if something changed.
+     * <p>
+     * {@link WeatherContract#METHOD_PROBE_FRESHNESS} tells how much forecast is stored and how
+     * old it is, so that Sunshine can decide whether to sync before it shows the forecast.
+     * {@link WeatherContract#METHOD_MARK_FETCHED} records that a forecast was confirmed up to
+     * date without being written.
+     *
+     * @param method One of the METHOD constants in WeatherContract
+     * @param arg    The location setting the forecast is for
+     * @param extras For METHOD_REPLACE_FORECAST, the new forecast as a ContentValues[] under
+     *               EXTRA_WEATHER_VALUES. An empty forecast leaves the stored one untouched.
+     * @return For METHOD_REPLACE_FORECAST, the number of rows written, skipped and deleted. For
+     * METHOD_PROBE_FRESHNESS, the number of days stored from today onwards, the newest date and
+     * the fetch time. For METHOD_MARK_FETCHED, the fetch time, or null if the location isn't
+     * stored.
+     */
+    @Override
+    public Bundle call(@NonNull String method, String arg, Bundle extras) {
+        switch (method) {
+
+            case WeatherContract.METHOD_REPLACE_FORECAST: {
+                Parcelable[] parcelables = extras == null
+                        ? null : extras.getParcelableArray(WeatherContract.EXTRA_WEATHER_VALUES);
+                if (parcelables == null) {
+                    throw new IllegalArgumentException("Replacing the forecast requires "
+                            + WeatherContract.EXTRA_WEATHER_VALUES);
+                }
+                if (arg == null) {
+                    throw new IllegalArgumentException(
+                            "Replacing the forecast requires a location setting");
+                }
+
+                /* Bundles don't keep the array type, so we have to copy into a ContentValues[] */
+                ContentValues[] values = new ContentValues[parcelables.length];
+                for (int i = 0; i < parcelables.length; i++) {
+                    values[i] = (ContentValues) parcelables[i];
+                }
+
+                ForecastWriter writer = openForecastWriter(arg);
+                try {
+                    writer.insert(ForecastColumns.fromContentValues(values));
+                    writer.commit();
+                } finally {
+                    writer.close();
+                }
+
+                Bundle result = new Bundle();
+                result.putInt(WeatherContract.RESULT_ROWS_WRITTEN, writer.getRowsWritten());
+                result.putInt(WeatherContract.RESULT_ROWS_SKIPPED, writer.getRowsSkipped());
+                result.putInt(WeatherContract.RESULT_ROWS_DELETED, writer.getRowsDeleted());
+                return result;
+            }
+
+            case WeatherContract.METHOD_PROBE_FRESHNESS: {
+                if (arg == null) {
+                    throw new IllegalArgumentException(
+                            "Probing the forecast requires a location setting");
+                }
+                return probeFreshness(arg);
+            }
+
+            case WeatherContract.METHOD_MARK_FETCHED: {
+                if (arg == null) {
+                    throw new IllegalArgumentException(
+                            "Marking a forecast fetched requires a location setting");
+                }
+                return markFetched(arg);
+            }
+
+            case WeatherContract.METHOD_DUMP_METRICS: {
+                Bundle result = new Bundle();
+                result.putString(WeatherContract.RESULT_METRICS, SyncMetrics.dump());
+                return result;
+            }
+
+            case WeatherContract.METHOD_COMPACT_HISTORY: {
+                HistoryCompactor.Result compacted = new HistoryCompactor()
+                        .compact(mOpenHelper.getWritableDatabase(), System.currentTimeMillis());
+                if (compacted.getRowsDeleted() != 0) {
+                    getContext().getContentResolver()
+                            .notifyChange(WeatherContract.HistoryEntry.CONTENT_URI, null);
+                }
+
+                Bundle result = new Bundle();
+                result.putInt(WeatherContract.RESULT_ROWS_DELETED, compacted.getRowsDeleted());
+                result.putInt(WeatherContract.RESULT_ROW_COUNT,
+                        (int) compacted.getRowsRemaining());
+                return result;
+            }
+
+            case WeatherContract.METHOD_MAINTAIN_STORAGE: {
+                Context context = getContext();
+                StorageManager storageManager = new StorageManager(
+                        SunshinePreferences.getStorageBudgetBytes(context,
+                                StorageManager.DEFAULT_MAX_BYTES));
+                StorageManager.Result maintained = storageManager.maintain(
+                        mOpenHelper.getWritableDatabase(),
+                        SunshinePreferences.getPreferredWeatherLocation(context));
+                if (maintained.getLocationsEvicted() != 0) {
+                    context.getContentResolver()
+                            .notifyChange(WeatherContract.LocationEntry.CONTENT_URI, null);
+                    context.getContentResolver()
+                            .notifyChange(WeatherContract.WeatherEntry.CONTENT_URI, null);
+                }
+
+                Bundle result = new Bundle();
+                result.putLong(WeatherContract.RESULT_BYTES_RECLAIMED,
+                        maintained.getBytesReclaimed());
+                result.putInt(WeatherContract.RESULT_LOCATIONS_EVICTED,
+                        maintained.getLocationsEvicted());
+                result.putLong(WeatherContract.RESULT_DATABASE_BYTES,
+                        maintained.getAfter().getTotalBytes());
+                return result;
+            }
+
+            default:
+                return super.call(method, arg, extras);
+        }
+    }
+
+    /**
+     * Counts the days of forecast stored for a location from today onwards, finds the last of
+     * them and reads when the forecast was fetched, with a single aggregate query that reads
+     * nothing but the location's row and the index on (location_id, date).
+     *
+     * @param locationSetting The location to probe
+     * @return The count under RESULT_ROW_COUNT, the newest date under RESULT_NEWEST_DATE and the
+     * fetch time under RESULT_FETCHED_AT
+     */
+    private Bundle probeFreshness(String locationSetting) {
+        long today = SunshineDateUtils.getNormalizedUtcDateForToday();
+        Cursor cursor = mOpenHelper.getReadableDatabase().rawQuery(SQL_PROBE_FRESHNESS,
+                new String[]{Long.toString(today), locationSetting});
+
+        Bundle result = new Bundle();
+        result.putInt(WeatherContract.RESULT_ROW_COUNT, 0);
+        result.putLong(WeatherContract.RESULT_NEWEST_DATE, -1);
+        result.putLong(WeatherContract.RESULT_FETCHED_AT, -1);
+        try {
+            /* There is no row at all if the location has never been stored */
+            if (cursor.moveToFirst()) {
+                if (!cursor.isNull(0)) {
+                    result.putLong(WeatherContract.RESULT_FETCHED_AT, cursor.getLong(0));
+                }
+                int rowCount = cursor.getInt(1);
+                result.putInt(WeatherContract.RESULT_ROW_COUNT, rowCount);
+                if (rowCount > 0) {
+                    result.putLong(WeatherContract.RESULT_NEWEST_DATE, cursor.getLong(2));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return result;
+    }
+
+    /**
+     * Records that a location's forecast was confirmed up to date just now, without writing it.
+     *
+     * @param locationSetting The location whose forecast was fetched
+     * @return The fetch time under RESULT_FETCHED_AT, or null if the location isn't stored
+     */
+    private Bundle markFetched(String locationSetting) {
+        long fetchedAt = System.currentTimeMillis();
+        ContentValues values = new ContentValues();
+        values.put(WeatherContract.LocationEntry.COLUMN_FETCHED_AT, fetchedAt);
+        int updated = mOpenHelper.getWritableDatabase().update(
+                WeatherContract.LocationEntry.TABLE_NAME,
+                values,
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{locationSetting});
+        if (updated == 0) {
+            return null;
+        }
+
+        Bundle result = new Bundle();
+        result.putLong(WeatherContract.RESULT_FETCHED_AT, fetchedAt);
+        return result;
+    }
+
     /**
      * Handles query requests from clients. We will use this method in Sunshine to query for all
      * of our weather data as well as to query for the weather on a particular day.
@@ -261,6 +690,108 @@ public class WeatherProvider extends ContentProvider {
                 break;
             }
 
+            /*
+             * A URI such as content://com.example.android.sunshine/weather/location/94043 asks
+             * for the forecast of a single location. Any selection the caller passes, such as
+             * today onwards, is applied on top of the location.
+             */
+            case CODE_WEATHER_WITH_LOCATION: {
+                cursor = mOpenHelper.getReadableDatabase().query(
+                        WeatherContract.WeatherEntry.TABLE_NAME,
+                        projection,
+                        appendSelection(SELECTION_LOCATION_SETTING, selection),
+                        appendSelectionArgs(
+                                WeatherContract.WeatherEntry.getLocationSettingFromUri(uri),
+                                selectionArgs),
+                        null,
+                        null,
+                        sortOrder);
+
+                break;
+            }
+
+            /*
+             * A URI such as
+             * content://com.example.android.sunshine/weather/location/94043/1472214172 asks for
+             * the weather of a single location on a single date.
+             */
+            case CODE_WEATHER_WITH_LOCATION_AND_DATE: {
+                cursor = mOpenHelper.getReadableDatabase().query(
+                        WeatherContract.WeatherEntry.TABLE_NAME,
+                        projection,
+                        SELECTION_LOCATION_SETTING_AND_DATE,
+                        new String[]{
+                                WeatherContract.WeatherEntry.getLocationSettingFromUri(uri),
+                                uri.getLastPathSegment()},
+                        null,
+                        null,
+                        sortOrder);
+
+                break;
+            }
+
+            /*
+             * The history URIs select past forecasts the way the weather URIs select current
+             * ones. Unless the caller asks otherwise, they are sorted by date and then by when
+             * each was made, so that the forecasts for a date read from first to last.
+             */
+            case CODE_HISTORY: {
+                cursor = mOpenHelper.getReadableDatabase().query(
+                        WeatherContract.HistoryEntry.TABLE_NAME,
+                        projection,
+                        selection,
+                        selectionArgs,
+                        null,
+                        null,
+                        sortOrder == null ? HISTORY_SORT_ORDER : sortOrder);
+
+                break;
+            }
+
+            case CODE_HISTORY_WITH_LOCATION: {
+                cursor = mOpenHelper.getReadableDatabase().query(
+                        WeatherContract.HistoryEntry.TABLE_NAME,
+                        projection,
+                        appendSelection(SELECTION_LOCATION_SETTING, selection),
+                        appendSelectionArgs(
+                                WeatherContract.WeatherEntry.getLocationSettingFromUri(uri),
+                                selectionArgs),
+                        null,
+                        null,
+                        sortOrder == null ? HISTORY_SORT_ORDER : sortOrder);
+
+                break;
+            }
+
+            case CODE_HISTORY_WITH_LOCATION_AND_DATE: {
+                cursor = mOpenHelper.getReadableDatabase().query(
+                        WeatherContract.HistoryEntry.TABLE_NAME,
+                        projection,
+                        SELECTION_LOCATION_SETTING_AND_DATE,
+                        new String[]{
+                                WeatherContract.WeatherEntry.getLocationSettingFromUri(uri),
+                                uri.getLastPathSegment()},
+                        null,
+                        null,
+                        sortOrder == null ? HISTORY_SORT_ORDER : sortOrder);
+
+                break;
+            }
+
+            /* content://com.example.android.sunshine/location/ lists every stored location */
+            case CODE_LOCATION: {
+                cursor = mOpenHelper.getReadableDatabase().query(
+                        WeatherContract.LocationEntry.TABLE_NAME,
+                        projection,
+                        selection,
+                        selectionArgs,
+                        null,
+                        null,
+                        sortOrder);
+
+                break;
+            }
+
             /*
              * When sUriMatcher's match method is called with a URI that looks EXACTLY like this
              *
@@ -326,6 +857,39 @@ public class WeatherProvider extends ContentProvider {
 
                 break;
 
+            /* Deletes the weather of one location, leaving the location itself */
+            case CODE_WEATHER_WITH_LOCATION:
+                numRowsDeleted = mOpenHelper.getWritableDatabase().delete(
+                        WeatherContract.WeatherEntry.TABLE_NAME,
+                        appendSelection(SELECTION_LOCATION_SETTING, selection),
+                        appendSelectionArgs(
+                                WeatherContract.WeatherEntry.getLocationSettingFromUri(uri),
+                                selectionArgs));
+
+                break;
+
+            /* Clears the forecast history, or whatever part of it the selection picks */
+            case CODE_HISTORY:
+                numRowsDeleted = mOpenHelper.getWritableDatabase().delete(
+                        WeatherContract.HistoryEntry.TABLE_NAME,
+                        selection,
+                        selectionArgs);
+
+                break;
+
+            /* Deleting a location also deletes its weather, through the foreign key */
+            case CODE_LOCATION:
+                numRowsDeleted = mOpenHelper.getWritableDatabase().delete(
+                        WeatherContract.LocationEntry.TABLE_NAME,
+                        selection,
+                        selectionArgs);
+
+                if (numRowsDeleted != 0) {
+                    getContext().getContentResolver()
+                            .notifyChange(WeatherContract.WeatherEntry.CONTENT_URI, null);
+                }
+                break;
+
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
@@ -338,6 +902,28 @@ public class WeatherProvider extends ContentProvider {
         return numRowsDeleted;
     }
 
+    /*
+     * Combines the selection a URI implies with the one the caller passed, if any. The caller's
+     * selection is wrapped in parentheses so that an OR in it can't escape the URI's selection.
+     */
+    private static String appendSelection(String uriSelection, String selection) {
+        if (selection == null || selection.length() == 0) {
+            return uriSelection;
+        }
+        return uriSelection + " AND (" + selection + ")";
+    }
+
+    /* The arguments for a selection built by appendSelection */
+    private static String[] appendSelectionArgs(String uriSelectionArg, String[] selectionArgs) {
+        if (selectionArgs == null || selectionArgs.length == 0) {
+            return new String[]{uriSelectionArg};
+        }
+        String[] combined = new String[selectionArgs.length + 1];
+        combined[0] = uriSelectionArg;
+        System.arraycopy(selectionArgs, 0, combined, 1, selectionArgs.length);
+        return combined;
+    }
+
     /**
      * In Sunshine, we aren't going to do anything with this method. However, we are required to
      * override it as WeatherProvider extends ContentProvider and getType is an abstract method in
@@ -386,4 +972,13 @@ public class WeatherProvider extends ContentProvider {
         mOpenHelper.close();
         super.shutdown();
     }
+
+    /**
+     * Prints the sync metrics for "adb shell dumpsys activity provider". See {@link SyncMetrics}.
+     */
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println("Sync metrics:");
+        SyncMetrics.dump(writer);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.ContentValues;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+
+/**
+ * Writes rows of the weather table through precompiled statements. SQLiteDatabase#insert and
+ * SQLiteDatabase#update build and compile new SQL for every row they are given, which is most
+ * of the cost of writing a row. Here each statement is compiled once, and each row only binds
+ * its values and executes it.
+ * <p>
+ * Like SQLiteDatabase#insert, the INSERT doesn't name a conflict algorithm, so the
+ * "ON CONFLICT REPLACE" of the location and date columns still replaces any existing row for the
+ * same location and date.
+ * <p>
+ * Create one per batch, inside the batch's transaction, and close it when the batch is done.
+ */
+class WeatherStatements {
+
+    private static final String TAG = WeatherStatements.class.getSimpleName();
+
+    /* The order of these columns is the order values are bound in */
+    private static final String[] COLUMNS = {
+            WeatherContract.WeatherEntry.COLUMN_LOCATION_ID,
+            WeatherContract.WeatherEntry.COLUMN_DATE,
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_HUMIDITY,
+            WeatherContract.WeatherEntry.COLUMN_PRESSURE,
+            WeatherContract.WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherContract.WeatherEntry.COLUMN_DEGREES
+    };
+
+    /* Bind indexes are 1-based */
+    private static final int INDEX_LOCATION_ID = 1;
+    private static final int INDEX_DATE = 2;
+    private static final int INDEX_WEATHER_ID = 3;
+    private static final int INDEX_MIN_TEMP = 4;
+    private static final int INDEX_MAX_TEMP = 5;
+    private static final int INDEX_HUMIDITY = 6;
+    private static final int INDEX_PRESSURE = 7;
+    private static final int INDEX_WIND_SPEED = 8;
+    private static final int INDEX_DEGREES = 9;
+
+    /* The location and date identify a row; everything after them is the day's weather */
+    private static final int FIRST_VALUE_COLUMN = 2;
+
+    private static final String SQL_INSERT = buildInsertSql();
+    private static final String SQL_UPDATE = buildUpdateSql();
+    private static final String SQL_ARCHIVE = buildArchiveSql();
+
+    /* The archive binds the day like the INSERT, then the time it was issued */
+    private static final int INDEX_ISSUED_AT = COLUMNS.length + 1;
+
+    private final SQLiteDatabase mDatabase;
+    private final SQLiteStatement mInsertStatement;
+
+    /* Only compiled once there is something to update, as most batches are pure inserts */
+    private SQLiteStatement mUpdateStatement;
+
+    /* Only compiled once there is something to archive, as history is usually off */
+    private SQLiteStatement mArchiveStatement;
+
+    WeatherStatements(SQLiteDatabase db) {
+        mDatabase = db;
+        mInsertStatement = db.compileStatement(SQL_INSERT);
+    }
+
+    /**
+     * Inserts a single day of weather after checking that its date is normalized. The location
+     * is taken from the {@link WeatherContract.WeatherEntry#COLUMN_LOCATION_ID} in the values;
+     * if there is none, the NOT NULL constraint rejects the row. Values that contain columns
+     * other than the weather columns are passed on to SQLiteDatabase#insert, so that nothing is
+     * silently dropped.
+     *
+     * @param value Weather values for a single day
+     * @return The row ID of the inserted row, or -1 if the insert failed
+     */
+    long insert(ContentValues value) {
+        Long locationId = value.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOCATION_ID);
+        if (locationId == null) {
+            return insert(value, false, 0);
+        }
+        return insert(value, true, locationId);
+    }
+
+    /**
+     * Inserts a single day of weather for a location after checking that its date is
+     * normalized. Any location ID in the values is overridden.
+     *
+     * @param locationId The _ID of the location the weather is for
+     * @param value      Weather values for a single day
+     * @return The row ID of the inserted row, or -1 if the insert failed
+     */
+    long insert(long locationId, ContentValues value) {
+        return insert(value, true, locationId);
+    }
+
+    /**
+     * Inserts a single day of weather from primitive values, without any boxing.
+     *
+     * @return The row ID of the inserted row, or -1 if the insert failed
+     */
+    long insert(long locationId, long date, int weatherId, double minTemp, double maxTemp,
+            double humidity, double pressure, double windSpeed, double degrees) {
+        if (!SunshineDateUtils.isDateNormalized(date)) {
+            throw new IllegalArgumentException("Date must be normalized to insert");
+        }
+
+        bindDay(mInsertStatement, locationId, date, weatherId, minTemp, maxTemp, humidity,
+                pressure, windSpeed, degrees);
+        return executeInsert();
+    }
+
+    /**
+     * Rewrites the values of the day that is already stored for a location and date, without
+     * any boxing.
+     *
+     * @return The number of rows updated, 0 if no day is stored for the location and date
+     */
+    int update(long locationId, long date, int weatherId, double minTemp, double maxTemp,
+            double humidity, double pressure, double windSpeed, double degrees) {
+        if (mUpdateStatement == null) {
+            mUpdateStatement = mDatabase.compileStatement(SQL_UPDATE);
+        }
+
+        /* The UPDATE binds the location and date last, in its WHERE clause; see buildUpdateSql */
+        bindDay(mUpdateStatement, locationId, date, weatherId, minTemp, maxTemp, humidity,
+                pressure, windSpeed, degrees);
+        return mUpdateStatement.executeUpdateDelete();
+    }
+
+    /**
+     * Copies a day of weather, as it was forecast at one time, into the history table, without
+     * any boxing. The days being replaced are already in memory, so they are not read again.
+     *
+     * @param issuedAt When the forecast the day belongs to was fetched, in milliseconds
+     * @return The row ID of the archived row
+     */
+    long archive(long locationId, long date, long issuedAt, int weatherId, double minTemp,
+            double maxTemp, double humidity, double pressure, double windSpeed, double degrees) {
+        if (mArchiveStatement == null) {
+            mArchiveStatement = mDatabase.compileStatement(SQL_ARCHIVE);
+        }
+
+        bindDay(mArchiveStatement, locationId, date, weatherId, minTemp, maxTemp, humidity,
+                pressure, windSpeed, degrees);
+        mArchiveStatement.bindLong(INDEX_ISSUED_AT, issuedAt);
+        return mArchiveStatement.executeInsert();
+    }
+
+    /**
+     * Releases the compiled statements.
+     */
+    void close() {
+        mInsertStatement.close();
+        if (mUpdateStatement != null) {
+            mUpdateStatement.close();
+            mUpdateStatement = null;
+        }
+        if (mArchiveStatement != null) {
+            mArchiveStatement.close();
+            mArchiveStatement = null;
+        }
+    }
+
+    private long insert(ContentValues value, boolean hasLocationId, long locationId) {
+        Long weatherDate = value.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+        if (weatherDate == null || !SunshineDateUtils.isDateNormalized(weatherDate)) {
+            throw new IllegalArgumentException("Date must be normalized to insert");
+        }
+
+        if (!hasOnlyWeatherColumns(value)) {
+            ContentValues valueWithLocation = new ContentValues(value);
+            if (hasLocationId) {
+                valueWithLocation.put(WeatherContract.WeatherEntry.COLUMN_LOCATION_ID,
+                        locationId);
+            }
+            return mDatabase.insert(WeatherContract.WeatherEntry.TABLE_NAME, null,
+                    valueWithLocation);
+        }
+
+        mInsertStatement.clearBindings();
+        if (hasLocationId) {
+            mInsertStatement.bindLong(INDEX_LOCATION_ID, locationId);
+        } else {
+            /* Leave it to the NOT NULL constraint to reject the row, as insert would */
+            mInsertStatement.bindNull(INDEX_LOCATION_ID);
+        }
+        mInsertStatement.bindLong(INDEX_DATE, weatherDate);
+        for (int i = FIRST_VALUE_COLUMN; i < COLUMNS.length; i++) {
+            Object columnValue = value.get(COLUMNS[i]);
+            if (columnValue instanceof Integer || columnValue instanceof Long
+                    || columnValue instanceof Short || columnValue instanceof Byte) {
+                mInsertStatement.bindLong(i + 1, ((Number) columnValue).longValue());
+            } else if (columnValue instanceof Number) {
+                mInsertStatement.bindDouble(i + 1, ((Number) columnValue).doubleValue());
+            } else if (columnValue == null) {
+                mInsertStatement.bindNull(i + 1);
+            } else {
+                mInsertStatement.bindString(i + 1, columnValue.toString());
+            }
+        }
+        return executeInsert();
+    }
+
+    /*
+     * Both statements take the weather columns in the same order, with the location and date in
+     * the first two slots, so a single set of bind indexes works for both.
+     */
+    private static void bindDay(SQLiteStatement statement, long locationId, long date,
+            int weatherId, double minTemp, double maxTemp, double humidity, double pressure,
+            double windSpeed, double degrees) {
+        statement.bindLong(INDEX_LOCATION_ID, locationId);
+        statement.bindLong(INDEX_DATE, date);
+        statement.bindLong(INDEX_WEATHER_ID, weatherId);
+        statement.bindDouble(INDEX_MIN_TEMP, minTemp);
+        statement.bindDouble(INDEX_MAX_TEMP, maxTemp);
+        statement.bindDouble(INDEX_HUMIDITY, humidity);
+        statement.bindDouble(INDEX_PRESSURE, pressure);
+        statement.bindDouble(INDEX_WIND_SPEED, windSpeed);
+        statement.bindDouble(INDEX_DEGREES, degrees);
+    }
+
+    /*
+     * SQLiteDatabase#insert logs and swallows constraint violations and returns -1, and callers
+     * of bulkInsert count on that, so we do the same.
+     */
+    private long executeInsert() {
+        try {
+            return mInsertStatement.executeInsert();
+        } catch (SQLException e) {
+            Log.e(TAG, "Error inserting weather", e);
+            return -1;
+        }
+    }
+
+    private static boolean hasOnlyWeatherColumns(ContentValues value) {
+        int weatherColumns = 0;
+        for (String column : COLUMNS) {
+            if (value.containsKey(column)) {
+                weatherColumns++;
+            }
+        }
+        return weatherColumns == value.size();
+    }
+
+    private static String buildInsertSql() {
+        StringBuilder sql = new StringBuilder("INSERT INTO ")
+                .append(WeatherContract.WeatherEntry.TABLE_NAME)
+                .append(" (");
+        for (int i = 0; i < COLUMNS.length; i++) {
+            sql.append(i == 0 ? "" : ", ").append(COLUMNS[i]);
+        }
+        sql.append(") VALUES (");
+        for (int i = 0; i < COLUMNS.length; i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+        return sql.append(")").toString();
+    }
+
+    /* The history table names its weather columns as the weather table does */
+    private static String buildArchiveSql() {
+        StringBuilder sql = new StringBuilder("INSERT INTO ")
+                .append(WeatherContract.HistoryEntry.TABLE_NAME)
+                .append(" (");
+        for (String column : COLUMNS) {
+            sql.append(column).append(", ");
+        }
+        sql.append(WeatherContract.HistoryEntry.COLUMN_ISSUED_AT).append(") VALUES (");
+        for (int i = 0; i < COLUMNS.length; i++) {
+            sql.append("?, ");
+        }
+        return sql.append("?)").toString();
+    }
+
+    /*
+     * Numbered parameters let the location and date be bound at indexes 1 and 2 even though they
+     * appear last, in the WHERE clause, so the UPDATE binds exactly like the INSERT.
+     */
+    private static String buildUpdateSql() {
+        StringBuilder sql = new StringBuilder("UPDATE ")
+                .append(WeatherContract.WeatherEntry.TABLE_NAME)
+                .append(" SET ");
+        for (int i = FIRST_VALUE_COLUMN; i < COLUMNS.length; i++) {
+            sql.append(i == FIRST_VALUE_COLUMN ? "" : ", ")
+                    .append(COLUMNS[i]).append(" = ?").append(i + 1);
+        }
+        return sql.append(" WHERE ")
+                .append(COLUMNS[0]).append(" = ?").append(INDEX_LOCATION_ID)
+                .append(" AND ")
+                .append(COLUMNS[1]).append(" = ?").append(INDEX_DATE)
+                .toString();
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+/**
+ * Decides how long to wait between periodic syncs, based on how much the forecast changed in the
+ * syncs so far.
+ * <p>
+ * Every sync that brings back the forecast we already had is a trip to the network, and a wake
+ * up of the radio, that bought us nothing. So while the forecast stays the same, the interval
+ * grows, up to a maximum. As soon as a sync finds that the forecast has shifted, the interval is
+ * cut, down to a minimum, so that we keep up while the weather is changing.
+ * <p>
+ * A forecast moves on by a day every day, which changes a row or two even when the weather
+ * itself is steady. That alone doesn't count as the forecast shifting: only a sync that changed
+ * at least {@link #VOLATILE_CHANGE_RATIO} of the days it received does.
+ */
+public class AdaptiveSyncPolicy {
+
+    /* Share of the days received that must change for the forecast to count as volatile */
+    public static final double VOLATILE_CHANGE_RATIO = 0.25;
+
+    /* How much the interval grows after a sync that found the forecast steady */
+    private static final double STEADY_GROWTH_FACTOR = 1.5;
+
+    /* How much the interval shrinks after a sync that found the forecast shifting */
+    private static final double VOLATILE_SHRINK_FACTOR = 0.5;
+
+    private final long mMinIntervalSeconds;
+    private final long mMaxIntervalSeconds;
+
+    private long mIntervalSeconds;
+
+    /**
+     * @param minIntervalSeconds The interval never gets shorter than this
+     * @param maxIntervalSeconds The interval never gets longer than this
+     * @param intervalSeconds    The interval to start from, such as the one saved after the last
+     *                           sync. It is brought within the bounds if it isn't.
+     */
+    public AdaptiveSyncPolicy(long minIntervalSeconds, long maxIntervalSeconds,
+                              long intervalSeconds) {
+        if (minIntervalSeconds <= 0 || minIntervalSeconds > maxIntervalSeconds) {
+            throw new IllegalArgumentException("Invalid sync interval bounds: "
+                    + minIntervalSeconds + " to " + maxIntervalSeconds + " seconds");
+        }
+        mMinIntervalSeconds = minIntervalSeconds;
+        mMaxIntervalSeconds = maxIntervalSeconds;
+        mIntervalSeconds = clamp(intervalSeconds);
+    }
+
+    /**
+     * @return The time to wait before the next sync, in seconds
+     */
+    public long getIntervalSeconds() {
+        return mIntervalSeconds;
+    }
+
+    public long getMinIntervalSeconds() {
+        return mMinIntervalSeconds;
+    }
+
+    public long getMaxIntervalSeconds() {
+        return mMaxIntervalSeconds;
+    }
+
+    /**
+     * Adapts the interval to what a successful sync found. Don't call this for a sync that
+     * failed, since it tells us nothing about the forecast.
+     *
+     * @param daysReceived The number of days of forecast the sync received, or 0 if the server
+     *                     said the forecast hadn't changed
+     * @param daysChanged  The number of days inserted, updated or deleted as a result
+     * @return The new interval, in seconds
+     */
+    public long onSyncFinished(int daysReceived, int daysChanged) {
+        double factor = isVolatile(daysReceived, daysChanged)
+                ? VOLATILE_SHRINK_FACTOR : STEADY_GROWTH_FACTOR;
+        mIntervalSeconds = clamp(Math.round(mIntervalSeconds * factor));
+        return mIntervalSeconds;
+    }
+
+    /**
+     * @param daysReceived The number of days of forecast a sync received
+     * @param daysChanged  The number of days it inserted, updated or deleted
+     * @return true if the forecast changed by enough to count as shifting
+     */
+    public static boolean isVolatile(int daysReceived, int daysChanged) {
+        if (daysChanged <= 0) {
+            return false;
+        }
+        if (daysReceived <= 0) {
+            return true;
+        }
+        return daysChanged >= daysReceived * VOLATILE_CHANGE_RATIO;
+    }
+
+    private long clamp(long intervalSeconds) {
+        return Math.max(mMinIntervalSeconds, Math.min(mMaxIntervalSeconds, intervalSeconds));
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An InputStream that stops a sync at its next read once the sync has been cancelled, and turns
+ * a read that failed because cancelling closed the connection into the cancellation it was.
+ */
+class CancellableInputStream extends FilterInputStream {
+
+    private final SyncCancellationSignal mCancellationSignal;
+
+    CancellableInputStream(InputStream in, SyncCancellationSignal cancellationSignal) {
+        super(in);
+        mCancellationSignal = cancellationSignal;
+    }
+
+    @Override
+    public int read() throws IOException {
+        mCancellationSignal.throwIfCanceled(SyncCancellationSignal.Stage.READ);
+        try {
+            return super.read();
+        } catch (IOException e) {
+            mCancellationSignal.throwIfCanceled();
+            throw e;
+        }
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+        mCancellationSignal.throwIfCanceled(SyncCancellationSignal.Stage.READ);
+        try {
+            return super.read(buffer, offset, count);
+        } catch (IOException e) {
+            mCancellationSignal.throwIfCanceled();
+            throw e;
+        }
+    }
+}
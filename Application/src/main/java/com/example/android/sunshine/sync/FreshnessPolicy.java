@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import com.example.android.sunshine.data.ForecastFreshness;
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides whether a stored forecast can be shown as it is, following "stale while revalidate":
+ * <ul>
+ * <li>Younger than the soft TTL, the forecast is {@link Freshness#FRESH} and is simply shown.</li>
+ * <li>Older than that, it is {@link Freshness#STALE}: it is still shown straight away, but a sync
+ * is started in the background to replace it. The same goes for a forecast that is about to
+ * run out of days, or whose age isn't known.</li>
+ * <li>Only once it is older than the hard TTL, or there's no forecast at all, is it
+ * {@link Freshness#EXPIRED}, and a sync has to finish before it is worth showing.</li>
+ * </ul>
+ * The soft TTL should be no shorter than the window the periodic sync runs in, its interval plus
+ * flex, so that a forecast only goes stale when the periodic sync has been falling behind. That
+ * interval is adapted as the forecast changes (see AdaptiveSyncPolicy), so StartupSync derives
+ * the soft TTL from the current interval (see SunshineSyncUtils#createFreshnessPolicy). Even
+ * then, a stale forecast is only refreshed in the background once per soft TTL (see
+ * {@link #shouldRevalidate(long, long)}), however often Sunshine is opened.
+ */
+public class FreshnessPolicy {
+
+    /* The longest window of the periodic sync: its longest interval of 12 hours, plus flex */
+    public static final long DEFAULT_SOFT_TTL_MILLIS = TimeUnit.HOURS.toMillis(16);
+    public static final long DEFAULT_HARD_TTL_MILLIS = TimeUnit.HOURS.toMillis(24);
+
+    /* A stored forecast that ends sooner than this many days from today is stale */
+    public static final int MIN_DAYS_AHEAD = 3;
+
+    /**
+     * How usable a stored forecast is.
+     */
+    public enum Freshness {
+        /* Show it; nothing else to do */
+        FRESH,
+        /* Show it, and refresh it in the background */
+        STALE,
+        /* There's nothing worth showing until we have synced */
+        EXPIRED
+    }
+
+    private final long mSoftTtlMillis;
+    private final long mHardTtlMillis;
+
+    /**
+     * Creates a policy with the default TTLs.
+     */
+    public FreshnessPolicy() {
+        this(DEFAULT_SOFT_TTL_MILLIS, DEFAULT_HARD_TTL_MILLIS);
+    }
+
+    /**
+     * @param softTtlMillis Age past which a forecast is refreshed in the background
+     * @param hardTtlMillis Age past which a forecast is not worth showing
+     */
+    public FreshnessPolicy(long softTtlMillis, long hardTtlMillis) {
+        if (softTtlMillis < 0 || hardTtlMillis < softTtlMillis) {
+            throw new IllegalArgumentException("Invalid freshness policy");
+        }
+        mSoftTtlMillis = softTtlMillis;
+        mHardTtlMillis = hardTtlMillis;
+    }
+
+    /**
+     * @param freshness What the freshness probe found
+     * @param nowMillis The current time, in milliseconds since the epoch
+     * @param today     Today, normalized
+     * @return How usable the stored forecast is
+     */
+    public Freshness evaluate(ForecastFreshness freshness, long nowMillis, long today) {
+        if (freshness.getRowCount() == 0 || freshness.getNewestDate() < 0) {
+            return Freshness.EXPIRED;
+        }
+
+        long ageMillis = freshness.getAgeMillis(nowMillis);
+        if (ageMillis > mHardTtlMillis) {
+            return Freshness.EXPIRED;
+        }
+
+        long lastDayWanted = today + (MIN_DAYS_AHEAD - 1) * SunshineDateUtils.DAY_IN_MILLIS;
+        if (ageMillis == ForecastFreshness.UNKNOWN
+                || ageMillis > mSoftTtlMillis
+                || freshness.getNewestDate() < lastDayWanted) {
+            return Freshness.STALE;
+        }
+        return Freshness.FRESH;
+    }
+
+    /**
+     * Decides whether to refresh a stale forecast in the background, given when that was last
+     * done. Once per soft TTL is enough: a sync that succeeded made the forecast fresh for that
+     * long, and one that failed isn't worth repeating every time Sunshine comes back to the front.
+     *
+     * @param lastRevalidationMillis When a stale forecast was last refreshed, or UNKNOWN if it
+     *                               hasn't been. Any clock will do, as long as it is nowMillis'
+     * @param nowMillis              The current time
+     * @return true if the forecast should be refreshed now
+     */
+    public boolean shouldRevalidate(long lastRevalidationMillis, long nowMillis) {
+        return lastRevalidationMillis == ForecastFreshness.UNKNOWN
+                || nowMillis - lastRevalidationMillis >= mSoftTtlMillis;
+    }
+
+    public long getSoftTtlMillis() {
+        return mSoftTtlMillis;
+    }
+
+    public long getHardTtlMillis() {
+        return mHardTtlMillis;
+    }
+}
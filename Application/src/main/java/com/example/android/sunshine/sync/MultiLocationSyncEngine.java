@@ -0,0 +1,768 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.content.ContentProvider;
+import android.content.ContentProviderClient;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.os.OperationCanceledException;
+import android.os.SystemClock;
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
+
+import com.example.android.sunshine.data.ForecastColumns;
+import com.example.android.sunshine.data.ForecastFreshness;
+import com.example.android.sunshine.data.LocationForecast;
+import com.example.android.sunshine.data.SunshinePreferences;
+import com.example.android.sunshine.data.WeatherContract;
+import com.example.android.sunshine.data.WeatherProvider;
+import com.example.android.sunshine.utilities.MeteredInputStream;
+import com.example.android.sunshine.utilities.NetworkUtils;
+import com.example.android.sunshine.utilities.OpenWeatherJsonUtils;
+import com.example.android.sunshine.utilities.SyncMetrics;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Refreshes the forecasts of many saved locations at once.
+ * <p>
+ * A sync of a single location spends almost all of its time waiting on the network, so the
+ * forecasts are fetched and parsed in parallel on a small, fixed pool of threads. On top of that,
+ * every fetch has to take a permit from a connection budget before it connects, which keeps the
+ * number of connections open to the weather server bounded however many engines are running.
+ * <p>
+ * A location that fails, whether the server is unreachable, reports an error or sends something
+ * we can't parse, fails on its own: the other locations are still fetched and stored. A failure
+ * that is likely to pass is retried with a {@link SyncRetryPolicy} first. Only once
+ * every fetch has finished is anything written, and then all of the forecasts are written to
+ * WeatherProvider in a single transaction, with {@link WeatherProvider#writeForecasts(List)}.
+ * <p>
+ * A location is never fetched by the engine and {@link SunshineSyncTask} at the same time: the
+ * engine shares a sync of it that is already running, and otherwise claims it in the same
+ * {@link SyncCoalescer}, so that a sync asked for meanwhile waits for the engine's outcome.
+ */
+public class MultiLocationSyncEngine {
+
+    private static final String TAG = MultiLocationSyncEngine.class.getSimpleName();
+
+    /*
+     * Locations fetched and parsed at the same time. The threads spend most of their time
+     * blocked on the network, so this can be larger than the number of cores.
+     */
+    public static final int DEFAULT_MAX_PARALLEL_SYNCS = 4;
+
+    /* Connections to the weather server that may be open at once, across the whole process */
+    public static final int DEFAULT_MAX_CONNECTIONS = 4;
+
+    /*
+     * The connection budget every engine created with the default constructor shares. It is fair,
+     * so that no location waits forever while others keep taking the permits.
+     */
+    private static final Semaphore sConnectionBudget =
+            new Semaphore(DEFAULT_MAX_CONNECTIONS, true);
+
+    private static final String[] SAVED_LOCATION_PROJECTION = {
+            WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING
+    };
+
+    /**
+     * What happened to one location in a sync.
+     */
+    public enum Outcome {
+        /* A new forecast was stored and it differed from the one we had */
+        UPDATED,
+        /* The server said the forecast hadn't changed, or it was exactly the one we had */
+        UNCHANGED,
+        /* The forecast couldn't be fetched, parsed or stored; the old one was kept */
+        FAILED
+    }
+
+    private final Context mContext;
+    private final int mMaxParallelSyncs;
+    private final Semaphore mConnectionBudget;
+
+    /* The forecast endpoint to use instead of the real weather server, or null */
+    private String mForecastBaseUrl;
+
+    private SyncRetryPolicy mRetryPolicy = new SyncRetryPolicy();
+
+    /**
+     * Creates an engine that uses the default number of threads and shares the process-wide
+     * connection budget.
+     *
+     * @param context Used to access the ContentResolver and SharedPreferences
+     */
+    public MultiLocationSyncEngine(Context context) {
+        this(context, DEFAULT_MAX_PARALLEL_SYNCS, sConnectionBudget);
+    }
+
+    /**
+     * @param context          Used to access the ContentResolver and SharedPreferences
+     * @param maxParallelSyncs The number of locations fetched and parsed at the same time
+     * @param connectionBudget Every fetch holds one permit of this while it is connected. Pass
+     *                         the same Semaphore to several engines to have them share it.
+     */
+    public MultiLocationSyncEngine(Context context, int maxParallelSyncs,
+                                   Semaphore connectionBudget) {
+        if (maxParallelSyncs < 1) {
+            throw new IllegalArgumentException("At least one location must be synced at a time");
+        }
+        mContext = context.getApplicationContext();
+        mMaxParallelSyncs = maxParallelSyncs;
+        mConnectionBudget = connectionBudget;
+    }
+
+    /**
+     * Fetches forecasts from another server, such as a stand-in for the weather server in tests.
+     *
+     * @param forecastBaseUrl The URL of the forecast endpoint, without any query parameters
+     */
+    @VisibleForTesting
+    public void setForecastBaseUrl(String forecastBaseUrl) {
+        mForecastBaseUrl = forecastBaseUrl;
+    }
+
+    /**
+     * Retries failed fetches with another policy, such as one that doesn't wait long in tests.
+     *
+     * @param retryPolicy Decides which fetches are retried, and when
+     */
+    @VisibleForTesting
+    public void setRetryPolicy(SyncRetryPolicy retryPolicy) {
+        mRetryPolicy = retryPolicy;
+    }
+
+    /**
+     * Reads the locations that have been saved in WeatherProvider, in the order they were added.
+     * A location is saved the first time weather is stored for it.
+     *
+     * @param context Used to access the ContentResolver
+     * @return The location setting of every saved location
+     */
+    public static List<String> getSavedLocations(Context context) {
+        List<String> locationSettings = new ArrayList<>();
+
+        Cursor cursor = context.getContentResolver().query(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                SAVED_LOCATION_PROJECTION,
+                null,
+                null,
+                WeatherContract.LocationEntry._ID + " ASC");
+        if (cursor == null) {
+            return locationSettings;
+        }
+
+        try {
+            while (cursor.moveToNext()) {
+                locationSettings.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return locationSettings;
+    }
+
+    /**
+     * Refreshes the forecast of each location, blocking until they have all been fetched and
+     * stored. Call this from a background thread.
+     *
+     * @param locationSettings The locations to sync, each as stored in SunshinePreferences
+     * @return What happened to each location
+     * @throws InterruptedException If the calling thread was interrupted while it waited. Fetches
+     *                              still in flight are cancelled and nothing is written.
+     */
+    public Result sync(List<String> locationSettings) throws InterruptedException {
+        return sync(locationSettings, new SyncCancellationSignal());
+    }
+
+    /**
+     * Like {@link #sync(List)}, but stops as soon as the signal is cancelled: fetches in flight
+     * are abandoned, their connections closed, and nothing is written. If the forecasts are
+     * already being written when the signal is cancelled, the transaction is rolled back.
+     *
+     * @param locationSettings   The locations to sync, each as stored in SunshinePreferences
+     * @param cancellationSignal Cancel this to stop the sync
+     * @return What happened to each location
+     * @throws InterruptedException       If the calling thread was interrupted while it waited
+     * @throws OperationCanceledException If the signal was cancelled before the sync finished
+     */
+    public Result sync(List<String> locationSettings, SyncCancellationSignal cancellationSignal)
+            throws InterruptedException {
+        long syncStart = SystemClock.elapsedRealtimeNanos();
+        Result result = new Result();
+        if (locationSettings.isEmpty()) {
+            return result;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(mMaxParallelSyncs, locationSettings.size()), new SyncThreadFactory(TAG));
+
+        List<LocationFetch> fetches = new ArrayList<>(locationSettings.size());
+        List<SyncCoalescer.Claim<Outcome>> claims = new ArrayList<>(locationSettings.size());
+        try {
+            List<Future<LocationFetch>> futures = new ArrayList<>(locationSettings.size());
+            for (String locationSetting : locationSettings) {
+                Future<Outcome> syncInFlight = joinOrClaim(locationSetting, claims);
+                futures.add(executor.submit(new FetchTask(locationSetting, syncInFlight, result,
+                        cancellationSignal)));
+            }
+
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    fetches.add(futures.get(i).get());
+                } catch (ExecutionException e) {
+                    /* Being cancelled is the one failure that stops every location */
+                    if (e.getCause() instanceof OperationCanceledException) {
+                        throw (OperationCanceledException) e.getCause();
+                    }
+                    /* FetchTask catches everything it expects, so this is a bug; isolate it too */
+                    fetches.add(LocationFetch.failed(locationSettings.get(i),
+                            SyncException.classify(e)));
+                }
+            }
+
+            writeFetchedForecasts(fetches, result, cancellationSignal);
+        } finally {
+            executor.shutdownNow();
+            releaseClaims(claims, result);
+        }
+
+        result.mElapsedNanos = SyncMetrics.SYNC.recordSince(syncStart);
+        return result;
+    }
+
+    /**
+     * If SunshineSyncTask is already syncing the location, there's no point in fetching it twice,
+     * so we return that sync for the FetchTask to wait on. Otherwise we claim the location, so
+     * that a sync of it asked for while we fetch waits for us instead.
+     *
+     * @return The sync of the location already running, or null if this engine is to fetch it
+     */
+    private static Future<Outcome> joinOrClaim(String locationSetting,
+                                               List<SyncCoalescer.Claim<Outcome>> claims) {
+        Future<Outcome> syncInFlight = SunshineSyncTask.joinSyncInFlight(locationSetting);
+        if (syncInFlight != null) {
+            return syncInFlight;
+        }
+        SyncCoalescer.Claim<Outcome> claim = SunshineSyncTask.claimSync(locationSetting);
+        if (claim != null) {
+            claims.add(claim);
+            return null;
+        }
+        /*
+         * Either a sync started since we looked, which we can share after all, or the location is
+         * claimed by another engine, or listed twice, and we simply fetch it again.
+         */
+        return SunshineSyncTask.joinSyncInFlight(locationSetting);
+    }
+
+    /**
+     * Hands the outcome of each location we claimed to the syncs waiting on it. A location without
+     * an outcome was abandoned along with the whole sync, which they see as it being cancelled.
+     */
+    private static void releaseClaims(List<SyncCoalescer.Claim<Outcome>> claims, Result result) {
+        for (SyncCoalescer.Claim<Outcome> claim : claims) {
+            Outcome outcome = result.getOutcome(claim.getKey());
+            if (outcome != null) {
+                claim.complete(outcome);
+            } else {
+                claim.fail(new OperationCanceledException(
+                        "The sync of " + claim.getKey() + " was abandoned"));
+            }
+        }
+    }
+
+    /**
+     * Stores every forecast that was fetched in one go, then saves the validators of each one that
+     * was stored, so that the next sync of those locations can be conditional.
+     */
+    private void writeFetchedForecasts(List<LocationFetch> fetches, Result result,
+                                       SyncCancellationSignal cancellationSignal) {
+        List<LocationFetch> fetched = new ArrayList<>(fetches.size());
+        List<LocationForecast> forecasts = new ArrayList<>(fetches.size());
+        for (LocationFetch fetch : fetches) {
+            if (fetch.forecast != null) {
+                fetched.add(fetch);
+                forecasts.add(fetch.forecast);
+            } else if (fetch.sharedOutcome != null) {
+                result.setOutcome(fetch.locationSetting, fetch.sharedOutcome);
+            } else if (fetch.error != null) {
+                Log.w(TAG, "Could not sync " + fetch.locationSetting, fetch.error);
+                SyncMetrics.SYNCS_FAILED.increment();
+                result.setFailure(fetch.locationSetting, fetch.error);
+            } else {
+                /* Not modified: the forecast we have is as fresh as the server's */
+                ForecastFreshness.markFetched(mContext, fetch.locationSetting);
+                result.setOutcome(fetch.locationSetting, Outcome.UNCHANGED);
+            }
+        }
+
+        if (forecasts.isEmpty()) {
+            return;
+        }
+
+        cancellationSignal.throwIfCanceled(SyncCancellationSignal.Stage.WRITE);
+        long writeStart = SystemClock.elapsedRealtimeNanos();
+        writeForecasts(forecasts, cancellationSignal);
+        result.mWriteNanos = SystemClock.elapsedRealtimeNanos() - writeStart;
+
+        String preferredLocation = SunshinePreferences.getPreferredWeatherLocation(mContext);
+        for (LocationFetch fetch : fetched) {
+            LocationForecast forecast = fetch.forecast;
+            if (!forecast.isWritten()) {
+                SyncMetrics.SYNCS_FAILED.increment();
+                result.setFailure(fetch.locationSetting, SyncException.storage(
+                        "The forecast for " + fetch.locationSetting + " was not written", null));
+                continue;
+            }
+
+            result.setOutcome(fetch.locationSetting,
+                    forecast.hasChanged() ? Outcome.UPDATED : Outcome.UNCHANGED);
+            result.mDaysReceived += forecast.getRowsWritten() + forecast.getRowsSkipped();
+            result.mDaysChanged += forecast.getRowsWritten() + forecast.getRowsDeleted();
+            NetworkUtils.saveValidators(mContext, fetch.url, fetch.eTag, fetch.lastModified,
+                    fetch.bodyBytes);
+
+            /* Keep the preferred location's coordinates up to date, as a single sync would */
+            if (fetch.hasCoordinates && fetch.locationSetting.equals(preferredLocation)) {
+                SunshinePreferences.setLocationDetails(mContext, fetch.latitude, fetch.longitude);
+            }
+        }
+    }
+
+    /**
+     * Writes the forecasts straight into WeatherProvider in a single transaction. That is only
+     * possible when the provider lives in our own process, which it always does in Sunshine, but
+     * if it ever doesn't we fall back to replacing each forecast through the ContentResolver.
+     */
+    private void writeForecasts(List<LocationForecast> forecasts,
+                                SyncCancellationSignal cancellationSignal) {
+        ContentProviderClient client = mContext.getContentResolver()
+                .acquireContentProviderClient(WeatherContract.CONTENT_AUTHORITY);
+        ContentProvider localProvider = client == null ? null : client.getLocalContentProvider();
+        try {
+            if (localProvider instanceof WeatherProvider) {
+                try {
+                    ((WeatherProvider) localProvider).writeForecasts(forecasts,
+                            cancellationSignal.getDatabaseSignal());
+                } catch (OperationCanceledException e) {
+                    /* Rolled back; record when the cancellation took effect */
+                    cancellationSignal.throwIfCanceled(SyncCancellationSignal.Stage.WRITE);
+                    throw e;
+                }
+                return;
+            }
+
+            for (LocationForecast forecast : forecasts) {
+                cancellationSignal.throwIfCanceled(SyncCancellationSignal.Stage.WRITE);
+                try {
+                    replaceForecast(forecast);
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "Could not write the forecast for "
+                            + forecast.getLocationSetting(), e);
+                }
+            }
+        } finally {
+            if (client != null) {
+                client.release();
+            }
+        }
+    }
+
+    private void replaceForecast(LocationForecast forecast) {
+        Bundle extras = new Bundle();
+        extras.putParcelableArray(WeatherContract.EXTRA_WEATHER_VALUES,
+                forecast.getDays().toContentValuesArray());
+        Bundle result = mContext.getContentResolver().call(
+                WeatherContract.WeatherEntry.CONTENT_URI,
+                WeatherContract.METHOD_REPLACE_FORECAST,
+                forecast.getLocationSetting(),
+                extras);
+        if (result != null) {
+            forecast.setWriteCounts(result.getInt(WeatherContract.RESULT_ROWS_WRITTEN),
+                    result.getInt(WeatherContract.RESULT_ROWS_SKIPPED),
+                    result.getInt(WeatherContract.RESULT_ROWS_DELETED));
+        }
+    }
+
+    private URL getUrl(String locationSetting) {
+        if (mForecastBaseUrl != null) {
+            return NetworkUtils.getUrlForLocation(mForecastBaseUrl, locationSetting);
+        }
+        return NetworkUtils.getUrlForLocation(locationSetting);
+    }
+
+    /**
+     * Fetches and parses the forecast of one location, holding a permit of the connection budget
+     * for as long as it is connected. Only throws if the whole sync is being abandoned: any other
+     * failure is handed back in the LocationFetch so that it can't affect any other location.
+     */
+    private class FetchTask implements Callable<LocationFetch> {
+
+        private final String mLocationSetting;
+        private final Future<Outcome> mSyncInFlight;
+        private final Result mResult;
+        private final SyncCancellationSignal mCancellationSignal;
+
+        /**
+         * @param syncInFlight A sync of the location that SunshineSyncTask is already running,
+         *                     to wait for instead of fetching it, or null
+         */
+        FetchTask(String locationSetting, Future<Outcome> syncInFlight, Result result,
+                  SyncCancellationSignal cancellationSignal) {
+            mLocationSetting = locationSetting;
+            mSyncInFlight = syncInFlight;
+            mResult = result;
+            mCancellationSignal = cancellationSignal;
+        }
+
+        @Override
+        public LocationFetch call() throws InterruptedException {
+            /* Somebody else is already syncing this location; we report what they did */
+            if (mSyncInFlight != null) {
+                try {
+                    return LocationFetch.shared(mLocationSetting, mSyncInFlight.get());
+                } catch (ExecutionException e) {
+                    return LocationFetch.failed(mLocationSetting, SyncException.classify(e));
+                }
+            }
+
+            try {
+                return mRetryPolicy.execute(new SyncRetryPolicy.Attempt<LocationFetch>() {
+                    @Override
+                    public LocationFetch run() throws SyncException, InterruptedException {
+                        return attemptFetch();
+                    }
+                });
+            } catch (SyncException e) {
+                return LocationFetch.failed(mLocationSetting, e);
+            }
+        }
+
+        /**
+         * Makes a single attempt at fetching the forecast. The connection budget is only held
+         * while connected, never while waiting to retry.
+         */
+        private LocationFetch attemptFetch() throws SyncException, InterruptedException {
+            try {
+                mCancellationSignal.throwIfCanceled(SyncCancellationSignal.Stage.CONNECT);
+                URL url = getUrl(mLocationSetting);
+                if (url == null) {
+                    throw SyncException.parse("Could not build a URL for " + mLocationSetting,
+                            null);
+                }
+                boolean haveForecast =
+                        SunshineSyncTask.hasStoredForecast(mContext, mLocationSetting);
+
+                mConnectionBudget.acquire();
+                mResult.connectionOpened();
+                try {
+                    return fetch(url, haveForecast);
+                } finally {
+                    mResult.connectionClosed();
+                    mConnectionBudget.release();
+                }
+            } catch (InterruptedException | OperationCanceledException e) {
+                /* The whole sync is being abandoned, so there is nothing to isolate */
+                throw e;
+            } catch (Exception e) {
+                /* A connection closed by cancelling the sync fails like any other */
+                mCancellationSignal.throwIfCanceled();
+                throw SyncException.classify(e);
+            }
+        }
+
+        private LocationFetch fetch(URL url, boolean haveForecast)
+                throws IOException, SyncException {
+            HttpURLConnection urlConnection =
+                    NetworkUtils.openConditionalHttpUrlConnection(mContext, url, haveForecast);
+            mCancellationSignal.addConnection(urlConnection);
+            try {
+                if (NetworkUtils.isNotModified(mContext, url, urlConnection)) {
+                    return LocationFetch.notModified(mLocationSetting);
+                }
+                int status = urlConnection.getResponseCode();
+                if (status != HttpURLConnection.HTTP_OK) {
+                    throw SyncException.httpStatus(status);
+                }
+
+                MeteredInputStream wireStream = new MeteredInputStream(new CancellableInputStream(
+                        urlConnection.getInputStream(), mCancellationSignal));
+                InputStream in = NetworkUtils.decodeResponseBody(urlConnection, wireStream);
+
+                ForecastColumns days = new ForecastColumns();
+                double[] cityCoord = {Double.NaN, Double.NaN};
+                boolean forecastValid;
+                long parseStart = SystemClock.elapsedRealtimeNanos();
+                try {
+                    forecastValid = OpenWeatherJsonUtils.parseForecast(in, days,
+                            new OpenWeatherJsonUtils.DayForecastListener() {
+                                @Override
+                                public void onDayForecast(ForecastColumns days) {
+                                    mCancellationSignal.throwIfCanceled(
+                                            SyncCancellationSignal.Stage.PARSE);
+                                }
+                            }, cityCoord);
+                } finally {
+                    in.close();
+                }
+                long readNanos = wireStream.getReadNanos();
+                SyncMetrics.BODY_READ.record(readNanos);
+                SyncMetrics.PARSE.record(
+                        SystemClock.elapsedRealtimeNanos() - parseStart - readNanos);
+                SyncMetrics.BYTES_READ.add(wireStream.getBytesRead());
+
+                if (!forecastValid || days.size() == 0) {
+                    throw SyncException.parse(
+                            "The server sent no forecast for " + mLocationSetting, null);
+                }
+
+                LocationFetch fetch = new LocationFetch(mLocationSetting);
+                fetch.url = url;
+                fetch.forecast = new LocationForecast(mLocationSetting, days);
+                fetch.eTag = urlConnection.getHeaderField("ETag");
+                fetch.lastModified = urlConnection.getLastModified();
+                fetch.bodyBytes = wireStream.getBytesRead();
+                if (!Double.isNaN(cityCoord[0])) {
+                    fetch.hasCoordinates = true;
+                    fetch.latitude = cityCoord[0];
+                    fetch.longitude = cityCoord[1];
+                    fetch.forecast.setCoordinates(cityCoord[0], cityCoord[1]);
+                }
+                return fetch;
+            } finally {
+                mCancellationSignal.removeConnection(urlConnection);
+                urlConnection.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Everything a FetchTask learned about one location. Once the connection has been closed this
+     * is all that is left of it, so the validators are kept here until the forecast is stored.
+     */
+    private static class LocationFetch {
+
+        final String locationSetting;
+
+        /* Null if the forecast wasn't modified, couldn't be fetched or another sync got it */
+        LocationForecast forecast;
+        /* Null unless the fetch failed, even after any retries */
+        SyncException error;
+        /* Null unless another sync of the location was running and we shared it */
+        Outcome sharedOutcome;
+
+        URL url;
+        String eTag;
+        long lastModified;
+        long bodyBytes;
+
+        boolean hasCoordinates;
+        double latitude;
+        double longitude;
+
+        LocationFetch(String locationSetting) {
+            this.locationSetting = locationSetting;
+        }
+
+        static LocationFetch notModified(String locationSetting) {
+            return new LocationFetch(locationSetting);
+        }
+
+        static LocationFetch shared(String locationSetting, Outcome outcome) {
+            LocationFetch fetch = new LocationFetch(locationSetting);
+            fetch.sharedOutcome = outcome;
+            return fetch;
+        }
+
+        static LocationFetch failed(String locationSetting, SyncException error) {
+            LocationFetch fetch = new LocationFetch(locationSetting);
+            fetch.error = error;
+            return fetch;
+        }
+    }
+
+    /**
+     * What happened to each location in a sync, and how long it took.
+     */
+    public static final class Result {
+
+        private final Map<String, Outcome> mOutcomes =
+                Collections.synchronizedMap(new HashMap<String, Outcome>());
+        private final Map<String, SyncException> mFailures =
+                Collections.synchronizedMap(new HashMap<String, SyncException>());
+
+        private final AtomicInteger mConnectionsOpen = new AtomicInteger();
+        private final AtomicInteger mMaxConnectionsOpen = new AtomicInteger();
+
+        private long mElapsedNanos;
+        private long mWriteNanos;
+
+        private int mDaysReceived;
+        private int mDaysChanged;
+
+        Result() {
+        }
+
+        /**
+         * @param locationSetting A location that was synced
+         * @return What happened to it, or null if it wasn't part of the sync
+         */
+        public Outcome getOutcome(String locationSetting) {
+            return mOutcomes.get(locationSetting);
+        }
+
+        /**
+         * @param locationSetting A location that was synced
+         * @return Why it failed, or null if it didn't
+         */
+        public SyncException getFailure(String locationSetting) {
+            return mFailures.get(locationSetting);
+        }
+
+        /**
+         * @return true if any location failed in a way that is likely to pass, even after the
+         * retries the sync made itself, so the whole sync is worth trying again later
+         */
+        public boolean needsRetry() {
+            synchronized (mFailures) {
+                for (SyncException failure : mFailures.values()) {
+                    if (failure.isRetryable()) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        public int getLocationCount() {
+            return mOutcomes.size();
+        }
+
+        public int getUpdatedCount() {
+            return count(Outcome.UPDATED);
+        }
+
+        public int getUnchangedCount() {
+            return count(Outcome.UNCHANGED);
+        }
+
+        public int getFailedCount() {
+            return count(Outcome.FAILED);
+        }
+
+        /**
+         * @return The most connections this sync had open at the same time
+         */
+        public int getMaxConnectionsOpen() {
+            return mMaxConnectionsOpen.get();
+        }
+
+        /**
+         * @return Time from the start of the sync until every forecast was stored
+         */
+        public long getElapsedNanos() {
+            return mElapsedNanos;
+        }
+
+        /**
+         * @return Time spent writing the forecasts, in the single transaction at the end
+         */
+        public long getWriteNanos() {
+            return mWriteNanos;
+        }
+
+        /**
+         * @return The number of days of forecast received and stored, over every location
+         */
+        public int getDaysReceived() {
+            return mDaysReceived;
+        }
+
+        /**
+         * @return The number of stored days inserted, updated or deleted, over every location
+         */
+        public int getDaysChanged() {
+            return mDaysChanged;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "%d locations in %d ms (write %d ms, at most %d connections): "
+                            + "%d updated, %d unchanged, %d failed",
+                    getLocationCount(),
+                    TimeUnit.NANOSECONDS.toMillis(mElapsedNanos),
+                    TimeUnit.NANOSECONDS.toMillis(mWriteNanos),
+                    getMaxConnectionsOpen(),
+                    getUpdatedCount(),
+                    getUnchangedCount(),
+                    getFailedCount());
+        }
+
+        void setOutcome(String locationSetting, Outcome outcome) {
+            mOutcomes.put(locationSetting, outcome);
+        }
+
+        void setFailure(String locationSetting, SyncException failure) {
+            mFailures.put(locationSetting, failure);
+            mOutcomes.put(locationSetting, Outcome.FAILED);
+        }
+
+        void connectionOpened() {
+            int open = mConnectionsOpen.incrementAndGet();
+            int max;
+            do {
+                max = mMaxConnectionsOpen.get();
+            } while (open > max && !mMaxConnectionsOpen.compareAndSet(max, open));
+        }
+
+        void connectionClosed() {
+            mConnectionsOpen.decrementAndGet();
+        }
+
+        private int count(Outcome outcome) {
+            int count = 0;
+            synchronized (mOutcomes) {
+                for (Outcome locationOutcome : mOutcomes.values()) {
+                    if (locationOutcome == outcome) {
+                        count++;
+                    }
+                }
+            }
+            return count;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.sunshine.data.ForecastFreshness;
+import com.example.android.sunshine.data.SunshinePreferences;
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides, when Sunshine starts, whether the forecast it has stored is good enough to show, and
+ * syncs if it isn't.
+ * <p>
+ * The decision is made by the {@link FreshnessPolicy} from a freshness probe on WeatherProvider
+ * (see {@link ForecastFreshness}): a single aggregate query that counts the days stored from
+ * today onwards, finds the last of them and reads when the forecast was fetched, without reading
+ * any forecast.
+ * <ul>
+ * <li>An expired forecast, or none at all, isn't worth showing, so we sync straight away, right
+ * here on the sync thread, rather than waiting for a service to start.</li>
+ * <li>A stale forecast is shown while it is refreshed in the background, at most once per soft
+ * TTL.</li>
+ * <li>Otherwise the periodic sync will keep the forecast up to date, and nothing is done.</li>
+ * </ul>
+ * A forecast can expire while Sunshine is still running, so MainActivity probes again every
+ * time it is started, and keeps an expired forecast off the screen until the sync has finished
+ * (see {@link Listener}).
+ */
+public class StartupSync {
+
+    private static final String TAG = StartupSync.class.getSimpleName();
+
+    /*
+     * When a stale forecast was last refreshed in the background, by elapsedRealtime, so that
+     * coming back to MainActivity over and over doesn't sync every time (see
+     * FreshnessPolicy#shouldRevalidate).
+     */
+    private static final AtomicLong sLastRevalidationMillis =
+            new AtomicLong(ForecastFreshness.UNKNOWN);
+
+    /**
+     * Told, on the main thread, what the probe found and when the sync it started has finished.
+     * <p>
+     * The listener is only held weakly, so that a sync that takes a while, retries included,
+     * doesn't keep an Activity alive after it has been destroyed. Whoever passes it in has to
+     * keep a reference to it for as long as it wants to be told, as an Activity implementing it
+     * does simply by being alive.
+     */
+    public interface Listener {
+
+        /**
+         * @param freshness How usable the stored forecast is. If it is EXPIRED, it isn't worth
+         *                  showing until {@link #onSyncFinished(MultiLocationSyncEngine.Outcome)}
+         */
+        void onProbed(FreshnessPolicy.Freshness freshness);
+
+        /**
+         * Called once the sync of an expired forecast has finished, whether or not it succeeded.
+         * Nothing is synced in the foreground for a forecast that isn't expired, so this isn't
+         * called for one.
+         *
+         * @param outcome What happened to the preferred location's forecast
+         */
+        void onSyncFinished(MultiLocationSyncEngine.Outcome outcome);
+    }
+
+    /**
+     * Probes the forecast stored for the preferred location and decides how usable it is.
+     * Runs a query, so don't call it on the main thread.
+     *
+     * @param context Used to access the ContentResolver and SharedPreferences
+     * @return How usable the stored forecast is
+     */
+    public static FreshnessPolicy.Freshness probe(Context context) {
+        return probe(context, SunshineSyncUtils.createFreshnessPolicy(context));
+    }
+
+    private static FreshnessPolicy.Freshness probe(Context context, FreshnessPolicy policy) {
+        ForecastFreshness freshness = ForecastFreshness.probe(context,
+                SunshinePreferences.getPreferredWeatherLocation(context));
+        return policy.evaluate(freshness, System.currentTimeMillis(),
+                SunshineDateUtils.getNormalizedUtcDateForToday());
+    }
+
+    /* Claims the background refresh of a stale forecast, unless one was made recently */
+    private static boolean claimRevalidation(FreshnessPolicy policy) {
+        long now = SystemClock.elapsedRealtime();
+        long last = sLastRevalidationMillis.get();
+        return policy.shouldRevalidate(last, now)
+                && sLastRevalidationMillis.compareAndSet(last, now);
+    }
+
+    /**
+     * Probes the stored forecast on the {@link SyncExecutor} and syncs if it needs to.
+     *
+     * @param context Used to probe and to sync
+     */
+    public static void run(Context context) {
+        run(context, null);
+    }
+
+    /**
+     * Like {@link #run(Context)}, but tells the listener what the probe found and when the sync
+     * of an expired forecast has finished. Probing every time this is called is cheap, and if a
+     * sync of the location is already running, the sync started here shares it.
+     *
+     * @param context  Used to probe and to sync
+     * @param listener Told on the main thread, or null. Only held weakly (see {@link Listener})
+     */
+    public static void run(Context context, Listener listener) {
+        /* The probe may outlive the Activity that started it */
+        final Context appContext = context.getApplicationContext();
+        final Handler mainHandler = new Handler(Looper.getMainLooper());
+        final WeakReference<Listener> listenerReference =
+                listener == null ? null : new WeakReference<>(listener);
+        SyncExecutor.getInstance().submit(new Callable<FreshnessPolicy.Freshness>() {
+            @Override
+            public FreshnessPolicy.Freshness call() {
+                long probeStart = SystemClock.elapsedRealtimeNanos();
+                FreshnessPolicy policy = SunshineSyncUtils.createFreshnessPolicy(appContext);
+                final FreshnessPolicy.Freshness freshness = probe(appContext, policy);
+                Log.d(TAG, "Stored forecast is " + freshness + ", probed in "
+                        + (SystemClock.elapsedRealtimeNanos() - probeStart) / 1000 + " us");
+                if (listenerReference != null) {
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            Listener listener = listenerReference.get();
+                            if (listener != null) {
+                                listener.onProbed(freshness);
+                            }
+                        }
+                    });
+                }
+
+                switch (freshness) {
+                    case EXPIRED:
+                        final MultiLocationSyncEngine.Outcome outcome =
+                                SunshineSyncTask.syncWeather(appContext);
+                        if (listenerReference != null) {
+                            mainHandler.post(new Runnable() {
+                                @Override
+                                public void run() {
+                                    Listener listener = listenerReference.get();
+                                    if (listener != null) {
+                                        listener.onSyncFinished(outcome);
+                                    }
+                                }
+                            });
+                        }
+                        break;
+
+                    case STALE:
+                        if (claimRevalidation(policy)) {
+                            SunshineSyncUtils.startImmediateSync(appContext);
+                        }
+                        break;
+
+                    default:
+                        break;
+                }
+                return freshness;
+            }
+        });
+    }
+}
@@ -16,17 +16,26 @@
 package com.example.android.sunshine.sync;
 
 import android.content.Context;
-import android.os.AsyncTask;
+import android.os.OperationCanceledException;
+import android.util.Log;
 
 import com.firebase.jobdispatcher.Job;
 import com.firebase.jobdispatcher.JobParameters;
 import com.firebase.jobdispatcher.JobService;
 import com.firebase.jobdispatcher.RetryStrategy;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
 
 public class SunshineFirebaseJobService extends JobService {
 
-    private AsyncTask<Void, Void, Void> mFetchWeatherTask;
+    private static final String TAG = SunshineFirebaseJobService.class.getSimpleName();
+
+    private Future<Boolean> mSync;
+
+    /* Cancelled when the dispatcher stops our job, so that the sync stops at its next stage */
+    private SyncCancellationSignal mCancellationSignal;
 
     /**
      * The entry point to your Job. Implementations should offload work to another thread of
@@ -34,29 +43,51 @@ public class SunshineFirebaseJobService extends JobService {
      *
      * This is called by the Job Dispatcher to tell us we should start our job. Keep in mind this
      * method is run on the application's main thread, so we need to offload work to a background
-     * thread.
+     * thread. Every sync runs on the {@link SyncExecutor}.
      *
      * @return whether there is more work remaining.
      */
     @Override
     public boolean onStartJob(final JobParameters jobParameters) {
 
-        mFetchWeatherTask = new AsyncTask<Void, Void, Void>(){
+        final SyncCancellationSignal cancellationSignal = new SyncCancellationSignal();
+        mCancellationSignal = cancellationSignal;
+
+        mSync = SyncExecutor.getInstance().submit(new Callable<Boolean>() {
             @Override
-            protected Void doInBackground(Void... voids) {
+            public Boolean call() {
                 Context context = getApplicationContext();
-                SunshineSyncTask.syncWeather(context);
-                jobFinished(jobParameters, false);
-                return null;
-            }
+                boolean needsReschedule;
+                try {
+                    /* The periodic sync refreshes every saved location, not just the preferred */
+                    needsReschedule = SunshineSyncTask.syncSavedLocations(context,
+                            cancellationSignal);
+                } catch (OperationCanceledException e) {
+                    /*
+                     * A job that was stopped must not be reported as finished: onStopJob has
+                     * already told the dispatcher whether to retry it.
+                     */
+                    Log.d(TAG, "Sync job stopped during " + cancellationSignal.getAbortedStage()
+                            + ", " + cancellationSignal.getCancelLatencyNanos() / 1000000
+                            + " ms after being cancelled");
+                    return true;
+                }
 
-            @Override
-            protected void onPostExecute(Void aVoid) {
-                jobFinished(jobParameters, false);
+                /*
+                 * This is the only place the job is reported as finished. If a location failed
+                 * in a way that is likely to pass, we ask to be rescheduled, and the dispatcher
+                 * tries again with exponential backoff (see the RetryStrategy in
+                 * SunshineSyncUtils) rather than waiting for the next periodic sync.
+                 */
+                if (!cancellationSignal.isCanceled()) {
+                    jobFinished(jobParameters, needsReschedule);
+                    /* Only now can the job be replaced, if the sync adapted its interval */
+                    SunshineSyncUtils.rescheduleSyncIfIntervalChanged(context);
+                }
+                Log.d(TAG, "Sync job finished; " + SyncExecutor.getInstance());
+                return needsReschedule;
             }
-        };
-
-        mFetchWeatherTask.execute();
+        });
         return true;
     }
 
@@ -70,9 +101,12 @@ public class SunshineFirebaseJobService extends JobService {
      */
     @Override
     public boolean onStopJob(JobParameters jobParameters) {
-        if (mFetchWeatherTask != null) {
-            mFetchWeatherTask.cancel(true);
+        if (mCancellationSignal != null) {
+            mCancellationSignal.cancel();
+        }
+        if (mSync != null) {
+            mSync.cancel(true);
         }
         return true;
     }
-}
\ No newline at end of file
+}
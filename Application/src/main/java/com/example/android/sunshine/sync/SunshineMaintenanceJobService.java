@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.os.Bundle;
+import android.util.Log;
+
+import com.example.android.sunshine.data.WeatherContract;
+import com.firebase.jobdispatcher.JobParameters;
+import com.firebase.jobdispatcher.JobService;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+/**
+ * Looks after the database while the device is charging, once a day: the forecast history is
+ * compacted, so that keeping it doesn't grow the database without end, and then the database is
+ * kept within its storage budget and its free pages are vacuumed away (see StorageManager).
+ * <p>
+ * The work runs on the {@link SyncExecutor}, which has two threads, so it can run at the same
+ * time as a sync. The database lets only one of them write at a time: whichever begins its
+ * transaction second waits for the first to commit, so a long vacuum can hold up a sync's write.
+ */
+public class SunshineMaintenanceJobService extends JobService {
+
+    private static final String TAG = SunshineMaintenanceJobService.class.getSimpleName();
+
+    private SyncCancellationSignal mCancellationSignal;
+    private Future<Void> mMaintenance;
+
+    @Override
+    public boolean onStartJob(final JobParameters jobParameters) {
+        final SyncCancellationSignal cancellationSignal = new SyncCancellationSignal();
+        mCancellationSignal = cancellationSignal;
+
+        mMaintenance = SyncExecutor.getInstance().submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                try {
+                    maintainDatabase();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Maintenance failed", e);
+                } finally {
+                    /*
+                     * Maintenance is cheap to skip; the next day's run catches up. A job that
+                     * was stopped must not be reported as finished, as onStopJob has already
+                     * told the dispatcher not to retry it.
+                     */
+                    if (!cancellationSignal.isCanceled()) {
+                        jobFinished(jobParameters, false);
+                    }
+                }
+                return null;
+            }
+        });
+        return true;
+    }
+
+    private void maintainDatabase() {
+        Bundle result = getContentResolver().call(WeatherContract.WeatherEntry.CONTENT_URI,
+                WeatherContract.METHOD_COMPACT_HISTORY, null, null);
+        if (result != null) {
+            Log.d(TAG, "Compacted the forecast history: "
+                    + result.getInt(WeatherContract.RESULT_ROWS_DELETED) + " rows deleted, "
+                    + result.getInt(WeatherContract.RESULT_ROW_COUNT) + " rows left");
+        }
+
+        /* Compaction frees pages, so the storage is maintained after it */
+        result = getContentResolver().call(WeatherContract.WeatherEntry.CONTENT_URI,
+                WeatherContract.METHOD_MAINTAIN_STORAGE, null, null);
+        if (result != null) {
+            Log.d(TAG, "Maintained storage: "
+                    + result.getLong(WeatherContract.RESULT_BYTES_RECLAIMED)
+                    + " bytes reclaimed, "
+                    + result.getInt(WeatherContract.RESULT_LOCATIONS_EVICTED)
+                    + " locations evicted, database now "
+                    + result.getLong(WeatherContract.RESULT_DATABASE_BYTES) + " bytes");
+        }
+    }
+
+    /**
+     * Compaction runs in a single transaction, and each eviction and vacuum in one of its own,
+     * so stopping part way through leaves the database consistent. There is no need to retry;
+     * tomorrow's run will do.
+     */
+    @Override
+    public boolean onStopJob(JobParameters jobParameters) {
+        if (mCancellationSignal != null) {
+            mCancellationSignal.cancel();
+        }
+        if (mMaintenance != null) {
+            mMaintenance.cancel(true);
+        }
+        return false;
+    }
+}
@@ -17,19 +17,48 @@ package com.example.android.sunshine.sync;
 
 import android.app.IntentService;
 import android.content.Intent;
+import android.util.Log;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * An {@link IntentService} subclass for handling asynchronous task requests in
  * a service on a separate handler thread.
+ * <p>
+ * The sync itself runs on the {@link SyncExecutor}, like every other sync; the service's own
+ * thread only waits for it, so that the service isn't stopped until the sync has finished.
  */
 public class SunshineSyncIntentService extends IntentService {
 
+    private static final String TAG = SunshineSyncIntentService.class.getSimpleName();
+
     public SunshineSyncIntentService() {
         super("SunshineSyncIntentService");
     }
 
     @Override
     protected void onHandleIntent(Intent intent) {
-        SunshineSyncTask.syncWeather(this);
+        final SyncCancellationSignal cancellationSignal = new SyncCancellationSignal();
+        Future<MultiLocationSyncEngine.Outcome> sync = SyncExecutor.getInstance().submit(
+                new Callable<MultiLocationSyncEngine.Outcome>() {
+                    @Override
+                    public MultiLocationSyncEngine.Outcome call() {
+                        return SunshineSyncTask.syncWeather(SunshineSyncIntentService.this,
+                                cancellationSignal);
+                    }
+                });
+
+        try {
+            sync.get();
+        } catch (ExecutionException e) {
+            /* syncWeather catches every failure it expects, so this is a bug */
+            Log.e(TAG, "Immediate sync failed", e.getCause());
+        } catch (InterruptedException e) {
+            /* Don't leave the sync running once we've been told to stop */
+            cancellationSignal.cancel();
+            Thread.currentThread().interrupt();
+        }
     }
 }
\ No newline at end of file
@@ -15,32 +15,236 @@
  */
 package com.example.android.sunshine.sync;
 
-import android.content.ContentResolver;
+import android.content.ContentProvider;
+import android.content.ContentProviderClient;
 import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.os.OperationCanceledException;
+import android.os.SystemClock;
+import android.support.annotation.VisibleForTesting;
 import android.text.format.DateUtils;
+import android.util.Log;
 
+import com.example.android.sunshine.data.ForecastColumns;
+import com.example.android.sunshine.data.ForecastFreshness;
+import com.example.android.sunshine.data.ForecastWriter;
 import com.example.android.sunshine.data.SunshinePreferences;
 import com.example.android.sunshine.data.WeatherContract;
+import com.example.android.sunshine.data.WeatherProvider;
+import com.example.android.sunshine.utilities.MeteredInputStream;
 import com.example.android.sunshine.utilities.NetworkUtils;
 import com.example.android.sunshine.utilities.NotificationUtils;
 import com.example.android.sunshine.utilities.OpenWeatherJsonUtils;
+import com.example.android.sunshine.utilities.ResponseBodyReader;
+import com.example.android.sunshine.utilities.SyncMetrics;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 public class SunshineSyncTask {
 
+    private static final String TAG = SunshineSyncTask.class.getSimpleName();
+
+    /*
+     * By default, each day of the forecast is handed to our ContentProvider as soon as it has
+     * been parsed from the network, so we never hold the whole response in memory and the first
+     * rows are written while the rest of the body is still downloading. Set this to false to
+     * download and parse the whole forecast before writing any of it. Either way, only the days
+     * that actually changed are written.
+     */
+    private static final boolean USE_PIPELINED_SYNC = true;
+
+    /*
+     * When not pipelining, the forecast JSON is still parsed token by token as it is read from
+     * the network (see OpenWeatherJsonUtils#getWeatherContentValuesFromStream). If you need to
+     * fall back to the original parser, which reads the whole response into a String and builds
+     * a JSONObject tree from it, set this to false.
+     */
+    private static final boolean USE_STREAMING_PARSER = true;
+
+    /* Number of days handed to the ContentProvider at a time during a pipelined sync */
+    private static final int PIPELINED_BATCH_SIZE = 4;
+
+    /*
+     * An immediate sync from SunshineSyncIntentService and a scheduled one from
+     * SunshineFirebaseJobService can easily be asked for at the same moment. Rather than have
+     * them both hit the network, whichever comes second shares the sync of the first. Syncs of
+     * different locations don't wait for each other. MultiLocationSyncEngine shares and claims
+     * locations here too, so neither fetches a forecast the other is already fetching.
+     */
+    private static final SyncCoalescer<MultiLocationSyncEngine.Outcome> sSyncCoalescer =
+            new SyncCoalescer<>();
+
+    /*
+     * A sync that fails in a way that is likely to pass, such as the network dropping out, is
+     * tried again a couple of times after a short, jittered wait (see SyncRetryPolicy) rather
+     * than leaving the user without a forecast until the next periodic sync.
+     */
+    private static volatile SyncRetryPolicy sRetryPolicy = new SyncRetryPolicy();
+
     /**
      * Performs the network request for updated weather, parses the JSON from that request, and
      * inserts the new weather information into our ContentProvider. Will notify the user that new
      * weather has been loaded if the user hasn't been notified of the weather within the last day
      * AND they haven't disabled notifications in the preferences screen.
+     * <p>
+     * If the preferred location is already being synced, this waits for that sync to finish and
+     * returns its outcome instead of starting another.
      *
      * @param context Used to access utility methods and the ContentResolver
+     * @return What happened to the preferred location's forecast
+     */
+    public static MultiLocationSyncEngine.Outcome syncWeather(Context context) {
+        return syncWeather(context, new SyncCancellationSignal());
+    }
+
+    /**
+     * Like {@link #syncWeather(Context)}, but stops at the next stage of the sync once the
+     * signal is cancelled, keeping the forecast we had. Callers sharing the sync see it fail.
+     *
+     * @param context            Used to access utility methods and the ContentResolver
+     * @param cancellationSignal Cancel this to stop the sync
+     * @return What happened to the preferred location's forecast
+     * @throws OperationCanceledException If the signal was cancelled before the sync finished
+     */
+    public static MultiLocationSyncEngine.Outcome syncWeather(final Context context,
+            final SyncCancellationSignal cancellationSignal) {
+        /* The forecast is stored under the location it was requested for */
+        final String locationSetting = SunshinePreferences.getPreferredWeatherLocation(context);
+
+        try {
+            return sSyncCoalescer.sync(locationSetting,
+                    new Callable<MultiLocationSyncEngine.Outcome>() {
+                        @Override
+                        public MultiLocationSyncEngine.Outcome call() {
+                            return syncLocation(context, locationSetting, cancellationSignal);
+                        }
+                    });
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof OperationCanceledException) {
+                /* Only the caller that cancelled the sync is told so */
+                cancellationSignal.throwIfCanceled();
+                return MultiLocationSyncEngine.Outcome.FAILED;
+            }
+            /* syncLocation catches every failure it expects, so this is a bug */
+            Log.e(TAG, "Sync of " + locationSetting + " failed", e.getCause());
+            return MultiLocationSyncEngine.Outcome.FAILED;
+        } catch (InterruptedException e) {
+            /* We were asked to stop while we waited on someone else's sync */
+            Thread.currentThread().interrupt();
+            return MultiLocationSyncEngine.Outcome.FAILED;
+        }
+    }
+
+    /**
+     * Retries failed syncs with another policy, such as one that doesn't wait long in tests.
+     *
+     * @param retryPolicy Decides which syncs are retried, and when, or null for the default
      */
-    synchronized public static void syncWeather(Context context) {
+    @VisibleForTesting
+    public static void setRetryPolicy(SyncRetryPolicy retryPolicy) {
+        sRetryPolicy = retryPolicy == null ? new SyncRetryPolicy() : retryPolicy;
+    }
+
+    /**
+     * @return The number of syncs of a single location that actually went to the network
+     */
+    public static long getExecutedSyncCount() {
+        return sSyncCoalescer.getExecutedSyncCount();
+    }
+
+    /**
+     * @return The number of syncs that were asked for while the same location was already being
+     * synced, and so shared that sync instead of making another
+     */
+    public static long getCoalescedSyncCount() {
+        return sSyncCoalescer.getCoalescedSyncCount();
+    }
+
+    /**
+     * Lets another way of syncing, such as {@link MultiLocationSyncEngine}, share a sync of the
+     * location that is already running.
+     *
+     * @param locationSetting The location about to be synced
+     * @return The running sync of that location, or null if there isn't one
+     */
+    static Future<MultiLocationSyncEngine.Outcome> joinSyncInFlight(String locationSetting) {
+        return sSyncCoalescer.joinInFlight(locationSetting);
+    }
+
+    /**
+     * Lets another way of syncing, such as {@link MultiLocationSyncEngine}, mark the location as
+     * being synced, so that {@link #syncWeather(Context)} waits for it rather than fetch the same
+     * forecast again.
+     *
+     * @param locationSetting The location about to be synced
+     * @return The claim, which must be completed with the location's outcome, or null if the
+     * location is already being synced
+     */
+    static SyncCoalescer.Claim<MultiLocationSyncEngine.Outcome> claimSync(String locationSetting) {
+        return sSyncCoalescer.claim(locationSetting);
+    }
+
+    /**
+     * Does the actual work of {@link #syncWeather(Context)}, for a single location, retrying it
+     * if it fails in a way that is likely to pass.
+     *
+     * @param context            Used to access utility methods and the ContentResolver
+     * @param locationSetting    The preferred location
+     * @param cancellationSignal Checked at every stage of the sync
+     * @return What happened to the location's forecast
+     * @throws OperationCanceledException If the signal was cancelled
+     */
+    private static MultiLocationSyncEngine.Outcome syncLocation(final Context context,
+            final String locationSetting, final SyncCancellationSignal cancellationSignal) {
+        long syncStart = SystemClock.elapsedRealtimeNanos();
+        try {
+            return sRetryPolicy.execute(
+                    new SyncRetryPolicy.Attempt<MultiLocationSyncEngine.Outcome>() {
+                        @Override
+                        public MultiLocationSyncEngine.Outcome run() throws SyncException {
+                            return attemptSyncLocation(context, locationSetting,
+                                    cancellationSignal);
+                        }
+                    });
+        } catch (SyncException e) {
+            Log.w(TAG, "Sync of " + locationSetting + " failed (" + e.getKind()
+                    + (e.isRetryable() ? ", retryable" : ", permanent") + ")", e);
+            SyncMetrics.SYNCS_FAILED.increment();
+            return MultiLocationSyncEngine.Outcome.FAILED;
+        } catch (InterruptedException e) {
+            /* We were asked to stop while we waited to retry */
+            Thread.currentThread().interrupt();
+            return MultiLocationSyncEngine.Outcome.FAILED;
+        } finally {
+            SyncMetrics.SYNC.recordSince(syncStart);
+        }
+    }
 
+    /**
+     * Makes a single attempt at syncing a location.
+     *
+     * @param context            Used to access utility methods and the ContentResolver
+     * @param locationSetting    The preferred location
+     * @param cancellationSignal Checked at every stage of the sync
+     * @return UPDATED or UNCHANGED
+     * @throws SyncException              Why the attempt failed
+     * @throws OperationCanceledException If the signal was cancelled
+     */
+    private static MultiLocationSyncEngine.Outcome attemptSyncLocation(Context context,
+            String locationSetting, SyncCancellationSignal cancellationSignal)
+            throws SyncException {
         try {
+            cancellationSignal.throwIfCanceled(SyncCancellationSignal.Stage.CONNECT);
+
             /*
              * The getUrl method will return the URL that we need to get the forecast JSON for the
              * weather. It will decide whether to create a URL based off of the latitude and
@@ -48,69 +252,483 @@ public class SunshineSyncTask {
              */
             URL weatherRequestUrl = NetworkUtils.getUrl(context);
 
-            /* Use the URL to retrieve the JSON */
-            String jsonWeatherResponse = NetworkUtils.getResponseFromHttpUrl(weatherRequestUrl);
-
-            /* Parse the JSON into a list of weather values */
-            ContentValues[] weatherValues = OpenWeatherJsonUtils
-                    .getWeatherContentValuesFromJson(context, jsonWeatherResponse);
+            SyncTimings timings = new SyncTimings();
+            boolean weatherUpdated = false;
 
             /*
-             * In cases where our JSON contained an error code, getWeatherContentValuesFromJson
-             * would have returned null. We need to check for those cases here to prevent any
-             * NullPointerExceptions being thrown. We also have no reason to insert fresh data if
-             * there isn't any to insert.
+             * If we still have the forecast from our last sync, we ask the server to only send a
+             * new one if it has changed. If we have no forecast for this location (the database
+             * was cleared, for example) we must not, or the server would tell us that nothing
+             * changed and we'd never get a forecast again.
              */
-            if (weatherValues != null && weatherValues.length != 0) {
-                /* Get a handle on the ContentResolver to delete and insert data */
-                ContentResolver sunshineContentResolver = context.getContentResolver();
-
-                /* Delete old weather data because we don't need to keep multiple days' data */
-                sunshineContentResolver.delete(
-                        WeatherContract.WeatherEntry.CONTENT_URI,
-                        null,
-                        null);
-
-                /* Insert our new weather data into Sunshine's ContentProvider */
-                sunshineContentResolver.bulkInsert(
-                        WeatherContract.WeatherEntry.CONTENT_URI,
-                        weatherValues);
+            boolean haveForecast = hasStoredForecast(context, locationSetting);
 
-                /*
-                 * Finally, after we insert data into the ContentProvider, determine whether or not
-                 * we should notify the user that the weather has been refreshed.
-                 */
-                boolean notificationsEnabled = SunshinePreferences.areNotificationsEnabled(context);
+            long syncStart = SystemClock.elapsedRealtimeNanos();
+            HttpURLConnection urlConnection = NetworkUtils.openConditionalHttpUrlConnection(
+                    context, weatherRequestUrl, haveForecast);
+            /* Cancelling the sync closes the connection, so a blocked read fails at once */
+            cancellationSignal.addConnection(urlConnection);
+            try {
+                /* This blocks until the server has responded with its headers */
+                if (NetworkUtils.isNotModified(context, weatherRequestUrl, urlConnection)) {
+                    timings.downloadNanos = SystemClock.elapsedRealtimeNanos() - syncStart;
+                    Log.d(TAG, "Forecast not modified, nothing to do: " + timings);
+                    /* The forecast we have is as fresh as the server's */
+                    ForecastFreshness.markFetched(context, locationSetting);
+                    return MultiLocationSyncEngine.Outcome.UNCHANGED;
+                }
+                int status = urlConnection.getResponseCode();
+                if (status != HttpURLConnection.HTTP_OK) {
+                    throw SyncException.httpStatus(status);
+                }
 
                 /*
-                 * If the last notification was shown was more than 1 day ago, we want to send
-                 * another notification to the user that the weather has been updated. Remember,
-                 * it's important that you shouldn't spam your users with notifications.
+                 * We meter the body twice: once as it comes over the wire, which tells us how
+                 * long we spent waiting on the network, and once after it has been decompressed.
                  */
-                long timeSinceLastNotification = SunshinePreferences
-                        .getEllapsedTimeSinceLastNotification(context);
+                MeteredInputStream wireStream = new MeteredInputStream(new CancellableInputStream(
+                        urlConnection.getInputStream(), cancellationSignal));
+                long connectNanos = SystemClock.elapsedRealtimeNanos() - syncStart;
 
-                boolean oneDayPassedSinceLastNotification = false;
-
-                if (timeSinceLastNotification >= DateUtils.DAY_IN_MILLIS) {
-                    oneDayPassedSinceLastNotification = true;
+                MeteredInputStream in = new MeteredInputStream(
+                        NetworkUtils.decodeResponseBody(urlConnection, wireStream));
+                try {
+                    weatherUpdated = syncWeatherFromStream(context, locationSetting,
+                            urlConnection, in, wireStream, syncStart, timings,
+                            cancellationSignal);
+                } finally {
+                    in.close();
                 }
 
+                timings.downloadNanos = connectNanos + wireStream.getReadNanos();
+                timings.bytesRead = wireStream.getBytesRead();
+                timings.decodedBytes = in.getBytesRead();
+                SyncMetrics.BODY_READ.record(wireStream.getReadNanos());
+                SyncMetrics.PARSE.record(timings.parseNanos);
+                SyncMetrics.BYTES_READ.add(timings.bytesRead);
+
                 /*
-                 * We only want to show the notification if the user wants them shown and we
-                 * haven't shown a notification in the past day.
+                 * Only now that the new forecast is safely stored can the next sync ask the
+                 * server whether it has changed.
                  */
-                if (notificationsEnabled && oneDayPassedSinceLastNotification) {
-                    NotificationUtils.notifyUserOfNewWeather(context);
+                if (weatherUpdated) {
+                    NetworkUtils.saveValidators(context, weatherRequestUrl, urlConnection,
+                            wireStream.getBytesRead());
                 }
+            } finally {
+                cancellationSignal.removeConnection(urlConnection);
+                urlConnection.disconnect();
+            }
 
-            /* If the code reaches this point, we have successfully performed our sync */
+            Log.d(TAG, "Sync finished: " + timings);
+
+            /*
+             * In cases where our JSON contained an error code, or there wasn't any weather to
+             * insert, nothing was written. The server would only send the same thing again, so
+             * this is a failure that isn't worth retrying. A forecast that is exactly the one
+             * we already had is no failure, but we have no reason to tell the user about it.
+             */
+            if (!weatherUpdated) {
+                throw SyncException.parse("The server sent no forecast for " + locationSetting,
+                        null);
+            }
 
+            if (!timings.forecastChanged()) {
+                return MultiLocationSyncEngine.Outcome.UNCHANGED;
             }
 
+            /*
+             * Finally, after we insert data into the ContentProvider, determine whether or not
+             * we should notify the user that the weather has been refreshed. Only the sync that
+             * actually ran does this, however many callers shared it.
+             */
+            notifyUserIfNeeded(context);
+
+            /* If the code reaches this point, we have successfully performed our sync */
+            return MultiLocationSyncEngine.Outcome.UPDATED;
+
+        } catch (OperationCanceledException e) {
+            /* Never retried; whatever was being written has been rolled back */
+            throw e;
         } catch (Exception e) {
-            /* Server probably invalid */
-            e.printStackTrace();
+            /* A connection closed by cancelling the sync fails like any other */
+            cancellationSignal.throwIfCanceled();
+            /* Work out whether it is worth trying again */
+            throw SyncException.classify(e);
+        }
+    }
+
+    /**
+     * Refreshes the forecast of every saved location, and of the preferred location even if it
+     * hasn't been saved yet, fetching them in parallel with a {@link MultiLocationSyncEngine}.
+     * Will notify the user that new weather has been loaded if the preferred location's forecast
+     * changed, under the same conditions as {@link #syncWeather(Context)}.
+     * <p>
+     * This is the periodic sync, run by SunshineFirebaseJobService, so it also adapts the
+     * interval between periodic syncs to what it found. Nothing else should call it.
+     *
+     * @param context Used to access utility methods and the ContentResolver
+     * @return true if a location failed in a way that is likely to pass, even after retrying,
+     * so the sync should be rescheduled
+     */
+    public static boolean syncSavedLocations(Context context) {
+        return syncSavedLocations(context, new SyncCancellationSignal());
+    }
+
+    /**
+     * Like {@link #syncSavedLocations(Context)}, but stops as soon as the signal is cancelled,
+     * without writing anything.
+     *
+     * @param context            Used to access utility methods and the ContentResolver
+     * @param cancellationSignal Cancel this to stop the sync
+     * @return true if the sync should be rescheduled
+     * @throws OperationCanceledException If the signal was cancelled before the sync finished
+     */
+    public static boolean syncSavedLocations(Context context,
+                                             SyncCancellationSignal cancellationSignal) {
+        List<String> locationSettings = MultiLocationSyncEngine.getSavedLocations(context);
+        String preferredLocation = SunshinePreferences.getPreferredWeatherLocation(context);
+        if (!locationSettings.contains(preferredLocation)) {
+            locationSettings.add(0, preferredLocation);
+        }
+
+        try {
+            MultiLocationSyncEngine.Result result =
+                    new MultiLocationSyncEngine(context).sync(locationSettings, cancellationSignal);
+            Log.d(TAG, "Saved locations synced: " + result);
+
+            /*
+             * Sync more or less often, depending on how much the forecast has been changing. Only
+             * this, the periodic sync, adapts the interval; immediate syncs are asked for at
+             * arbitrary times and would skew it. A sync where every location failed tells us
+             * nothing about the forecast.
+             */
+            if (result.getFailedCount() < result.getLocationCount()) {
+                SunshineSyncUtils.onPeriodicSyncFinished(context, result.getDaysReceived(),
+                        result.getDaysChanged());
+            }
+
+            if (result.getOutcome(preferredLocation) == MultiLocationSyncEngine.Outcome.UPDATED) {
+                notifyUserIfNeeded(context);
+            }
+            return result.needsRetry();
+        } catch (InterruptedException e) {
+            /* We were asked to stop; let whoever runs us know */
+            Thread.currentThread().interrupt();
+            return true;
+        }
+    }
+
+    /**
+     * Parses the forecast out of a response body and stores it, either pipelined straight into
+     * WeatherProvider or by buffering it first.
+     * <p>
+     * The body is read from in, which has already been decompressed. Time spent reading from
+     * wireStream is time spent waiting on the network, so it is left out of the parse time;
+     * the time spent decompressing is counted as parsing.
+     *
+     * @param locationSetting The location the forecast is for
+     * @return true if a valid forecast was received and stored
+     */
+    private static boolean syncWeatherFromStream(Context context, String locationSetting,
+            HttpURLConnection urlConnection, InputStream in, MeteredInputStream wireStream,
+            long syncStart, SyncTimings timings, SyncCancellationSignal cancellationSignal)
+            throws Exception {
+
+        /*
+         * We write the forecast straight into WeatherProvider through a ForecastWriter, which
+         * is only possible when the provider lives in our own process. That is always the case
+         * in Sunshine, but we fall back to going through the ContentResolver if it ever isn't.
+         */
+        ContentProviderClient client = context.getContentResolver()
+                .acquireContentProviderClient(WeatherContract.CONTENT_AUTHORITY);
+        WeatherProvider weatherProvider = null;
+        ContentProvider localProvider = client == null ? null : client.getLocalContentProvider();
+        if (localProvider instanceof WeatherProvider) {
+            weatherProvider = (WeatherProvider) localProvider;
+        }
+
+        try {
+            if (USE_PIPELINED_SYNC && weatherProvider != null) {
+                return syncWeatherPipelined(context, locationSetting, in, wireStream,
+                        weatherProvider, syncStart, timings, cancellationSignal);
+            } else {
+                return syncWeatherBuffered(context, locationSetting, urlConnection, in,
+                        wireStream, weatherProvider, syncStart, timings, cancellationSignal);
+            }
+        } finally {
+            if (client != null) {
+                client.release();
+            }
+        }
+    }
+
+    /**
+     * Parses and writes the forecast while it downloads. Each day is decoded as soon as its bytes
+     * arrive, and every PIPELINED_BATCH_SIZE days are handed to WeatherProvider inside a single
+     * transaction that also removes days that are no longer part of the forecast. If anything
+     * goes wrong part way through, or the sync is cancelled, the transaction is rolled back and
+     * the old forecast is kept.
+     * <p>
+     * The transaction is only begun when the first batch arrives, but it then holds SQLite's
+     * writer lock until the rest of the body has come in. A forecast is a few KB, so that is
+     * short, and readers are never blocked by it.
+     *
+     * @return true if a valid forecast was received and stored
+     */
+    private static boolean syncWeatherPipelined(Context context, String locationSetting,
+            InputStream in, MeteredInputStream wireStream, WeatherProvider weatherProvider,
+            long syncStart, SyncTimings timings, SyncCancellationSignal cancellationSignal)
+            throws IOException {
+
+        long streamStart = SystemClock.elapsedRealtimeNanos();
+
+        ForecastWriter writer = weatherProvider.openForecastWriter(locationSetting);
+        try {
+            WeatherBatcher batcher =
+                    new WeatherBatcher(writer, syncStart, timings, cancellationSignal);
+            boolean forecastValid = OpenWeatherJsonUtils.parseForecast(context, in,
+                    batcher.getBatch(), batcher);
+            batcher.flush();
+
+            long streamNanos = SystemClock.elapsedRealtimeNanos() - streamStart;
+            timings.parseNanos = streamNanos - wireStream.getReadNanos() - timings.writeNanos;
+
+            /* The server may report an error after days have been written; discard them */
+            if (!forecastValid || writer.getRowsReceived() == 0) {
+                return false;
+            }
+
+            /* Closing the writer without committing rolls back everything written so far */
+            cancellationSignal.throwIfCanceled(SyncCancellationSignal.Stage.WRITE);
+            long commitStart = SystemClock.elapsedRealtimeNanos();
+            setLocationCoordinates(context, writer);
+            writer.commit();
+            timings.writeNanos += SystemClock.elapsedRealtimeNanos() - commitStart;
+            timings.recordWriterCounts(writer);
+
+            return true;
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Parses the whole forecast, then stores it. If we have WeatherProvider to hand, only the
+     * days that changed are written through a ForecastWriter. Otherwise the old forecast is
+     * replaced through the ContentResolver with a single call to METHOD_REPLACE_FORECAST, which
+     * does the same thing on the provider's side.
+     *
+     * @param weatherProvider Our WeatherProvider, or null if it isn't in this process
+     * @return true if a valid forecast was received and stored
+     */
+    private static boolean syncWeatherBuffered(Context context, String locationSetting,
+            HttpURLConnection urlConnection, InputStream in, MeteredInputStream wireStream,
+            WeatherProvider weatherProvider, long syncStart, SyncTimings timings,
+            SyncCancellationSignal cancellationSignal) throws Exception {
+
+        long parseStart = SystemClock.elapsedRealtimeNanos();
+
+        /* Parse the JSON from the response into columns of weather values */
+        ForecastColumns weatherDays;
+        if (USE_STREAMING_PARSER) {
+            weatherDays = OpenWeatherJsonUtils.getForecastColumnsFromStream(context, in);
+        } else {
+            String jsonWeatherResponse = ResponseBodyReader.readBody(in,
+                    urlConnection.getContentType(),
+                    NetworkUtils.getDecodedContentLength(urlConnection),
+                    NetworkUtils.getMaxResponseBytes());
+            ContentValues[] weatherValues = OpenWeatherJsonUtils
+                    .getWeatherContentValuesFromJson(context, jsonWeatherResponse);
+            weatherDays = weatherValues == null
+                    ? null : ForecastColumns.fromContentValues(weatherValues);
+        }
+
+        timings.parseNanos =
+                SystemClock.elapsedRealtimeNanos() - parseStart - wireStream.getReadNanos();
+
+        /*
+         * In cases where our JSON contained an error code, the parsers would have returned
+         * null. We need to check for those cases here to prevent any
+         * NullPointerExceptions being thrown. We also have no reason to insert fresh data if
+         * there isn't any to insert.
+         */
+        if (weatherDays == null || weatherDays.size() == 0) {
+            return false;
+        }
+
+        cancellationSignal.throwIfCanceled(SyncCancellationSignal.Stage.WRITE);
+        long writeStart = SystemClock.elapsedRealtimeNanos();
+
+        if (weatherProvider != null) {
+            ForecastWriter writer = weatherProvider.openForecastWriter(locationSetting);
+            try {
+                writer.insert(weatherDays);
+                setLocationCoordinates(context, writer);
+                writer.commit();
+            } finally {
+                writer.close();
+            }
+
+            long writeEnd = SystemClock.elapsedRealtimeNanos();
+            timings.writeNanos = writeEnd - writeStart;
+            timings.firstRowNanos = writeEnd - syncStart;
+            timings.recordWriterCounts(writer);
+
+            return true;
+        }
+
+        /*
+         * Replace the old forecast with the new one in a single call, so that nobody querying
+         * the weather ever sees the table empty between removing the old forecast and
+         * inserting the new one. Only here, crossing into another process, do we need the
+         * forecast as ContentValues.
+         */
+        Bundle extras = new Bundle();
+        extras.putParcelableArray(WeatherContract.EXTRA_WEATHER_VALUES,
+                weatherDays.toContentValuesArray());
+        Bundle result = context.getContentResolver().call(
+                WeatherContract.WeatherEntry.CONTENT_URI,
+                WeatherContract.METHOD_REPLACE_FORECAST,
+                locationSetting,
+                extras);
+
+        if (result != null) {
+            timings.rowsWritten = result.getInt(WeatherContract.RESULT_ROWS_WRITTEN);
+            timings.rowsSkipped = result.getInt(WeatherContract.RESULT_ROWS_SKIPPED);
+            timings.rowsDeleted = result.getInt(WeatherContract.RESULT_ROWS_DELETED);
+        }
+
+        long writeEnd = SystemClock.elapsedRealtimeNanos();
+        timings.writeNanos = writeEnd - writeStart;
+        timings.firstRowNanos = writeEnd - syncStart;
+
+        return true;
+    }
+
+    /**
+     * Stores the coordinates the parser saved in SunshinePreferences along with the forecast, so
+     * that they are still at hand if the user switches back to this location later.
+     */
+    private static void setLocationCoordinates(Context context, ForecastWriter writer) {
+        if (SunshinePreferences.isLocationLatLonAvailable(context)) {
+            double[] coordinates = SunshinePreferences.getLocationCoordinates(context);
+            writer.setLocationCoordinates(coordinates[0], coordinates[1]);
+        }
+    }
+
+    /**
+     * Checks whether there is any weather stored for a location.
+     *
+     * @param context         Used to access the ContentResolver
+     * @param locationSetting The location to check
+     * @return true if the location has at least one day of weather stored
+     */
+    static boolean hasStoredForecast(Context context, String locationSetting) {
+        Cursor cursor = context.getContentResolver().query(
+                WeatherContract.WeatherEntry.buildWeatherUriWithLocation(locationSetting),
+                new String[]{WeatherContract.WeatherEntry._ID},
+                null,
+                null,
+                null);
+
+        if (cursor == null) {
+            return false;
+        }
+
+        boolean haveForecast = cursor.getCount() > 0;
+        cursor.close();
+        return haveForecast;
+    }
+
+    /**
+     * Shows a notification that the weather has been updated, unless the user has disabled them
+     * or has already been notified within the last day.
+     *
+     * @param context Used to access SharedPreferences and show the notification
+     */
+    private static void notifyUserIfNeeded(Context context) {
+        boolean notificationsEnabled = SunshinePreferences.areNotificationsEnabled(context);
+
+        /*
+         * If the last notification was shown was more than 1 day ago, we want to send
+         * another notification to the user that the weather has been updated. Remember,
+         * it's important that you shouldn't spam your users with notifications.
+         */
+        long timeSinceLastNotification = SunshinePreferences
+                .getEllapsedTimeSinceLastNotification(context);
+
+        boolean oneDayPassedSinceLastNotification = false;
+
+        if (timeSinceLastNotification >= DateUtils.DAY_IN_MILLIS) {
+            oneDayPassedSinceLastNotification = true;
+        }
+
+        /*
+         * We only want to show the notification if the user wants them shown and we
+         * haven't shown a notification in the past day.
+         */
+        if (notificationsEnabled && oneDayPassedSinceLastNotification) {
+            NotificationUtils.notifyUserOfNewWeather(context);
+        }
+    }
+
+    /**
+     * Collects the days coming out of the parser into small batches and hands each full batch to
+     * the ForecastWriter, keeping track of how long the writes take. The same batch is cleared
+     * and refilled for the whole forecast, so batching allocates nothing per day.
+     */
+    private static class WeatherBatcher implements OpenWeatherJsonUtils.DayForecastListener {
+
+        private final ForecastWriter mWriter;
+        private final long mSyncStartNanos;
+        private final SyncTimings mTimings;
+        private final SyncCancellationSignal mCancellationSignal;
+
+        private final ForecastColumns mBatch = new ForecastColumns(PIPELINED_BATCH_SIZE);
+
+        WeatherBatcher(ForecastWriter writer, long syncStartNanos, SyncTimings timings,
+                       SyncCancellationSignal cancellationSignal) {
+            mWriter = writer;
+            mSyncStartNanos = syncStartNanos;
+            mTimings = timings;
+            mCancellationSignal = cancellationSignal;
+        }
+
+        /**
+         * @return The columns the parser should add each day to
+         */
+        ForecastColumns getBatch() {
+            return mBatch;
+        }
+
+        @Override
+        public void onDayForecast(ForecastColumns days) {
+            mCancellationSignal.throwIfCanceled(SyncCancellationSignal.Stage.PARSE);
+            if (days.size() >= PIPELINED_BATCH_SIZE) {
+                flush();
+            }
+        }
+
+        /**
+         * Writes whatever days are still waiting in the current batch.
+         */
+        void flush() {
+            if (mBatch.size() == 0) {
+                return;
+            }
+
+            mCancellationSignal.throwIfCanceled(SyncCancellationSignal.Stage.WRITE);
+            long writeStart = SystemClock.elapsedRealtimeNanos();
+            mWriter.insert(mBatch);
+            long writeEnd = SystemClock.elapsedRealtimeNanos();
+
+            mTimings.writeNanos += writeEnd - writeStart;
+            if (mTimings.firstRowNanos < 0) {
+                mTimings.firstRowNanos = writeEnd - mSyncStartNanos;
+            }
+
+            mBatch.clear();
         }
     }
-}
\ No newline at end of file
+}
@@ -17,17 +17,16 @@ package com.example.android.sunshine.sync;
 
 import android.content.Context;
 import android.content.Intent;
-import android.database.Cursor;
-import android.net.Uri;
 import android.support.annotation.NonNull;
 
-import com.example.android.sunshine.data.WeatherContract;
+import com.example.android.sunshine.data.SunshinePreferences;
 import com.firebase.jobdispatcher.Constraint;
 import com.firebase.jobdispatcher.Driver;
 import com.firebase.jobdispatcher.FirebaseJobDispatcher;
 import com.firebase.jobdispatcher.GooglePlayDriver;
 import com.firebase.jobdispatcher.Job;
 import com.firebase.jobdispatcher.Lifetime;
+import com.firebase.jobdispatcher.RetryStrategy;
 import com.firebase.jobdispatcher.Trigger;
 
 import java.util.concurrent.TimeUnit;
@@ -37,22 +36,132 @@ public class SunshineSyncUtils {
     /*
      * Interval at which to sync with the weather. Use TimeUnit for convenience, rather than
      * writing out a bunch of multiplication ourselves and risk making a silly mistake.
+     *
+     * This is only where we start: while syncs keep bringing back the same forecast, the
+     * interval stretches towards SYNC_MAX_INTERVAL_HOURS, and when the forecast starts shifting
+     * it shrinks towards SYNC_MIN_INTERVAL_HOURS (see AdaptiveSyncPolicy).
      */
     private static final int SYNC_INTERVAL_HOURS = 3;
     private static final int SYNC_INTERVAL_SECONDS = (int) TimeUnit.HOURS.toSeconds(SYNC_INTERVAL_HOURS);
-    private static final int SYNC_FLEXTIME_SECONDS = SYNC_INTERVAL_SECONDS / 3;
+
+    private static final int SYNC_MIN_INTERVAL_HOURS = 1;
+    private static final int SYNC_MAX_INTERVAL_HOURS = 12;
+
+    /*
+     * When a periodic sync fails in a way that is likely to pass, FirebaseJobDispatcher tries it
+     * again, first after a minute and then after twice as long each time, up to an hour.
+     */
+    private static final int SYNC_RETRY_INITIAL_BACKOFF_SECONDS = 60;
+    private static final int SYNC_RETRY_MAX_BACKOFF_SECONDS = (int) TimeUnit.HOURS.toSeconds(1);
 
     private static boolean sInitialized;
 
+    /* Guards the read-modify-write of the saved sync interval */
+    private static final Object sSyncIntervalLock = new Object();
+
+    /* Set when the interval has been adapted, until the sync is scheduled again with it */
+    private static boolean sRescheduleNeeded;
+
     private static final String SUNSHINE_SYNC_TAG = "sunshine-sync";
 
+    /* Database maintenance runs once a day, give or take a few hours */
+    private static final String SUNSHINE_MAINTENANCE_TAG = "sunshine-maintenance";
+    private static final int MAINTENANCE_INTERVAL_SECONDS = (int) TimeUnit.DAYS.toSeconds(1);
+    private static final int MAINTENANCE_FLEXTIME_SECONDS = (int) TimeUnit.HOURS.toSeconds(6);
+
     /**
-     * Schedules a repeating sync of Sunshine's weather data using FirebaseJobDispatcher.
+     * Creates the policy that adapts the sync interval, starting from the interval saved after
+     * the last sync.
+     *
+     * @param context Used to access SharedPreferences
+     * @return The policy, bounded by SYNC_MIN_INTERVAL_HOURS and SYNC_MAX_INTERVAL_HOURS
+     */
+    static AdaptiveSyncPolicy createSyncPolicy(@NonNull Context context) {
+        return new AdaptiveSyncPolicy(
+                TimeUnit.HOURS.toSeconds(SYNC_MIN_INTERVAL_HOURS),
+                TimeUnit.HOURS.toSeconds(SYNC_MAX_INTERVAL_HOURS),
+                SunshinePreferences.getSyncIntervalSeconds(context, SYNC_INTERVAL_SECONDS));
+    }
+
+    /**
+     * Creates the policy that decides whether the stored forecast is fresh enough to show. Its
+     * soft TTL is the window the periodic sync currently runs in, so that a forecast the periodic
+     * sync is keeping up to date is never treated as stale.
+     *
+     * @param context Used to access SharedPreferences
+     * @return The policy, with a soft TTL of the current sync interval plus flex
+     */
+    static FreshnessPolicy createFreshnessPolicy(@NonNull Context context) {
+        long intervalSeconds = createSyncPolicy(context).getIntervalSeconds();
+        long softTtlMillis = TimeUnit.SECONDS.toMillis(
+                intervalSeconds + getSyncFlextimeSeconds(intervalSeconds));
+        return new FreshnessPolicy(softTtlMillis,
+                Math.max(FreshnessPolicy.DEFAULT_HARD_TTL_MILLIS, softTtlMillis));
+    }
+
+    /* The periodic sync may run this long after its interval is up */
+    private static long getSyncFlextimeSeconds(long syncIntervalSeconds) {
+        return syncIntervalSeconds / 3;
+    }
+
+    /**
+     * Adapts the interval between periodic syncs to what a successful periodic sync found. Only
+     * the periodic sync is passed on here: an immediate sync says nothing about how often the
+     * forecast changes between periodic ones. A sync that failed should not be passed on either.
+     * <p>
+     * The new interval is saved straight away, but the sync is only scheduled again with it once
+     * the job that ran it has finished, by {@link #rescheduleSyncIfIntervalChanged(Context)}.
+     * Replacing the job while it is still running could have the dispatcher stop it.
+     *
+     * @param context      Used to access SharedPreferences
+     * @param daysReceived The number of days of forecast received, or 0 if the server said the
+     *                     forecast hadn't changed
+     * @param daysChanged  The number of days inserted, updated or deleted as a result
+     */
+    static void onPeriodicSyncFinished(@NonNull Context context, int daysReceived,
+                                       int daysChanged) {
+        /* Two syncs finishing at once must not both adapt the same saved interval */
+        synchronized (sSyncIntervalLock) {
+            AdaptiveSyncPolicy policy = createSyncPolicy(context);
+            long oldIntervalSeconds = policy.getIntervalSeconds();
+            long newIntervalSeconds = policy.onSyncFinished(daysReceived, daysChanged);
+            if (newIntervalSeconds == oldIntervalSeconds) {
+                return;
+            }
+
+            SunshinePreferences.saveSyncIntervalSeconds(context, newIntervalSeconds);
+            sRescheduleNeeded = true;
+        }
+    }
+
+    /**
+     * Schedules the periodic sync again if its interval has changed since it was last scheduled.
+     * Call this only once the job that ran the sync has told the dispatcher it has finished.
+     *
+     * @param context Context used to create the GooglePlayDriver that powers the
+     *                FirebaseJobDispatcher
+     */
+    static void rescheduleSyncIfIntervalChanged(@NonNull Context context) {
+        synchronized (sSyncIntervalLock) {
+            if (!sRescheduleNeeded) {
+                return;
+            }
+            sRescheduleNeeded = false;
+        }
+        scheduleFirebaseJobDispatcherSync(context);
+    }
+
+    /**
+     * Schedules a repeating sync of Sunshine's weather data using FirebaseJobDispatcher, at the
+     * interval saved after the last sync.
      * @param context Context used to create the GooglePlayDriver that powers the
      *                FirebaseJobDispatcher
      */
     static void scheduleFirebaseJobDispatcherSync(@NonNull final Context context) {
 
+        int syncIntervalSeconds = (int) createSyncPolicy(context).getIntervalSeconds();
+        int syncFlextimeSeconds = (int) getSyncFlextimeSeconds(syncIntervalSeconds);
+
         Driver driver = new GooglePlayDriver(context);
         FirebaseJobDispatcher dispatcher = new FirebaseJobDispatcher(driver);
 
@@ -84,24 +193,61 @@ public class SunshineSyncUtils {
                  * sync should be performed. The second argument is the latest point in time at
                  * which the data should be synced. Please note that this end time is not
                  * guaranteed, but is more of a guideline for FirebaseJobDispatcher to go off of.
+                 * The interval itself is adapted as the forecast changes, between 1 and 12 hours.
                  */
                 .setTrigger(Trigger.executionWindow(
-                        SYNC_INTERVAL_SECONDS,
-                        SYNC_INTERVAL_SECONDS + SYNC_FLEXTIME_SECONDS))
+                        syncIntervalSeconds,
+                        syncIntervalSeconds + syncFlextimeSeconds))
                 /*
                  * If a Job with the tag with provided already exists, this new job will replace
                  * the old one.
                  */
                 .setReplaceCurrent(true)
+                /*
+                 * A sync that failed for a reason that is likely to pass asks to be rescheduled,
+                 * and is then retried with exponential backoff.
+                 */
+                .setRetryStrategy(dispatcher.newRetryStrategy(
+                        RetryStrategy.RETRY_POLICY_EXPONENTIAL,
+                        SYNC_RETRY_INITIAL_BACKOFF_SECONDS,
+                        SYNC_RETRY_MAX_BACKOFF_SECONDS))
                 /* Once the Job is ready, call the builder's build method to return the Job */
                 .build();
 
         /* Schedule the Job with the dispatcher */
         dispatcher.schedule(syncSunshineJob);
     }
+
+    /**
+     * Schedules the daily database maintenance, which compacts the forecast history and keeps
+     * the database within its storage budget (see {@link SunshineMaintenanceJobService}). It only
+     * runs while the device is charging, so that it never costs the user battery.
+     *
+     * @param context Context used to create the GooglePlayDriver that powers the
+     *                FirebaseJobDispatcher
+     */
+    static void scheduleMaintenance(@NonNull final Context context) {
+        FirebaseJobDispatcher dispatcher = new FirebaseJobDispatcher(new GooglePlayDriver(context));
+
+        Job maintenanceJob = dispatcher.newJobBuilder()
+                .setService(SunshineMaintenanceJobService.class)
+                .setTag(SUNSHINE_MAINTENANCE_TAG)
+                .setConstraints(Constraint.DEVICE_CHARGING)
+                .setLifetime(Lifetime.FOREVER)
+                .setRecurring(true)
+                .setTrigger(Trigger.executionWindow(
+                        MAINTENANCE_INTERVAL_SECONDS,
+                        MAINTENANCE_INTERVAL_SECONDS + MAINTENANCE_FLEXTIME_SECONDS))
+                .setReplaceCurrent(true)
+                .build();
+
+        dispatcher.schedule(maintenanceJob);
+    }
+
     /**
-     * Creates periodic sync tasks and checks to see if an immediate sync is required. If an
-     * immediate sync is required, this method will take care of making sure that sync occurs.
+     * Creates periodic sync tasks. Whether an immediate sync is required is not decided here,
+     * once per process, but every time MainActivity starts (see {@link StartupSync}), as the
+     * forecast can expire while Sunshine is still running.
      *
      * @param context Context that will be passed to other methods and used to access the
      *                ContentResolver
@@ -122,61 +268,8 @@ public class SunshineSyncUtils {
          */
         scheduleFirebaseJobDispatcherSync(context);
 
-        /*
-         * We need to check to see if our ContentProvider has data to display in our forecast
-         * list. However, performing a query on the main thread is a bad idea as this may
-         * cause our UI to lag. Therefore, we create a thread in which we will run the query
-         * to check the contents of our ContentProvider.
-         */
-        Thread checkForEmpty = new Thread(new Runnable() {
-            @Override
-            public void run() {
-
-                /* URI for every row of weather data in our weather table*/
-                Uri forecastQueryUri = WeatherContract.WeatherEntry.CONTENT_URI;
-
-                /*
-                 * Since this query is going to be used only as a check to see if we have any
-                 * data (rather than to display data), we just need to PROJECT the ID of each
-                 * row. In our queries where we display data, we need to PROJECT more columns
-                 * to determine what weather details need to be displayed.
-                 */
-                String[] projectionColumns = {WeatherContract.WeatherEntry._ID};
-                String selectionStatement = WeatherContract.WeatherEntry
-                        .getSqlSelectForTodayOnwards();
-
-                /* Here, we perform the query to check to see if we have any weather data */
-                Cursor cursor = context.getContentResolver().query(
-                        forecastQueryUri,
-                        projectionColumns,
-                        selectionStatement,
-                        null,
-                        null);
-                /*
-                 * A Cursor object can be null for various different reasons. A few are
-                 * listed below.
-                 *
-                 *   1) Invalid URI
-                 *   2) A certain ContentProvider's query method returns null
-                 *   3) A RemoteException was thrown.
-                 *
-                 * Bottom line, it is generally a good idea to check if a Cursor returned
-                 * from a ContentResolver is null.
-                 *
-                 * If the Cursor was null OR if it was empty, we need to sync immediately to
-                 * be able to display data to the user.
-                 */
-                if (null == cursor || cursor.getCount() == 0) {
-                    startImmediateSync(context);
-                }
-
-                /* Make sure to close the Cursor to avoid memory leaks! */
-                cursor.close();
-            }
-        });
-
-        /* Finally, once the thread is prepared, fire it off to perform our checks. */
-        checkForEmpty.start();
+        /* The database is compacted and vacuumed once a day while the device charges */
+        scheduleMaintenance(context);
     }
 
     /**
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.os.SystemClock;
+
+import com.example.android.sunshine.utilities.SyncMetrics;
+
+import java.net.HttpURLConnection;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Lets a sync be stopped part way through, for example when the job dispatcher stops our job
+ * because the device lost its network.
+ * <p>
+ * The sync checks the signal at every stage: before it connects, on every read from the network,
+ * after every day it parses and before every write. Once the signal has been cancelled, the next
+ * check throws {@link OperationCanceledException}, and a sync that was writing rolls back its
+ * transaction, so the old forecast is kept whole. A sync blocked waiting on the network can't
+ * check anything, so the connections it has open are closed as soon as the signal is cancelled,
+ * which makes the blocked read fail at once.
+ * <p>
+ * The signal also measures how long the sync took to stop after it was cancelled, and at which
+ * stage it did.
+ */
+public final class SyncCancellationSignal {
+
+    /**
+     * The stages of a sync at which it checks whether it has been cancelled.
+     */
+    public enum Stage {
+        CONNECT,
+        READ,
+        PARSE,
+        WRITE
+    }
+
+    /* Handed to the database layer, which knows nothing about syncs */
+    private final CancellationSignal mDatabaseSignal = new CancellationSignal();
+
+    /* Connections to close as soon as the signal is cancelled */
+    private final CopyOnWriteArrayList<HttpURLConnection> mOpenConnections =
+            new CopyOnWriteArrayList<>();
+
+    private volatile long mCancelledAtNanos = -1;
+    private volatile Stage mStage = Stage.CONNECT;
+
+    private long mAbortedAfterNanos = -1;
+    private Stage mAbortedStage;
+
+    /**
+     * Asks the sync to stop. Returns at once; the sync stops at its next check.
+     */
+    public void cancel() {
+        synchronized (this) {
+            if (mCancelledAtNanos >= 0) {
+                return;
+            }
+            mCancelledAtNanos = SystemClock.elapsedRealtimeNanos();
+        }
+        mDatabaseSignal.cancel();
+        for (HttpURLConnection connection : mOpenConnections) {
+            disconnectQuietly(connection);
+        }
+    }
+
+    public boolean isCanceled() {
+        return mCancelledAtNanos >= 0;
+    }
+
+    /**
+     * Checks whether the sync should stop, as it enters or carries on with a stage.
+     *
+     * @param stage The stage the sync is at
+     * @throws OperationCanceledException If the signal has been cancelled
+     */
+    public void throwIfCanceled(Stage stage) {
+        mStage = stage;
+        if (isCanceled()) {
+            recordAbort(stage);
+            throw new OperationCanceledException("Sync cancelled during " + stage);
+        }
+    }
+
+    /**
+     * Checks whether a failure is really the sync being cancelled, such as a read that failed
+     * because its connection was closed by {@link #cancel()}. Call it whenever a stage fails.
+     *
+     * @throws OperationCanceledException If the signal has been cancelled
+     */
+    public void throwIfCanceled() {
+        throwIfCanceled(mStage);
+    }
+
+    /**
+     * @return A signal for the database layer, which is cancelled along with this one
+     */
+    public CancellationSignal getDatabaseSignal() {
+        return mDatabaseSignal;
+    }
+
+    /**
+     * Closes the connection as soon as the signal is cancelled, or at once if it already has
+     * been. Remove it again once it is closed.
+     */
+    void addConnection(HttpURLConnection connection) {
+        mOpenConnections.add(connection);
+        if (isCanceled()) {
+            disconnectQuietly(connection);
+        }
+    }
+
+    void removeConnection(HttpURLConnection connection) {
+        mOpenConnections.remove(connection);
+    }
+
+    /**
+     * @return How long the sync took to stop after the signal was cancelled, or -1 if it hasn't
+     * stopped (or wasn't cancelled)
+     */
+    public synchronized long getCancelLatencyNanos() {
+        return mAbortedAfterNanos;
+    }
+
+    /**
+     * @return The stage the sync was at when it stopped, or null if it hasn't stopped
+     */
+    public synchronized Stage getAbortedStage() {
+        return mAbortedStage;
+    }
+
+    /* Only the first check to notice the cancellation counts; others may follow on other threads */
+    private synchronized void recordAbort(Stage stage) {
+        if (mAbortedStage == null) {
+            mAbortedStage = stage;
+            mAbortedAfterNanos = SystemClock.elapsedRealtimeNanos() - mCancelledAtNanos;
+            SyncMetrics.CANCEL.record(mAbortedAfterNanos);
+        }
+    }
+
+    private static void disconnectQuietly(HttpURLConnection connection) {
+        try {
+            connection.disconnect();
+        } catch (RuntimeException ignored) {
+            /* The connection is being abandoned either way */
+        }
+    }
+}
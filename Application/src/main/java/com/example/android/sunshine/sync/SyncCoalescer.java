@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import com.example.android.sunshine.utilities.SyncMetrics;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs at most one sync per key, usually a location, at a time.
+ * <p>
+ * A caller that asks for a sync while one for the same key is already running doesn't start
+ * another one: it waits for the running sync and gets its result, so both callers are served by
+ * a single trip to the network. Syncs of different keys don't wait for each other at all.
+ * <p>
+ * A caller that can't hand its sync over as a Callable, such as {@link MultiLocationSyncEngine},
+ * which fetches many locations at once and only knows the outcome of each once they have all been
+ * written, can {@link #claim(String)} a key instead. Callers of {@link #sync(String, Callable)}
+ * then wait for the claim just as they would for any other sync.
+ * <p>
+ * Nothing is cached once a sync finishes; the next caller for that key starts a new one.
+ *
+ * @param <T> The result of a sync
+ */
+public class SyncCoalescer<T> {
+
+    private final ConcurrentHashMap<String, FutureTask<T>> mInFlight = new ConcurrentHashMap<>();
+
+    private final AtomicLong mExecutedSyncs = new AtomicLong();
+    private final AtomicLong mCoalescedSyncs = new AtomicLong();
+
+    /**
+     * Runs the sync on the calling thread, unless a sync for the same key is already running, in
+     * which case it waits for that one instead.
+     *
+     * @param key  Identifies what is being synced, such as the location setting
+     * @param sync The work to do if no sync for the key is running
+     * @return The result of whichever sync ran
+     * @throws ExecutionException   If the sync that ran threw; every caller sharing it gets this
+     * @throws InterruptedException If the calling thread was interrupted while it waited
+     */
+    public T sync(String key, Callable<T> sync) throws ExecutionException, InterruptedException {
+        FutureTask<T> task = new FutureTask<>(sync);
+        FutureTask<T> inFlight = mInFlight.putIfAbsent(key, task);
+        if (inFlight != null) {
+            mCoalescedSyncs.incrementAndGet();
+            SyncMetrics.SYNCS_COALESCED.increment();
+            return inFlight.get();
+        }
+
+        mExecutedSyncs.incrementAndGet();
+        SyncMetrics.SYNCS_RUNNING.increment();
+        try {
+            task.run();
+        } finally {
+            SyncMetrics.SYNCS_RUNNING.decrement();
+            /* Only remove our own task; a later one may have taken its place already */
+            mInFlight.remove(key, task);
+        }
+        return task.get();
+    }
+
+    /**
+     * Marks the key as being synced by the caller, without handing over the work. Until the
+     * caller completes or fails the claim, callers of {@link #sync(String, Callable)} for the key
+     * wait for it rather than start their own sync.
+     * <p>
+     * The claim must always be completed or failed, or the key stays blocked.
+     *
+     * @param key Identifies what is being synced, such as the location setting
+     * @return The claim, or null if a sync of the key is already running
+     */
+    public Claim<T> claim(String key) {
+        Claim<T> claim = new Claim<>(this, key);
+        if (mInFlight.putIfAbsent(key, claim) != null) {
+            return null;
+        }
+        mExecutedSyncs.incrementAndGet();
+        SyncMetrics.SYNCS_RUNNING.increment();
+        return claim;
+    }
+
+    /**
+     * Lets a caller that has its own way of syncing, such as {@link MultiLocationSyncEngine},
+     * share a sync that is already running rather than start another.
+     * <p>
+     * Only syncs started with {@link #sync(String, Callable)} are shared, never claims. Whoever
+     * holds a claim may itself be waiting on other syncs before it completes it, so two claimers
+     * waiting on each other's claims could wait forever.
+     *
+     * @param key Identifies what is being synced, such as the location setting
+     * @return The sync running for the key, counted as coalesced, or null if there isn't one
+     */
+    public Future<T> joinInFlight(String key) {
+        Future<T> inFlight = mInFlight.get(key);
+        if (inFlight instanceof Claim) {
+            return null;
+        }
+        if (inFlight != null) {
+            mCoalescedSyncs.incrementAndGet();
+            SyncMetrics.SYNCS_COALESCED.increment();
+        }
+        return inFlight;
+    }
+
+    /**
+     * @return The number of syncs that actually ran
+     */
+    public long getExecutedSyncCount() {
+        return mExecutedSyncs.get();
+    }
+
+    /**
+     * @return The number of syncs that were asked for but shared one already running instead
+     */
+    public long getCoalescedSyncCount() {
+        return mCoalescedSyncs.get();
+    }
+
+    /**
+     * A sync of one key that is being run by whoever claimed it, rather than by the coalescer.
+     *
+     * @param <T> The result of the sync
+     */
+    public static final class Claim<T> extends FutureTask<T> {
+
+        private final SyncCoalescer<T> mCoalescer;
+        private final String mKey;
+        private final AtomicBoolean mReleased = new AtomicBoolean();
+
+        private Claim(SyncCoalescer<T> coalescer, String key) {
+            super(new Callable<T>() {
+                @Override
+                public T call() {
+                    throw new IllegalStateException("A claim is completed by whoever holds it");
+                }
+            });
+            mCoalescer = coalescer;
+            mKey = key;
+        }
+
+        /**
+         * Hands the result to every caller waiting on the claim, and frees the key. Does nothing
+         * if the claim was already completed or failed.
+         *
+         * @param result The result of the sync
+         */
+        public void complete(T result) {
+            set(result);
+            release();
+        }
+
+        /**
+         * Passes the failure on to every caller waiting on the claim, and frees the key. Does
+         * nothing if the claim was already completed or failed.
+         *
+         * @param failure Why the sync failed
+         */
+        public void fail(Throwable failure) {
+            setException(failure);
+            release();
+        }
+
+        /**
+         * @return The key this claim is for
+         */
+        public String getKey() {
+            return mKey;
+        }
+
+        private void release() {
+            if (mReleased.compareAndSet(false, true)) {
+                SyncMetrics.SYNCS_RUNNING.decrement();
+                mCoalescer.mInFlight.remove(mKey, this);
+            }
+        }
+    }
+}
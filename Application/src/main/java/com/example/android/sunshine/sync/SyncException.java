@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteFullException;
+import android.util.MalformedJsonException;
+
+import com.example.android.sunshine.utilities.ResponseTooLargeException;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+
+/**
+ * Why a sync failed, sorted into the few kinds of failure that call for different handling.
+ * <p>
+ * Some failures are worth retrying after a short wait: the network dropped out, the server was
+ * overloaded, or the database was busy. Others will fail in exactly the same way however often
+ * we try, such as the server not knowing the location we asked for, and retrying them only
+ * wastes battery. {@link #isRetryable()} tells the two apart.
+ */
+public class SyncException extends Exception {
+
+    public enum Kind {
+        /* We couldn't reach the server, or the connection broke while we were reading */
+        NETWORK,
+        /* The server answered, but with an error status */
+        HTTP_STATUS,
+        /* The server sent something that isn't a forecast we can use */
+        PARSE,
+        /* The forecast couldn't be stored */
+        STORAGE
+    }
+
+    /* Status for "Too Many Requests", which HttpURLConnection has no constant for */
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    private final Kind mKind;
+    private final int mHttpStatus;
+
+    private SyncException(Kind kind, int httpStatus, String message, Throwable cause) {
+        super(message, cause);
+        mKind = kind;
+        mHttpStatus = httpStatus;
+    }
+
+    /**
+     * @param cause What went wrong talking to the server
+     * @return A failure of the network
+     */
+    public static SyncException network(IOException cause) {
+        return new SyncException(Kind.NETWORK, -1, "Network failure: " + cause, cause);
+    }
+
+    /**
+     * @param httpStatus The status the server answered with
+     * @return A failure of the server to send us the forecast
+     */
+    public static SyncException httpStatus(int httpStatus) {
+        return new SyncException(Kind.HTTP_STATUS, httpStatus,
+                "The server answered with status " + httpStatus, null);
+    }
+
+    /**
+     * @param message What was wrong with the response
+     * @param cause   The exception thrown by the parser, or null if there wasn't one
+     * @return A failure to make sense of what the server sent
+     */
+    public static SyncException parse(String message, Throwable cause) {
+        return new SyncException(Kind.PARSE, -1, message, cause);
+    }
+
+    /**
+     * @param message What couldn't be stored
+     * @param cause   What went wrong writing to the database, or null if we don't know
+     * @return A failure to store the forecast
+     */
+    public static SyncException storage(String message, RuntimeException cause) {
+        return new SyncException(Kind.STORAGE, -1, message, cause);
+    }
+
+    /**
+     * Sorts any exception thrown during a sync into one of the kinds of failure.
+     *
+     * @param e What was thrown
+     * @return e itself if it is already a SyncException, otherwise a SyncException wrapping it
+     */
+    public static SyncException classify(Exception e) {
+        if (e instanceof SyncException) {
+            return (SyncException) e;
+        }
+        /* The JSON parser reports malformed input as an IOException, so check for it first */
+        if (e instanceof MalformedJsonException) {
+            return parse("Malformed forecast: " + e.getMessage(), e);
+        }
+        /* Asking again for a body that was too large would only get us the same body */
+        if (e instanceof ResponseTooLargeException) {
+            return parse(e.getMessage(), e);
+        }
+        if (e instanceof IOException) {
+            return network((IOException) e);
+        }
+        if (e instanceof SQLiteException) {
+            return storage("Could not store the forecast: " + e.getMessage(),
+                    (SQLiteException) e);
+        }
+        /*
+         * JsonReader throws IllegalStateException when a value isn't of the type we expect, and
+         * we throw NumberFormatException for numbers we can't read.
+         */
+        if (e instanceof IllegalStateException || e instanceof NumberFormatException) {
+            return parse("Unexpected forecast: " + e.getMessage(), e);
+        }
+        return new SyncException(Kind.PARSE, -1, "Unexpected failure: " + e, e);
+    }
+
+    public Kind getKind() {
+        return mKind;
+    }
+
+    /**
+     * @return The status the server answered with, or -1 if this isn't an HTTP_STATUS failure
+     */
+    public int getHttpStatus() {
+        return mHttpStatus;
+    }
+
+    /**
+     * @return true if trying again later may well succeed
+     */
+    public boolean isRetryable() {
+        switch (mKind) {
+            case NETWORK:
+                return true;
+
+            case HTTP_STATUS:
+                /*
+                 * A server error, a timeout or being told to slow down will likely pass. Any
+                 * other client error, such as 404 for a location the server doesn't know, won't.
+                 */
+                return mHttpStatus >= 500
+                        || mHttpStatus == HttpURLConnection.HTTP_CLIENT_TIMEOUT
+                        || mHttpStatus == HTTP_TOO_MANY_REQUESTS;
+
+            case STORAGE:
+                /* A locked database frees up; a full disk doesn't, at least not by itself */
+                return !(getCause() instanceof SQLiteFullException);
+
+            case PARSE:
+            default:
+                /* The server will send us the same thing again */
+                return false;
+        }
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.os.SystemClock;
+import android.support.annotation.VisibleForTesting;
+
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs every sync in the app, whether it was asked for by {@link SunshineSyncIntentService} or
+ * scheduled by {@link SunshineFirebaseJobService}.
+ * <p>
+ * Syncs used to run on AsyncTask's executor, which is shared by every AsyncTask in the app, so a
+ * sync could sit behind unrelated work (or hold it up), and there was no way to tell how long it
+ * had waited. Here, syncs run on threads of their own, named "SunshineSync-1" and so on, at
+ * background priority. There are two of them, so that a sync the user asked for doesn't wait
+ * behind a long periodic sync of every saved location; if both want the same location, they
+ * share a single fetch (see {@link SyncCoalescer}). The threads go away when there's nothing left
+ * to sync.
+ * <p>
+ * The executor keeps count of how many syncs are waiting to run, how long they waited and how
+ * long they ran for. Tests can swap in an executor that runs every sync on the calling thread
+ * (see {@link #createSynchronous()} and {@link #setInstance(SyncExecutor)}).
+ */
+public class SyncExecutor {
+
+    private static final String THREAD_NAME_PREFIX = "SunshineSync";
+
+    private static final int SYNC_THREADS = 2;
+
+    /* How long a sync thread waits for more work before it goes away */
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static SyncExecutor sInstance;
+
+    private final Executor mExecutor;
+
+    private final AtomicInteger mQueueDepth = new AtomicInteger();
+    private final AtomicInteger mMaxQueueDepth = new AtomicInteger();
+    private final AtomicInteger mRunning = new AtomicInteger();
+    private final AtomicLong mCompleted = new AtomicLong();
+    private final AtomicLong mTotalWaitNanos = new AtomicLong();
+    private final AtomicLong mTotalRunNanos = new AtomicLong();
+    private final AtomicLong mMaxRunNanos = new AtomicLong();
+
+    /**
+     * Creates an executor that runs syncs on dedicated background threads.
+     */
+    public SyncExecutor() {
+        this(createBackgroundExecutor());
+    }
+
+    /**
+     * Creates an executor that hands syncs to another executor, while still measuring them.
+     *
+     * @param executor Runs the syncs
+     */
+    public SyncExecutor(Executor executor) {
+        mExecutor = executor;
+    }
+
+    /**
+     * @return The executor every sync in the app runs on
+     */
+    public static synchronized SyncExecutor getInstance() {
+        if (sInstance == null) {
+            sInstance = new SyncExecutor();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Runs every sync from now on with another executor, such as a synchronous one in tests.
+     *
+     * @param executor The executor to use, or null to go back to the default one
+     */
+    @VisibleForTesting
+    public static synchronized void setInstance(SyncExecutor executor) {
+        sInstance = executor;
+    }
+
+    /**
+     * @return An executor that runs each sync on the thread that submits it, before
+     * {@link #submit(Callable)} returns
+     */
+    public static SyncExecutor createSynchronous() {
+        return new SyncExecutor(new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                runnable.run();
+            }
+        });
+    }
+
+    /**
+     * Queues a sync to run.
+     *
+     * @param sync The sync
+     * @return The result of the sync, once it has run. Cancelling it with interruption interrupts
+     * the sync thread.
+     * @throws RejectedExecutionException If the executor can't take any more work
+     */
+    public <T> Future<T> submit(Callable<T> sync) {
+        InstrumentedSync<T> task = new InstrumentedSync<>(sync);
+        int queueDepth = mQueueDepth.incrementAndGet();
+        updateMax(mMaxQueueDepth, queueDepth);
+        try {
+            mExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            mQueueDepth.decrementAndGet();
+            throw e;
+        }
+        return task;
+    }
+
+    /**
+     * @return How many syncs have been submitted and not yet started
+     */
+    public int getQueueDepth() {
+        return mQueueDepth.get();
+    }
+
+    /**
+     * @return The most syncs that have ever been waiting to start at once
+     */
+    public int getMaxQueueDepth() {
+        return mMaxQueueDepth.get();
+    }
+
+    /**
+     * @return How many syncs are running right now
+     */
+    public int getRunningCount() {
+        return mRunning.get();
+    }
+
+    /**
+     * @return How many syncs have finished, whether or not they succeeded
+     */
+    public long getCompletedCount() {
+        return mCompleted.get();
+    }
+
+    /**
+     * @return How long, on average, a finished sync waited before it started
+     */
+    public long getMeanWaitNanos() {
+        long completed = mCompleted.get();
+        return completed == 0 ? 0 : mTotalWaitNanos.get() / completed;
+    }
+
+    /**
+     * @return How long, on average, a finished sync ran for
+     */
+    public long getMeanRunNanos() {
+        long completed = mCompleted.get();
+        return completed == 0 ? 0 : mTotalRunNanos.get() / completed;
+    }
+
+    /**
+     * @return How long the longest sync ran for
+     */
+    public long getMaxRunNanos() {
+        return mMaxRunNanos.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "%d syncs finished (mean wait %d ms, mean run %d ms, longest %d ms), "
+                        + "%d running, %d queued (at most %d)",
+                getCompletedCount(),
+                TimeUnit.NANOSECONDS.toMillis(getMeanWaitNanos()),
+                TimeUnit.NANOSECONDS.toMillis(getMeanRunNanos()),
+                TimeUnit.NANOSECONDS.toMillis(getMaxRunNanos()),
+                getRunningCount(),
+                getQueueDepth(),
+                getMaxQueueDepth());
+    }
+
+    private static Executor createBackgroundExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(SYNC_THREADS, SYNC_THREADS,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new SyncThreadFactory(THREAD_NAME_PREFIX));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    private static void updateMax(AtomicInteger max, int value) {
+        int current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * A sync that records how long it waited to start and how long it ran.
+     */
+    private class InstrumentedSync<T> extends FutureTask<T> {
+
+        private final long mSubmittedAtNanos = SystemClock.elapsedRealtimeNanos();
+
+        InstrumentedSync(Callable<T> sync) {
+            super(sync);
+        }
+
+        @Override
+        public void run() {
+            mQueueDepth.decrementAndGet();
+            if (isDone()) {
+                /* Cancelled while it was waiting; there is nothing to run or measure */
+                return;
+            }
+
+            long startNanos = SystemClock.elapsedRealtimeNanos();
+            mRunning.incrementAndGet();
+            try {
+                super.run();
+            } finally {
+                long runNanos = SystemClock.elapsedRealtimeNanos() - startNanos;
+                mRunning.decrementAndGet();
+                mTotalWaitNanos.addAndGet(startNanos - mSubmittedAtNanos);
+                mTotalRunNanos.addAndGet(runNanos);
+                updateMax(mMaxRunNanos, runNanos);
+                mCompleted.incrementAndGet();
+            }
+        }
+    }
+}
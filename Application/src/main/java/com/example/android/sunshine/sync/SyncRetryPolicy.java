@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.util.Log;
+
+import com.example.android.sunshine.utilities.SyncMetrics;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tries a sync again, after a short wait, when it fails in a way that is likely to pass.
+ * <p>
+ * The wait doubles with every attempt, up to a maximum, so that a server that is struggling
+ * isn't hammered. On top of that, each wait is picked at random between half and all of that
+ * doubled delay. Without this jitter, every phone that failed at the same moment (because the
+ * server went down, say) would come back at the same moment too, and knock it over again.
+ * <p>
+ * Failures that won't pass, such as the server not knowing the location, are never retried.
+ */
+public class SyncRetryPolicy {
+
+    private static final String TAG = SyncRetryPolicy.class.getSimpleName();
+
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+    public static final long DEFAULT_INITIAL_DELAY_MILLIS = 2000;
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 30000;
+
+    /**
+     * A single attempt at whatever is being retried.
+     *
+     * @param <T> The result of a successful attempt
+     */
+    public interface Attempt<T> {
+        T run() throws SyncException, InterruptedException;
+    }
+
+    private final int mMaxAttempts;
+    private final long mInitialDelayMillis;
+    private final long mMaxDelayMillis;
+    private final Random mRandom;
+
+    private final AtomicInteger mRetries = new AtomicInteger();
+
+    /**
+     * Creates a policy with the default number of attempts and delays.
+     */
+    public SyncRetryPolicy() {
+        this(DEFAULT_MAX_ATTEMPTS, DEFAULT_INITIAL_DELAY_MILLIS, DEFAULT_MAX_DELAY_MILLIS,
+                new Random());
+    }
+
+    /**
+     * @param maxAttempts        How many times to try in all, including the first
+     * @param initialDelayMillis The delay before the first retry, before jitter
+     * @param maxDelayMillis     No delay is ever longer than this
+     * @param random             Source of the jitter
+     */
+    public SyncRetryPolicy(int maxAttempts, long initialDelayMillis, long maxDelayMillis,
+                           Random random) {
+        if (maxAttempts < 1 || initialDelayMillis < 0 || maxDelayMillis < initialDelayMillis) {
+            throw new IllegalArgumentException("Invalid retry policy");
+        }
+        mMaxAttempts = maxAttempts;
+        mInitialDelayMillis = initialDelayMillis;
+        mMaxDelayMillis = maxDelayMillis;
+        mRandom = random;
+    }
+
+    /**
+     * Runs the attempt, and runs it again after a delay for as long as it fails in a retryable
+     * way and attempts remain.
+     *
+     * @param attempt What to try
+     * @return The result of the first attempt that succeeded
+     * @throws SyncException        The failure of the last attempt, if none succeeded
+     * @throws InterruptedException If we were interrupted while waiting to retry
+     */
+    public <T> T execute(Attempt<T> attempt) throws SyncException, InterruptedException {
+        for (int attemptsMade = 1; ; attemptsMade++) {
+            try {
+                return attempt.run();
+            } catch (SyncException e) {
+                if (!shouldRetry(e, attemptsMade)) {
+                    throw e;
+                }
+
+                long delayMillis = getDelayMillis(attemptsMade);
+                Log.d(TAG, "Attempt " + attemptsMade + " failed, retrying in " + delayMillis
+                        + " ms: " + e.getMessage());
+                mRetries.incrementAndGet();
+                SyncMetrics.SYNC_RETRIES.increment();
+                Thread.sleep(delayMillis);
+            }
+        }
+    }
+
+    /**
+     * @param failure      Why the last attempt failed
+     * @param attemptsMade How many attempts have been made so far
+     * @return true if another attempt should be made
+     */
+    public boolean shouldRetry(SyncException failure, int attemptsMade) {
+        return failure.isRetryable() && attemptsMade < mMaxAttempts;
+    }
+
+    /**
+     * @param attemptsMade How many attempts have been made so far, at least 1
+     * @return How long to wait before the next attempt, in milliseconds
+     */
+    public long getDelayMillis(int attemptsMade) {
+        /* Double the delay for every attempt after the first, taking care not to overflow */
+        long delayMillis = mInitialDelayMillis;
+        for (int i = 1; i < attemptsMade && delayMillis < mMaxDelayMillis; i++) {
+            delayMillis *= 2;
+        }
+        delayMillis = Math.min(delayMillis, mMaxDelayMillis);
+
+        /* Jitter: anywhere between half the delay and all of it */
+        long half = delayMillis / 2;
+        return half + (long) (mRandom.nextDouble() * (delayMillis - half));
+    }
+
+    /**
+     * @return How many retries this policy has made, over everything it has run
+     */
+    public int getRetryCount() {
+        return mRetries.get();
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.os.Process;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Names the sync threads and keeps them at background priority, so that a big sync never
+ * competes with the UI thread, and so that each sync thread can be told apart in a trace.
+ */
+class SyncThreadFactory implements ThreadFactory {
+
+    private final String mNamePrefix;
+    private final AtomicInteger mThreadCount = new AtomicInteger();
+
+    /**
+     * @param namePrefix Each thread is named after this, followed by a dash and its number
+     */
+    SyncThreadFactory(String namePrefix) {
+        mNamePrefix = namePrefix;
+    }
+
+    @Override
+    public Thread newThread(final Runnable runnable) {
+        return new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                runnable.run();
+            }
+        }, mNamePrefix + "-" + mThreadCount.incrementAndGet());
+    }
+}
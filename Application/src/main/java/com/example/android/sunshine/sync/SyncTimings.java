@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import com.example.android.sunshine.data.ForecastWriter;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Where the time went during a single sync. In a pipelined sync, downloading, parsing and
+ * writing are interleaved, so each figure is the sum of the time spent in that stage rather
+ * than a contiguous span.
+ */
+class SyncTimings {
+
+    /* Time spent connecting and waiting on the network for the response body */
+    long downloadNanos;
+    /* Time spent decoding the JSON, excluding the time spent waiting on the network */
+    long parseNanos;
+    /* Time spent writing to the database, including the commit */
+    long writeNanos;
+    /* Time from the start of the sync until the first row was written, or -1 if none were */
+    long firstRowNanos = -1;
+
+    /* Size of the response body as it came over the wire, which may have been compressed */
+    long bytesRead;
+    /* Size of the response body once decompressed */
+    long decodedBytes;
+
+    /* Rows inserted or updated, rows that were already stored as received, and stale rows */
+    int rowsWritten;
+    int rowsSkipped;
+    int rowsDeleted;
+
+    /**
+     * Copies the row counts out of the ForecastWriter that stored the forecast.
+     */
+    void recordWriterCounts(ForecastWriter writer) {
+        rowsWritten = writer.getRowsWritten();
+        rowsSkipped = writer.getRowsSkipped();
+        rowsDeleted = writer.getRowsDeleted();
+    }
+
+    /**
+     * @return The number of days of forecast that were received and stored
+     */
+    int getDaysReceived() {
+        return rowsWritten + rowsSkipped;
+    }
+
+    /**
+     * @return The number of days of the stored forecast that were inserted, updated or deleted
+     */
+    int getDaysChanged() {
+        return rowsWritten + rowsDeleted;
+    }
+
+    /**
+     * @return true if the sync changed the stored forecast at all
+     */
+    boolean forecastChanged() {
+        return getDaysChanged() > 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "download %d ms, parse %d ms, write %d ms, first row after %d ms "
+                        + "(%d bytes on the wire, %d bytes decoded; "
+                        + "%d rows written, %d skipped, %d deleted)",
+                toMillis(downloadNanos),
+                toMillis(parseNanos),
+                toMillis(writeNanos),
+                firstRowNanos < 0 ? -1 : toMillis(firstRowNanos),
+                bytesRead,
+                decodedBytes,
+                rowsWritten,
+                rowsSkipped,
+                rowsDeleted);
+    }
+
+    private static long toMillis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.utilities;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An InputStream that refuses to read more than a set number of bytes from the underlying
+ * stream. Wrapped around a decompressor, it limits the size of the body once it has been
+ * decoded, so a small compressed body can't expand into one that fills up memory.
+ */
+public class BoundedInputStream extends FilterInputStream {
+
+    private final int mMaxBytes;
+    private long mBytesRead;
+
+    /**
+     * @param in       The stream to read from
+     * @param maxBytes The most bytes we'll read before throwing a
+     *                 {@link ResponseTooLargeException}
+     */
+    public BoundedInputStream(InputStream in, int maxBytes) {
+        super(in);
+        mMaxBytes = maxBytes;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b != -1) {
+            count(1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+        int read = super.read(buffer, offset, count);
+        if (read > 0) {
+            count(read);
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long byteCount) throws IOException {
+        long skipped = super.skip(byteCount);
+        count(skipped);
+        return skipped;
+    }
+
+    /* Mark and reset would make the byte count ambiguous, so we don't support them */
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    private void count(long bytes) throws ResponseTooLargeException {
+        mBytesRead += bytes;
+        if (mBytesRead > mMaxBytes) {
+            throw new ResponseTooLargeException(mMaxBytes);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.utilities;
+
+import android.os.SystemClock;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An InputStream that keeps track of how many bytes have been read through it and how long
+ * reads spent waiting on the underlying stream. When the underlying stream is the body of an
+ * HTTP response, the time spent in read is the time we spent waiting on the network.
+ */
+public class MeteredInputStream extends FilterInputStream {
+
+    private long mBytesRead;
+    private long mReadNanos;
+
+    public MeteredInputStream(InputStream in) {
+        super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+        long start = SystemClock.elapsedRealtimeNanos();
+        int b = super.read();
+        mReadNanos += SystemClock.elapsedRealtimeNanos() - start;
+        if (b != -1) {
+            mBytesRead++;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+        long start = SystemClock.elapsedRealtimeNanos();
+        int read = super.read(buffer, offset, count);
+        mReadNanos += SystemClock.elapsedRealtimeNanos() - start;
+        if (read > 0) {
+            mBytesRead += read;
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long byteCount) throws IOException {
+        long skipped = super.skip(byteCount);
+        mBytesRead += skipped;
+        return skipped;
+    }
+
+    /* Mark and reset would make the byte count ambiguous, so we don't support them */
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    /**
+     * @return The number of bytes read through this stream so far
+     */
+    public long getBytesRead() {
+        return mBytesRead;
+    }
+
+    /**
+     * @return The total time, in nanoseconds, spent blocked reading the underlying stream
+     */
+    public long getReadNanos() {
+        return mReadNanos;
+    }
+}
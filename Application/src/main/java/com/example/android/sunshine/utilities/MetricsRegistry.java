@@ -0,0 +1,335 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.utilities;
+
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A small, in-process registry of counters, gauges and latency histograms.
+ * <p>
+ * Metrics are registered once, up front, and the code being measured holds on to them (see
+ * {@link SyncMetrics}), so recording a value never looks anything up. Every metric is backed by
+ * atomics and fixed-size arrays, so recording never allocates or takes a lock, and is safe from
+ * any thread. Only dumping the metrics as text allocates.
+ */
+public final class MetricsRegistry {
+
+    /**
+     * Upper bounds of the default latency buckets, in milliseconds. Anything slower than the
+     * last bound is counted in an extra overflow bucket.
+     */
+    public static final long[] DEFAULT_LATENCY_BUCKETS_MILLIS =
+            {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000};
+
+    private final List<Metric> mMetrics = new ArrayList<>();
+
+    /**
+     * Registers a counter: a number that only ever goes up, such as requests made.
+     *
+     * @param name Shown when the metrics are dumped
+     * @return The counter to increment
+     */
+    public synchronized Counter counter(String name) {
+        Counter counter = new Counter(name);
+        mMetrics.add(counter);
+        return counter;
+    }
+
+    /**
+     * Registers a gauge: a number that goes up and down, such as syncs in progress.
+     *
+     * @param name Shown when the metrics are dumped
+     * @return The gauge to set
+     */
+    public synchronized Gauge gauge(String name) {
+        Gauge gauge = new Gauge(name);
+        mMetrics.add(gauge);
+        return gauge;
+    }
+
+    /**
+     * Registers a latency histogram with the default buckets.
+     *
+     * @param name Shown when the metrics are dumped
+     * @return The histogram to record latencies in
+     */
+    public synchronized Histogram histogram(String name) {
+        Histogram histogram = new Histogram(name, DEFAULT_LATENCY_BUCKETS_MILLIS);
+        mMetrics.add(histogram);
+        return histogram;
+    }
+
+    /**
+     * Sets every metric back to zero, for example between benchmark runs.
+     */
+    public synchronized void reset() {
+        for (Metric metric : mMetrics) {
+            metric.reset();
+        }
+    }
+
+    /**
+     * Writes every metric, one per line, in the order they were registered.
+     *
+     * @param writer Where to write them
+     */
+    public synchronized void dump(PrintWriter writer) {
+        for (Metric metric : mMetrics) {
+            writer.println(metric);
+        }
+        writer.flush();
+    }
+
+    private abstract static class Metric {
+
+        final String mName;
+
+        Metric(String name) {
+            mName = name;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        abstract void reset();
+    }
+
+    /**
+     * A number that only ever goes up.
+     */
+    public static final class Counter extends Metric {
+
+        private final AtomicLong mValue = new AtomicLong();
+
+        Counter(String name) {
+            super(name);
+        }
+
+        public void increment() {
+            mValue.incrementAndGet();
+        }
+
+        public void add(long delta) {
+            mValue.addAndGet(delta);
+        }
+
+        public long get() {
+            return mValue.get();
+        }
+
+        @Override
+        void reset() {
+            mValue.set(0);
+        }
+
+        @Override
+        public String toString() {
+            return mName + " " + mValue.get();
+        }
+    }
+
+    /**
+     * A number that goes up and down. Also remembers the highest it has been.
+     */
+    public static final class Gauge extends Metric {
+
+        private final AtomicLong mValue = new AtomicLong();
+        private final AtomicLong mMax = new AtomicLong();
+
+        Gauge(String name) {
+            super(name);
+        }
+
+        public void set(long value) {
+            mValue.set(value);
+            updateMax(mMax, value);
+        }
+
+        public void increment() {
+            updateMax(mMax, mValue.incrementAndGet());
+        }
+
+        public void decrement() {
+            mValue.decrementAndGet();
+        }
+
+        public long get() {
+            return mValue.get();
+        }
+
+        public long getMax() {
+            return mMax.get();
+        }
+
+        @Override
+        void reset() {
+            mValue.set(0);
+            mMax.set(0);
+        }
+
+        @Override
+        public String toString() {
+            return mName + " " + mValue.get() + " (max " + mMax.get() + ")";
+        }
+    }
+
+    /**
+     * Counts latencies into fixed buckets, along with their count, sum and maximum.
+     */
+    public static final class Histogram extends Metric {
+
+        private final long[] mBucketBoundsNanos;
+        /* One count per bucket, plus one for anything slower than the last bound */
+        private final AtomicLongArray mBucketCounts;
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mSumNanos = new AtomicLong();
+        private final AtomicLong mMaxNanos = new AtomicLong();
+
+        Histogram(String name, long[] bucketBoundsMillis) {
+            super(name);
+            mBucketBoundsNanos = new long[bucketBoundsMillis.length];
+            for (int i = 0; i < bucketBoundsMillis.length; i++) {
+                mBucketBoundsNanos[i] = TimeUnit.MILLISECONDS.toNanos(bucketBoundsMillis[i]);
+            }
+            mBucketCounts = new AtomicLongArray(bucketBoundsMillis.length + 1);
+        }
+
+        /**
+         * @param nanos A latency, in nanoseconds. Negative latencies are ignored.
+         */
+        public void record(long nanos) {
+            if (nanos < 0) {
+                return;
+            }
+            int bucket = 0;
+            while (bucket < mBucketBoundsNanos.length && nanos > mBucketBoundsNanos[bucket]) {
+                bucket++;
+            }
+            mBucketCounts.incrementAndGet(bucket);
+            mCount.incrementAndGet();
+            mSumNanos.addAndGet(nanos);
+            updateMax(mMaxNanos, nanos);
+        }
+
+        /**
+         * Records the time since a start time taken from {@link SystemClock}.
+         *
+         * @param startNanos From SystemClock.elapsedRealtimeNanos()
+         * @return The latency that was recorded
+         */
+        public long recordSince(long startNanos) {
+            long nanos = SystemClock.elapsedRealtimeNanos() - startNanos;
+            record(nanos);
+            return nanos;
+        }
+
+        public long getCount() {
+            return mCount.get();
+        }
+
+        public long getSumNanos() {
+            return mSumNanos.get();
+        }
+
+        public long getMaxNanos() {
+            return mMaxNanos.get();
+        }
+
+        /**
+         * @return The number of buckets, including the overflow bucket
+         */
+        public int getBucketCount() {
+            return mBucketCounts.length();
+        }
+
+        /**
+         * @param bucket Index of the bucket
+         * @return How many latencies fell into the bucket
+         */
+        public long getBucketValue(int bucket) {
+            return mBucketCounts.get(bucket);
+        }
+
+        /**
+         * @param quantile Between 0 and 1, such as 0.5 for the median
+         * @return The upper bound of the bucket the quantile falls in, in nanoseconds; the
+         * maximum if it falls in the overflow bucket, or 0 if nothing was recorded
+         */
+        public long getQuantileNanos(double quantile) {
+            long count = mCount.get();
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(quantile * count);
+            long seen = 0;
+            for (int i = 0; i < mBucketBoundsNanos.length; i++) {
+                seen += mBucketCounts.get(i);
+                if (seen >= rank) {
+                    return mBucketBoundsNanos[i];
+                }
+            }
+            return mMaxNanos.get();
+        }
+
+        @Override
+        void reset() {
+            for (int i = 0; i < mBucketCounts.length(); i++) {
+                mBucketCounts.set(i, 0);
+            }
+            mCount.set(0);
+            mSumNanos.set(0);
+            mMaxNanos.set(0);
+        }
+
+        @Override
+        public String toString() {
+            long count = mCount.get();
+            StringBuilder builder = new StringBuilder(mName);
+            builder.append(String.format(Locale.US,
+                    " count %d, mean %.1f ms, p50 <= %d ms, p90 <= %d ms, max %.1f ms [",
+                    count,
+                    count == 0 ? 0.0 : mSumNanos.get() / 1e6 / count,
+                    TimeUnit.NANOSECONDS.toMillis(getQuantileNanos(0.5)),
+                    TimeUnit.NANOSECONDS.toMillis(getQuantileNanos(0.9)),
+                    mMaxNanos.get() / 1e6));
+            for (int i = 0; i < mBucketCounts.length(); i++) {
+                if (i > 0) {
+                    builder.append(' ');
+                }
+                builder.append(i < mBucketBoundsNanos.length
+                        ? "<=" + TimeUnit.NANOSECONDS.toMillis(mBucketBoundsNanos[i]) : ">");
+                builder.append(':').append(mBucketCounts.get(i));
+            }
+            return builder.append(']').toString();
+        }
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+}
@@ -16,17 +16,24 @@
 package com.example.android.sunshine.utilities;
 
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.net.Uri;
+import android.os.SystemClock;
+import android.support.annotation.VisibleForTesting;
 import android.util.Log;
 
 import com.example.android.sunshine.data.SunshinePreferences;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.util.Scanner;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 /**
  * These utilities will be used to communicate with the weather servers.
@@ -57,6 +64,9 @@ public final class NetworkUtils {
     private static final String FORECAST_BASE_URL = STATIC_WEATHER_URL;
 //    private static final String FORECAST_BASE_URL = DYNAMIC_WEATHER_URL;
 
+    /* Tests point this at a stand-in for the weather server running on the device */
+    private static volatile String sForecastBaseUrl = FORECAST_BASE_URL;
+
     /*
      * NOTE: These values only effect responses from OpenWeatherMap, NOT from the fake weather
      * server. They are simply here to allow us to teach you how to build a URL if you were to use
@@ -84,9 +94,39 @@ public final class NetworkUtils {
     /* The days parameter allows us to designate how many days of weather data we want */
     private static final String DAYS_PARAM = "cnt";
 
+    /*
+     * A 14 day forecast is only a few kilobytes. Anything much bigger than this is not a forecast,
+     * and we'd rather fail the sync than fill up memory reading it.
+     */
+    public static final int DEFAULT_MAX_RESPONSE_BYTES = 1024 * 1024;
+
+    /* The limit every decoded response body is held to, however we go on to read it */
+    private static volatile int sMaxResponseBytes = DEFAULT_MAX_RESPONSE_BYTES;
+
+    /*
+     * Forecast JSON repeats the same keys for every day, so it compresses very well. We ask for
+     * it compressed and decompress it ourselves as it streams in.
+     */
+    private static final String ENCODING_GZIP = "gzip";
+    private static final String ENCODING_DEFLATE = "deflate";
+    private static final String ENCODING_IDENTITY = "identity";
+    private static final String ACCEPT_ENCODING = ENCODING_GZIP + ", " + ENCODING_DEFLATE;
+
+    private static final int DECOMPRESSION_BUFFER_BYTES = 8 * 1024;
+
+    /*
+     * The validators the weather server sent with the last forecast we stored are kept in their
+     * own SharedPreferences file, keyed by request URL, so that they never show up alongside the
+     * user's settings.
+     */
+    private static final String VALIDATOR_PREFS_NAME = "http_validators";
+    private static final String ETAG_KEY_SUFFIX = "|etag";
+    private static final String LAST_MODIFIED_KEY_SUFFIX = "|last_modified";
+    private static final String BODY_BYTES_KEY_SUFFIX = "|body_bytes";
+
     /**
      * Retrieves the proper URL to query for the weather data. The reason for both this method as
-     * well as {@link #buildUrlWithLocationQuery(String)} is two fold.
+     * well as {@link #buildUrlWithLocationQuery(String, String)} is two fold.
      * <p>
      * 1) You should be able to just use one method when you need to create the URL within the
      * app instead of calling both methods.
@@ -106,10 +146,65 @@ public final class NetworkUtils {
             return buildUrlWithLatitudeLongitude(latitude, longitude);
         } else {
             String locationQuery = SunshinePreferences.getPreferredWeatherLocation(context);
-            return buildUrlWithLocationQuery(locationQuery);
+            return buildUrlWithLocationQuery(sForecastBaseUrl, locationQuery);
         }
     }
 
+    /**
+     * Builds the URL for the forecast of any saved location, not just the preferred one. Only the
+     * preferred location's coordinates are kept in SunshinePreferences, so the location setting
+     * itself is always what we query for.
+     *
+     * @param locationSetting The location, as stored in SunshinePreferences
+     * @return URL to query weather service
+     */
+    public static URL getUrlForLocation(String locationSetting) {
+        return buildUrlWithLocationQuery(sForecastBaseUrl, locationSetting);
+    }
+
+    /**
+     * Like {@link #getUrlForLocation(String)}, but against another server, such as a stand-in
+     * for the weather server in tests.
+     *
+     * @param forecastBaseUrl The URL of the forecast endpoint, without any query parameters
+     * @param locationSetting The location, as stored in SunshinePreferences
+     * @return URL to query the given server
+     */
+    public static URL getUrlForLocation(String forecastBaseUrl, String locationSetting) {
+        return buildUrlWithLocationQuery(forecastBaseUrl, locationSetting);
+    }
+
+    /**
+     * Sends every request that doesn't name its own server, including those made by
+     * {@link #getUrl(Context)}, to another server, such as a stand-in for the weather server in
+     * tests.
+     *
+     * @param forecastBaseUrl The URL of the forecast endpoint, without any query parameters, or
+     *                        null to go back to the real weather server
+     */
+    @VisibleForTesting
+    public static void setForecastBaseUrl(String forecastBaseUrl) {
+        sForecastBaseUrl = forecastBaseUrl == null ? FORECAST_BASE_URL : forecastBaseUrl;
+    }
+
+    /**
+     * Changes the largest decoded response body we are willing to read, whether it is read into
+     * a String or streamed straight into the parser.
+     *
+     * @param maxResponseBytes The new limit, or 0 or less to go back to
+     *                         {@link #DEFAULT_MAX_RESPONSE_BYTES}
+     */
+    public static void setMaxResponseBytes(int maxResponseBytes) {
+        sMaxResponseBytes = maxResponseBytes > 0 ? maxResponseBytes : DEFAULT_MAX_RESPONSE_BYTES;
+    }
+
+    /**
+     * @return The largest decoded response body we are willing to read
+     */
+    public static int getMaxResponseBytes() {
+        return sMaxResponseBytes;
+    }
+
     /**
      * Builds the URL used to talk to the weather server using latitude and longitude of a
      * location.
@@ -119,7 +214,7 @@ public final class NetworkUtils {
      * @return The Url to use to query the weather server.
      */
     private static URL buildUrlWithLatitudeLongitude(Double latitude, Double longitude) {
-        Uri weatherQueryUri = Uri.parse(FORECAST_BASE_URL).buildUpon()
+        Uri weatherQueryUri = Uri.parse(sForecastBaseUrl).buildUpon()
                 .appendQueryParameter(LAT_PARAM, String.valueOf(latitude))
                 .appendQueryParameter(LON_PARAM, String.valueOf(longitude))
                 .appendQueryParameter(FORMAT_PARAM, format)
@@ -141,11 +236,12 @@ public final class NetworkUtils {
      * Builds the URL used to talk to the weather server using a location. This location is based
      * on the query capabilities of the weather provider that we are using.
      *
-     * @param locationQuery The location that will be queried for.
+     * @param forecastBaseUrl The URL of the forecast endpoint
+     * @param locationQuery   The location that will be queried for.
      * @return The URL to use to query the weather server.
      */
-    private static URL buildUrlWithLocationQuery(String locationQuery) {
-        Uri weatherQueryUri = Uri.parse(FORECAST_BASE_URL).buildUpon()
+    private static URL buildUrlWithLocationQuery(String forecastBaseUrl, String locationQuery) {
+        Uri weatherQueryUri = Uri.parse(forecastBaseUrl).buildUpon()
                 .appendQueryParameter(QUERY_PARAM, locationQuery)
                 .appendQueryParameter(FORMAT_PARAM, format)
                 .appendQueryParameter(UNITS_PARAM, units)
@@ -162,6 +258,295 @@ public final class NetworkUtils {
         }
     }
 
+    /**
+     * Opens a connection to the weather server so that the response body can be read as a
+     * stream, rather than being buffered into a String first. The caller is responsible for
+     * calling {@link HttpURLConnection#disconnect()} once it is done with the body.
+     * <p>
+     * The connection tells the server that we can handle gzip and deflate compressed bodies.
+     * Because we ask for them ourselves, HttpURLConnection will hand us the body exactly as it
+     * came over the wire, so always read it through
+     * {@link #decodeResponseBody(HttpURLConnection, InputStream)}.
+     *
+     * @param url The URL to fetch the HTTP response from.
+     * @return The open connection
+     * @throws IOException Related to network and stream reading
+     */
+    public static HttpURLConnection openHttpUrlConnection(URL url) throws IOException {
+        HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
+        urlConnection.setRequestProperty("Accept-Encoding", ACCEPT_ENCODING);
+        return urlConnection;
+    }
+
+    /**
+     * Wraps the body of a response so that it is decompressed as it is read, according to the
+     * Content-Encoding the server used. Nothing is buffered beyond what the decompressor needs,
+     * so the parser still sees each day of the forecast as soon as its bytes arrive.
+     * <p>
+     * Close the returned stream once you are done with it, as the decompressors hold on to
+     * native memory until they are closed.
+     * <p>
+     * Reading more than {@link #getMaxResponseBytes()} decoded bytes from the returned stream
+     * throws a {@link ResponseTooLargeException}.
+     *
+     * @param urlConnection The connection the body came from
+     * @param wireStream    The body as it came over the wire
+     * @return A stream of the decoded body
+     * @throws IOException If the body uses an encoding we didn't ask for, or is corrupt
+     */
+    public static InputStream decodeResponseBody(HttpURLConnection urlConnection,
+            InputStream wireStream) throws IOException {
+        return decodeResponseBody(urlConnection, wireStream, sMaxResponseBytes);
+    }
+
+    /**
+     * Like {@link #decodeResponseBody(HttpURLConnection, InputStream)}, but with a limit of our
+     * own on the size of the decoded body.
+     * <p>
+     * The limit is applied after decompression, as that is the size the parser and memory have
+     * to cope with. A few kilobytes of gzip can expand into many megabytes.
+     *
+     * @param urlConnection The connection the body came from
+     * @param wireStream    The body as it came over the wire
+     * @param maxBodyBytes  The most decoded bytes the returned stream will give up before
+     *                      throwing a {@link ResponseTooLargeException}
+     * @return A stream of the decoded body
+     * @throws IOException If the body uses an encoding we didn't ask for, or is corrupt
+     */
+    public static InputStream decodeResponseBody(HttpURLConnection urlConnection,
+            InputStream wireStream, int maxBodyBytes) throws IOException {
+        return new BoundedInputStream(openDecodedStream(urlConnection, wireStream), maxBodyBytes);
+    }
+
+    private static InputStream openDecodedStream(HttpURLConnection urlConnection,
+            InputStream wireStream) throws IOException {
+        String contentEncoding = urlConnection.getContentEncoding();
+        if (contentEncoding == null) {
+            return wireStream;
+        }
+
+        contentEncoding = contentEncoding.trim().toLowerCase(Locale.US);
+        switch (contentEncoding) {
+            case "":
+            case ENCODING_IDENTITY:
+                return wireStream;
+
+            case ENCODING_GZIP:
+                return new GZIPInputStream(wireStream, DECOMPRESSION_BUFFER_BYTES);
+
+            case ENCODING_DEFLATE:
+                return openDeflateStream(wireStream);
+
+            default:
+                throw new IOException("Unsupported Content-Encoding: " + contentEncoding);
+        }
+    }
+
+    /**
+     * The length of the response body once it has been decoded, which is only known up front if
+     * the server didn't compress it.
+     *
+     * @param urlConnection The connection the body came from
+     * @return The decoded length of the body, or -1 if it isn't known
+     */
+    public static int getDecodedContentLength(HttpURLConnection urlConnection) {
+        String contentEncoding = urlConnection.getContentEncoding();
+        if (contentEncoding == null
+                || contentEncoding.trim().length() == 0
+                || ENCODING_IDENTITY.equalsIgnoreCase(contentEncoding.trim())) {
+            return urlConnection.getContentLength();
+        }
+        return -1;
+    }
+
+    /**
+     * "deflate" is supposed to mean zlib-wrapped deflate data, but plenty of servers send raw
+     * deflate data instead. We look at the first two bytes to tell which one we were sent.
+     */
+    private static InputStream openDeflateStream(InputStream wireStream) throws IOException {
+        BufferedInputStream in = new BufferedInputStream(wireStream, DECOMPRESSION_BUFFER_BYTES);
+        in.mark(2);
+        int cmf = in.read();
+        int flg = in.read();
+        in.reset();
+
+        /* A zlib header uses the deflate method and is a multiple of 31 when read as a short */
+        boolean zlibWrapped = cmf != -1 && flg != -1
+                && (cmf & 0x0F) == 8
+                && ((cmf << 8) | flg) % 31 == 0;
+
+        return new InflaterInputStream(in, new Inflater(!zlibWrapped),
+                DECOMPRESSION_BUFFER_BYTES) {
+            @Override
+            public void close() throws IOException {
+                /*
+                 * InflaterInputStream only releases an Inflater it created itself, so we release
+                 * ours here.
+                 */
+                try {
+                    super.close();
+                } finally {
+                    inf.end();
+                }
+            }
+        };
+    }
+
+    /**
+     * Opens a connection to the weather server that, if we still have the forecast from an
+     * earlier response to the same URL, asks the server to only send the forecast if it has
+     * changed since. Use {@link #isNotModified(Context, URL, HttpURLConnection)} to find out
+     * whether it did.
+     *
+     * @param context        Used to read the stored validators
+     * @param url            The URL to fetch the HTTP response from.
+     * @param sendValidators Whether to make the request conditional. Pass false if the forecast
+     *                       that the validators describe is no longer stored.
+     * @return The open connection
+     * @throws IOException Related to network and stream reading
+     */
+    public static HttpURLConnection openConditionalHttpUrlConnection(Context context, URL url,
+            boolean sendValidators) throws IOException {
+        HttpURLConnection urlConnection = openHttpUrlConnection(url);
+        if (!sendValidators) {
+            return urlConnection;
+        }
+
+        SharedPreferences sp = getValidatorPreferences(context);
+        String key = url.toString();
+
+        String eTag = sp.getString(key + ETAG_KEY_SUFFIX, null);
+        if (eTag != null) {
+            urlConnection.setRequestProperty("If-None-Match", eTag);
+        }
+
+        /* setIfModifiedSince formats the date for us and ignores 0 */
+        long lastModified = sp.getLong(key + LAST_MODIFIED_KEY_SUFFIX, 0);
+        urlConnection.setIfModifiedSince(lastModified);
+
+        return urlConnection;
+    }
+
+    /**
+     * Waits for the server to respond and checks whether it told us that the forecast we already
+     * have is still current. In that case there is no body to read, and nothing to parse or
+     * write.
+     *
+     * @param context       Used to read how big the forecast we already have was
+     * @param url           The URL the connection was opened for
+     * @param urlConnection A connection from
+     *                      {@link #openConditionalHttpUrlConnection(Context, URL, boolean)}
+     * @return true if the server responded with 304 Not Modified
+     * @throws IOException Related to network and stream reading
+     */
+    public static boolean isNotModified(Context context, URL url, HttpURLConnection urlConnection)
+            throws IOException {
+        /*
+         * Connecting explicitly first lets us tell the time spent reaching the server apart from
+         * the time the server took to respond. Once connected, connect() does nothing.
+         */
+        long connectStart = SystemClock.elapsedRealtimeNanos();
+        urlConnection.connect();
+        long requestStart = SystemClock.elapsedRealtimeNanos();
+        SyncMetrics.CONNECT.record(requestStart - connectStart);
+        int status = urlConnection.getResponseCode();
+        SyncMetrics.FIRST_BYTE.recordSince(requestStart);
+
+        if (status != HttpURLConnection.HTTP_NOT_MODIFIED) {
+            SyncMetrics.FULL_RESPONSES.increment();
+            return false;
+        }
+
+        SyncMetrics.NOT_MODIFIED_RESPONSES.increment();
+        SyncMetrics.BYTES_SAVED.add(getValidatorPreferences(context)
+                .getLong(url.toString() + BODY_BYTES_KEY_SUFFIX, 0));
+        return true;
+    }
+
+    /**
+     * Remembers the ETag and Last-Modified headers of a response so the next request for the same
+     * URL can be made conditional. Only call this once the forecast in the response has been
+     * stored; if the validators were saved first and storing failed, the server would keep telling
+     * us that a forecast we don't have is up to date.
+     *
+     * @param context       Used to store the validators
+     * @param url           The URL the connection was opened for
+     * @param urlConnection The connection the forecast was read from
+     * @param bodyBytes     Size of the response body, reported as saved on every 304 that follows
+     */
+    public static void saveValidators(Context context, URL url, HttpURLConnection urlConnection,
+            long bodyBytes) {
+        saveValidators(context, url, urlConnection.getHeaderField("ETag"),
+                urlConnection.getLastModified(), bodyBytes);
+    }
+
+    /**
+     * Like {@link #saveValidators(Context, URL, HttpURLConnection, long)}, for callers that
+     * store the forecast long after they have disconnected, and so kept the headers themselves.
+     *
+     * @param context      Used to store the validators
+     * @param url          The URL the forecast was fetched from
+     * @param eTag         The ETag header of the response, or null if it had none
+     * @param lastModified The Last-Modified header of the response in milliseconds, or 0
+     * @param bodyBytes    Size of the response body, reported as saved on every 304 that follows
+     */
+    public static void saveValidators(Context context, URL url, String eTag, long lastModified,
+            long bodyBytes) {
+        String key = url.toString();
+
+        SharedPreferences.Editor editor = getValidatorPreferences(context).edit();
+        if (eTag == null && lastModified == 0) {
+            /* Nothing to validate against, so don't bother making the next request conditional */
+            editor.remove(key + ETAG_KEY_SUFFIX);
+            editor.remove(key + LAST_MODIFIED_KEY_SUFFIX);
+            editor.remove(key + BODY_BYTES_KEY_SUFFIX);
+        } else {
+            if (eTag != null) {
+                editor.putString(key + ETAG_KEY_SUFFIX, eTag);
+            } else {
+                editor.remove(key + ETAG_KEY_SUFFIX);
+            }
+            editor.putLong(key + LAST_MODIFIED_KEY_SUFFIX, lastModified);
+            editor.putLong(key + BODY_BYTES_KEY_SUFFIX, bodyBytes);
+        }
+        editor.apply();
+    }
+
+    /**
+     * Forgets every validator we have stored, so the next request for any URL fetches the whole
+     * forecast.
+     *
+     * @param context Used to access the stored validators
+     */
+    public static void clearValidators(Context context) {
+        getValidatorPreferences(context).edit().clear().apply();
+    }
+
+    /**
+     * @return The number of conditional requests the server answered with 304 Not Modified
+     */
+    public static long getNotModifiedResponseCount() {
+        return SyncMetrics.NOT_MODIFIED_RESPONSES.get();
+    }
+
+    /**
+     * @return The number of requests the server answered with anything other than 304
+     */
+    public static long getFullResponseCount() {
+        return SyncMetrics.FULL_RESPONSES.get();
+    }
+
+    /**
+     * @return The number of response body bytes we didn't have to download thanks to 304s
+     */
+    public static long getBytesSaved() {
+        return SyncMetrics.BYTES_SAVED.get();
+    }
+
+    private static SharedPreferences getValidatorPreferences(Context context) {
+        return context.getSharedPreferences(VALIDATOR_PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
     /**
      * This method returns the entire result from the HTTP response.
      *
@@ -170,22 +555,34 @@ public final class NetworkUtils {
      * @throws IOException Related to network and stream reading
      */
     public static String getResponseFromHttpUrl(URL url) throws IOException {
-        HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
-        try {
-            InputStream in = urlConnection.getInputStream();
-
-            Scanner scanner = new Scanner(in);
-            scanner.useDelimiter("\\A");
+        return getResponseFromHttpUrl(url, sMaxResponseBytes);
+    }
 
-            boolean hasInput = scanner.hasNext();
-            String response = null;
-            if (hasInput) {
-                response = scanner.next();
+    /**
+     * This method returns the entire result from the HTTP response, decoded with the charset the
+     * server named in its Content-Type header.
+     *
+     * @param url          The URL to fetch the HTTP response from.
+     * @param maxBodyBytes The largest response body we are willing to read
+     * @return The contents of the HTTP response, null if no response
+     * @throws IOException Related to network and stream reading, or if the response body is
+     *                     larger than maxBodyBytes
+     */
+    public static String getResponseFromHttpUrl(URL url, int maxBodyBytes) throws IOException {
+        HttpURLConnection urlConnection = openHttpUrlConnection(url);
+        try {
+            InputStream in = decodeResponseBody(urlConnection, urlConnection.getInputStream(),
+                    maxBodyBytes);
+            try {
+                return ResponseBodyReader.readBody(in,
+                        urlConnection.getContentType(),
+                        getDecodedContentLength(urlConnection),
+                        maxBodyBytes);
+            } finally {
+                in.close();
             }
-            scanner.close();
-            return response;
         } finally {
             urlConnection.disconnect();
         }
     }
-}
\ No newline at end of file
+}
@@ -47,15 +47,20 @@ public class NotificationUtils {
     private static final int WEATHER_NOTIFICATION_ID = 3004;
 
     /**
-     * Constructs and displays a notification for the newly updated weather for today.
+     * Constructs and displays a notification for the newly updated weather for today. This is
+     * only called right after a sync has stored a new forecast, so what it shows is never old.
      *
      * @param context Context used to query our ContentProvider and use various Utility methods
      */
     public static void notifyUserOfNewWeather(Context context) {
 
-        /* Build the URI for today's weather in order to show up to date data in notification */
-        Uri todaysWeatherUri = WeatherContract.WeatherEntry
-                .buildWeatherUriWithDate(SunshineDateUtils.normalizeDate(System.currentTimeMillis()));
+        /*
+         * Build the URI for today's weather at the user's location in order to show up to date
+         * data in notification
+         */
+        Uri todaysWeatherUri = WeatherContract.WeatherEntry.buildWeatherUriWithLocationAndDate(
+                SunshinePreferences.getPreferredWeatherLocation(context),
+                SunshineDateUtils.normalizeDate(System.currentTimeMillis()));
 
         /*
          * The MAIN_FORECAST_PROJECTION array passed in as the second parameter is defined in our WeatherContract
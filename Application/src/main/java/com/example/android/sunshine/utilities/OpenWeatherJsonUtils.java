@@ -17,7 +17,11 @@ package com.example.android.sunshine.utilities;
 
 import android.content.ContentValues;
 import android.content.Context;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.MalformedJsonException;
 
+import com.example.android.sunshine.data.ForecastColumns;
 import com.example.android.sunshine.data.SunshinePreferences;
 import com.example.android.sunshine.data.WeatherContract;
 
@@ -25,6 +29,10 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.net.HttpURLConnection;
 
 /**
@@ -60,6 +68,26 @@ public final class OpenWeatherJsonUtils {
 
     private static final String OWM_MESSAGE_CODE = "cod";
 
+    /*
+     * The fields every day of the forecast must have, as bits for readDayForecast to track which
+     * it has seen. The names are in the same order as the bits.
+     */
+    private static final int FIELD_PRESSURE = 1;
+    private static final int FIELD_HUMIDITY = 1 << 1;
+    private static final int FIELD_WIND_SPEED = 1 << 2;
+    private static final int FIELD_WIND_DIRECTION = 1 << 3;
+    private static final int FIELD_MAX = 1 << 4;
+    private static final int FIELD_MIN = 1 << 5;
+    private static final int FIELD_WEATHER_ID = 1 << 6;
+    private static final int REQUIRED_FIELDS = (1 << 7) - 1;
+    private static final String[] REQUIRED_FIELD_NAMES = {
+            OWM_PRESSURE, OWM_HUMIDITY, OWM_WINDSPEED, OWM_WIND_DIRECTION,
+            OWM_TEMPERATURE + "." + OWM_MAX, OWM_TEMPERATURE + "." + OWM_MIN,
+            OWM_WEATHER + "[0]." + OWM_WEATHER_ID};
+
+    /* The weather servers always respond with UTF-8 encoded JSON */
+    private static final String OWM_CHARSET = "UTF-8";
+
     /**
      * This method parses JSON from a web response and returns an array of Strings
      * describing the weather over various days from the forecast.
@@ -181,4 +209,389 @@ public final class OpenWeatherJsonUtils {
 
         return weatherContentValues;
     }
-}
\ No newline at end of file
+
+    /**
+     * Streaming counterpart of {@link #getWeatherContentValuesFromJson(Context, String)}. Rather
+     * than building a JSONObject tree for the whole response, this walks the JSON tokens as they
+     * arrive from the stream, so no intermediate object tree is ever allocated.
+     *
+     * @param context  Used to save the location coordinates in SharedPreferences
+     * @param inStream The body of the HTTP response. This method does not close the stream.
+     *
+     * @return Array of ContentValues, one per day, or null if the server reported an error
+     *
+     * @throws IOException If the stream cannot be read or does not contain valid JSON
+     */
+    public static ContentValues[] getWeatherContentValuesFromStream(Context context,
+                                                                    InputStream inStream)
+            throws IOException {
+        return getWeatherContentValuesFromReader(context,
+                new InputStreamReader(inStream, OWM_CHARSET));
+    }
+
+    /**
+     * Parses the forecast JSON from a Reader one token at a time.
+     *
+     * @param context Used to save the location coordinates in SharedPreferences
+     * @param in      Reader positioned at the start of the forecast JSON
+     *
+     * @return Array of ContentValues, one per day, or null if the server reported an error
+     *
+     * @throws IOException If the reader cannot be read or does not contain valid JSON
+     */
+    public static ContentValues[] getWeatherContentValuesFromReader(Context context, Reader in)
+            throws IOException {
+
+        ForecastColumns days = getForecastColumnsFromReader(context, in);
+        if (days == null) {
+            return null;
+        }
+
+        return days.toContentValuesArray();
+    }
+
+    /**
+     * Parses the forecast straight from the body of the HTTP response into primitive columns,
+     * without boxing any of the values the way ContentValues would.
+     *
+     * @param context  Used to save the location coordinates in SharedPreferences
+     * @param inStream The body of the HTTP response. This method does not close the stream.
+     *
+     * @return Every day of the forecast, or null if the server reported an error
+     *
+     * @throws IOException If the stream cannot be read or does not contain valid JSON
+     */
+    public static ForecastColumns getForecastColumnsFromStream(Context context,
+                                                               InputStream inStream)
+            throws IOException {
+        return getForecastColumnsFromReader(context,
+                new InputStreamReader(inStream, OWM_CHARSET));
+    }
+
+    /**
+     * Parses the forecast JSON from a Reader one token at a time into primitive columns.
+     *
+     * @param context Used to save the location coordinates in SharedPreferences
+     * @param in      Reader positioned at the start of the forecast JSON
+     *
+     * @return Every day of the forecast, or null if the server reported an error
+     *
+     * @throws IOException If the reader cannot be read or does not contain valid JSON
+     */
+    public static ForecastColumns getForecastColumnsFromReader(Context context, Reader in)
+            throws IOException {
+
+        ForecastColumns days = new ForecastColumns();
+
+        if (!parseForecast(context, in, days, null)) {
+            return null;
+        }
+
+        return days;
+    }
+
+    /**
+     * Told each time a day of the forecast has been decoded by
+     * {@link #parseForecast(Context, Reader, ForecastColumns, DayForecastListener)}.
+     */
+    public interface DayForecastListener {
+        /**
+         * @param days The days decoded so far, with the new day last. The listener may
+         *             {@link ForecastColumns#clear()} them once it has dealt with them, and the
+         *             next day will then be added to the empty columns.
+         */
+        void onDayForecast(ForecastColumns days);
+    }
+
+    /**
+     * Convenience for {@link #parseForecast(Context, Reader, ForecastColumns, DayForecastListener)}
+     * that decodes the forecast straight from the body of the HTTP response.
+     *
+     * @param context  Used to save the location coordinates in SharedPreferences
+     * @param inStream The body of the HTTP response. This method does not close the stream.
+     * @param days     Each day of the forecast is added to these columns
+     * @param listener Called once for each day of the forecast, in order, or null
+     *
+     * @return true if the forecast was parsed, false if the server reported an error
+     *
+     * @throws IOException If the stream cannot be read or does not contain valid JSON
+     */
+    public static boolean parseForecast(Context context, InputStream inStream,
+                                        ForecastColumns days, DayForecastListener listener)
+            throws IOException {
+        return parseForecast(context, new InputStreamReader(inStream, OWM_CHARSET), days,
+                listener);
+    }
+
+    /**
+     * Parses the forecast JSON from a Reader one token at a time, adding each day to the columns
+     * and telling the listener as soon as it has been read. This lets callers start working with
+     * the first days of the forecast while the rest of the response is still being downloaded.
+     * Because the listener can clear the columns once it has dealt with them, a whole forecast can
+     * be parsed without allocating anything per day.
+     * <p>
+     * The server may report an error code after some days have already been handed out, so
+     * callers must not treat anything they received as final until this method returns true.
+     *
+     * @param context  Used to save the location coordinates in SharedPreferences
+     * @param in       Reader positioned at the start of the forecast JSON
+     * @param days     Each day of the forecast is added to these columns
+     * @param listener Called once for each day of the forecast, in order, or null
+     *
+     * @return true if the forecast was parsed, false if the server reported an error
+     *
+     * @throws IOException If the reader cannot be read or does not contain valid JSON
+     */
+    public static boolean parseForecast(Context context, Reader in, ForecastColumns days,
+                                        DayForecastListener listener) throws IOException {
+
+        double[] cityCoord = {Double.NaN, Double.NaN};
+        if (!parseForecast(in, days, listener, cityCoord)) {
+            return false;
+        }
+
+        if (!Double.isNaN(cityCoord[0])) {
+            SunshinePreferences.setLocationDetails(context, cityCoord[0], cityCoord[1]);
+        }
+
+        return true;
+    }
+
+    /**
+     * Convenience for {@link #parseForecast(Reader, ForecastColumns, DayForecastListener, double[])}
+     * that decodes the forecast straight from the body of the HTTP response.
+     *
+     * @param inStream  The body of the HTTP response. This method does not close the stream.
+     * @param days      Each day of the forecast is added to these columns
+     * @param listener  Called once for each day of the forecast, in order, or null
+     * @param cityCoord Receives the {latitude, longitude} of the forecast's city, if it has them
+     *
+     * @return true if the forecast was parsed, false if the server reported an error
+     *
+     * @throws IOException If the stream cannot be read or does not contain valid JSON
+     */
+    public static boolean parseForecast(InputStream inStream, ForecastColumns days,
+                                        DayForecastListener listener, double[] cityCoord)
+            throws IOException {
+        return parseForecast(new InputStreamReader(inStream, OWM_CHARSET), days, listener,
+                cityCoord);
+    }
+
+    /**
+     * Parses the forecast JSON exactly like
+     * {@link #parseForecast(Context, Reader, ForecastColumns, DayForecastListener)}, but leaves
+     * SunshinePreferences alone and hands the coordinates of the forecast's city back instead.
+     * Use this for forecasts of locations other than the preferred one, whose coordinates must
+     * not replace the preferred location's, and for parsing several forecasts at once.
+     *
+     * @param in        Reader positioned at the start of the forecast JSON
+     * @param days      Each day of the forecast is added to these columns
+     * @param listener  Called once for each day of the forecast, in order, or null
+     * @param cityCoord Receives the {latitude, longitude} of the forecast's city. Left as it is
+     *                  if the forecast doesn't include them.
+     *
+     * @return true if the forecast was parsed, false if the server reported an error
+     *
+     * @throws IOException If the reader cannot be read or does not contain valid JSON
+     */
+    public static boolean parseForecast(Reader in, ForecastColumns days,
+                                        DayForecastListener listener, double[] cityCoord)
+            throws IOException {
+
+        JsonReader reader = new JsonReader(in);
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+
+            if (OWM_MESSAGE_CODE.equals(name)) {
+                /* Is there an error? "cod" may be sent as either a number or a String */
+                int errorCode = reader.nextInt();
+
+                switch (errorCode) {
+                    case HttpURLConnection.HTTP_OK:
+                        break;
+                    case HttpURLConnection.HTTP_NOT_FOUND:
+                        /* Location invalid */
+                        return false;
+                    default:
+                        /* Server probably down */
+                        return false;
+                }
+
+            } else if (OWM_LIST.equals(name)) {
+                /* See getWeatherContentValuesFromJson for why we can ignore the JSON dates */
+                long normalizedUtcStartDay = SunshineDateUtils.getNormalizedUtcDateForToday();
+
+                reader.beginArray();
+                for (int i = 0; reader.hasNext(); i++) {
+                    long dateTimeMillis = normalizedUtcStartDay + SunshineDateUtils.DAY_IN_MILLIS * i;
+                    readDayForecast(reader, dateTimeMillis, days);
+                    if (listener != null) {
+                        listener.onDayForecast(days);
+                    }
+                }
+                reader.endArray();
+
+            } else if (OWM_CITY.equals(name)) {
+                double[] coord = readCityCoord(reader);
+                if (coord != null) {
+                    cityCoord[0] = coord[0];
+                    cityCoord[1] = coord[1];
+                }
+
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        return true;
+    }
+
+    /**
+     * Reads a single element of the "list" array and adds it to the columns.
+     *
+     * @param reader         JsonReader positioned at the start of the day's object
+     * @param dateTimeMillis Normalized UTC date for this day
+     * @param days           The day is added to the end of these columns
+     *
+     * @throws IOException If the JSON cannot be read, or the day is missing a field. The tree
+     *                     parser fails on a missing field too, rather than store a zero.
+     */
+    private static void readDayForecast(JsonReader reader, long dateTimeMillis,
+                                        ForecastColumns days) throws IOException {
+
+        /* One bit per required field, set as the field is read */
+        int fieldsSeen = 0;
+
+        double pressure = 0;
+        int humidity = 0;
+        double windSpeed = 0;
+        double windDirection = 0;
+
+        double high = 0;
+        double low = 0;
+
+        int weatherId = 0;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+
+            if (OWM_PRESSURE.equals(name)) {
+                pressure = reader.nextDouble();
+                fieldsSeen |= FIELD_PRESSURE;
+            } else if (OWM_HUMIDITY.equals(name)) {
+                /* Like JSONObject#getInt, truncate rather than fail if this is sent as a double */
+                humidity = (int) reader.nextDouble();
+                fieldsSeen |= FIELD_HUMIDITY;
+            } else if (OWM_WINDSPEED.equals(name)) {
+                windSpeed = reader.nextDouble();
+                fieldsSeen |= FIELD_WIND_SPEED;
+            } else if (OWM_WIND_DIRECTION.equals(name)) {
+                windDirection = reader.nextDouble();
+                fieldsSeen |= FIELD_WIND_DIRECTION;
+
+            } else if (OWM_TEMPERATURE.equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String temperatureName = reader.nextName();
+                    if (OWM_MAX.equals(temperatureName)) {
+                        high = reader.nextDouble();
+                        fieldsSeen |= FIELD_MAX;
+                    } else if (OWM_MIN.equals(temperatureName)) {
+                        low = reader.nextDouble();
+                        fieldsSeen |= FIELD_MIN;
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+
+            } else if (OWM_WEATHER.equals(name)) {
+                /* Only the first element of the "weather" array is used */
+                reader.beginArray();
+                if (reader.hasNext()) {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        if (OWM_WEATHER_ID.equals(reader.nextName())) {
+                            weatherId = reader.nextInt();
+                            fieldsSeen |= FIELD_WEATHER_ID;
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                }
+                while (reader.hasNext()) {
+                    reader.skipValue();
+                }
+                reader.endArray();
+
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (fieldsSeen != REQUIRED_FIELDS) {
+            throw new MalformedJsonException("Forecast for " + dateTimeMillis
+                    + " is missing " + describeMissingFields(fieldsSeen));
+        }
+
+        days.add(dateTimeMillis, weatherId, low, high, humidity, pressure, windSpeed,
+                windDirection);
+    }
+
+    /* Names the required fields of a day that weren't seen, for the exception message */
+    private static String describeMissingFields(int fieldsSeen) {
+        StringBuilder missing = new StringBuilder();
+        for (int i = 0; i < REQUIRED_FIELD_NAMES.length; i++) {
+            if ((fieldsSeen & (1 << i)) == 0) {
+                if (missing.length() > 0) {
+                    missing.append(", ");
+                }
+                missing.append(REQUIRED_FIELD_NAMES[i]);
+            }
+        }
+        return missing.toString();
+    }
+
+    /**
+     * Reads the "city" object and returns its coordinates.
+     *
+     * @param reader JsonReader positioned at the start of the "city" object
+     *
+     * @return {latitude, longitude}, or null if the city had no coordinates
+     *
+     * @throws IOException If the JSON cannot be read
+     */
+    private static double[] readCityCoord(JsonReader reader) throws IOException {
+        double[] cityCoord = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (OWM_COORD.equals(reader.nextName()) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                cityCoord = new double[2];
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String coordName = reader.nextName();
+                    if (OWM_LATITUDE.equals(coordName)) {
+                        cityCoord[0] = reader.nextDouble();
+                    } else if (OWM_LONGITUDE.equals(coordName)) {
+                        cityCoord[1] = reader.nextDouble();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        return cityCoord;
+    }
+}
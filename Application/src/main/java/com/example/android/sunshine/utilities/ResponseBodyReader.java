@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.utilities;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Reads the body of an HTTP response into a String. The body is copied into a byte buffer that
+ * is reused from one sync to the next and then decoded in one go, which is far cheaper than
+ * running a regex-delimited Scanner over the stream.
+ */
+public final class ResponseBodyReader {
+
+    /* The charset JSON is sent in unless the server says otherwise */
+    private static final String DEFAULT_CHARSET = "UTF-8";
+
+    /* Size of the buffer we start with when the server doesn't send a Content-Length */
+    private static final int DEFAULT_BUFFER_BYTES = 8 * 1024;
+
+    /*
+     * We only keep a couple of buffers around, and only if they are reasonably small, so that one
+     * unusually large response doesn't stay in memory for the lifetime of the app.
+     */
+    private static final int MAX_POOLED_BUFFERS = 2;
+    private static final int MAX_POOLED_BUFFER_BYTES = 256 * 1024;
+
+    private static final ArrayDeque<byte[]> sBufferPool = new ArrayDeque<>(MAX_POOLED_BUFFERS);
+
+    private ResponseBodyReader() {
+    }
+
+    /**
+     * Reads the whole stream and decodes it using the charset named in the Content-Type header.
+     *
+     * @param in            The body of the HTTP response. This method does not close it.
+     * @param contentType   The value of the Content-Type header, or null if there wasn't one
+     * @param contentLength The value of the Content-Length header, or -1 if it isn't known
+     * @param maxBodyBytes  The largest body we are willing to read
+     * @return The decoded body, or null if the body was empty
+     * @throws IOException If the stream can't be read or the body is larger than maxBodyBytes
+     */
+    public static String readBody(InputStream in, String contentType, int contentLength,
+                                  int maxBodyBytes) throws IOException {
+
+        /* Ask for one byte more than we expect so a correct Content-Length never needs to grow */
+        long initialSize = contentLength >= 0 ? contentLength + 1L : DEFAULT_BUFFER_BYTES;
+        byte[] buffer = acquireBuffer((int) Math.max(1, Math.min(initialSize, maxBodyBytes)));
+
+        try {
+            int count = 0;
+            while (true) {
+                /* A buffer from the pool may be bigger than we are allowed to fill */
+                int limit = Math.min(buffer.length, maxBodyBytes);
+                if (count == limit) {
+                    if (limit == maxBodyBytes) {
+                        /* Only a problem if there is actually more to read */
+                        if (in.read() == -1) {
+                            break;
+                        }
+                        throw new ResponseTooLargeException(maxBodyBytes);
+                    }
+                    int newSize = (int) Math.min((long) buffer.length * 2, maxBodyBytes);
+                    buffer = Arrays.copyOf(buffer, newSize);
+                    continue;
+                }
+
+                int read = in.read(buffer, count, limit - count);
+                if (read == -1) {
+                    break;
+                }
+                count += read;
+            }
+
+            if (count == 0) {
+                return null;
+            }
+
+            return new String(buffer, 0, count, charsetFromContentType(contentType));
+        } finally {
+            releaseBuffer(buffer);
+        }
+    }
+
+    /**
+     * Finds the charset parameter of a Content-Type header, such as
+     * "application/json; charset=ISO-8859-1". If there isn't one, or it names a charset we
+     * don't support, UTF-8 is assumed since that's what JSON is sent in.
+     *
+     * @param contentType The value of the Content-Type header, may be null
+     * @return The charset to decode the body with
+     */
+    public static Charset charsetFromContentType(String contentType) {
+        if (contentType != null) {
+            String[] parameters = contentType.split(";");
+            for (int i = 1; i < parameters.length; i++) {
+                String parameter = parameters[i].trim();
+                if (parameter.toLowerCase(Locale.US).startsWith("charset=")) {
+                    String charsetName = parameter.substring("charset=".length()).trim();
+                    if (charsetName.length() > 1 && charsetName.startsWith("\"")
+                            && charsetName.endsWith("\"")) {
+                        charsetName = charsetName.substring(1, charsetName.length() - 1);
+                    }
+                    try {
+                        return Charset.forName(charsetName);
+                    } catch (IllegalCharsetNameException | UnsupportedCharsetException e) {
+                        break;
+                    }
+                }
+            }
+        }
+        return Charset.forName(DEFAULT_CHARSET);
+    }
+
+    /**
+     * Takes a buffer of at least minSize bytes from the pool, or allocates one if the pool
+     * doesn't have one that is big enough.
+     */
+    private static byte[] acquireBuffer(int minSize) {
+        synchronized (sBufferPool) {
+            byte[] pooled = sBufferPool.peekFirst();
+            if (pooled != null && pooled.length >= minSize) {
+                return sBufferPool.pollFirst();
+            }
+        }
+        return new byte[minSize];
+    }
+
+    /**
+     * Hands a buffer back to the pool so that the next response can reuse it.
+     */
+    private static void releaseBuffer(byte[] buffer) {
+        if (buffer.length > MAX_POOLED_BUFFER_BYTES) {
+            return;
+        }
+        synchronized (sBufferPool) {
+            if (sBufferPool.size() < MAX_POOLED_BUFFERS) {
+                /* Keep the largest buffer at the front, where acquireBuffer looks */
+                byte[] first = sBufferPool.peekFirst();
+                if (first == null || buffer.length >= first.length) {
+                    sBufferPool.addFirst(buffer);
+                } else {
+                    sBufferPool.addLast(buffer);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,29 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.utilities;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a response body is larger than we are willing to read. Unlike most IOExceptions,
+ * asking again won't help, as the server will just send us the same body.
+ */
+public class ResponseTooLargeException extends IOException {
+
+    public ResponseTooLargeException(int maxBodyBytes) {
+        super("Response body is larger than " + maxBodyBytes + " bytes");
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.utilities;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * The metrics Sunshine keeps about its syncs, from connecting to the weather server to notifying
+ * the UI that the forecast changed. They cover every sync since the process started and can be
+ * read with
+ * <pre>
+ *     adb shell dumpsys activity provider com.example.android.sunshine/.data.WeatherProvider
+ * </pre>
+ * or from within the app through {@link #dump()}.
+ * <p>
+ * Each stage of a sync records its latency in its own histogram, so a slow sync can be put down
+ * to the network, the parser or the database at a glance.
+ */
+public final class SyncMetrics {
+
+    private static final MetricsRegistry sRegistry = new MetricsRegistry();
+
+    /* Resolving the server's name and opening the connection to it */
+    public static final MetricsRegistry.Histogram CONNECT = sRegistry.histogram("connect");
+    /* From sending the request until the headers of the response arrived */
+    public static final MetricsRegistry.Histogram FIRST_BYTE = sRegistry.histogram("first_byte");
+    /* Waiting on the network for the response body, excluding time spent parsing it */
+    public static final MetricsRegistry.Histogram BODY_READ = sRegistry.histogram("body_read");
+    /* Decoding the JSON, excluding time spent waiting on the network */
+    public static final MetricsRegistry.Histogram PARSE = sRegistry.histogram("parse");
+    /* Deleting the days of the old forecast that weren't part of the new one */
+    public static final MetricsRegistry.Histogram DELETE = sRegistry.histogram("delete");
+    /* Writing one batch of days */
+    public static final MetricsRegistry.Histogram INSERT = sRegistry.histogram("insert");
+    /* Notifying observers that the forecast changed */
+    public static final MetricsRegistry.Histogram NOTIFY = sRegistry.histogram("notify");
+    /* A whole sync of one location, successful or not */
+    public static final MetricsRegistry.Histogram SYNC = sRegistry.histogram("sync");
+    /* From asking a sync to stop until it did */
+    public static final MetricsRegistry.Histogram CANCEL = sRegistry.histogram("cancel");
+    /* Copying the database's write-ahead log back into it after a sync */
+    public static final MetricsRegistry.Histogram CHECKPOINT = sRegistry.histogram("checkpoint");
+    /* Compacting the forecast history */
+    public static final MetricsRegistry.Histogram COMPACT = sRegistry.histogram("compact");
+    /* Keeping the database within its storage budget, vacuum included */
+    public static final MetricsRegistry.Histogram VACUUM = sRegistry.histogram("vacuum");
+
+    public static final MetricsRegistry.Counter FULL_RESPONSES =
+            sRegistry.counter("full_responses");
+    public static final MetricsRegistry.Counter NOT_MODIFIED_RESPONSES =
+            sRegistry.counter("not_modified_responses");
+    /* Response body bytes we didn't download thanks to 304s */
+    public static final MetricsRegistry.Counter BYTES_SAVED = sRegistry.counter("bytes_saved");
+    public static final MetricsRegistry.Counter BYTES_READ = sRegistry.counter("bytes_read");
+    public static final MetricsRegistry.Counter SYNCS_FAILED = sRegistry.counter("syncs_failed");
+    /* Syncs that joined one already in progress for the same location instead of running */
+    public static final MetricsRegistry.Counter SYNCS_COALESCED =
+            sRegistry.counter("syncs_coalesced");
+    public static final MetricsRegistry.Counter SYNC_RETRIES = sRegistry.counter("sync_retries");
+    /* Rows of weather stored, and days left alone because they hadn't changed, once committed */
+    public static final MetricsRegistry.Counter ROWS_WRITTEN = sRegistry.counter("rows_written");
+    public static final MetricsRegistry.Counter ROWS_SKIPPED = sRegistry.counter("rows_skipped");
+    public static final MetricsRegistry.Counter ROWS_DELETED = sRegistry.counter("rows_deleted");
+    /* Replaced days copied into the history table, and history rows compacted away */
+    public static final MetricsRegistry.Counter HISTORY_ROWS_ARCHIVED =
+            sRegistry.counter("history_rows_archived");
+    public static final MetricsRegistry.Counter HISTORY_ROWS_COMPACTED =
+            sRegistry.counter("history_rows_compacted");
+    /* Bytes the database file shrank by, and locations evicted to fit the storage budget */
+    public static final MetricsRegistry.Counter STORAGE_BYTES_RECLAIMED =
+            sRegistry.counter("storage_bytes_reclaimed");
+    public static final MetricsRegistry.Counter STORAGE_LOCATIONS_EVICTED =
+            sRegistry.counter("storage_locations_evicted");
+
+    public static final MetricsRegistry.Gauge SYNCS_RUNNING = sRegistry.gauge("syncs_running");
+    /* The size of the database file, and how much of it is free pages, when last maintained */
+    public static final MetricsRegistry.Gauge DATABASE_BYTES = sRegistry.gauge("database_bytes");
+    public static final MetricsRegistry.Gauge DATABASE_FREE_BYTES =
+            sRegistry.gauge("database_free_bytes");
+
+    private SyncMetrics() {
+    }
+
+    /**
+     * @param writer Where to write every sync metric, one per line
+     */
+    public static void dump(PrintWriter writer) {
+        sRegistry.dump(writer);
+    }
+
+    /**
+     * @return Every sync metric as text, one per line
+     */
+    public static String dump() {
+        StringWriter text = new StringWriter();
+        dump(new PrintWriter(text));
+        return text.toString();
+    }
+
+    /**
+     * Sets every sync metric back to zero.
+     */
+    public static void reset() {
+        sRegistry.reset();
+    }
+}